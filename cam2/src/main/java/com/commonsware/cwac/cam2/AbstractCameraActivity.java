@@ -143,6 +143,14 @@ abstract public class AbstractCameraActivity extends AppCompatActivity {
     public static final String EXTRA_ORIENTATION_LOCK_MODE =
             "cwac_cam2_olock_mode";
 
+    /**
+     * Extra name for indicating that the preview size should
+     * step down if the device cannot keep up with it. Defaults
+     * to false.
+     */
+    public static final String EXTRA_ADAPTIVE_PREVIEW_SIZE =
+            "cwac_cam2_adaptive_preview_size";
+
     /**
      * @return true if the activity wants FEATURE_ACTION_BAR_OVERLAY,
      * false otherwise
@@ -387,6 +395,10 @@ abstract public class AbstractCameraActivity extends AppCompatActivity {
                 new CameraController(focusMode, onError,
                         allowChangeFlashMode, isVideo());
 
+        if (getIntent().getBooleanExtra(EXTRA_ADAPTIVE_PREVIEW_SIZE, false)) {
+            ctrl.setPreviewSizeAdvisor(new PreviewSizeAdvisor(this));
+        }
+
         cameraFrag.setController(ctrl);
         cameraFrag
                 .setMirrorPreview(getIntent()
@@ -787,5 +799,18 @@ abstract public class AbstractCameraActivity extends AppCompatActivity {
 
             return ((T) this);
         }
+
+        /**
+         * Call if the preview should drop to a smaller size when
+         * the device cannot show the chosen one at a decent frame
+         * rate. The smaller size is remembered for next time.
+         *
+         * @return the builder, for further configuration
+         */
+        public T adaptivePreviewSize() {
+            result.putExtra(EXTRA_ADAPTIVE_PREVIEW_SIZE, true);
+
+            return ((T) this);
+        }
     }
 }
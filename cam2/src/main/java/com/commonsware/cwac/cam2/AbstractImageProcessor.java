@@ -16,7 +16,8 @@ package com.commonsware.cwac.cam2;
 
 import android.content.Context;
 
-abstract public class AbstractImageProcessor implements ImageProcessor {
+abstract public class AbstractImageProcessor
+  implements StagedImageProcessor {
   private final String tag;
   private final Context ctxt;
 
@@ -34,6 +35,18 @@ abstract public class AbstractImageProcessor implements ImageProcessor {
     return(tag==null ? getClass().getCanonicalName() : tag);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Defaults to MUTATE_PIXELS, which keeps the processor in
+   * order with the rest of the chain. Override this to allow
+   * the processor to run alongside others.
+   */
+  @Override
+  public Access getAccess() {
+    return(Access.MUTATE_PIXELS);
+  }
+
   protected Context getContext() {
     return(ctxt);
   }
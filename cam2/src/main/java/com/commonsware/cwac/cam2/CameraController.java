@@ -15,15 +15,19 @@
 package com.commonsware.cwac.cam2;
 
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ResultReceiver;
 import android.view.View;
 
 import com.commonsware.cwac.cam2.plugin.FlashModePlugin;
 import com.commonsware.cwac.cam2.plugin.FocusModePlugin;
+import com.commonsware.cwac.cam2.plugin.FrameAnalyzerPlugin;
 import com.commonsware.cwac.cam2.plugin.OrientationPlugin;
 import com.commonsware.cwac.cam2.plugin.SizeAndFormatPlugin;
 import com.commonsware.cwac.cam2.util.Size;
@@ -34,6 +38,8 @@ import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.greenrobot.event.EventBus;
 
@@ -42,6 +48,8 @@ import de.greenrobot.event.EventBus;
  * by CameraFragment or the equivalent.
  */
 public class CameraController implements CameraView.StateCallback {
+    private static final long PREVIEW_RATE_CHECK_MS = 500;
+    private static final int THUMBNAIL_MAX_SIZE = 512;
     private final boolean allowChangeFlashMode;
     private CameraEngine engine;
     private CameraSession session;
@@ -58,6 +66,37 @@ public class CameraController implements CameraView.StateCallback {
     private int zoomLevel = 0;
     private int quality = 0;
     private final ResultReceiver onError;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private FrameQualityAnalyzer steadyAnalyzer;
+    private long steadyTimeoutMs;
+    private PreviewSizeAdvisor previewSizeAdvisor;
+    private boolean resizePending = false;
+    private final EngineListener engineListener = new SimpleEngineListener() {
+        @Override
+        public void onCameraDescriptors(CameraEngine.CameraDescriptorsEvent event) {
+            handleCameraDescriptors(event);
+        }
+
+        @Override
+        public void onOpened(CameraEngine.OpenedEvent event) {
+            handleOpened(event);
+        }
+
+        @Override
+        public void onClosed(CameraEngine.ClosedEvent event) {
+            handleClosed(event);
+        }
+
+        @Override
+        public void onOrientationChanged(CameraEngine.OrientationChangedEvent event) {
+            handleOrientationChanged(event);
+        }
+
+        @Override
+        public void onDeepImpact(CameraEngine.DeepImpactEvent event) {
+            handleDeepImpact(event);
+        }
+    };
 
     public CameraController(FocusMode focusMode,
                             ResultReceiver onError,
@@ -89,11 +128,68 @@ public class CameraController implements CameraView.StateCallback {
     public void setEngine(CameraEngine engine, CameraSelectionCriteria criteria) {
         this.engine = engine;
 
+        engine.addListener(engineListener, CameraEngine.MAIN_THREAD);
         EventBus.getDefault().register(this);
 
         engine.loadCameraDescriptors(criteria);
     }
 
+    /**
+     * OrientationPlugin(ctxt, true), and an ImageContext with no
+     * engine, still post straight to the default EventBus, so
+     * those events never reach engineListener; pick them up here.
+     * Events that the engine posted to the bus have reached
+     * engineListener already, so those are skipped.
+     */
+    @SuppressWarnings("unused")
+    public void onEvent(final CameraEngine.OrientationChangedEvent event) {
+        if (!engine.isPostingToBus()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleOrientationChanged(event);
+                }
+            });
+        }
+    }
+
+    /**
+     * See onEvent(OrientationChangedEvent).
+     */
+    @SuppressWarnings("unused")
+    public void onEvent(final CameraEngine.DeepImpactEvent event) {
+        if (!engine.isPostingToBus()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleDeepImpact(event);
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers a listener for the engine's events. Must be
+     * called after setEngine().
+     *
+     * @param listener the listener to add
+     * @param executor where to call the listener, or null to
+     *                 call it on whatever thread the engine
+     *                 posted the event from
+     */
+    public void addListener(EngineListener listener, Executor executor) {
+        engine.addListener(listener, executor);
+    }
+
+    /**
+     * Unregisters a listener added by addListener().
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(EngineListener listener) {
+        engine.removeListener(listener);
+    }
+
     public int getNumberOfCameras() {
         return (cameras == null ? 0 : cameras.size());
     }
@@ -121,13 +217,24 @@ public class CameraController implements CameraView.StateCallback {
      * the camera preview to stop.
      */
     public void stop() throws Exception {
+        stop(false);
+    }
+
+    /**
+     * Stops the camera preview, as with stop(). If the host is
+     * finishing, the camera is released right away, rather than
+     * kept open for a quick reopen.
+     *
+     * @param isFinishing true if the host is going away for good
+     */
+    public void stop(boolean isFinishing) throws Exception {
         if (session != null) {
             stopVideoRecording(true);
 
             CameraSession temp = session;
 
             session = null;
-            engine.close(temp);
+            engine.close(temp, isFinishing);
             // session.destroy(); -- moved into engines
         }
     }
@@ -140,7 +247,11 @@ public class CameraController implements CameraView.StateCallback {
      */
     public void destroy() {
         EventBus.getDefault().post(new ControllerDestroyedEvent(this));
-        EventBus.getDefault().unregister(this);
+
+        if (engine != null) {
+            engine.removeListener(engineListener);
+            EventBus.getDefault().unregister(this);
+        }
     }
 
     /**
@@ -209,12 +320,97 @@ public class CameraController implements CameraView.StateCallback {
      */
     public void takePicture(PictureTransaction xact) {
         if (session != null) {
-            engine.takePicture(session, xact);
+            if (steadyAnalyzer == null) {
+                engine.takePicture(session, xact);
+            } else {
+                takePictureWhenSteady(session, xact);
+            }
+        }
+    }
+
+    /**
+     * Turns on "capture when sharp and steady": takePicture()
+     * waits until the preview has been sharp and still for a few
+     * frames, per the analyzer's thresholds, or until the timeout,
+     * whichever comes first. Takes effect with the next session
+     * opened, as the analyzer needs to be added to it.
+     *
+     * @param analyzer the analyzer to judge frames with, or null
+     *                 to take pictures right away
+     * @param timeoutMs the longest to wait for a steady frame
+     */
+    public void setCaptureWhenSteady(FrameQualityAnalyzer analyzer,
+                                     long timeoutMs) {
+        this.steadyAnalyzer = analyzer;
+        this.steadyTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Turns on adaptive preview sizes: after opening a camera, the
+     * controller measures the preview frame rate, and if it is
+     * too slow, reopens the camera with the next smaller preview
+     * size of the same shape. The advisor remembers the size that
+     * worked, so later sessions start with it. Takes effect with
+     * the next session opened.
+     *
+     * @param advisor the advisor to measure and remember with, or
+     *                null to always use the size that best fits
+     *                the CameraView
+     */
+    public void setPreviewSizeAdvisor(PreviewSizeAdvisor advisor) {
+        this.previewSizeAdvisor = advisor;
+    }
+
+    private void takePictureWhenSteady(final CameraSession current,
+                                       final PictureTransaction xact) {
+        final FrameQualityAnalyzer analyzer = steadyAnalyzer;
+        final AtomicBoolean isTaken = new AtomicBoolean(false);
+        final Runnable take = new Runnable() {
+            @Override
+            public void run() {
+                if (session == current) {
+                    engine.takePicture(current, xact);
+                }
+            }
+        };
+        final Runnable trigger = new Runnable() {
+            @Override
+            public void run() {
+                if (isTaken.compareAndSet(false, true)) {
+                    analyzer.cancelWhenSteady(this);
+                    handler.removeCallbacks(this);
+                    handler.post(take);
+                }
+            }
+        };
+
+        analyzer.whenSteady(trigger);
+        handler.postDelayed(trigger, steadyTimeoutMs);
+    }
+
+    /**
+     * Takes a burst of pictures, in accordance with the details
+     * supplied in the PictureTransaction. Subscribe to the
+     * PictureTakenEvent to get each of the pictures, in order.
+     *
+     * @param xact a PictureTransaction describing what should be taken
+     * @param count how many pictures to take
+     * @param intervalMs minimum time between pictures, in
+     *                   milliseconds, or 0 for as fast as possible
+     * @see CameraEngine#takeBurst(CameraSession, PictureTransaction, int, long)
+     */
+    public void takeBurst(PictureTransaction xact, int count,
+                          long intervalMs) {
+        if (session != null) {
+            engine.takeBurst(session, xact, count, intervalMs);
         }
     }
 
     public void recordVideo(VideoTransaction xact) throws Exception {
         if (session != null) {
+            // grab the thumbnail first, as the camera2 engine
+            // briefly stalls the preview to start recording
+            xact.setThumbnail(grabThumbnail());
             engine.recordVideo(session, xact);
             isVideoRecording = true;
         }
@@ -230,6 +426,18 @@ public class CameraController implements CameraView.StateCallback {
         }
     }
 
+    /**
+     * Changes the bitrate of the video being recorded, if the
+     * engine supports that.
+     *
+     * @param bitsPerSecond the new target bitrate
+     * @return true if the bitrate was changed, false otherwise
+     */
+    public boolean setVideoBitrate(int bitsPerSecond) {
+        return (session != null && isVideoRecording &&
+                engine.setVideoBitrate(session, bitsPerSecond));
+    }
+
     public void setQuality(int quality) {
         this.quality = quality;
     }
@@ -278,6 +486,31 @@ public class CameraController implements CameraView.StateCallback {
         return (engine.zoomTo(session, zoomLevel));
     }
 
+    /**
+     * @return the current preview frame, scaled down to at most
+     * THUMBNAIL_MAX_SIZE on its longer side, or null if there
+     * is no preview to grab; must be called on the main
+     * application thread
+     */
+    private Bitmap grabThumbnail() {
+        if (cameras == null) {
+            return (null);
+        }
+
+        CameraView cv = getPreview(cameras.get(currentCamera));
+
+        if (cv == null || !cv.isAvailable() ||
+                cv.getWidth() == 0 || cv.getHeight() == 0) {
+            return (null);
+        }
+
+        float scale = Math.min(1.0f, (float) THUMBNAIL_MAX_SIZE /
+                Math.max(cv.getWidth(), cv.getHeight()));
+
+        return (cv.getBitmap(Math.max(1, Math.round(cv.getWidth() * scale)),
+                Math.max(1, Math.round(cv.getHeight() * scale))));
+    }
+
     private CameraView getPreview(CameraDescriptor camera) {
         CameraView result = previews.get(camera);
 
@@ -315,6 +548,12 @@ public class CameraController implements CameraView.StateCallback {
             if (camera != null && cv.getWidth() > 0 && cv.getHeight() > 0) {
                 previewSize = Utils.chooseOptimalSize(camera.getPreviewSizes(),
                         cv.getWidth(), cv.getHeight(), pictureSize);
+
+                if (previewSizeAdvisor != null) {
+                    previewSize = previewSizeAdvisor.choose(
+                            engine.getCameraKey(camera),
+                            camera.getPreviewSizes(), previewSize);
+                }
             }
 
             SurfaceTexture texture = cv.getSurfaceTexture();
@@ -327,14 +566,20 @@ public class CameraController implements CameraView.StateCallback {
 
                 flashModePlugin = new FlashModePlugin();
 
-                session = engine
+                CameraSession.Builder builder = engine
                         .buildSession(cv.getContext(), camera)
                         .addPlugin(new SizeAndFormatPlugin(previewSize,
                                 pictureSize, ImageFormat.JPEG))
                         .addPlugin(new OrientationPlugin(cv.getContext(), false /* Disable orientation change events */))
                         .addPlugin(new FocusModePlugin(cv.getContext(), focusMode, isVideo))
-                        .addPlugin(flashModePlugin)
-                        .build();
+                        .addPlugin(flashModePlugin);
+
+                if (steadyAnalyzer != null) {
+                    builder.addPlugin(new FrameAnalyzerPlugin(cv.getContext(),
+                            steadyAnalyzer));
+                }
+
+                session = builder.build();
 
                 session.setPreviewSize(previewSize);
                 engine.open(session, texture);
@@ -342,29 +587,84 @@ public class CameraController implements CameraView.StateCallback {
         }
     }
 
-    @SuppressWarnings("unused")
-    public void onEventMainThread(CameraEngine.CameraDescriptorsEvent event) {
+    private void handleCameraDescriptors(CameraEngine.CameraDescriptorsEvent event) {
         if (event.exception != null) {
             postError(ErrorConstants.ERROR_LIST_CAMERAS, event.exception);
         }
 
         if (event.descriptors.size() > 0) {
             cameras = event.descriptors;
+
+            // get the camera opening while the CameraView sets up
+            if (session == null) {
+                engine.prewarm(cameras.get(currentCamera));
+            }
+
             EventBus.getDefault().post(new ControllerReadyEvent(this, cameras.size()));
         } else {
             EventBus.getDefault().post(new NoSuchCameraEvent());
         }
     }
 
-    @SuppressWarnings("unused")
-    public void onEventMainThread(CameraEngine.OpenedEvent event) {
+    private void handleOpened(CameraEngine.OpenedEvent event) {
         if (event.exception != null) {
             // handled at fragment level
         } else {
             adjustPreview();
+
+            if (previewSizeAdvisor != null && session != null) {
+                checkPreviewRate(session, previewSizeAdvisor);
+            }
         }
     }
 
+    private void checkPreviewRate(final CameraSession measured,
+                                  final PreviewSizeAdvisor advisor) {
+        final String cameraKey = engine.getCameraKey(measured.getDescriptor());
+        final FrameRateMonitor monitor =
+                getPreview(measured.getDescriptor()).getFrameRateMonitor();
+        final FrameRateMonitor cameraMonitor = engine.getPreviewFrameRate();
+
+        if (cameraKey == null) {
+            return; // could not remember a smaller size anyway
+        }
+
+        monitor.reset();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (session != measured) {
+                    return;
+                }
+
+                FrameRateMonitor.Stats stats = monitor.getStats();
+                FrameRateMonitor.Stats cameraStats = cameraMonitor.getStats();
+
+                // only a view lagging the camera calls for a smaller
+                // preview; a camera that is slow on its own (e.g., in
+                // low light) would be just as slow at any size
+                if (!advisor.isMeasured(stats) || !advisor.isMeasured(cameraStats)) {
+                    handler.postDelayed(this, PREVIEW_RATE_CHECK_MS);
+                } else if (advisor.isTooSlow(stats, cameraStats) && !isVideoRecording) {
+                    Size smaller = advisor.stepDown(cameraKey,
+                            measured.getDescriptor().getPreviewSizes(),
+                            measured.getPreviewSize());
+
+                    if (smaller != null) {
+                        resizePending = true;
+
+                        try {
+                            stop();
+                        } catch (Exception e) {
+                            resizePending = false;
+                            postError(ErrorConstants.ERROR_CLOSE_CAMERA, e);
+                        }
+                    }
+                }
+            }
+        }, PREVIEW_RATE_CHECK_MS);
+    }
+
     public void adjustPreview() {
         CameraDescriptor camera = cameras.get(currentCamera);
         if (camera == null) {
@@ -394,8 +694,7 @@ public class CameraController implements CameraView.StateCallback {
         }
     }
 
-    @SuppressWarnings("unused")
-    public void onEventMainThread(CameraEngine.ClosedEvent event) {
+    private void handleClosed(CameraEngine.ClosedEvent event) {
         if (event.exception != null) {
             postError(ErrorConstants.ERROR_CLOSE_CAMERA, event.exception);
             EventBus.getDefault().post(new NoSuchCameraEvent());
@@ -406,19 +705,20 @@ public class CameraController implements CameraView.StateCallback {
                 getPreview(cameras.get(currentCamera))
                         .setVisibility(View.VISIBLE);
                 open();
+            } else if (resizePending) {
+                resizePending = false;
+                open();
             }
         }
     }
 
-    @SuppressWarnings("unused")
-    public void onEventMainThread(CameraEngine.OrientationChangedEvent event) {
+    private void handleOrientationChanged(CameraEngine.OrientationChangedEvent event) {
         if (engine != null) {
             engine.handleOrientationChange(session, event);
         }
     }
 
-    @SuppressWarnings("unused")
-    public void onEventMainThread(CameraEngine.DeepImpactEvent event) {
+    private void handleDeepImpact(CameraEngine.DeepImpactEvent event) {
         postError(ErrorConstants.ERROR_MISC, event.exception);
     }
 
@@ -15,14 +15,24 @@
 package com.commonsware.cwac.cam2;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import com.commonsware.cwac.cam2.video.FastStart;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import de.greenrobot.event.EventBus;
@@ -33,16 +43,65 @@ import de.greenrobot.event.EventBus;
  * android.hardware.camera2.*).
  */
 abstract public class CameraEngine {
-  private static final int CORE_POOL_SIZE=1;
-  private static final int MAX_POOL_SIZE=Runtime.getRuntime().availableProcessors();
+  // ThreadPoolExecutor only grows past the core size when the
+  // queue refuses work, which an unbounded queue never does, so
+  // the core size has to be the real size
+  private static final int POOL_SIZE=
+    Math.max(2, Runtime.getRuntime().availableProcessors());
   private static final int KEEP_ALIVE_SECONDS=60;
+
+  /**
+   * Default for setCloseGracePeriod(), long enough to ride out
+   * a configuration change
+   */
+  public static final long DEFAULT_CLOSE_GRACE_PERIOD_MS=2000;
+
+  /**
+   * How long a camera opened by prewarm() stays open if nobody
+   * calls open() for it
+   */
+  protected static final long PREWARM_IDLE_MILLIS=5000;
+
+  /**
+   * Executor for addListener() that delivers on the main
+   * application thread, directly if the event was posted from
+   * that thread, like EventBus' onEventMainThread()
+   */
+  public static final Executor MAIN_THREAD=new Executor() {
+    private final Handler handler=new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+      if (Looper.myLooper()==Looper.getMainLooper()) {
+        command.run();
+      }
+      else {
+        handler.post(command);
+      }
+    }
+  };
+
+  private static final Registration[] NO_LISTENERS=new Registration[0];
   private static volatile CameraEngine singletonClassic=null;
   private static volatile CameraEngine singletonTwo=null;
-  private EventBus bus=EventBus.getDefault();
+  private volatile EventBus bus=EventBus.getDefault();
+  private volatile Registration[] listeners=NO_LISTENERS;
+  private final ThreadLocal<Boolean> isPostingToBus=new ThreadLocal<Boolean>();
   private boolean isDebug=false;
   private LinkedBlockingQueue<Runnable> queue=new LinkedBlockingQueue<Runnable>();
   private ThreadPoolExecutor pool;
+  private ThreadPoolExecutor framePool;
+  private ScheduledThreadPoolExecutor captureTimer;
+  private final CopyOnWriteArrayList<PreviewFrame.Consumer> frameConsumers=
+    new CopyOnWriteArrayList<PreviewFrame.Consumer>();
   private File savePreviewFile=null;
+  private long closeGracePeriod=DEFAULT_CLOSE_GRACE_PERIOD_MS;
+  private CaptureScheduler captureScheduler=new CaptureScheduler();
+  private volatile EngineMetrics metrics=new EngineMetrics();
+  private final FrameRateMonitor previewFrameRate=new FrameRateMonitor();
+  private final ArrayDeque<Runnable> videoFinishers=
+    new ArrayDeque<Runnable>();
+  private boolean isFinishingVideo=false;
   protected List<FlashMode> preferredFlashModes;
   protected ArrayList<FlashMode> eligibleFlashModes=
     new ArrayList<FlashMode>();
@@ -107,12 +166,40 @@ abstract public class CameraEngine {
    * an exception accessing the camera.
    */
   public static class OpenedEvent extends CrashableEvent {
+    private final long openDuration;
+    private final boolean isWarm;
+
     public OpenedEvent() {
+      this(-1, false);
+    }
+
+    public OpenedEvent(long openDuration, boolean isWarm) {
       super();
+      this.openDuration=openDuration;
+      this.isWarm=isWarm;
     }
 
     public OpenedEvent(Exception exception) {
       super(exception);
+      this.openDuration=-1;
+      this.isWarm=false;
+    }
+
+    /**
+     * @return milliseconds from the open() call to the preview
+     * being up, or -1 if unknown
+     */
+    public long getOpenDuration() {
+      return(openDuration);
+    }
+
+    /**
+     * @return true if the camera was already open, from
+     * prewarm() or a recent close() still in its grace period,
+     * false if it had to be opened from scratch
+     */
+    public boolean isWarm() {
+      return(isWarm);
     }
   }
 
@@ -143,8 +230,100 @@ abstract public class CameraEngine {
     }
   }
 
-  public static class OrientationChangedEvent {
+  /**
+   * Event raised when the CaptureScheduler discards a picture
+   * that was waiting to be processed, because its queue was
+   * full and its policy is DROP_OLDEST.
+   */
+  public static class CaptureDroppedEvent {
+    private final PictureTransaction xact;
+
+    CaptureDroppedEvent(PictureTransaction xact) {
+      this.xact=xact;
+    }
+
+    public PictureTransaction getPictureTransaction() {
+      return(xact);
+    }
+  }
+
+  /**
+   * Event raised each time a picture moves from one CaptureState
+   * to the next, for measuring how long focus, precapture, and
+   * the capture itself take on a given device.
+   */
+  public static class CaptureTraceEvent {
+    private final long shotId;
+    private final CaptureState previous;
+    private final CaptureState state;
+    private final long timestamp;
+    private final long elapsed;
+    private final boolean isTimeout;
+
+    CaptureTraceEvent(long shotId, CaptureState previous,
+                      CaptureState state, long timestamp,
+                      long elapsed, boolean isTimeout) {
+      this.shotId=shotId;
+      this.previous=previous;
+      this.state=state;
+      this.timestamp=timestamp;
+      this.elapsed=elapsed;
+      this.isTimeout=isTimeout;
+    }
+
+    /**
+     * @return identifies the picture (or burst), to tie its
+     * events together
+     */
+    public long getShotId() {
+      return(shotId);
+    }
+
+    /**
+     * @return the state being left
+     */
+    public CaptureState getPreviousState() {
+      return(previous);
+    }
+
+    /**
+     * @return the state being entered
+     */
+    public CaptureState getState() {
+      return(state);
+    }
+
+    /**
+     * @return when the transition happened, in the
+     * SystemClock.elapsedRealtime() timebase
+     */
+    public long getTimestamp() {
+      return(timestamp);
+    }
+
+    /**
+     * @return milliseconds spent in the previous state
+     */
+    public long getElapsed() {
+      return(elapsed);
+    }
+
+    /**
+     * @return true if the previous state timed out, rather than
+     * the camera reporting that it was done
+     */
+    public boolean isTimeout() {
+      return(isTimeout);
+    }
+  }
 
+  public static class OrientationChangedEvent {
+    /**
+     * Shared instance, as the event carries no data and can be
+     * posted at sensor rates
+     */
+    public static final OrientationChangedEvent INSTANCE=
+      new OrientationChangedEvent();
   }
 
   public static class SmoothZoomCompletedEvent {
@@ -159,6 +338,7 @@ abstract public class CameraEngine {
   public static class PictureTakenEvent extends CrashableEvent {
     private ImageContext imageContext;
     private PictureTransaction xact;
+    private ImagePipeline pipeline;
 
     public PictureTakenEvent(PictureTransaction xact,
                              ImageContext imageContext) {
@@ -167,7 +347,12 @@ abstract public class CameraEngine {
       this.imageContext=imageContext;
     }
 
-    public PictureTakenEvent(Exception exception) {
+    PictureTakenEvent(ImagePipeline pipeline) {
+      this(pipeline.getTransaction(), pipeline.getImageContext());
+      this.pipeline=pipeline;
+    }
+
+    public PictureTakenEvent(Throwable exception) {
       super(exception);
     }
 
@@ -178,6 +363,15 @@ abstract public class CameraEngine {
     public PictureTransaction getPictureTransaction() {
       return(xact);
     }
+
+    /**
+     * @return the pipeline that processed the picture, whose
+     * stage Futures report on any READ processors still running,
+     * or null if the picture did not go through a pipeline
+     */
+    public ImagePipeline getPipeline() {
+      return(pipeline);
+    }
   }
 
   /**
@@ -200,6 +394,63 @@ abstract public class CameraEngine {
     public VideoTransaction getVideoTransaction() {
       return(xact);
     }
+
+    /**
+     * @return a frame of the preview from when the recording
+     * started, suitable for showing in place of the video
+     * without decoding it, or null if there is none
+     */
+    public Bitmap getThumbnail() {
+      return(xact==null ? null : xact.getThumbnail());
+    }
+  }
+
+  /**
+   * Event raised during a segmented recording (see
+   * VideoTransaction.Builder.segmentDuration()), each time a
+   * segment file is complete and can be used, such as to upload
+   * it while the recording continues. The last segment is
+   * raised just before the VideoTakenEvent.
+   */
+  public static class VideoSegmentEvent {
+    private final VideoTransaction xact;
+    private final int index;
+    private final File file;
+    private final boolean isLast;
+
+    public VideoSegmentEvent(VideoTransaction xact, int index,
+                             File file, boolean isLast) {
+      this.xact=xact;
+      this.index=index;
+      this.file=file;
+      this.isLast=isLast;
+    }
+
+    public VideoTransaction getVideoTransaction() {
+      return(xact);
+    }
+
+    /**
+     * @return the position of this segment in the recording,
+     * starting at 0
+     */
+    public int getIndex() {
+      return(index);
+    }
+
+    /**
+     * @return the finished segment file
+     */
+    public File getFile() {
+      return(file);
+    }
+
+    /**
+     * @return true if this is the final segment of the recording
+     */
+    public boolean isLast() {
+      return(isLast);
+    }
   }
 
   /**
@@ -276,6 +527,29 @@ abstract public class CameraEngine {
   abstract public void open(CameraSession session,
                             SurfaceTexture texture);
 
+  /**
+   * Opens the camera ahead of an open() call, so that open()
+   * only has to start the preview. Call this as early as you
+   * know which camera you will want, such as when the hosting
+   * screen appears. If open() is not called within a few
+   * seconds, the camera is closed again.
+   *
+   * @param descriptor the camera that will be opened
+   */
+  public void prewarm(CameraDescriptor descriptor) {
+    // default: nothing to do
+  }
+
+  /**
+   * @param descriptor a camera from this engine
+   * @return a string identifying that camera from one run of
+   * the app to the next, suitable for keying saved settings, or
+   * null if the engine has no stable ID for it
+   */
+  public String getCameraKey(CameraDescriptor descriptor) {
+    return(null);
+  }
+
   /**
    * Close the open camera. Subscribe to the ClosedEvent to
    * find out when this work is completed. Note that this
@@ -283,7 +557,21 @@ abstract public class CameraEngine {
    *
    * @param session the session for the camera of interest
    */
-  abstract public void close(CameraSession session);
+  public void close(CameraSession session) {
+    close(session, false);
+  }
+
+  /**
+   * Close the open camera, as with close(CameraSession). If the
+   * host is finishing, the camera will not be reopened, so it is
+   * released right away rather than held for the close grace
+   * period.
+   *
+   * @param session the session for the camera of interest
+   * @param isFinishing true if the host is going away for good
+   */
+  abstract public void close(CameraSession session,
+                             boolean isFinishing);
 
   /**
    * Take a picture, on the supplied camera, using the picture
@@ -297,12 +585,49 @@ abstract public class CameraEngine {
   abstract public void takePicture(CameraSession session,
                                    PictureTransaction xact);
 
+  /**
+   * Take a burst of pictures, on the supplied camera, using the
+   * picture configuration from the supplied transaction. Focus
+   * and exposure are settled once, up front, and held for the
+   * rest of the burst. Each frame goes through the transaction's
+   * ImageProcessor chain on its own, and posts its own
+   * PictureTakenEvent; ImageContext.getBurstIndex() says which
+   * frame it is.
+   * <p/>
+   * With an interval of 0, frames arrive as fast as the camera
+   * can deliver them, which a BLOCK CaptureScheduler cannot
+   * hold off. For long bursts, use a non-zero interval or a
+   * DROP_OLDEST or SPILL_TO_DISK scheduler.
+   *
+   * @param session the session for the camera of interest
+   * @param xact the configuration of the pictures to take
+   * @param count how many pictures to take, at least 1
+   * @param intervalMs minimum time between pictures, in
+   *                   milliseconds, or 0 for as fast as possible
+   */
+  abstract public void takeBurst(CameraSession session,
+                                 PictureTransaction xact,
+                                 int count, long intervalMs);
+
   abstract public void recordVideo(CameraSession session,
       VideoTransaction xact) throws Exception;
 
   abstract public void stopVideoRecording(CameraSession session,
                                           boolean abandon) throws Exception;
 
+  /**
+   * Changes the bitrate of the video being recorded, for engines
+   * that can do that mid-recording.
+   *
+   * @param session the session that is recording
+   * @param bitsPerSecond the new target bitrate
+   * @return true if the bitrate was changed, false otherwise
+   */
+  public boolean setVideoBitrate(CameraSession session,
+                                 int bitsPerSecond) {
+    return(false);
+  }
+
   abstract public void handleOrientationChange(CameraSession session,
                                                OrientationChangedEvent event);
 
@@ -372,21 +697,229 @@ abstract public class CameraEngine {
 
   /**
    * Sets the event bus to use, where the default is the
-   * default event bus supplied by the EventBus class.
+   * default event bus supplied by the EventBus class. Pass null
+   * to only deliver events to listeners registered with
+   * addListener().
    *
-   * @param bus the bus to use for events
+   * @param bus the bus to use for events, or null for none
    */
   public void setBus(EventBus bus) {
     this.bus=bus;
   }
 
   /**
-   * @return the bus to use for events
+   * @return the bus to use for events, or null if events only
+   * go to listeners
    */
   public EventBus getBus() {
     return(bus);
   }
 
+  /**
+   * Registers a listener for this engine's events. Events are
+   * delivered to listeners before they are posted to the bus.
+   *
+   * @param listener the listener to add
+   * @param executor where to call the listener, such as
+   *                 MAIN_THREAD, or null to call it directly on
+   *                 whatever thread posted the event
+   */
+  public void addListener(EngineListener listener, Executor executor) {
+    if (listener==null) {
+      throw new IllegalArgumentException("listener cannot be null");
+    }
+
+    synchronized(this) {
+      Registration[] current=listeners;
+      Registration[] result=new Registration[current.length+1];
+
+      System.arraycopy(current, 0, result, 0, current.length);
+      result[current.length]=new Registration(listener, executor);
+      listeners=result;
+    }
+  }
+
+  /**
+   * Unregisters a listener added by addListener(). Events
+   * already handed to the listener's executor may still arrive.
+   *
+   * @param listener the listener to remove
+   */
+  synchronized public void removeListener(EngineListener listener) {
+    Registration[] current=listeners;
+
+    for (int i=0;i<current.length;i++) {
+      if (current[i].listener==listener) {
+        Registration[] result=new Registration[current.length-1];
+
+        System.arraycopy(current, 0, result, 0, i);
+        System.arraycopy(current, i+1, result, i, result.length-i);
+        listeners=(result.length==0 ? NO_LISTENERS : result);
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Delivers an event to the registered listeners, then posts it
+   * to the bus, if there is one. Engines (and plugins working
+   * on their behalf) use this rather than posting to the bus
+   * directly.
+   *
+   * @param event the event to deliver
+   */
+  public void post(Object event) {
+    Registration[] current=listeners;
+
+    for (Registration registration : current) {
+      registration.dispatch(event);
+    }
+
+    EventBus target=bus;
+
+    if (target!=null) {
+      isPostingToBus.set(Boolean.TRUE);
+
+      try {
+        target.post(event);
+      }
+      finally {
+        isPostingToBus.remove();
+      }
+    }
+  }
+
+  /**
+   * Lets a bus subscriber tell events this engine posted, which
+   * its listeners already have, from ones posted straight to the
+   * bus. Only meaningful from a subscriber called on the posting
+   * thread (i.e., onEvent()).
+   *
+   * @return true if this thread is inside post(), posting to
+   * the bus
+   */
+  boolean isPostingToBus() {
+    return(isPostingToBus.get()!=null);
+  }
+
+  /**
+   * Raises a VideoSegmentEvent for a finished segment file,
+   * after making it fast start if the transaction asked for
+   * that.
+   *
+   * @param event the event to raise
+   */
+  protected void postVideoSegment(VideoSegmentEvent event) {
+    VideoTransaction xact=event.getVideoTransaction();
+
+    if (xact!=null && xact.isFastStart()) {
+      finishVideo(event.getFile(), event);
+    }
+    else {
+      post(event);
+    }
+  }
+
+  /**
+   * Raises a VideoTakenEvent for a finished recording, after
+   * making the file fast start if the transaction asked for
+   * that. For a segmented recording, postVideoSegment() already
+   * handled the files.
+   *
+   * @param xact the transaction for the recording
+   */
+  protected void postVideoTaken(VideoTransaction xact) {
+    VideoTakenEvent event=new VideoTakenEvent(xact);
+
+    if (xact!=null && xact.isFastStart()) {
+      finishVideo(xact.isSegmented() ? null : xact.getOutputPath(),
+        event);
+    }
+    else {
+      post(event);
+    }
+  }
+
+  /**
+   * Raises a VideoTakenEvent for a recording that failed
+   * partway through, after any of its files that are still
+   * being made fast start.
+   *
+   * @param xact the transaction for the recording
+   * @param e what went wrong
+   */
+  protected void postVideoTaken(VideoTransaction xact, Exception e) {
+    VideoTakenEvent event=new VideoTakenEvent(e);
+
+    if (xact!=null && xact.isFastStart()) {
+      finishVideo(null, event);
+    }
+    else {
+      post(event);
+    }
+  }
+
+  /**
+   * Rewrites the file on the thread pool, then raises the
+   * event. Files are finished one at a time, in order, so a
+   * recording's events still arrive in order.
+   *
+   * @param file the file to rewrite, or null for none
+   * @param event the event to raise once the file is done
+   */
+  private void finishVideo(final File file, final Object event) {
+    Runnable finisher=new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (file!=null) {
+            FastStart.process(file);
+          }
+        }
+        catch (IOException e) {
+          // the file is still playable, just not fast start
+          if (isDebug()) {
+            Log.w(getClass().getSimpleName(),
+              "Exception rewriting "+file, e);
+          }
+        }
+        finally {
+          post(event);
+          startNextVideoFinisher();
+        }
+      }
+    };
+
+    synchronized(videoFinishers) {
+      videoFinishers.add(finisher);
+
+      if (isFinishingVideo) {
+        return;
+      }
+
+      isFinishingVideo=true;
+    }
+
+    startNextVideoFinisher();
+  }
+
+  private void startNextVideoFinisher() {
+    Runnable next;
+
+    synchronized(videoFinishers) {
+      next=videoFinishers.poll();
+
+      if (next==null) {
+        isFinishingVideo=false;
+
+        return;
+      }
+    }
+
+    getThreadPool().execute(next);
+  }
+
   /**
    * Sets whether or not exceptions should be logged, in addition
    * to being included in relevant events. The default is false.
@@ -412,10 +945,31 @@ abstract public class CameraEngine {
     return(savePreviewFile);
   }
 
+  /**
+   * Sets how long the camera stays open after close(), in case
+   * it is opened again right away (e.g., on a configuration
+   * change). The ClosedEvent is still posted right away.
+   *
+   * @param closeGracePeriod the grace period in milliseconds,
+   *                         or 0 to close right away
+   */
+  public void setCloseGracePeriod(long closeGracePeriod) {
+    this.closeGracePeriod=closeGracePeriod;
+  }
+
+  /**
+   * @return how long the camera stays open after close(), in
+   * milliseconds
+   */
+  public long getCloseGracePeriod() {
+    return(closeGracePeriod);
+  }
+
   public ThreadPoolExecutor getThreadPool() {
     if (pool==null) {
-      pool=new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE,
+      pool=new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
           KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue);
+      pool.allowCoreThreadTimeOut(true);
     }
 
     return(pool);
@@ -425,6 +979,238 @@ abstract public class CameraEngine {
     this.pool=pool;
   }
 
+  /**
+   * @return the rate at which the camera delivers preview frames
+   * to the engine. The camera2 engine sees every frame; the
+   * classic engine only sees frames while something consumes
+   * them, such as a FrameAnalyzerPlugin.
+   */
+  public FrameRateMonitor getPreviewFrameRate() {
+    return(previewFrameRate);
+  }
+
+  /**
+   * Registers a consumer of preview frames. Consumers registered
+   * before open() get every frame the engine can keep up with,
+   * on a single background thread. Only the classic engine
+   * produces frames on its own; with camera2, add a
+   * FrameAnalyzerPlugin to the session instead.
+   *
+   * @param consumer the consumer to add
+   */
+  public void addPreviewFrameConsumer(PreviewFrame.Consumer consumer) {
+    frameConsumers.addIfAbsent(consumer);
+  }
+
+  /**
+   * Unregisters a consumer added by addPreviewFrameConsumer().
+   *
+   * @param consumer the consumer to remove
+   */
+  public void removePreviewFrameConsumer(PreviewFrame.Consumer consumer) {
+    frameConsumers.remove(consumer);
+  }
+
+  /**
+   * @return true if anything wants preview frames
+   */
+  protected boolean hasPreviewFrameConsumers() {
+    return(!frameConsumers.isEmpty());
+  }
+
+  /**
+   * Hands a frame to the session's consumers, then to each
+   * registered consumer. Call on the frame executor.
+   *
+   * @param frame the frame
+   * @param sessionConsumers consumers supplied by the session's
+   *                         plugins
+   */
+  protected void deliverPreviewFrame(PreviewFrame frame,
+                                     List<PreviewFrame.Consumer> sessionConsumers) {
+    for (PreviewFrame.Consumer consumer : sessionConsumers) {
+      deliverPreviewFrame(frame, consumer);
+    }
+
+    for (PreviewFrame.Consumer consumer : frameConsumers) {
+      deliverPreviewFrame(frame, consumer);
+    }
+  }
+
+  private void deliverPreviewFrame(PreviewFrame frame,
+                                   PreviewFrame.Consumer consumer) {
+    try {
+      consumer.onPreviewFrame(frame);
+    }
+    catch (RuntimeException e) {
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(),
+          "Exception in preview frame consumer", e);
+      }
+    }
+  }
+
+  /**
+   * @return the executor that preview frames are delivered on:
+   * one thread, rejecting any frame that arrives while it is
+   * busy, so consumers only ever see the latest frame
+   */
+  synchronized protected ThreadPoolExecutor getFrameExecutor() {
+    if (framePool==null) {
+      framePool=new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+      framePool.allowCoreThreadTimeOut(true);
+    }
+
+    return(framePool);
+  }
+
+  /**
+   * @return the timer for shots that need to wait a while
+   * (e.g., the frames of a paced burst), so that no pool thread
+   * sleeps through the wait. Whatever runs on it must not
+   * block.
+   */
+  synchronized protected ScheduledThreadPoolExecutor getCaptureTimer() {
+    if (captureTimer==null) {
+      captureTimer=new ScheduledThreadPoolExecutor(1);
+      captureTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+      captureTimer.allowCoreThreadTimeOut(true);
+    }
+
+    return(captureTimer);
+  }
+
+  /**
+   * Sets the scheduler that bounds how many pictures may be
+   * waiting for, or undergoing, ImageProcessor work. The default
+   * is a CaptureScheduler with its default settings.
+   *
+   * @param captureScheduler the scheduler to use
+   */
+  public void setCaptureScheduler(CaptureScheduler captureScheduler) {
+    this.captureScheduler=captureScheduler;
+  }
+
+  /**
+   * @return the scheduler for pictures awaiting processing
+   */
+  public CaptureScheduler getCaptureScheduler() {
+    return(captureScheduler);
+  }
+
+  /**
+   * @return queue depth, wait times, and drop counts for
+   * pictures awaiting processing
+   */
+  public CaptureScheduler.Stats getCaptureStats() {
+    return(captureScheduler.getStats());
+  }
+
+  /**
+   * Replaces the metrics recorder, e.g., with an EngineMetrics
+   * subclass that forwards the values elsewhere.
+   *
+   * @param metrics the recorder to use
+   */
+  public void setMetrics(EngineMetrics metrics) {
+    if (metrics==null) {
+      throw new IllegalArgumentException("metrics cannot be null");
+    }
+
+    this.metrics=metrics;
+  }
+
+  /**
+   * @return the recorder for timings and sizes from the
+   * engine's hot paths; call getSnapshot() on it to see how
+   * things are going
+   */
+  public EngineMetrics getMetrics() {
+    return(metrics);
+  }
+
+  /**
+   * Engines trigger the shutter through this, so a full capture
+   * queue can hold off the next picture. The shot runs right
+   * away on the calling thread, or later on whichever thread
+   * makes room in the queue; nothing waits in between. So the
+   * shot must not block, and should hand anything slow to the
+   * thread pool.
+   *
+   * @param shot what triggers the shutter
+   */
+  protected void whenCaptureCapacity(Runnable shot) {
+    captureScheduler.whenCapacity(shot);
+  }
+
+  /**
+   * Hands the picture to the CaptureScheduler, which runs the
+   * transaction's ImageProcessor chain on the thread pool and
+   * posts a PictureTakenEvent once the picture is ready.
+   * Engines should call this as soon as they have the JPEG,
+   * rather than processing on their camera callback thread.
+   *
+   * @param xact the transaction for the picture
+   * @param imageContext the picture itself
+   */
+  protected void processPicture(PictureTransaction xact,
+                                ImageContext imageContext) {
+    EngineMetrics current=metrics;
+
+    current.record(EngineMetrics.Metric.JPEG_BYTES,
+      imageContext.getJpeg().length);
+    current.record(EngineMetrics.Metric.POOL_QUEUE_DEPTH,
+      getThreadPool().getQueue().size());
+    imageContext.setMetrics(current);
+    imageContext.setEngine(this);
+    captureScheduler.submit(xact, imageContext, captureHost);
+  }
+
+  private final CaptureScheduler.Host captureHost=
+    new CaptureScheduler.Host() {
+      @Override
+      public Executor getExecutor() {
+        return(getThreadPool());
+      }
+
+      @Override
+      public ImagePipeline.Listener getPictureListener() {
+        return(pictureListener);
+      }
+
+      @Override
+      public void onDropped(PictureTransaction xact) {
+        post(new CaptureDroppedEvent(xact));
+      }
+    };
+
+  private final ImagePipeline.Listener pictureListener=
+    new ImagePipeline.Listener() {
+      @Override
+      public void onImageReady(ImagePipeline pipeline) {
+        post(new PictureTakenEvent(pipeline));
+      }
+
+      @Override
+      public void onFailed(ImagePipeline pipeline, Throwable t) {
+        post(new PictureTakenEvent(t));
+      }
+    };
+
+  /**
+   * Validates takeBurst() parameters for the engines.
+   */
+  static void checkBurst(int count, long intervalMs) {
+    if (count<1) {
+      throw new IllegalArgumentException("count must be at least 1");
+    }
+
+    if (intervalMs<0) {
+      throw new IllegalArgumentException("intervalMs cannot be negative");
+    }
+  }
+
   public void setPreferredFlashModes(List<FlashMode> flashModes) {
     preferredFlashModes=flashModes;
   }
@@ -432,4 +1218,69 @@ abstract public class CameraEngine {
   boolean hasMoreThanOneEligibleFlashMode() {
     return(eligibleFlashModes.size()>1);
   }
+
+  private static class Registration {
+    final EngineListener listener;
+    final Executor executor;
+
+    Registration(EngineListener listener, Executor executor) {
+      this.listener=listener;
+      this.executor=executor;
+    }
+
+    void dispatch(final Object event) {
+      if (executor==null) {
+        deliver(listener, event);
+      }
+      else {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            deliver(listener, event);
+          }
+        });
+      }
+    }
+
+    // most frequent events first
+
+    private static void deliver(EngineListener listener, Object event) {
+      if (event instanceof OrientationChangedEvent) {
+        listener.onOrientationChanged((OrientationChangedEvent)event);
+      }
+      else if (event instanceof CaptureTraceEvent) {
+        listener.onCaptureTrace((CaptureTraceEvent)event);
+      }
+      else if (event instanceof PictureTakenEvent) {
+        listener.onPictureTaken((PictureTakenEvent)event);
+      }
+      else if (event instanceof SmoothZoomCompletedEvent) {
+        listener.onSmoothZoomCompleted((SmoothZoomCompletedEvent)event);
+      }
+      else if (event instanceof CaptureDroppedEvent) {
+        listener.onCaptureDropped((CaptureDroppedEvent)event);
+      }
+      else if (event instanceof OpenedEvent) {
+        listener.onOpened((OpenedEvent)event);
+      }
+      else if (event instanceof ClosedEvent) {
+        listener.onClosed((ClosedEvent)event);
+      }
+      else if (event instanceof VideoTakenEvent) {
+        listener.onVideoTaken((VideoTakenEvent)event);
+      }
+      else if (event instanceof VideoSegmentEvent) {
+        listener.onVideoSegment((VideoSegmentEvent)event);
+      }
+      else if (event instanceof CameraDescriptorsEvent) {
+        listener.onCameraDescriptors((CameraDescriptorsEvent)event);
+      }
+      else if (event instanceof DeepImpactEvent) {
+        listener.onDeepImpact((DeepImpactEvent)event);
+      }
+      else {
+        listener.onOtherEvent(event);
+      }
+    }
+  }
 }
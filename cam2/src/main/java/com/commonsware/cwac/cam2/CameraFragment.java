@@ -19,7 +19,6 @@ import android.animation.AnimatorListenerAdapter;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.app.Fragment;
-import android.content.Context;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
@@ -28,6 +27,7 @@ import android.os.SystemClock;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -35,6 +35,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.OvershootInterpolator;
 import android.widget.Chronometer;
+import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 
@@ -77,6 +78,7 @@ public class CameraFragment extends Fragment {
     private ReverseChronometer reverseChronometer;
     private FloatingActionButton fabSwitchApp;
     private long startTime, endTime;
+    private FrameRateOverlay frameRateOverlay;
 
     public long getRecordingDuration() {
         return endTime - startTime;
@@ -190,7 +192,7 @@ public class CameraFragment extends Fragment {
     public void onPause() {
         if (ctlr != null) {
             try {
-                ctlr.stop();
+                ctlr.stop(getActivity().isFinishing());
             } catch (Exception e) {
                 ctlr.postError(ErrorConstants.ERROR_STOPPING, e);
                 Log.e(getClass().getSimpleName(), "Exception stopping controller", e);
@@ -238,6 +240,7 @@ public class CameraFragment extends Fragment {
         View v = inflater.inflate(R.layout.cwac_cam2_fragment, container, false);
 
         previewStack = (ViewGroup) v.findViewById(R.id.cwac_cam2_preview_stack);
+        frameRateOverlay = null;
 
         progress = v.findViewById(R.id.cwac_cam2_progress);
         fabPicture = (FloatingActionButton) v.findViewById(R.id.cwac_cam2_picture);
@@ -306,7 +309,7 @@ public class CameraFragment extends Fragment {
 
             if (ctlr != null) {
                 try {
-                    ctlr.stop();
+                    ctlr.stop(getActivity().isFinishing());
                 } catch (Exception e) {
                     ctlr.postError(ErrorConstants.ERROR_STOPPING, e);
                     Log.e(getClass().getSimpleName(),
@@ -370,6 +373,12 @@ public class CameraFragment extends Fragment {
             fabPicture.setEnabled(true);
             zoomSlider = (SeekBar) getView().findViewById(R.id.cwac_cam2_zoom);
 
+            if (frameRateOverlay != null) {
+                frameRateOverlay.setMonitors(
+                        ctlr.getEngine().getPreviewFrameRate(),
+                        getVisibleCameraView().getFrameRateMonitor());
+            }
+
             if (ctlr.supportsZoom()) {
                 if (getZoomStyle() == ZoomStyle.PINCH) {
                     previewStack.setOnTouchListener(
@@ -399,19 +408,13 @@ public class CameraFragment extends Fragment {
 
         if (event.exception == null) {
             if (getArguments().getBoolean(ARG_UPDATE_MEDIA_STORE, false)) {
-                final Context app = getActivity().getApplicationContext();
                 Uri output = getArguments().getParcelable(ARG_OUTPUT);
-                final String path = output.getPath();
-
-                new Thread() {
-                    @Override
-                    public void run() {
-                        SystemClock.sleep(2000);
-                        MediaScannerConnection.scanFile(app,
-                                new String[] { path }, new String[] { "video/mp4" },
-                                null);
-                    }
-                }.start();
+
+                // the engines only raise this event once the file
+                // is complete, so there is nothing to wait for
+                MediaScannerConnection.scanFile(getActivity().getApplicationContext(),
+                        new String[] { output.getPath() }, new String[] { "video/mp4" },
+                        null);
             }
 
             isVideoRecording = false;
@@ -580,6 +583,28 @@ public class CameraFragment extends Fragment {
         }
 
         ctlr.setCameraViews(cameraViews);
+
+        if (ctlr.getEngine().isDebug() && frameRateOverlay == null) {
+            frameRateOverlay = new FrameRateOverlay(getActivity());
+            previewStack.addView(frameRateOverlay,
+                    new FrameLayout.LayoutParams(
+                            ViewGroup.LayoutParams.WRAP_CONTENT,
+                            ViewGroup.LayoutParams.WRAP_CONTENT,
+                            Gravity.TOP | Gravity.START));
+        }
+    }
+
+    private CameraView getVisibleCameraView() {
+        for (int i = 0; i < previewStack.getChildCount(); i++) {
+            View child = previewStack.getChildAt(i);
+
+            if (child instanceof CameraView
+                    && child.getVisibility() == View.VISIBLE) {
+                return ((CameraView) child);
+            }
+        }
+
+        return ((CameraView) previewStack.getChildAt(0));
     }
 
     // based on https://goo.gl/3IUM8K
@@ -17,6 +17,9 @@ package com.commonsware.cwac.cam2;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureRequest;
 import android.media.ImageReader;
+import android.view.Surface;
+import com.commonsware.cwac.cam2.video.VideoEncoderConfig;
+import java.util.List;
 
 /**
  * Camera configurator for the CameraTwoEngine, to be used as
@@ -54,4 +57,45 @@ public interface CameraTwoConfigurator extends CameraConfigurator {
   void addToPreviewRequest(CameraSession session,
                            CameraCharacteristics cc,
                            CaptureRequest.Builder captureBuilder);
+
+  /**
+   * Supplies extra Surfaces to be added to the capture session
+   * and to the repeating preview request, so they receive every
+   * preview frame. Called once per session, after the camera is
+   * opened.
+   *
+   * @param session the session being configured
+   * @param cc CameraCharacteristics for the camera being used
+   * @return the Surfaces, or null for none
+   */
+  List<Surface> buildPreviewTargets(CameraSession session,
+                                    CameraCharacteristics cc);
+
+  /**
+   * Offers the plugin a chance to supply a picture from frames
+   * it has already collected, skipping the still capture.
+   *
+   * @param session the session taking the picture
+   * @param shutterNanos when the picture was requested, in
+   *                     SystemClock.elapsedRealtimeNanos() terms
+   * @return JPEG data for the picture, or null to have the
+   * engine take the picture normally
+   */
+  byte[] takeBufferedPicture(CameraSession session, long shutterNanos);
+
+  /**
+   * Sets up the video encoder for a recording. The builder
+   * starts out with the preview size; explicit values in the
+   * VideoTransaction are applied after all plugins have had
+   * their say.
+   *
+   * @param session the session doing the recording
+   * @param cc CameraCharacteristics for the camera being used
+   * @param xact what is to be recorded
+   * @param config the encoder configuration, to be updated
+   */
+  void configureEncoder(CameraSession session,
+                        CameraCharacteristics cc,
+                        VideoTransaction xact,
+                        VideoEncoderConfig.Builder config);
 }
@@ -36,9 +36,15 @@ import android.media.MediaActionSound;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
+import com.commonsware.cwac.cam2.plugin.OrientationPlugin;
 import com.commonsware.cwac.cam2.util.Size;
+import com.commonsware.cwac.cam2.video.SurfaceVideoRecorder;
+import com.commonsware.cwac.cam2.video.VideoEncoderConfig;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -46,9 +52,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import de.greenrobot.event.EventBus;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -59,13 +66,12 @@ import de.greenrobot.event.EventBus;
 public class CameraTwoEngine extends CameraEngine {
   private final Context ctxt;
   private CameraManager mgr;
-  final private HandlerThread handlerThread=new HandlerThread(getClass().getSimpleName(),
-      android.os.Process.THREAD_PRIORITY_BACKGROUND);
-  final private Handler handler;
-  final private Semaphore lock=new Semaphore(1);
-  private CountDownLatch closeLatch=null;
   private MediaActionSound shutter=new MediaActionSound();
-  private List<Descriptor> descriptors=null;
+  private volatile List<Descriptor> descriptors=null;
+  private final DescriptorCache cache;
+  private final AtomicLong shotIds=new AtomicLong();
+  private final int[] timeoutFrames=new int[CaptureState.values().length];
+  private final long[] timeoutMillis=new long[CaptureState.values().length];
 
   /**
    * Standard constructor
@@ -76,8 +82,10 @@ public class CameraTwoEngine extends CameraEngine {
     this.ctxt=ctxt.getApplicationContext();
     mgr=(CameraManager)this.ctxt.
         getSystemService(Context.CAMERA_SERVICE);
-    handlerThread.start();
-    handler=new Handler(handlerThread.getLooper());
+    cache=new DescriptorCache(this.ctxt, "two");
+    setCaptureTimeout(CaptureState.FOCUSING, 45, 1500);
+    setCaptureTimeout(CaptureState.PRECAPTURE_STARTING, 15, 500);
+    setCaptureTimeout(CaptureState.PRECAPTURE_RUNNING, 60, 2000);
     shutter.load(MediaActionSound.SHUTTER_CLICK);
   }
 
@@ -98,47 +106,36 @@ public class CameraTwoEngine extends CameraEngine {
       @Override
       public void run() {
         if (descriptors==null) {
-          List<Descriptor> result=new ArrayList<Descriptor>();
+          List<Descriptor> cached=fromCache(cache.read());
 
-          try {
-            for (String cameraId : mgr.getCameraIdList()) {
-              CameraCharacteristics cc=
-                mgr.getCameraCharacteristics(cameraId);
-              Descriptor camera=new Descriptor(cameraId, cc);
-              StreamConfigurationMap map=cc.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-              android.util.Size[] rawSizes=
-                map.getOutputSizes(SurfaceTexture.class);
-              ArrayList<Size> sizes=new ArrayList<Size>();
-
-              for (android.util.Size size : rawSizes) {
-                if (size.getWidth()<2160 &&
-                  size.getHeight()<2160) {
-                  sizes.add(
-                    new Size(size.getWidth(), size.getHeight()));
-                }
-              }
+          if (cached==null) {
+            try {
+              List<Descriptor> result=enumerateCameras();
 
-              camera.setPreviewSizes(sizes);
-              camera.setPictureSizes(Arrays.asList(
-                map.getOutputSizes(ImageFormat.JPEG)));
-              camera.setFacingFront(
-                cc.get(CameraCharacteristics.LENS_FACING)==
-                  CameraCharacteristics.LENS_FACING_FRONT);
-              result.add(camera);
+              descriptors=result;
+              cache.write(toCache(result));
             }
+            catch (CameraAccessException e) {
+              post(
+                new CameraDescriptorsEvent(e));
 
-            descriptors=result;
-          }
-          catch (CameraAccessException e) {
-            getBus().post(
-              new CameraDescriptorsEvent(e));
+              if (isDebug()) {
+                Log.e(getClass().getSimpleName(),
+                  "Exception accessing camera", e);
+              }
 
-            if (isDebug()) {
-              Log.e(getClass().getSimpleName(),
-                "Exception accessing camera", e);
+              return;
             }
           }
+          else {
+            descriptors=cached;
+            getThreadPool().execute(new Runnable() {
+              @Override
+              public void run() {
+                revalidate();
+              }
+            });
+          }
         }
 
         List<CameraDescriptor> result=
@@ -166,12 +163,126 @@ public class CameraTwoEngine extends CameraEngine {
             }
           });
 
-        getBus().post(
+        post(
           new CameraDescriptorsEvent(result));
       }
     });
   }
 
+  private List<Descriptor> enumerateCameras()
+    throws CameraAccessException {
+    List<Descriptor> result=new ArrayList<Descriptor>();
+
+    for (String cameraId : mgr.getCameraIdList()) {
+      CameraCharacteristics cc=mgr.getCameraCharacteristics(cameraId);
+      Descriptor camera=new Descriptor(cameraId, cc,
+        CharacteristicsSnapshot.from(new SnapshotSource(cc)));
+      StreamConfigurationMap map=cc.get(
+        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      android.util.Size[] rawSizes=
+        map.getOutputSizes(SurfaceTexture.class);
+      ArrayList<Size> sizes=new ArrayList<Size>();
+
+      for (android.util.Size size : rawSizes) {
+        if (size.getWidth()<2160 &&
+          size.getHeight()<2160) {
+          sizes.add(
+            new Size(size.getWidth(), size.getHeight()));
+        }
+      }
+
+      camera.setPreviewSizes(sizes);
+      sizes=new ArrayList<Size>();
+
+      for (android.util.Size size : map.getOutputSizes(ImageFormat.JPEG)) {
+        sizes.add(new Size(size.getWidth(), size.getHeight()));
+      }
+
+      camera.setPictureSizes(sizes);
+      result.add(camera);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Re-reads the characteristics behind a cached roster. This
+   * does not open any cameras, and we need the characteristics
+   * anyway, to hand to plugins. Descriptors are updated in
+   * place, as the current session may be using them; the cache
+   * file is only rewritten if something changed.
+   */
+  private void revalidate() {
+    List<Descriptor> current=descriptors;
+    List<Descriptor> fresh;
+
+    try {
+      fresh=enumerateCameras();
+    }
+    catch (Exception e) {
+      if (isDebug()) {
+        Log.w(getClass().getSimpleName(),
+          "Exception revalidating cameras", e);
+      }
+
+      return;
+    }
+
+    List<Descriptor> merged=DescriptorCache.revalidate(current, fresh,
+      new DescriptorCache.Merger<Descriptor>() {
+        @Override
+        public boolean isSameCamera(Descriptor current, Descriptor fresh) {
+          return(current.getId().equals(fresh.getId()) &&
+            current.isFacingFront==fresh.isFacingFront);
+        }
+
+        @Override
+        public void update(Descriptor current, Descriptor fresh) {
+          current.update(fresh);
+        }
+      });
+
+    descriptors=merged;
+    cache.write(toCache(merged));
+  }
+
+  private static List<Descriptor> fromCache(List<DescriptorCache.Entry> entries) {
+    if (entries==null) {
+      return(null);
+    }
+
+    List<Descriptor> result=new ArrayList<Descriptor>();
+
+    for (DescriptorCache.Entry entry : entries) {
+      if (entry.snapshot==null) {
+        return(null);
+      }
+
+      Descriptor camera=new Descriptor(entry.id, null, entry.snapshot);
+
+      camera.setPreviewSizes(entry.previewSizes);
+      camera.setPictureSizes(entry.pictureSizes);
+      result.add(camera);
+    }
+
+    return(result);
+  }
+
+  private static List<DescriptorCache.Entry> toCache(List<Descriptor> cameras) {
+    List<DescriptorCache.Entry> result=
+      new ArrayList<DescriptorCache.Entry>();
+
+    for (Descriptor camera : cameras) {
+      Integer facing=camera.getSnapshot().getLensFacing();
+
+      result.add(new DescriptorCache.Entry(camera.getId(),
+        facing==null ? -1 : facing, camera.getPreviewSizes(),
+        camera.getPictureSizes(), camera.getSnapshot()));
+    }
+
+    return(result);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -181,15 +292,13 @@ public class CameraTwoEngine extends CameraEngine {
     getThreadPool().execute(new Runnable() {
       @Override
       public void run() {
-        Descriptor camera=(Descriptor)session.getDescriptor();
+        long openStartedAt=SystemClock.elapsedRealtime();
+        final Descriptor camera=(Descriptor)session.getDescriptor();
 
         try {
-          CameraCharacteristics cc=
-            mgr.getCameraCharacteristics(camera.getId());
-
           eligibleFlashModes.clear();
 
-          int[] availModes=cc.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
+          int[] availModes=camera.getSnapshot().getAvailableAeModes();
 
           for (FlashMode flashMode : preferredFlashModes) {
             for (int rawFlashMode : availModes) {
@@ -213,16 +322,19 @@ public class CameraTwoEngine extends CameraEngine {
 
           session.setCurrentFlashMode(eligibleFlashModes.get(0));
 
-          if (!lock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-            throw new RuntimeException("Time out waiting to lock camera opening.");
-          }
+          final InitPreviewTransaction init=
+            new InitPreviewTransaction(session, new Surface(texture),
+              openStartedAt);
 
-          mgr.openCamera(camera.getId(),
-              new InitPreviewTransaction(session, new Surface(texture)),
-              handler);
+          camera.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+              attach(camera, init);
+            }
+          });
         }
         catch (Exception e) {
-          getBus().post(new OpenedEvent(e));
+          post(new OpenedEvent(e));
 
           if (isDebug()) {
             Log.e(getClass().getSimpleName(), "Exception opening camera", e);
@@ -236,41 +348,78 @@ public class CameraTwoEngine extends CameraEngine {
    * {@inheritDoc}
    */
   @Override
-  public void close(final CameraSession session) {
+  public void prewarm(final CameraDescriptor descriptor) {
+    final Descriptor camera=(Descriptor)descriptor;
+
+    camera.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        if (camera.state.get()==DeviceState.CLOSED) {
+          try {
+            openDevice(camera, null);
+          }
+          catch (Exception e) {
+            if (isDebug()) {
+              Log.w(getClass().getSimpleName(), "Exception prewarming camera", e);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close(final CameraSession session,
+                    final boolean isFinishing) {
     final Session s=(Session)session;
+    final Descriptor camera=(Descriptor)session.getDescriptor();
 
     try {
-      lock.acquire();
+      s.state.set(SessionState.CLOSING);
+
+      if (s.recorder!=null) {
+        stopVideoRecording(s, true);
+      }
 
       if (s.captureSession != null) {
-        closeLatch=new CountDownLatch(1);
         s.captureSession.close();
-        closeLatch.await(2, TimeUnit.SECONDS);
+        s.closeLatch.await(2, TimeUnit.SECONDS);
         s.captureSession=null;
       }
 
-      if (s.cameraDevice != null) {
-        s.cameraDevice.close();
-        s.cameraDevice=null;
-      }
+      s.cameraDevice=null;
+
+      // unless we are finishing, hang onto the device for a bit,
+      // in case we are being reopened (e.g., configuration
+      // change); this runs after anything already queued up for
+      // the camera, so it sees whether our session ever got the
+      // device
+      camera.getHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          DeviceCallback callback=camera.deviceCallback;
+
+          if (callback!=null && callback.init!=null &&
+            callback.init.s==s) {
+            callback.init=null;
+            detach(camera, isFinishing ? 0 : getCloseGracePeriod());
+          }
+        }
+      });
 
       if (s.reader != null) {
         s.reader.close();
       }
 
-      s.setClosed(true);
-
-      Descriptor camera=(Descriptor)session.getDescriptor();
-
-      camera.setDevice(null);
+      s.state.set(SessionState.CLOSED);
       session.destroy();
-      getBus().post(new ClosedEvent());
+      post(new ClosedEvent());
     }
     catch (Exception e) {
-      getBus().post(new ClosedEvent(e));
-    }
-    finally {
-      lock.release();
+      post(new ClosedEvent(e));
     }
   }
 
@@ -279,48 +428,477 @@ public class CameraTwoEngine extends CameraEngine {
    */
   public void takePicture(CameraSession session,
                           PictureTransaction xact) {
+    takeBurst(session, xact, 1, 0);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void takeBurst(CameraSession session,
+                        final PictureTransaction xact,
+                        final int count, final long intervalMs) {
+    checkBurst(count, intervalMs);
+
+    final long shutterNanos=SystemClock.elapsedRealtimeNanos();
     final Session s=(Session)session;
 
-    s.reader.setOnImageAvailableListener(new TakePictureTransaction(session.getContext(), getBus(), xact),
-        handler);
+    if (!s.state.compareAndSet(SessionState.CONFIGURED,
+      SessionState.CAPTURING)) {
+      post(new PictureTakenEvent(
+        new IllegalStateException("Camera is not ready to take a picture")));
+      return;
+    }
 
-    getThreadPool().execute(new Runnable() {
+    final CaptureTrace trace=new CaptureTrace();
+
+    s.reader.setOnImageAvailableListener(
+      new TakePictureTransaction(session.getContext(), xact, count,
+        trace, shutterNanos),
+      s.getHandler());
+
+    whenCaptureCapacity(new Runnable() {
       @Override
       public void run() {
-        try {
-          // This is how to tell the camera to lock focus.
-          s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-              CameraMetadata.CONTROL_AF_TRIGGER_START);
-          s.captureSession.setRepeatingRequest(
-            s.previewRequestBuilder.build(),
-            new RequestCaptureTransaction(s),
-            handler);
-        }
-        catch (Exception e) {
-          getBus().post(new PictureTakenEvent(e));
+        getThreadPool().execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (count==1 && takeBufferedPicture(s, xact, shutterNanos)) {
+                trace.moveTo(CaptureState.JPEG_RECEIVED, false);
+                captureDone(s);
+                return;
+              }
 
-          if (isDebug()) {
-            Log.e(getClass().getSimpleName(), "Exception taking picture", e);
+              final RequestCaptureTransaction request=
+                new RequestCaptureTransaction(s, count, intervalMs, trace);
+
+              s.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                  request.start();
+                }
+              });
+            }
+            catch (Exception e) {
+              captureFailed(s, trace, e);
+            }
           }
-        }
+        });
       }
     });
   }
 
+  /**
+   * Sets how long the camera may take in one of the waiting
+   * states (see CaptureState.isWaiting()) before we give up on
+   * it and take the picture anyway. Whichever limit is hit
+   * first applies.
+   *
+   * @param state FOCUSING, PRECAPTURE_STARTING, or
+   *              PRECAPTURE_RUNNING
+   * @param maxFrames how many preview frames to wait
+   * @param maxMillis how long to wait, in case the preview
+   *                  frames stop coming
+   */
+  public void setCaptureTimeout(CaptureState state, int maxFrames,
+                                long maxMillis) {
+    if (!state.isWaiting()) {
+      throw new IllegalArgumentException(state+" does not time out");
+    }
+
+    if (maxFrames<1 || maxMillis<1) {
+      throw new IllegalArgumentException("Timeouts must be positive");
+    }
+
+    synchronized(timeoutFrames) {
+      timeoutFrames[state.ordinal()]=maxFrames;
+      timeoutMillis[state.ordinal()]=maxMillis;
+    }
+  }
+
+  private int getTimeoutFrames(CaptureState state) {
+    synchronized(timeoutFrames) {
+      return(timeoutFrames[state.ordinal()]);
+    }
+  }
+
+  private long getTimeoutMillis(CaptureState state) {
+    synchronized(timeoutFrames) {
+      return(timeoutMillis[state.ordinal()]);
+    }
+  }
+
+  /**
+   * The picture could not be taken; tell the world.
+   */
+  private void captureFailed(Session s, CaptureTrace trace,
+                             Exception e) {
+    trace.moveTo(CaptureState.FAILED, false);
+    captureDone(s);
+    post(new PictureTakenEvent(e));
+
+    if (isDebug()) {
+      Log.e(getClass().getSimpleName(), "Exception taking picture", e);
+    }
+  }
+
+  /**
+   * Gives plugins (e.g., ZslPlugin) a chance to supply the
+   * picture from frames they already have.
+   *
+   * @return true if a plugin supplied the picture, false if we
+   * need to take it
+   */
+  private boolean takeBufferedPicture(Session s, PictureTransaction xact,
+                                      long shutterNanos) {
+    byte[] jpeg=s.takeBufferedPicture(shutterNanos);
+
+    if (jpeg==null) {
+      return(false);
+    }
+
+    shutter.play(MediaActionSound.SHUTTER_CLICK);
+
+    // the frame came from the preview stream, which has no
+    // JPEG_ORIENTATION, so work out what a still capture would
+    // have used
+
+    Descriptor camera=(Descriptor)s.getDescriptor();
+    CameraCharacteristics cc=camera.getCharacteristics(mgr);
+    int degrees=s.getJpegOrientation(cc, camera.isFacingFront);
+    ImageContext imageContext=new ImageContext(s.getContext(), jpeg);
+
+    getMetrics().record(EngineMetrics.Metric.SHUTTER_TO_JPEG,
+      (SystemClock.elapsedRealtimeNanos()-shutterNanos)/1000L);
+    imageContext.setOrientation(exifOrientationForDegrees(degrees));
+    processPicture(xact, imageContext);
+
+    return(true);
+  }
+
+  /**
+   * The session is ready to take another picture.
+   */
+  private static void captureDone(Session s) {
+    s.state.compareAndSet(SessionState.CAPTURING,
+      SessionState.CONFIGURED);
+  }
+
+  private static int exifOrientationForDegrees(int degrees) {
+    switch (degrees) {
+      case 90:
+        return(6);
+
+      case 180:
+        return(3);
+
+      case 270:
+        return(8);
+
+      default:
+        return(1);
+    }
+  }
+
   @Override
   public void handleOrientationChange(CameraSession session,
                                       OrientationChangedEvent event) {
     // TODO
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Records through a MediaCodec encoder, whose input Surface is
+   * added to the capture session and to the repeating request
+   * for as long as the recording runs. Video only; there is no
+   * audio track.
+   */
   @Override
-  public void recordVideo(CameraSession session, VideoTransaction xact) {
-    // TODO
+  public void recordVideo(CameraSession session, VideoTransaction xact)
+    throws Exception {
+    Session s=(Session)session;
+
+    if (s.recorder!=null) {
+      throw new IllegalStateException("Already recording");
+    }
+
+    if (s.isClosed() || s.cameraDevice==null) {
+      throw new IllegalStateException("Camera is not open");
+    }
+
+    Descriptor camera=(Descriptor)session.getDescriptor();
+    CameraCharacteristics cc=camera.getCharacteristics(mgr);
+    VideoEncoderConfig.Builder config=new VideoEncoderConfig.Builder()
+      .size(session.getPreviewSize());
+
+    s.configureEncoder(cc, xact, config);
+
+    if (xact.getBitrate()>0) {
+      config.bitrate(xact.getBitrate());
+    }
+
+    if (xact.getFrameRate()>0) {
+      config.frameRate(xact.getFrameRate());
+    }
+
+    if (xact.getKeyFrameInterval()>0) {
+      config.keyFrameInterval(xact.getKeyFrameInterval());
+    }
+
+    final Session recording=s;
+    final SurfaceVideoRecorder recorder=
+      new SurfaceVideoRecorder(config.build(), xact.getOutputPath());
+
+    recorder.setFailureListener(new SurfaceVideoRecorder.FailureListener() {
+      @Override
+      public void onFailed(final Exception e) {
+        recording.getHandler().post(new Runnable() {
+          @Override
+          public void run() {
+            abortRecording(recording, recorder, e);
+          }
+        });
+      }
+    });
+
+    if (xact.isSegmented()) {
+      final VideoTransaction segmented=xact;
+
+      recorder.setSegments(xact.getSegmentDuration()*1000L,
+        xact.getSegmentSize(), new SurfaceVideoRecorder.Segments() {
+          @Override
+          public File getSegmentFile(int index) {
+            return(segmented.getSegmentPath(index));
+          }
+
+          @Override
+          public void onSegmentCompleted(int index, File file,
+                                         boolean isLast) {
+            postVideoSegment(new VideoSegmentEvent(segmented, index, file,
+              isLast));
+          }
+        });
+    }
+
+    Surface surface=recorder.prepare();
+
+    synchronized(s) {
+      s.recorder=recorder;
+      s.videoXact=xact;
+    }
+
+    reconfigure(s, surface);
   }
 
+  /**
+   * {@inheritDoc}
+   */
   @Override
-  public void stopVideoRecording(CameraSession session, boolean abandon) {
-    // TODO
+  public void stopVideoRecording(CameraSession session,
+                                 final boolean abandon)
+    throws Exception {
+    Session s=(Session)session;
+    SurfaceVideoRecorder recorder;
+    final VideoTransaction xact;
+
+    synchronized(s) {
+      recorder=s.recorder;
+      xact=s.videoXact;
+
+      if (recorder==null) {
+        return;
+      }
+
+      s.recorder=null;
+      s.videoXact=null;
+    }
+
+    stopFeeding(s);
+
+    // the recorder finishes the file on its own thread, so we
+    // need not wait on it here
+    recorder.stop(new SurfaceVideoRecorder.StopListener() {
+      @Override
+      public void onStopped(IOException e) {
+        if (abandon) {
+          return;
+        }
+
+        if (e==null) {
+          postVideoTaken(xact);
+        }
+        else {
+          postVideoTaken(xact, e);
+        }
+      }
+    });
+
+    if (!abandon) {
+      reconfigure(s, null);
+    }
+  }
+
+  /**
+   * A recording failed before stopVideoRecording(), so drop the
+   * recorder, put the preview back the way it was, and report
+   * why. Does nothing if the recording was already stopped.
+   *
+   * @param recorder the recorder that failed, or null for
+   *                 whichever one is recording
+   */
+  private void abortRecording(Session s, SurfaceVideoRecorder recorder,
+                              Exception e) {
+    SurfaceVideoRecorder current;
+    VideoTransaction xact;
+
+    synchronized(s) {
+      current=s.recorder;
+      xact=s.videoXact;
+
+      if (current==null || (recorder!=null && recorder!=current)) {
+        if (recorder!=null) {
+          recorder.stop(null); // no-op if it was stopped already
+        }
+
+        return;
+      }
+
+      s.recorder=null;
+      s.videoXact=null;
+    }
+
+    stopFeeding(s);
+    current.stop(null); // the failure is what we report
+    reconfigure(s, null);
+    postVideoTaken(xact, e);
+  }
+
+  /**
+   * Stops the repeating request, so nothing more goes to the
+   * encoder, before the recording is finished.
+   */
+  private void stopFeeding(Session s) {
+    try {
+      if (!s.isClosed() && s.captureSession!=null) {
+        s.captureSession.stopRepeating();
+      }
+    }
+    catch (CameraAccessException e) {
+      // closing down, so nothing is feeding the encoder anyway
+    }
+    catch (IllegalStateException e) {
+      // ditto
+    }
+  }
+
+  /**
+   * Changes the bitrate of the video being recorded, on API
+   * Level 19+.
+   *
+   * @param session the session that is recording
+   * @param bitsPerSecond the new target bitrate
+   * @return true if a recording was under way, false otherwise
+   */
+  @Override
+  public boolean setVideoBitrate(CameraSession session,
+                                 int bitsPerSecond) {
+    SurfaceVideoRecorder recorder=((Session)session).recorder;
+
+    if (recorder!=null) {
+      recorder.setBitrate(bitsPerSecond);
+
+      return(true);
+    }
+
+    return(false);
+  }
+
+  /**
+   * Replaces the capture session with one that also feeds a
+   * recording Surface, or with a plain preview one again.
+   *
+   * @param recording the Surface to record to, or null for
+   *                  just the preview
+   */
+  private void reconfigure(final Session s, final Surface recording) {
+    s.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        if (s.isClosed() || s.cameraDevice==null) {
+          return;
+        }
+
+        ArrayList<Surface> outputs=new ArrayList<Surface>();
+
+        outputs.add(s.previewSurface);
+        outputs.add(s.reader.getSurface());
+        outputs.addAll(s.previewTargets);
+
+        if (recording!=null) {
+          outputs.add(recording);
+        }
+
+        try {
+          s.cameraDevice.createCaptureSession(outputs,
+            new ReconfigureTransaction(s, recording), s.getHandler());
+        }
+        catch (CameraAccessException e) {
+          post(new DeepImpactEvent(e));
+        }
+        catch (IllegalStateException e) {
+          post(new DeepImpactEvent(e));
+        }
+      }
+    });
+  }
+
+  /**
+   * Issues the repeating request for the preview, and for the
+   * recording Surface too, if there is one.
+   */
+  private void startRepeating(Session s, CameraCaptureSession session,
+                              Surface recording)
+    throws CameraAccessException {
+    int template=(recording==null ? CameraDevice.TEMPLATE_PREVIEW :
+      CameraDevice.TEMPLATE_RECORD);
+
+    s.previewRequestBuilder=session.getDevice().createCaptureRequest(template);
+    s.previewRequestBuilder.addTarget(s.previewSurface);
+
+    for (Surface target : s.previewTargets) {
+      s.previewRequestBuilder.addTarget(target);
+    }
+
+    if (recording!=null) {
+      s.previewRequestBuilder.addTarget(recording);
+      s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+    }
+    else {
+      s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+    }
+
+    s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+
+    Descriptor camera=(Descriptor)s.getDescriptor();
+    CameraCharacteristics cc=camera.getCharacteristics(mgr);
+
+    if (s.getZoomRect()!=null) {
+      s
+        .previewRequestBuilder
+        .set(CaptureRequest.SCALER_CROP_REGION,
+          s.getZoomRect());
+    }
+
+    s.addToPreviewRequest(cc, s.previewRequestBuilder);
+
+    s.previewRequest=s.previewRequestBuilder.build();
+    session.setRepeatingRequest(s.previewRequest,
+      s.previewCallback, s.getHandler());
   }
 
   /**
@@ -331,271 +909,731 @@ public class CameraTwoEngine extends CameraEngine {
     return(true);
   }
 
+  @Override
+  public String getCameraKey(CameraDescriptor descriptor) {
+    return("camera2:"+((Descriptor)descriptor).getId());
+  }
+
   @Override
   public boolean supportsZoom(CameraSession session) {
-    boolean result=false;
     Descriptor descriptor=(Descriptor)session.getDescriptor();
 
+    return(descriptor.getSnapshot().supportsZoom());
+  }
+
+  @Override
+  public boolean zoomTo(CameraSession session,
+                         int zoomLevel) {
+    final Session s=(Session)session;
+    final Descriptor descriptor=(Descriptor)session.getDescriptor();
+
+    // if <=1, zoom not possible, so eat the the event; otherwise,
+    // the preview frames carry the zoom to the latest level
+
+    if (s.zoomScheduler!=null && descriptor.getSnapshot().supportsZoom()) {
+      s.zoomScheduler.request(Math.max(0, Math.min(100, zoomLevel)));
+    }
+
+    // the zoom is smooth, but unlike the classic API, it can be
+    // redirected mid-flight, so there is no need for callers to
+    // wait for the SmoothZoomCompletedEvent
+
+    return(false);
+  }
+
+  private void applyZoom(Session s, int zoomLevel) {
+    Descriptor descriptor=(Descriptor)s.getDescriptor();
+    Rect zoomRect=descriptor.getCropRegion(zoomLevel);
+
+    try {
+      if (!s.isClosed() && s.captureSession!=null) {
+        s.previewRequestBuilder
+          .set(CaptureRequest.SCALER_CROP_REGION, zoomRect);
+        s.setZoomRect(zoomRect);
+        s.previewRequest=s.previewRequestBuilder.build();
+        s.captureSession.setRepeatingRequest(s.previewRequest,
+          s.previewCallback, s.getHandler());
+      }
+    }
+    catch (CameraAccessException e) {
+      post(new DeepImpactEvent(e));
+    }
+    catch (IllegalStateException e) {
+      // session closed out from under us; nothing to zoom
+      if (isDebug()) {
+        Log.w(getClass().getSimpleName(), "Exception zooming", e);
+      }
+    }
+  }
+
+  /**
+   * Starts the preview on this camera's device, reusing it if
+   * it is already open, or opening it otherwise. Runs on the
+   * camera's own thread, like everything else that changes the
+   * state of the device, so the state only needs to be atomic
+   * for the benefit of other cameras' threads.
+   */
+  private void attach(Descriptor camera, InitPreviewTransaction init) {
     try {
-      CameraCharacteristics cc=
-        mgr.getCameraCharacteristics(descriptor.cameraId);
+      switch (camera.state.get()) {
+        case IDLE:
+          if (!camera.state.compareAndSet(DeviceState.IDLE,
+            DeviceState.ACTIVE)) {
+            // another camera closed it out from under us
+            openDevice(camera, init);
+            break;
+          }
+
+          // fall through
+
+        case ACTIVE:
+          cancelPendingClose(camera);
+          init.isWarm=true;
+          camera.deviceCallback.init=init;
+          init.start(camera.getDevice());
+          break;
+
+        case OPENING:
+          // a prewarm is under way; start once it is open
+          camera.deviceCallback.init=init;
+          break;
+
+        default:
+          openDevice(camera, init);
+      }
+    }
+    catch (Exception e) {
+      post(new OpenedEvent(e));
+
+      if (isDebug()) {
+        Log.e(getClass().getSimpleName(), "Exception opening camera", e);
+      }
+    }
+  }
+
+  /**
+   * The session using this camera's device is gone, so let the
+   * device idle, closing it if it is not reused in time. Call on
+   * the camera's thread.
+   *
+   * @param delayMs how long to keep the idle device, or 0 to
+   *                close it right away
+   */
+  private void detach(Descriptor camera, long delayMs) {
+    if (camera.state.compareAndSet(DeviceState.ACTIVE,
+      DeviceState.IDLE)) {
+      releaseDevice(camera, delayMs);
+    }
+  }
 
-      float maxZoom=cc.get(
-        CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+  /**
+   * Opens this camera's device, first closing idle devices for
+   * other cameras, as most devices cannot have two cameras open
+   * at once. Call on the camera's thread.
+   *
+   * @param init what to start once open, or null to prewarm
+   */
+  private void openDevice(Descriptor camera, InitPreviewTransaction init)
+    throws CameraAccessException {
+    DeviceCallback callback=new DeviceCallback(camera, init);
+
+    closeIdleDevices(camera);
+    camera.state.set(DeviceState.OPENING);
+    camera.deviceCallback=callback;
 
-      result=(maxZoom>=1.0f);
+    try {
+      mgr.openCamera(camera.getId(), callback, camera.getHandler());
     }
     catch (CameraAccessException e) {
-      getBus().post(new DeepImpactEvent(e));
+      camera.state.set(DeviceState.CLOSED);
+      throw e;
     }
+    catch (RuntimeException e) {
+      camera.state.set(DeviceState.CLOSED);
+      throw e;
+    }
+  }
 
-    return(result);
+  /**
+   * Closes the camera's idle device, either now or after a
+   * delay. A delayed close is canceled if the camera is opened
+   * again in the meantime. Call on the camera's thread, once the
+   * state is IDLE.
+   *
+   * @param camera the camera whose device should close
+   * @param delayMs how long to wait, 0 for right away
+   */
+  private void releaseDevice(final Descriptor camera, long delayMs) {
+    cancelPendingClose(camera);
+
+    if (delayMs<=0) {
+      closeIfIdle(camera);
+    }
+    else {
+      camera.pendingClose=new Runnable() {
+        @Override
+        public void run() {
+          if (camera.pendingClose==this) {
+            closeIfIdle(camera);
+          }
+        }
+      };
+
+      camera.getHandler().postDelayed(camera.pendingClose, delayMs);
+    }
   }
 
-  @Override
-  public boolean zoomTo(CameraSession session,
-                         int zoomLevel) {
-    final Session s=(Session)session;
-    final Descriptor descriptor=(Descriptor)session.getDescriptor();
+  private void cancelPendingClose(Descriptor camera) {
+    Runnable pendingClose=camera.pendingClose;
 
-    if (s.previewRequest!=null) {
-      try {
-        final CameraCharacteristics cc=
-          mgr.getCameraCharacteristics(descriptor.cameraId);
-        final float maxZoom=
-          cc.get(
-            CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
-
-        // if <=1, zoom not possible, so eat the the event
-        if (maxZoom>1.0f) {
-          float zoomTo=1.0f+((float)zoomLevel*(maxZoom-1.0f)/100.0f);
-          Rect zoomRect=cropRegionForZoom(cc, zoomTo);
-
-          s.previewRequestBuilder
-            .set(CaptureRequest.SCALER_CROP_REGION, zoomRect);
-          s.setZoomRect(zoomRect);
-          s.previewRequest=s.previewRequestBuilder.build();
-          s.captureSession.setRepeatingRequest(s.previewRequest,
-            null, handler);
+    if (pendingClose!=null) {
+      camera.getHandler().removeCallbacks(pendingClose);
+      camera.pendingClose=null;
+    }
+  }
+
+  /**
+   * Closes the camera's device, if nobody is using it. Safe to
+   * call from any thread: whoever moves the state from IDLE to
+   * CLOSED does the closing, and everyone else leaves it be.
+   */
+  private void closeIfIdle(Descriptor camera) {
+    if (camera.state.compareAndSet(DeviceState.IDLE,
+      DeviceState.CLOSED)) {
+      CameraDevice device=camera.getDevice();
+
+      cancelPendingClose(camera);
+      camera.setDevice(null);
+
+      if (device!=null) {
+        device.close();
+      }
+    }
+  }
+
+  private void closeIdleDevices(Descriptor except) {
+    List<Descriptor> all=descriptors;
+
+    if (all!=null) {
+      for (Descriptor camera : all) {
+        if (camera!=except) {
+          closeIfIdle(camera);
         }
       }
-      catch (CameraAccessException e) {
-        getBus().post(new DeepImpactEvent(e));
+    }
+  }
+
+  /**
+   * State callback for a camera device, for as long as that
+   * device stays open, including across sessions that reuse it.
+   * Starts the preview for whichever session is waiting on it.
+   * Called on the camera's thread.
+   */
+  private class DeviceCallback extends CameraDevice.StateCallback {
+    private final Descriptor camera;
+    volatile InitPreviewTransaction init;
+
+    DeviceCallback(Descriptor camera, InitPreviewTransaction init) {
+      this.camera=camera;
+      this.init=init;
+    }
+
+    @Override
+    public void onOpened(CameraDevice cameraDevice) {
+      camera.setDevice(cameraDevice);
+
+      InitPreviewTransaction pending=init;
+
+      if (pending==null) {
+        // prewarmed, so close it if nobody shows up for it
+        camera.state.set(DeviceState.IDLE);
+        releaseDevice(camera, PREWARM_IDLE_MILLIS);
+      }
+      else {
+        camera.state.set(DeviceState.ACTIVE);
+        pending.start(cameraDevice);
       }
     }
 
-    return(false);
-  }
+    @Override
+    public void onDisconnected(CameraDevice cameraDevice) {
+      forget(cameraDevice);
+    }
+
+    @Override
+    public void onError(CameraDevice cameraDevice, int i) {
+      forget(cameraDevice);
 
-  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-  private static Rect cropRegionForZoom(CameraCharacteristics cc,
-                                        float zoomTo) {
-    Rect sensor=
-      cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-    int sensorCenterX=sensor.width()/2;
-    int sensorCenterY=sensor.height()/2;
-    int deltaX=(int)(0.5f*sensor.width()/zoomTo);
-    int deltaY=(int)(0.5f*sensor.height()/zoomTo);
+      if (init!=null) {
+        post(new CameraTwoPreviewErrorEvent(i));
+      }
+    }
+
+    private void forget(CameraDevice cameraDevice) {
+      if (camera.deviceCallback==this) {
+        cancelPendingClose(camera);
+        camera.setDevice(null);
+        camera.state.set(DeviceState.CLOSED);
+      }
 
-    return(new Rect(
-      sensorCenterX-deltaX,
-      sensorCenterY-deltaY,
-      sensorCenterX+deltaX,
-      sensorCenterY+deltaY));
+      cameraDevice.close();
+    }
   }
 
-  private class InitPreviewTransaction extends CameraDevice.StateCallback {
-    private final Session s;
+  private class InitPreviewTransaction {
+    final Session s;
     private final Surface surface;
+    private final long openStartedAt;
+    boolean isWarm=false;
 
-    InitPreviewTransaction(CameraSession session, Surface surface) {
+    InitPreviewTransaction(CameraSession session, Surface surface,
+                           long openStartedAt) {
       this.s=(Session)session;
       this.surface=surface;
+      this.openStartedAt=openStartedAt;
     }
 
-    @Override
-    public void onOpened(CameraDevice cameraDevice) {
-      lock.release();
+    void start(CameraDevice cameraDevice) {
+      if (s.isClosed()) {
+        detach((Descriptor)s.getDescriptor(), getCloseGracePeriod());
+        return;
+      }
+
       s.cameraDevice=cameraDevice;
+      s.previewSurface=surface;
+      s.openStartedAt=openStartedAt;
+      s.isWarmOpen=isWarm;
       s.reader=s.buildImageReader();
 
       Descriptor camera=(Descriptor)s.getDescriptor();
 
-      camera.setDevice(cameraDevice);
-
       try {
-        cameraDevice.createCaptureSession(
-            Arrays.asList(surface, s.reader.getSurface()),
-            new StartPreviewTransaction(s, surface), handler);
+        CameraCharacteristics cc=camera.getCharacteristics(mgr);
+        ArrayList<Surface> outputs=new ArrayList<Surface>();
+
+        s.previewTargets=s.buildPreviewTargets(cc);
+        outputs.add(surface);
+        outputs.add(s.reader.getSurface());
+        outputs.addAll(s.previewTargets);
+        cameraDevice.createCaptureSession(outputs,
+            new StartPreviewTransaction(s), s.getHandler());
       }
       catch (CameraAccessException e) {
-        getBus().post(new OpenedEvent(e));
+        post(new OpenedEvent(e));
       }
       catch (IllegalStateException e2) {
-        getBus().post(new DeepImpactEvent(e2));
+        post(new DeepImpactEvent(e2));
+      }
+    }
+  }
+
+  private class StartPreviewTransaction extends CameraCaptureSession.StateCallback {
+    private final Session s;
+
+    StartPreviewTransaction(CameraSession session) {
+      this.s=(Session)session;
+    }
+
+    @Override
+    public void onConfigured(CameraCaptureSession session) {
+      try {
+        if (s.state.compareAndSet(SessionState.OPENING,
+          SessionState.CONFIGURED)) {
+          s.captureSession=session;
+          s.previewCallback=new PreviewCallback(s);
+          s.zoomScheduler=new ZoomScheduler(new ZoomScheduler.Target() {
+            @Override
+            public void applyZoom(int zoomLevel) {
+              CameraTwoEngine.this.applyZoom(s, zoomLevel);
+            }
+
+            @Override
+            public void onZoomCompleted() {
+              post(new SmoothZoomCompletedEvent());
+            }
+          });
+
+          startRepeating(s, session, null);
+
+          long openDuration=SystemClock.elapsedRealtime()-s.openStartedAt;
+
+          getMetrics().record(EngineMetrics.Metric.OPEN_TIME,
+            openDuration*1000L);
+          post(new OpenedEvent(openDuration, s.isWarmOpen));
+        }
+      }
+      catch (CameraAccessException e) {
+        post(new OpenedEvent(e));
+      }
+      catch (IllegalStateException e) {
+        if (isDebug()) {
+          Log.w(getClass().getSimpleName(), "Exception resetting focus", e);
+        }
+      }
+    }
+
+    @Override
+    public void onConfigureFailed(CameraCaptureSession session) {
+      post(new CameraTwoPreviewFailureEvent());
+    }
+
+    @Override
+    public void onClosed(CameraCaptureSession session) {
+      // not when replaced by reconfigure(), only when close()d
+      if (s.isClosed()) {
+        s.closeLatch.countDown();
       }
     }
+  }
+
+  /**
+   * Takes over from the previous capture session once the
+   * replacement from reconfigure() is ready.
+   */
+  private class ReconfigureTransaction extends CameraCaptureSession.StateCallback {
+    private final Session s;
+    private final Surface recording;
+
+    ReconfigureTransaction(Session s, Surface recording) {
+      this.s=s;
+      this.recording=recording;
+    }
+
+    @Override
+    public void onConfigured(CameraCaptureSession session) {
+      if (s.isClosed()) {
+        session.close();
+        return;
+      }
+
+      s.captureSession=session;
+
+      try {
+        startRepeating(s, session, recording);
+      }
+      catch (CameraAccessException e) {
+        post(new DeepImpactEvent(e));
+      }
+      catch (IllegalStateException e) {
+        if (isDebug()) {
+          Log.w(getClass().getSimpleName(), "Exception reconfiguring", e);
+        }
 
-    @Override
-    public void onDisconnected(CameraDevice cameraDevice) {
-      lock.release();
-      cameraDevice.close();
+        if (recording!=null) {
+          abortRecording(s, null, e);
+        }
+      }
     }
 
     @Override
-    public void onError(CameraDevice cameraDevice, int i) {
-      lock.release();
-      cameraDevice.close();
-      getBus().post(new CameraTwoPreviewErrorEvent(i));
+    public void onConfigureFailed(CameraCaptureSession session) {
+      if (recording==null) {
+        post(new CameraTwoPreviewFailureEvent());
+      }
+      else {
+        abortRecording(s, null,
+          new IOException("Could not add the encoder to the capture session"));
+      }
     }
 
     @Override
-    public void onClosed(CameraDevice camera) {
-      super.onClosed(camera);
-
-      if (closeLatch != null) {
-        closeLatch.countDown();
+    public void onClosed(CameraCaptureSession session) {
+      if (s.isClosed()) {
+        s.closeLatch.countDown();
       }
     }
   }
 
-  private class StartPreviewTransaction extends CameraCaptureSession.StateCallback {
-    private final Surface surface;
+  /**
+   * Callback for the repeating preview request, so per-frame
+   * work (e.g., applying zoom) happens once per frame. While a
+   * picture is being taken, the frames are also passed along to
+   * the session's frameListener, so the preview request stays
+   * the same one whether or not a picture is under way.
+   */
+  private class PreviewCallback
+    extends CameraCaptureSession.CaptureCallback {
     private final Session s;
 
-    StartPreviewTransaction(CameraSession session, Surface surface) {
-      this.s=(Session)session;
-      this.surface=surface;
+    PreviewCallback(Session s) {
+      this.s=s;
     }
 
     @Override
-    public void onConfigured(CameraCaptureSession session) {
-      try {
-        if (!s.isClosed()) {
-          s.captureSession=session;
-
-          s.previewRequestBuilder=session.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-          s.previewRequestBuilder.addTarget(surface);
-          s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-              CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-          s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-              CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+    public void onCaptureProgressed(CameraCaptureSession session,
+                                    CaptureRequest request,
+                                    CaptureResult partialResult) {
+      CameraCaptureSession.CaptureCallback listener=s.frameListener;
 
-          Descriptor camera=(Descriptor)s.getDescriptor();
-          CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+      if (listener!=null) {
+        listener.onCaptureProgressed(session, request, partialResult);
+      }
+    }
 
-          if (s.getZoomRect()!=null) {
-            s
-              .previewRequestBuilder
-              .set(CaptureRequest.SCALER_CROP_REGION,
-                s.getZoomRect());
-          }
+    @Override
+    public void onCaptureCompleted(CameraCaptureSession session,
+                                   CaptureRequest request,
+                                   TotalCaptureResult result) {
+      if (!s.hasFirstFrame) {
+        s.hasFirstFrame=true;
+        getPreviewFrameRate().reset();
+        getMetrics().record(EngineMetrics.Metric.FIRST_FRAME_TIME,
+          (SystemClock.elapsedRealtime()-s.openStartedAt)*1000L);
+      }
 
-          s.addToPreviewRequest(cc, s.previewRequestBuilder);
+      getPreviewFrameRate().record(System.nanoTime());
 
-          s.previewRequest=s.previewRequestBuilder.build();
+      s.zoomScheduler.onFrame();
 
-          session.setRepeatingRequest(s.previewRequest, null, handler);
+      CameraCaptureSession.CaptureCallback listener=s.frameListener;
 
-          getBus().post(new OpenedEvent());
-        }
-      }
-      catch (CameraAccessException e) {
-        getBus().post(new OpenedEvent(e));
-      }
-      catch (IllegalStateException e) {
-        if (isDebug()) {
-          Log.w(getClass().getSimpleName(), "Exception resetting focus", e);
-        }
+      if (listener!=null) {
+        listener.onCaptureCompleted(session, request, result);
       }
     }
 
     @Override
-    public void onConfigureFailed(CameraCaptureSession session) {
-      getBus().post(new CameraTwoPreviewFailureEvent());
+    public void onCaptureFailed(CameraCaptureSession session,
+                                CaptureRequest request,
+                                CaptureFailure failure) {
+      CameraCaptureSession.CaptureCallback listener=s.frameListener;
+
+      if (listener!=null) {
+        listener.onCaptureFailed(session, request, failure);
+      }
     }
   }
 
+  /**
+   * Walks a picture through focus and precapture metering, then
+   * takes it. Each waiting state gives up after
+   * setCaptureTimeout() frames or milliseconds, whichever comes
+   * first, and the picture is taken anyway: a soft picture beats
+   * no picture at all, and it beats a camera that hangs.
+   * Everything here runs on the camera's thread.
+   */
   private class RequestCaptureTransaction extends CameraCaptureSession.CaptureCallback {
     private final Session s;
-    boolean isWaitingForFocus=true;
-    boolean isWaitingForPrecapture=false;
-    boolean haveWeStartedCapture=false;
+    private final int count;
+    private final long intervalMs;
+    private final CaptureTrace trace;
+    private final Runnable watchdog=new Runnable() {
+      @Override
+      public void run() {
+        if (trace.getState()==watching) {
+          timedOut();
+        }
+      }
+    };
+    private CaptureState watching=null;
 
-    RequestCaptureTransaction(CameraSession session) {
+    RequestCaptureTransaction(CameraSession session, int count,
+                              long intervalMs, CaptureTrace trace) {
       this.s=(Session)session;
+      this.count=count;
+      this.intervalMs=intervalMs;
+      this.trace=trace;
+    }
+
+    /**
+     * Triggers autofocus, or skips it for fixed-focus cameras.
+     */
+    void start() {
+      if (s.isClosed()) {
+        captureFailed(s, trace,
+          new IllegalStateException("Camera was closed before the picture was taken"));
+        return;
+      }
+
+      Descriptor camera=(Descriptor)s.getDescriptor();
+
+      if (!camera.getSnapshot().isAfModeAvailable(
+        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE) &&
+        !camera.getSnapshot().isAfModeAvailable(
+          CaptureRequest.CONTROL_AF_MODE_AUTO)) {
+        meter(null, false);
+        return;
+      }
+
+      try {
+        // trigger once, then keep an eye on the preview frames
+        // for the results
+        moveTo(CaptureState.FOCUSING, false);
+        s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+            CameraMetadata.CONTROL_AF_TRIGGER_START);
+        s.captureSession.capture(s.previewRequestBuilder.build(), this,
+            s.getHandler());
+        s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+            CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        s.captureSession.setRepeatingRequest(
+            s.previewRequestBuilder.build(), s.previewCallback,
+            s.getHandler());
+      }
+      catch (Exception e) {
+        fail(e);
+      }
     }
 
     @Override
     public void onCaptureProgressed(CameraCaptureSession session,
                                     CaptureRequest request, CaptureResult partialResult) {
-      capture(partialResult);
+      advance(partialResult);
     }
 
     @Override
     public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
-      getBus().post(new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      // a dropped preview frame is no reason to give up, but it
+      // does count against the timeout
+      if (trace.frameDone(getTimeoutFrames(trace.getState()))) {
+        timedOut();
+      }
     }
 
     @Override
     public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
-      capture(result);
+      if (!advance(result) &&
+        trace.frameDone(getTimeoutFrames(trace.getState()))) {
+        timedOut();
+      }
     }
 
-    private void capture(CaptureResult result) {
-      if (isWaitingForFocus) {
-        isWaitingForFocus=false;
+    /**
+     * @return true if the result moved us along to another state
+     */
+    private boolean advance(CaptureResult result) {
+      switch (trace.getState()) {
+        case FOCUSING:
+          Integer af=result.get(CaptureResult.CONTROL_AF_STATE);
+
+          if (af==null ||
+            af==CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+            af==CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+            meter(result.get(CaptureResult.CONTROL_AE_STATE), false);
+            return(true);
+          }
+          break;
 
-        int autoFocusState=result.get(CaptureResult.CONTROL_AF_STATE);
+        case PRECAPTURE_STARTING:
+          Integer started=result.get(CaptureResult.CONTROL_AE_STATE);
 
-        if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == autoFocusState ||
-            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == autoFocusState) {
-          Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
+          if (started==null ||
+            started==CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+            // no AE, or metering is done already
+            capture(false);
+            return(true);
+          }
 
-          if (state == null ||
-              state == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-            isWaitingForPrecapture=false;
-            haveWeStartedCapture=true;
-            capture(s);
-          } else {
-            isWaitingForPrecapture=true;
-            precapture(s);
+          if (started==CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
+            started==CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+            moveTo(CaptureState.PRECAPTURE_RUNNING, false);
+            return(true);
           }
-        }
-      }
-      else if (isWaitingForPrecapture) {
-        Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
+          break;
 
-        if (state == null ||
-            state == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-            state == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-          isWaitingForPrecapture=false;
-        }
+        case PRECAPTURE_RUNNING:
+          Integer running=result.get(CaptureResult.CONTROL_AE_STATE);
+
+          if (running==null ||
+            running!=CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+            capture(false);
+            return(true);
+          }
+          break;
+
+        default:
+          break; // not waiting on anything
       }
-      else if (!haveWeStartedCapture) {
-        Integer state=result.get(CaptureResult.CONTROL_AE_STATE);
 
-        if (state == null ||
-            state != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-          haveWeStartedCapture=true;
-          capture(s);
-        }
+      return(false);
+    }
+
+    /**
+     * The current state took too long, so move along as if it
+     * had finished.
+     */
+    private void timedOut() {
+      switch (trace.getState()) {
+        case FOCUSING:
+          meter(null, true);
+          break;
+
+        case PRECAPTURE_STARTING:
+        case PRECAPTURE_RUNNING:
+          capture(true);
+          break;
+
+        default:
+          break;
       }
     }
 
-    private void precapture(Session s) {
+    /**
+     * Focus is done; run precapture metering, unless exposure is
+     * already settled.
+     *
+     * @param aeState the last CONTROL_AE_STATE, null if unknown
+     * @param isTimeout true if focus timed out
+     */
+    private void meter(Integer aeState, boolean isTimeout) {
+      if (aeState!=null &&
+        aeState==CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+        capture(isTimeout);
+        return;
+      }
+
       try {
+        moveTo(CaptureState.PRECAPTURE_STARTING, isTimeout);
         s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
             CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
         s.captureSession.capture(s.previewRequestBuilder.build(), this,
-            handler);
+            s.getHandler());
+
+        // so the trigger does not ride along on later requests
+        s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+            CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+        s.captureSession.setRepeatingRequest(
+            s.previewRequestBuilder.build(), s.previewCallback,
+            s.getHandler());
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        fail(e);
+      }
+    }
 
-        if (isDebug()) {
-          Log.e(getClass().getSimpleName(), "Exception running precapture", e);
-        }
+    private void capture(boolean isTimeout) {
+      moveTo(CaptureState.CAPTURING, isTimeout);
+      capture(s);
+    }
+
+    /**
+     * Changes state, and arms the watchdog if the new state is
+     * one that can time out. Preview frames come our way, via
+     * the PreviewCallback, only while we are waiting on them.
+     */
+    private void moveTo(CaptureState state, boolean isTimeout) {
+      s.getHandler().removeCallbacks(watchdog);
+      trace.moveTo(state, isTimeout);
+
+      if (state.isWaiting()) {
+        watching=state;
+        s.frameListener=this;
+        s.getHandler().postDelayed(watchdog, getTimeoutMillis(state));
+      }
+      else {
+        watching=null;
+        stopListening();
+      }
+    }
+
+    private void fail(Exception e) {
+      s.getHandler().removeCallbacks(watchdog);
+      stopListening();
+      captureFailed(s, trace, e);
+    }
+
+    private void stopListening() {
+      if (s.frameListener==this) {
+        s.frameListener=null;
       }
     }
 
@@ -611,7 +1649,7 @@ public class CameraTwoEngine extends CameraEngine {
             CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
 
         Descriptor camera=(Descriptor)s.getDescriptor();
-        CameraCharacteristics cc=mgr.getCameraCharacteristics(camera.cameraId);
+        CameraCharacteristics cc=camera.getCharacteristics(mgr);
 
         if (s.getZoomRect()!=null) {
           captureBuilder
@@ -621,16 +1659,155 @@ public class CameraTwoEngine extends CameraEngine {
 
         s.addToCaptureRequest(cc, camera.isFacingFront, captureBuilder);
 
-        s.captureSession.stopRepeating();
-        s.captureSession.capture(captureBuilder.build(),
-            new CapturePictureTransaction(s), null);
+        if (count>1) {
+          burst(s, captureBuilder);
+        }
+        else {
+          s.captureSession.stopRepeating();
+          s.captureSession.capture(captureBuilder.build(),
+              new CapturePictureTransaction(s, 1, trace), null);
+        }
+      }
+      catch (Exception e) {
+        fail(e);
+      }
+    }
+
+    private void burst(Session s, CaptureRequest.Builder captureBuilder)
+      throws CameraAccessException {
+      // focus is locked by the trigger; lock exposure where
+      // precapture left it, so the frames match, and leave the
+      // preview running between frames
+
+      captureBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+      s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+          CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+      s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+      s.captureSession.setRepeatingRequest(
+          s.previewRequestBuilder.build(), s.previewCallback, s.getHandler());
+
+      CaptureRequest request=captureBuilder.build();
+      CapturePictureTransaction callback=
+        new CapturePictureTransaction(s, count, trace);
+
+      if (intervalMs==0) {
+        s.captureSession.captureBurst(Collections.nCopies(count, request),
+            callback, s.getHandler());
+      }
+      else {
+        new PacedBurst(s, request, callback, count, intervalMs).run();
+      }
+    }
+  }
+
+  /**
+   * Where one picture (or burst) is at, posting a
+   * CaptureTraceEvent on every change. Once the shot reaches a
+   * terminal state, it stays there.
+   */
+  private class CaptureTrace {
+    private final long shotId=shotIds.incrementAndGet();
+    private CaptureState state=CaptureState.REQUESTED;
+    private long enteredAt=SystemClock.elapsedRealtime();
+    private int frames=0;
+
+    synchronized CaptureState getState() {
+      return(state);
+    }
+
+    void moveTo(CaptureState next, boolean isTimeout) {
+      CaptureTraceEvent event;
+
+      synchronized(this) {
+        if (state.isTerminal() || state==next) {
+          return;
+        }
+
+        long now=SystemClock.elapsedRealtime();
+
+        event=new CaptureTraceEvent(shotId, state, next, now,
+          now-enteredAt, isTimeout);
+        state=next;
+        enteredAt=now;
+        frames=0;
+      }
+
+      // listeners may be called right here, so not while we hold
+      // the lock
+      post(event);
+    }
+
+    /**
+     * Counts a preview frame against the current state.
+     *
+     * @param maxFrames the limit for the current state
+     * @return true if the state is out of frames
+     */
+    synchronized boolean frameDone(int maxFrames) {
+      return(state.isWaiting() && ++frames>=maxFrames);
+    }
+  }
+
+  /**
+   * Submits the frames of a burst one at a time, on the camera
+   * handler, at least intervalMs apart, holding off on each frame until the
+   * CaptureScheduler has room for it.
+   */
+  private class PacedBurst implements Runnable {
+    private final Session s;
+    private final CaptureRequest request;
+    private final CapturePictureTransaction callback;
+    private final int count;
+    private final long intervalMs;
+    private int shot=0;
+    private volatile long lastShot=0;
+
+    PacedBurst(Session s, CaptureRequest request,
+               CapturePictureTransaction callback, int count,
+               long intervalMs) {
+      this.s=s;
+      this.request=request;
+      this.callback=callback;
+      this.count=count;
+      this.intervalMs=intervalMs;
+    }
+
+    /**
+     * Submits the next frame, then arranges for the one after.
+     */
+    @Override
+    public void run() {
+      if (s.isClosed()) {
+        return;
+      }
+
+      try {
+        lastShot=SystemClock.elapsedRealtime();
+        s.captureSession.capture(request, callback, s.getHandler());
       }
       catch (Exception e) {
-        getBus().post(new PictureTakenEvent(e));
+        callback.trace.moveTo(CaptureState.FAILED, false);
+        post(new PictureTakenEvent(e));
+        callback.framesDone(count-shot);
 
         if (isDebug()) {
-          Log.e(getClass().getSimpleName(), "Exception running capture", e);
+          Log.e(getClass().getSimpleName(), "Exception running burst", e);
         }
+
+        return;
+      }
+
+      shot++;
+
+      if (shot<count) {
+        whenCaptureCapacity(new Runnable() {
+          @Override
+          public void run() {
+            long delay=lastShot+intervalMs-SystemClock.elapsedRealtime();
+
+            s.getHandler().postDelayed(PacedBurst.this, Math.max(0, delay));
+          }
+        });
       }
     }
   }
@@ -638,9 +1815,14 @@ public class CameraTwoEngine extends CameraEngine {
   private class CapturePictureTransaction
     extends CameraCaptureSession.CaptureCallback {
     private final Session s;
+    private final AtomicInteger remaining;
+    final CaptureTrace trace;
 
-    CapturePictureTransaction(CameraSession session) {
+    CapturePictureTransaction(CameraSession session, int count,
+                              CaptureTrace trace) {
       this.s=(Session)session;
+      this.remaining=new AtomicInteger(count);
+      this.trace=trace;
     }
 
     @Override
@@ -657,38 +1839,59 @@ public class CameraTwoEngine extends CameraEngine {
                                    CaptureRequest request,
                                    TotalCaptureResult result) {
       // TODO: something useful with the picture
-      unlockFocus();
+      framesDone(1);
     }
 
     @Override
     public void onCaptureFailed(CameraCaptureSession session,
                                 CaptureRequest request,
                                 CaptureFailure failure) {
-      getBus()
-        .post(new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      trace.moveTo(CaptureState.FAILED, false);
+      post(new PictureTakenEvent(new RuntimeException("generic camera2 capture failure")));
+      framesDone(1);
+    }
+
+    /**
+     * Releases the focus and exposure locks once the last
+     * frame is done, one way or another.
+     *
+     * @param frames how many frames just finished
+     */
+    void framesDone(int frames) {
+      if (remaining.addAndGet(-frames)==0) {
+        unlockFocus();
+      }
     }
 
     private void unlockFocus() {
       try {
+        captureDone(s);
+
         if (!s.isClosed()) {
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
               CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
           s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
               CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+          s.previewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK,
+              false);
           s.captureSession.capture(s.previewRequestBuilder.build(), null,
-              handler);
-          s.captureSession.setRepeatingRequest(s.previewRequest, null, handler);
+              s.getHandler());
+          s.previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+              CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+          s.previewRequest=s.previewRequestBuilder.build();
+          s.captureSession.setRepeatingRequest(s.previewRequest,
+              s.previewCallback, s.getHandler());
         }
       }
       catch (CameraAccessException e) {
-        getBus().post(new PictureTakenEvent(e));
+        post(new PictureTakenEvent(e));
 
         if (isDebug()) {
           Log.e(getClass().getSimpleName(), "Exception resetting focus", e);
         }
       }
       catch (IllegalStateException e) {
-        getBus().post(new DeepImpactEvent(e));
+        post(new DeepImpactEvent(e));
 
         if (isDebug()) {
           Log.w(getClass().getSimpleName(), "Exception resetting focus", e);
@@ -707,23 +1910,173 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Reads the values for a CharacteristicsSnapshot out of
+   * CameraCharacteristics.
+   */
+  private static class SnapshotSource
+    implements CharacteristicsSnapshot.Source {
+    private final CameraCharacteristics cc;
+
+    SnapshotSource(CameraCharacteristics cc) {
+      this.cc=cc;
+    }
+
+    @Override
+    public Float getMaxDigitalZoom() {
+      return(cc.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM));
+    }
+
+    @Override
+    public int[] getActiveArray() {
+      Rect sensor=
+        cc.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+
+      if (sensor==null) {
+        return(null);
+      }
+
+      return(new int[] {sensor.left, sensor.top, sensor.right,
+        sensor.bottom});
+    }
+
+    @Override
+    public int[] getAvailableAeModes() {
+      return(cc.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES));
+    }
+
+    @Override
+    public int[] getAvailableAfModes() {
+      return(cc.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES));
+    }
+
+    @Override
+    public Integer getLensFacing() {
+      return(cc.get(CameraCharacteristics.LENS_FACING));
+    }
+
+    @Override
+    public Integer getSensorOrientation() {
+      return(cc.get(CameraCharacteristics.SENSOR_ORIENTATION));
+    }
+  }
+
   static class Descriptor implements CameraDescriptor {
     private final String cameraId;
-    private CameraDevice device;
+    final AtomicReference<DeviceState> state=
+      new AtomicReference<DeviceState>(DeviceState.CLOSED);
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile CameraDevice device;
+    private DeviceCallback deviceCallback;
+    private volatile Runnable pendingClose;
     private ArrayList<Size> pictureSizes;
     private ArrayList<Size> previewSizes;
-    private boolean isFacingFront;
+    private final boolean isFacingFront;
     private final Integer facing;
-
-    private Descriptor(String cameraId, CameraCharacteristics cc) {
+    private volatile CameraCharacteristics cc;
+    private volatile CharacteristicsSnapshot snapshot;
+    private final Rect[] cropRegions=new Rect[101];
+
+    /**
+     * Constructor.
+     *
+     * @param cameraId the camera's ID from CameraManager
+     * @param cc the camera's characteristics, or null if the
+     *           descriptor came from the DescriptorCache
+     * @param snapshot what the engine needs from cc
+     */
+    private Descriptor(String cameraId, CameraCharacteristics cc,
+                       CharacteristicsSnapshot snapshot) {
       this.cameraId=cameraId;
-      facing=cc.get(CameraCharacteristics.LENS_FACING);
+      this.cc=cc;
+      this.snapshot=snapshot;
+      facing=snapshot.getLensFacing();
+      isFacingFront=(facing!=null &&
+        facing==CameraCharacteristics.LENS_FACING_FRONT);
+    }
+
+    /**
+     * Replaces what we know about the camera with what another
+     * descriptor for the same camera found.
+     *
+     * @param fresh the newly-loaded descriptor
+     */
+    private synchronized void update(Descriptor fresh) {
+      cc=fresh.cc;
+      snapshot=fresh.snapshot;
+      previewSizes=fresh.previewSizes;
+      pictureSizes=fresh.pictureSizes;
+      Arrays.fill(cropRegions, null);
     }
 
     public String getId() {
       return (cameraId);
     }
 
+    /**
+     * @param mgr used to load the characteristics, if the
+     *            descriptor came from the DescriptorCache and has
+     *            not been revalidated yet
+     * @return the camera's characteristics, for passing along to
+     * plugins; these do not change while the device is running
+     */
+    CameraCharacteristics getCharacteristics(CameraManager mgr)
+      throws CameraAccessException {
+      CameraCharacteristics result=cc;
+
+      if (result==null) {
+        result=mgr.getCameraCharacteristics(cameraId);
+        cc=result;
+      }
+
+      return(result);
+    }
+
+    /**
+     * @return the values from getCharacteristics() that the
+     * engine needs while the camera is running
+     */
+    CharacteristicsSnapshot getSnapshot() {
+      return(snapshot);
+    }
+
+    /**
+     * @param zoomLevel 0-100, 100=max zoom
+     * @return the SCALER_CROP_REGION for that level, computed
+     * once and reused, as smooth zoom asks for these every frame
+     */
+    synchronized Rect getCropRegion(int zoomLevel) {
+      Rect result=cropRegions[zoomLevel];
+
+      if (result==null) {
+        float maxZoom=snapshot.getMaxDigitalZoom();
+        float zoomTo=1.0f+((float)zoomLevel*(maxZoom-1.0f)/100.0f);
+        int[] crop=snapshot.cropRegionForZoom(zoomTo);
+
+        result=new Rect(crop[0], crop[1], crop[2], crop[3]);
+        cropRegions[zoomLevel]=result;
+      }
+
+      return(result);
+    }
+
+    /**
+     * @return the Handler for this camera's own thread, which
+     * acts as the serial executor for its device and session
+     * callbacks, so a slow camera does not hold up another
+     */
+    synchronized Handler getHandler() {
+      if (handler==null) {
+        thread=new HandlerThread(CameraTwoEngine.class.getSimpleName()+
+          "-"+cameraId, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler=new Handler(thread.getLooper());
+      }
+
+      return(handler);
+    }
+
     private void setDevice(CameraDevice device) {
       this.device=device;
     }
@@ -751,16 +2104,8 @@ public class CameraTwoEngine extends CameraEngine {
       return(pictureSizes);
     }
 
-    private void setPictureSizes(List<android.util.Size> sizes) {
-      pictureSizes=new ArrayList<Size>(sizes.size());
-
-      for (android.util.Size size : sizes) {
-        pictureSizes.add(new Size(size.getWidth(), size.getHeight()));
-      }
-    }
-
-    private void setFacingFront(boolean isFacingFront) {
-      this.isFacingFront=isFacingFront;
+    private void setPictureSizes(ArrayList<Size> sizes) {
+      pictureSizes=sizes;
     }
 
     private int getScore(CameraSelectionCriteria criteria) {
@@ -779,13 +2124,42 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
+  /**
+   * Where a camera's device is at. Only the camera's own thread
+   * moves a device out of CLOSED. IDLE is the only state from
+   * which another thread may close it.
+   */
+  private enum DeviceState {
+    CLOSED, OPENING, IDLE, ACTIVE
+  }
+
+  /**
+   * Where a session is at. Pictures can only be taken once the
+   * session is CONFIGURED, and one capture at a time.
+   */
+  private enum SessionState {
+    OPENING, CONFIGURED, CAPTURING, CLOSING, CLOSED
+  }
+
   private static class Session extends CameraSession {
     CameraDevice cameraDevice=null;
+    Surface previewSurface=null;
+    volatile SurfaceVideoRecorder recorder=null;
+    VideoTransaction videoXact=null;
     CameraCaptureSession captureSession=null;
     CaptureRequest.Builder previewRequestBuilder=null;
     CaptureRequest previewRequest;
     ImageReader reader;
-    boolean isClosed=false;
+    List<Surface> previewTargets=Collections.emptyList();
+    CameraCaptureSession.CaptureCallback previewCallback=null;
+    CameraCaptureSession.CaptureCallback frameListener=null;
+    volatile ZoomScheduler zoomScheduler=null;
+    final AtomicReference<SessionState> state=
+      new AtomicReference<SessionState>(SessionState.OPENING);
+    final CountDownLatch closeLatch=new CountDownLatch(1);
+    long openStartedAt;
+    boolean isWarmOpen=false;
+    boolean hasFirstFrame=false;
     Rect zoomRect=null;
 
     private Session(Context ctxt, CameraDescriptor descriptor) {
@@ -808,6 +2182,40 @@ public class CameraTwoEngine extends CameraEngine {
       return(result);
     }
 
+    List<Surface> buildPreviewTargets(CameraCharacteristics cc) {
+      ArrayList<Surface> result=new ArrayList<Surface>();
+
+      for (CameraPlugin plugin : getPlugins()) {
+        CameraTwoConfigurator configurator=plugin.buildConfigurator(CameraTwoConfigurator.class);
+
+        if (configurator!=null) {
+          List<Surface> targets=configurator.buildPreviewTargets(this, cc);
+
+          if (targets!=null) {
+            result.addAll(targets);
+          }
+        }
+      }
+
+      return(result);
+    }
+
+    byte[] takeBufferedPicture(long shutterNanos) {
+      for (CameraPlugin plugin : getPlugins()) {
+        CameraTwoConfigurator configurator=plugin.buildConfigurator(CameraTwoConfigurator.class);
+
+        if (configurator!=null) {
+          byte[] result=configurator.takeBufferedPicture(this, shutterNanos);
+
+          if (result!=null) {
+            return(result);
+          }
+        }
+      }
+
+      return(null);
+    }
+
     void addToCaptureRequest(CameraCharacteristics cc,
                              boolean isFacingFront,
                              CaptureRequest.Builder captureBuilder) {
@@ -820,6 +2228,34 @@ public class CameraTwoEngine extends CameraEngine {
       }
     }
 
+    /**
+     * @return the JPEG_ORIENTATION a still capture would get
+     * right now, without building a request to find out
+     */
+    int getJpegOrientation(CameraCharacteristics cc,
+                           boolean isFacingFront) {
+      for (CameraPlugin plugin : getPlugins()) {
+        if (plugin instanceof OrientationPlugin) {
+          return(((OrientationPlugin)plugin)
+            .getOutputOrientation(cc, isFacingFront));
+        }
+      }
+
+      return(0);
+    }
+
+    void configureEncoder(CameraCharacteristics cc,
+                          VideoTransaction xact,
+                          VideoEncoderConfig.Builder config) {
+      for (CameraPlugin plugin : getPlugins()) {
+        CameraTwoConfigurator configurator=plugin.buildConfigurator(CameraTwoConfigurator.class);
+
+        if (configurator!=null) {
+          configurator.configureEncoder(this, cc, xact, config);
+        }
+      }
+    }
+
     void addToPreviewRequest(CameraCharacteristics cc,
                              CaptureRequest.Builder captureBuilder) {
       for (CameraPlugin plugin : getPlugins()) {
@@ -832,11 +2268,18 @@ public class CameraTwoEngine extends CameraEngine {
     }
 
     boolean isClosed() {
-      return(isClosed);
+      SessionState current=state.get();
+
+      return(current==SessionState.CLOSING ||
+        current==SessionState.CLOSED);
     }
 
-    void setClosed(boolean isClosed) {
-      this.isClosed=isClosed;
+    /**
+     * @return the Handler for the camera's thread, on which all
+     * callbacks for this session arrive
+     */
+    Handler getHandler() {
+      return(((Descriptor)getDescriptor()).getHandler());
     }
 
     Rect getZoomRect() {
@@ -854,28 +2297,59 @@ public class CameraTwoEngine extends CameraEngine {
     }
   }
 
-  private static class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
-    private final EventBus bus;
+  private class TakePictureTransaction implements ImageReader.OnImageAvailableListener {
     private final PictureTransaction xact;
     private final Context ctxt;
-
-    TakePictureTransaction(Context ctxt, EventBus bus, PictureTransaction xact) {
-      this.bus=bus;
+    private final int count;
+    private final CaptureTrace trace;
+    private final long shutterNanos;
+    private int index=0;
+
+    TakePictureTransaction(Context ctxt, PictureTransaction xact,
+                           int count, CaptureTrace trace,
+                           long shutterNanos) {
       this.xact=xact;
       this.ctxt=ctxt.getApplicationContext();
+      this.count=count;
+      this.trace=trace;
+      this.shutterNanos=shutterNanos;
     }
 
     @Override
     public void onImageAvailable(ImageReader imageReader) {
+      final int position=index++;
+      final byte[] bytes;
       Image image=imageReader.acquireNextImage();
-      ByteBuffer buffer=image.getPlanes()[0].getBuffer();
-      byte[] bytes=new byte[buffer.remaining()];
 
-      buffer.get(bytes);
-      image.close();
+      // copy the JPEG and hand the Image back right away, as the
+      // reader only holds a couple, and a burst needs the next
+      // one before the pool gets around to this one
+      try {
+        ByteBuffer buffer=image.getPlanes()[0].getBuffer();
+
+        bytes=new byte[buffer.remaining()];
+        buffer.get(bytes);
+      }
+      finally {
+        image.close();
+      }
+
+      getMetrics().record(EngineMetrics.Metric.SHUTTER_TO_JPEG,
+        (SystemClock.elapsedRealtimeNanos()-shutterNanos)/1000L);
 
-      bus.post(new PictureTakenEvent(xact,
-        xact.process(new ImageContext(ctxt, bytes))));
+      if (index==count) {
+        trace.moveTo(CaptureState.JPEG_RECEIVED, false);
+      }
+
+      getThreadPool().execute(new Runnable() {
+        @Override
+        public void run() {
+          ImageContext imageContext=new ImageContext(ctxt, bytes);
+
+          imageContext.setBurstPosition(position, count);
+          processPicture(xact, imageContext);
+        }
+      });
     }
   }
 }
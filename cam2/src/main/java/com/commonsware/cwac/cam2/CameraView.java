@@ -45,6 +45,7 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
   private Size previewSize;
   private StateCallback stateCallback;
   private boolean mirror=false;
+  private final FrameRateMonitor frameRate=new FrameRateMonitor();
 
   /**
    * Constructor, used for creating instances from Java code.
@@ -142,12 +143,23 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
     this.mirror=mirror;
   }
 
+  /**
+   * @return the rate at which preview frames reach this view,
+   * which can fall behind what the camera delivers if the
+   * preview size is too much for the device
+   */
+  public FrameRateMonitor getFrameRateMonitor() {
+    return(frameRate);
+  }
+
   private void initListener() {
     setSurfaceTextureListener(this);
   }
 
   @Override
   public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int i, int i1) {
+    frameRate.reset();
+
     if (stateCallback!=null) {
       stateCallback.onReady(this);
     }
@@ -175,7 +187,7 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
 
   @Override
   public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
-
+    frameRate.record(System.nanoTime());
   }
 
   private void enterTheMatrix() {
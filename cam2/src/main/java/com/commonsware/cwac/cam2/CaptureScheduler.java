@@ -0,0 +1,518 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.os.SystemClock;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Bounded queue between the camera delivering pictures and the
+ * ImagePipelines that process them. At most "concurrency"
+ * pictures are processed at once, and at most "capacity"
+ * pictures wait in memory for their turn. What happens when
+ * that queue is full is up to the OverflowPolicy.
+ * <p/>
+ * Without this, a burst of pictures piles up an unbounded
+ * number of JPEGs (and, worse, their Bitmaps) in memory.
+ */
+public class CaptureScheduler {
+  /**
+   * What to do with a new picture when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Hold off on taking the next picture until there is
+     * room in the queue. No thread waits while the picture is
+     * held off; the shutter is triggered by whichever thread
+     * makes room.
+     */
+    BLOCK,
+
+    /**
+     * Discard the oldest waiting picture, posting a
+     * CaptureDroppedEvent for it.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Write the JPEG of the new picture to the cache directory
+     * (on the engine's thread pool) and read it back in when it
+     * is its turn.
+     */
+    SPILL_TO_DISK
+  }
+
+  public static final int DEFAULT_CAPACITY=3;
+  public static final int DEFAULT_CONCURRENCY=2;
+  static final long RESERVATION_TIMEOUT_MS=10000;
+  private static final String SPILL_DIR="cwac_cam2_spill";
+
+  /**
+   * What the scheduler needs from the engine that owns it.
+   */
+  interface Host {
+    Executor getExecutor();
+    ImagePipeline.Listener getPictureListener();
+    void onDropped(PictureTransaction xact);
+  }
+
+  private final int capacity;
+  private final int concurrency;
+  private final OverflowPolicy policy;
+  private final LinkedList<PendingCapture> pending=
+    new LinkedList<PendingCapture>();
+  private final LinkedList<Waiter> waiters=new LinkedList<Waiter>();
+  private final LinkedList<Long> reservations=new LinkedList<Long>();
+  private final long reservationTimeoutMs;
+  private int inMemory=0;
+  private int onDisk=0;
+  private int active=0;
+  private long submitted=0;
+  private long completed=0;
+  private long dropped=0;
+  private long spilled=0;
+  private long started=0;
+  private long totalWaitMs=0;
+  private long maxWaitMs=0;
+  private long blockedMs=0;
+
+  /**
+   * Constructor for the default scheduler: a small queue,
+   * two pictures processed at a time, blocking when full.
+   */
+  public CaptureScheduler() {
+    this(DEFAULT_CAPACITY, DEFAULT_CONCURRENCY, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity how many pictures may wait in memory
+   * @param concurrency how many pictures may be processed at once
+   * @param policy what to do when the queue is full
+   */
+  public CaptureScheduler(int capacity, int concurrency,
+                          OverflowPolicy policy) {
+    this(capacity, concurrency, policy, RESERVATION_TIMEOUT_MS);
+  }
+
+  CaptureScheduler(int capacity, int concurrency,
+                   OverflowPolicy policy, long reservationTimeoutMs) {
+    if (capacity<1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+
+    if (concurrency<1) {
+      throw new IllegalArgumentException("concurrency must be at least 1");
+    }
+
+    this.capacity=capacity;
+    this.concurrency=concurrency;
+    this.policy=policy==null ? OverflowPolicy.BLOCK : policy;
+    this.reservationTimeoutMs=reservationTimeoutMs;
+  }
+
+  /**
+   * @return the policy for when the queue is full
+   */
+  public OverflowPolicy getPolicy() {
+    return(policy);
+  }
+
+  /**
+   * Called by engines to trigger the shutter. With the BLOCK
+   * policy and a full queue, the shot is held until there is
+   * room, then run on whichever thread made the room;
+   * otherwise, it is run right away on the calling thread.
+   * Either way, the calling thread never waits, so the shot
+   * must not block either.
+   * <p/>
+   * Under BLOCK, a shot that is run holds a slot in the queue
+   * until its picture is submitted, so shots released
+   * together cannot overfill the queue once their pictures
+   * arrive. A shot whose picture never comes (e.g., the
+   * capture failed) gives up its slot after a timeout.
+   *
+   * @param shot what triggers the shutter
+   */
+  void whenCapacity(Runnable shot) {
+    if (policy==OverflowPolicy.BLOCK) {
+      synchronized(this) {
+        waiters.add(new Waiter(shot));
+      }
+
+      releaseWaiters();
+    }
+    else {
+      shot.run();
+    }
+  }
+
+  /**
+   * Queues up a picture for processing, starting it right
+   * away if we are not already at our concurrency limit.
+   *
+   * @param xact the transaction for the picture
+   * @param imageContext the picture
+   * @param host the engine that took the picture
+   */
+  void submit(PictureTransaction xact, ImageContext imageContext,
+              Host host) {
+    PendingCapture entry=new PendingCapture(xact, imageContext, host);
+    PendingCapture victim=null;
+
+    synchronized(this) {
+      submitted++;
+
+      // a burst delivers several pictures for one shot; the
+      // extras find no reservation, or take a later shot's,
+      // which the next picture to arrive would have taken anyway
+      if (!reservations.isEmpty()) {
+        reservations.removeFirst();
+      }
+
+      if (inMemory>=capacity) {
+        if (policy==OverflowPolicy.DROP_OLDEST) {
+          victim=removeOldestInMemory();
+        }
+        else if (policy==OverflowPolicy.SPILL_TO_DISK) {
+          entry.isSpillWanted=true;
+        }
+
+        // BLOCK: the shutter should have waited already, so
+        // this is a race with another capture; let it through
+      }
+
+      pending.add(entry);
+      inMemory++;
+    }
+
+    if (victim!=null) {
+      victim.host.onDropped(victim.xact);
+    }
+
+    if (entry.isSpillWanted) {
+      spill(entry);
+    }
+
+    dispatch();
+  }
+
+  /**
+   * @return a snapshot of the queue's current state and
+   * lifetime counters
+   */
+  public synchronized Stats getStats() {
+    return(new Stats(pending.size(), active, onDisk, submitted,
+      completed, dropped, spilled,
+      started==0 ? 0 : totalWaitMs/started, maxWaitMs, blockedMs));
+  }
+
+  private PendingCapture removeOldestInMemory() {
+    for (PendingCapture candidate : pending) {
+      if (candidate.spillFile==null) {
+        pending.remove(candidate);
+        inMemory--;
+        dropped++;
+
+        return(candidate);
+      }
+    }
+
+    return(null);
+  }
+
+  /**
+   * Writes the JPEG out on the thread pool, so neither the
+   * camera callback thread nor anyone wanting the scheduler's
+   * lock waits on the disk. The picture stays in memory until
+   * the file is written; if its turn comes first, the file is
+   * just thrown away.
+   */
+  private void spill(final PendingCapture entry) {
+    entry.host.getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        File f=writeSpillFile(entry.imageContext);
+        boolean isSpilled=false;
+
+        synchronized(CaptureScheduler.this) {
+          if (f!=null && pending.contains(entry)) {
+            entry.imageContext.dropJpeg();
+            entry.spillFile=f;
+            inMemory--;
+            onDisk++;
+            spilled++;
+            isSpilled=true;
+          }
+        }
+
+        if (isSpilled) {
+          releaseWaiters();
+        }
+        else if (f!=null) {
+          f.delete();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the file holding the JPEG, or null if there is no
+   * room on disk either, in which case the picture stays in
+   * memory and we hope for the best
+   */
+  private static File writeSpillFile(ImageContext imageContext) {
+    File dir=new File(imageContext.getContext().getCacheDir(),
+      SPILL_DIR);
+    File f=null;
+
+    try {
+      dir.mkdirs();
+      f=File.createTempFile("capture", ".jpg", dir);
+      imageContext.writeJpeg(f);
+
+      return(f);
+    }
+    catch (IOException e) {
+      if (f!=null) {
+        f.delete();
+      }
+
+      return(null);
+    }
+  }
+
+  /**
+   * Runs as many held-off shots as there is now room for,
+   * counting the room already promised to shots whose
+   * pictures have not arrived yet. Called without holding the
+   * lock, as the shots trigger the camera.
+   */
+  private void releaseWaiters() {
+    ArrayList<Runnable> ready=null;
+
+    synchronized(this) {
+      long now=SystemClock.elapsedRealtime();
+
+      while (!reservations.isEmpty() &&
+        now-reservations.getFirst()>=reservationTimeoutMs) {
+        reservations.removeFirst();
+      }
+
+      int room=capacity-inMemory-reservations.size();
+
+      while (room>0 && !waiters.isEmpty()) {
+        Waiter waiter=waiters.removeFirst();
+
+        if (ready==null) {
+          ready=new ArrayList<Runnable>();
+        }
+
+        ready.add(waiter.shot);
+        reservations.add(now);
+        blockedMs+=now-waiter.since;
+        room--;
+      }
+    }
+
+    if (ready!=null) {
+      for (Runnable shot : ready) {
+        shot.run();
+      }
+    }
+  }
+
+  /**
+   * Starts as many waiting pictures as our concurrency limit
+   * allows.
+   */
+  private void dispatch() {
+    while (true) {
+      PendingCapture entry;
+      File spillFile;
+
+      synchronized(this) {
+        if (active>=concurrency || pending.isEmpty()) {
+          return;
+        }
+
+        entry=pending.removeFirst();
+        spillFile=entry.spillFile;
+        active++;
+
+        if (spillFile==null) {
+          inMemory--;
+        }
+        else {
+          onDisk--;
+        }
+
+        long waitMs=SystemClock.elapsedRealtime()-entry.enqueuedAt;
+
+        started++;
+        totalWaitMs+=waitMs;
+        maxWaitMs=Math.max(maxWaitMs, waitMs);
+      }
+
+      if (spillFile==null) {
+        releaseWaiters();
+      }
+
+      start(entry, spillFile);
+    }
+  }
+
+  private void start(final PendingCapture entry, final File spillFile) {
+    final Executor executor=entry.host.getExecutor();
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (spillFile!=null) {
+          try {
+            entry.imageContext.unspill(spillFile);
+          }
+          catch (IOException e) {
+            entry.host.getPictureListener().onFailed(null, e);
+            onFinished();
+
+            return;
+          }
+        }
+
+        entry.xact.process(entry.imageContext, executor,
+          entry.host.getPictureListener(), new Runnable() {
+            @Override
+            public void run() {
+              onFinished();
+            }
+          });
+      }
+    });
+  }
+
+  private void onFinished() {
+    synchronized(this) {
+      active--;
+      completed++;
+    }
+
+    dispatch();
+  }
+
+  private static class PendingCapture {
+    final PictureTransaction xact;
+    final ImageContext imageContext;
+    final Host host;
+    final long enqueuedAt=SystemClock.elapsedRealtime();
+    boolean isSpillWanted=false;
+    File spillFile=null; // guarded by the scheduler
+
+    PendingCapture(PictureTransaction xact,
+                   ImageContext imageContext, Host host) {
+      this.xact=xact;
+      this.imageContext=imageContext;
+      this.host=host;
+    }
+  }
+
+  private static class Waiter {
+    final Runnable shot;
+    final long since=SystemClock.elapsedRealtime();
+
+    Waiter(Runnable shot) {
+      this.shot=shot;
+    }
+  }
+
+  /**
+   * Point-in-time view of a CaptureScheduler.
+   */
+  public static class Stats {
+    /**
+     * Pictures waiting to be processed, in memory or on disk
+     */
+    public final int queueDepth;
+
+    /**
+     * Pictures being processed right now
+     */
+    public final int active;
+
+    /**
+     * Waiting pictures whose JPEGs are spilled to disk
+     */
+    public final int onDisk;
+
+    /**
+     * Pictures handed to the scheduler, ever
+     */
+    public final long submitted;
+
+    /**
+     * Pictures whose processing has finished, ever
+     */
+    public final long completed;
+
+    /**
+     * Pictures discarded by DROP_OLDEST, ever
+     */
+    public final long dropped;
+
+    /**
+     * Pictures spilled by SPILL_TO_DISK, ever
+     */
+    public final long spilled;
+
+    /**
+     * Mean time a picture waited in the queue before
+     * processing started, in milliseconds
+     */
+    public final long averageWaitMillis;
+
+    /**
+     * Longest time a picture waited in the queue, in
+     * milliseconds
+     */
+    public final long maxWaitMillis;
+
+    /**
+     * Total time the shutter was held off by BLOCK, in
+     * milliseconds
+     */
+    public final long blockedMillis;
+
+    Stats(int queueDepth, int active, int onDisk, long submitted,
+          long completed, long dropped, long spilled,
+          long averageWaitMillis, long maxWaitMillis,
+          long blockedMillis) {
+      this.queueDepth=queueDepth;
+      this.active=active;
+      this.onDisk=onDisk;
+      this.submitted=submitted;
+      this.completed=completed;
+      this.dropped=dropped;
+      this.spilled=spilled;
+      this.averageWaitMillis=averageWaitMillis;
+      this.maxWaitMillis=maxWaitMillis;
+      this.blockedMillis=blockedMillis;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/***
+ Copyright (c) 2016 CommonsWare, LLC
+
+ Licensed under the Apache License, Version 2.0 (the "License"); you may
+ not use this file except in compliance with the License. You may obtain
+ a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * The steps the CameraTwoEngine goes through to take a picture,
+ * as reported by CaptureTraceEvent. FOCUSING, PRECAPTURE_STARTING,
+ * and PRECAPTURE_RUNNING wait on the camera, and so have timeouts
+ * (see CameraTwoEngine.setCaptureTimeout()); if one runs out, the
+ * picture is taken anyway.
+ */
+public enum CaptureState {
+  /**
+   * Waiting for room in the CaptureScheduler
+   */
+  REQUESTED,
+
+  /**
+   * Autofocus triggered, waiting for it to lock
+   */
+  FOCUSING,
+
+  /**
+   * Precapture metering triggered, waiting for it to start
+   */
+  PRECAPTURE_STARTING,
+
+  /**
+   * Precapture metering running, waiting for it to finish
+   */
+  PRECAPTURE_RUNNING,
+
+  /**
+   * Still capture requested, waiting for the JPEG (the last
+   * one, for a burst)
+   */
+  CAPTURING,
+
+  /**
+   * All JPEGs are in hand and off to the CaptureScheduler
+   */
+  JPEG_RECEIVED,
+
+  /**
+   * Something went wrong; a PictureTakenEvent has the details
+   */
+  FAILED;
+
+  /**
+   * @return true if this state times out
+   */
+  public boolean isWaiting() {
+    return(this==FOCUSING || this==PRECAPTURE_STARTING ||
+      this==PRECAPTURE_RUNNING);
+  }
+
+  /**
+   * @return true if the shot is over
+   */
+  public boolean isTerminal() {
+    return(this==JPEG_RECEIVED || this==FAILED);
+  }
+}
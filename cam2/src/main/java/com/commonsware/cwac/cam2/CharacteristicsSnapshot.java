@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Immutable copy of the camera characteristics that the
+ * CameraTwoEngine consults while the camera is running (zoom,
+ * exposure and focus modes, etc.). Getting these from
+ * CameraManager is an IPC call, so we do it once, when loading
+ * the camera descriptors, and read from the snapshot after that.
+ * <p/>
+ * Deliberately has no Android dependencies, so the snapshot can
+ * be built from a fake Source.
+ */
+public final class CharacteristicsSnapshot {
+  /**
+   * Where the snapshot gets its values from. Null means the
+   * camera did not report that value.
+   */
+  public interface Source {
+    Float getMaxDigitalZoom();
+
+    /**
+     * @return the active pixel array as {left, top, right,
+     * bottom}
+     */
+    int[] getActiveArray();
+
+    int[] getAvailableAeModes();
+    int[] getAvailableAfModes();
+    Integer getLensFacing();
+    Integer getSensorOrientation();
+  }
+
+  private static final int[] EMPTY={};
+  private final float maxDigitalZoom;
+  private final int[] activeArray;
+  private final int[] aeModes;
+  private final int[] afModes;
+  private final Integer lensFacing;
+  private final int sensorOrientation;
+
+  /**
+   * Builds a snapshot, copying everything it needs out of the
+   * source.
+   *
+   * @param source the source of the characteristics
+   * @return the snapshot
+   */
+  public static CharacteristicsSnapshot from(Source source) {
+    return(new CharacteristicsSnapshot(source));
+  }
+
+  /**
+   * Reads back a snapshot saved by writeTo().
+   *
+   * @param in where to read the snapshot from
+   * @return the snapshot
+   * @throws IOException if the data could not be read
+   */
+  static CharacteristicsSnapshot readFrom(DataInput in)
+    throws IOException {
+    final float zoom=in.readFloat();
+    final int[] array=(in.readBoolean() ? readInts(in) : null);
+    final int[] ae=readInts(in);
+    final int[] af=readInts(in);
+    final Integer facing=(in.readBoolean() ? in.readInt() : null);
+    final int orientation=in.readInt();
+
+    return(from(new Source() {
+      @Override
+      public Float getMaxDigitalZoom() {
+        return(zoom);
+      }
+
+      @Override
+      public int[] getActiveArray() {
+        return(array);
+      }
+
+      @Override
+      public int[] getAvailableAeModes() {
+        return(ae);
+      }
+
+      @Override
+      public int[] getAvailableAfModes() {
+        return(af);
+      }
+
+      @Override
+      public Integer getLensFacing() {
+        return(facing);
+      }
+
+      @Override
+      public Integer getSensorOrientation() {
+        return(orientation);
+      }
+    }));
+  }
+
+  private CharacteristicsSnapshot(Source source) {
+    Float zoom=source.getMaxDigitalZoom();
+    int[] array=source.getActiveArray();
+    Integer orientation=source.getSensorOrientation();
+
+    maxDigitalZoom=(zoom==null ? 1.0f : zoom);
+    activeArray=(array==null || array.length<4 ? null : copy(array));
+    aeModes=copy(source.getAvailableAeModes());
+    afModes=copy(source.getAvailableAfModes());
+    lensFacing=source.getLensFacing();
+    sensorOrientation=(orientation==null ? 0 : orientation);
+  }
+
+  /**
+   * @return the largest digital zoom factor, 1.0 if the camera
+   * cannot zoom
+   */
+  public float getMaxDigitalZoom() {
+    return(maxDigitalZoom);
+  }
+
+  /**
+   * @return true if the camera can zoom at all
+   */
+  public boolean supportsZoom() {
+    return(maxDigitalZoom>1.0f && activeArray!=null);
+  }
+
+  /**
+   * @return the available CONTROL_AE_MODE values; do not
+   * modify the array
+   */
+  public int[] getAvailableAeModes() {
+    return(aeModes);
+  }
+
+  /**
+   * @return the available CONTROL_AF_MODE values; do not
+   * modify the array
+   */
+  public int[] getAvailableAfModes() {
+    return(afModes);
+  }
+
+  public boolean isAeModeAvailable(int mode) {
+    return(contains(aeModes, mode));
+  }
+
+  public boolean isAfModeAvailable(int mode) {
+    return(contains(afModes, mode));
+  }
+
+  /**
+   * @return the LENS_FACING value, or null if unknown
+   */
+  public Integer getLensFacing() {
+    return(lensFacing);
+  }
+
+  public int getSensorOrientation() {
+    return(sensorOrientation);
+  }
+
+  /**
+   * Computes the SCALER_CROP_REGION for a zoom factor: the
+   * center of the active array, scaled down by the factor.
+   *
+   * @param zoom the zoom factor, 1.0 to getMaxDigitalZoom()
+   * @return {left, top, right, bottom}, or null if the camera
+   * did not report its active array
+   */
+  public int[] cropRegionForZoom(float zoom) {
+    if (activeArray==null) {
+      return(null);
+    }
+
+    int width=activeArray[2]-activeArray[0];
+    int height=activeArray[3]-activeArray[1];
+    int centerX=width/2;
+    int centerY=height/2;
+    int deltaX=(int)(0.5f*width/zoom);
+    int deltaY=(int)(0.5f*height/zoom);
+
+    return(new int[] {
+      centerX-deltaX,
+      centerY-deltaY,
+      centerX+deltaX,
+      centerY+deltaY});
+  }
+
+  /**
+   * Saves the snapshot, for reading back in with readFrom().
+   *
+   * @param out where to write the snapshot
+   * @throws IOException if the data could not be written
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeFloat(maxDigitalZoom);
+    out.writeBoolean(activeArray!=null);
+
+    if (activeArray!=null) {
+      writeInts(out, activeArray);
+    }
+
+    writeInts(out, aeModes);
+    writeInts(out, afModes);
+    out.writeBoolean(lensFacing!=null);
+
+    if (lensFacing!=null) {
+      out.writeInt(lensFacing);
+    }
+
+    out.writeInt(sensorOrientation);
+  }
+
+  private static void writeInts(DataOutput out, int[] values)
+    throws IOException {
+    out.writeShort(values.length);
+
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static int[] readInts(DataInput in) throws IOException {
+    int[] result=new int[in.readUnsignedShort()];
+
+    for (int i=0;i<result.length;i++) {
+      result[i]=in.readInt();
+    }
+
+    return(result);
+  }
+
+  private static int[] copy(int[] values) {
+    if (values==null) {
+      return(EMPTY);
+    }
+
+    int[] result=new int[values.length];
+
+    System.arraycopy(values, 0, result, 0, values.length);
+
+    return(result);
+  }
+
+  private static boolean contains(int[] values, int value) {
+    for (int candidate : values) {
+      if (candidate==value) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+}
@@ -43,4 +43,15 @@ public interface ClassicCameraConfigurator extends CameraConfigurator {
                          int cameraId,
                          VideoTransaction xact,
                          MediaRecorder recorder);
+
+  /**
+   * Supplies something to receive preview frames for as long as
+   * the session's preview runs. Called once per session, after
+   * the camera is opened.
+   *
+   * @param session the session being configured
+   * @return the consumer, or null if this configurator does not
+   * want preview frames
+   */
+  PreviewFrame.Consumer buildPreviewFrameConsumer(CameraSession session);
 }
@@ -22,18 +22,22 @@ import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.commonsware.cwac.cam2.util.Size;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import de.greenrobot.event.EventBus;
 
 /**
  * Implementation of a CameraEngine that supports the
@@ -42,16 +46,25 @@ import de.greenrobot.event.EventBus;
 @SuppressWarnings("deprecation")
 public class ClassicCameraEngine extends CameraEngine
         implements MediaRecorder.OnInfoListener,
-        Camera.PreviewCallback, Camera.OnZoomChangeListener {
+        Camera.OnZoomChangeListener {
     private final Context ctxt;
-    private List<Descriptor> descriptors = null;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DescriptorCache cache;
+    private volatile List<Descriptor> descriptors = null;
+    // MediaRecorder additions in API Level 26, newer than our
+    // compileSdkVersion
+    private static final int API_LEVEL_O = 26;
+    private static final int INFO_MAX_FILESIZE_APPROACHING = 802;
+    private static final int INFO_NEXT_OUTPUT_FILE_STARTED = 803;
     private MediaRecorder recorder;
     private VideoTransaction xact;
-    private int previewWidth, previewHeight;
-    private int previewFormat;
+    private CameraSession recordingSession;
+    private int segmentIndex = 0;
+    private volatile boolean saveNextPreviewFrame = false;
 
     public ClassicCameraEngine(Context ctxt) {
         this.ctxt = ctxt.getApplicationContext();
+        this.cache = new DescriptorCache(this.ctxt, "classic");
     }
 
     /**
@@ -70,48 +83,29 @@ public class ClassicCameraEngine extends CameraEngine
             @Override
             public void run() {
                 if (descriptors == null) {
-                    int count = Camera.getNumberOfCameras();
-                    List<Descriptor> result = new ArrayList<Descriptor>();
-                    Camera.CameraInfo info = new Camera.CameraInfo();
+                    List<Descriptor> cached = fromCache(cache.read());
 
-                    for (int cameraId = 0; cameraId < count; cameraId++) {
-                        Camera.getCameraInfo(cameraId, info);
-                        Descriptor descriptor = new Descriptor(cameraId, info);
+                    if (cached == null) {
+                        List<Descriptor> result;
 
-                        Camera camera;
                         try {
-                            camera = Camera.open(descriptor.getCameraId());
+                            result = enumerateCameras();
                         } catch (Exception e) {
-                            getBus().post(new ClosedEvent(e));
+                            post(new ClosedEvent(e));
                             return;
                         }
-                        Camera.Parameters params = camera.getParameters();
-                        ArrayList<Size> sizes = new ArrayList<Size>();
 
-                        for (Camera.Size size : params.getSupportedPreviewSizes()) {
-                            if (size.height < 2160 && size.width < 2160) {
-                                sizes.add(new Size(size.width, size.height));
+                        descriptors = result;
+                        cache.write(toCache(result));
+                    } else {
+                        descriptors = cached;
+                        getThreadPool().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                revalidate();
                             }
-                        }
-
-                        descriptor.setPreviewSizes(sizes);
-
-                        sizes = new ArrayList<Size>();
-
-                        for (Camera.Size size : params.getSupportedPictureSizes()) {
-                            if (!"samsung".equals(Build.MANUFACTURER) ||
-                                    !"jflteuc".equals(Build.PRODUCT) ||
-                                    size.width < 2048) {
-                                sizes.add(new Size(size.width, size.height));
-                            }
-                        }
-
-                        descriptor.setPictureSizes(sizes);
-                        camera.release();
-                        result.add(descriptor);
+                        });
                     }
-
-                    descriptors = result;
                 }
 
                 List<CameraDescriptor> result = new ArrayList<CameraDescriptor>();
@@ -140,66 +134,400 @@ public class ClassicCameraEngine extends CameraEngine
                     }
                 });
 
-                getBus().post(new CameraDescriptorsEvent(result));
+                post(new CameraDescriptorsEvent(result));
             }
         });
     }
 
+    /**
+     * Opens each camera in turn to find out what sizes it
+     * supports. This is slow, hence the DescriptorCache.
+     */
+    private List<Descriptor> enumerateCameras() {
+        int count = Camera.getNumberOfCameras();
+        List<Descriptor> result = new ArrayList<Descriptor>();
+        Camera.CameraInfo info = new Camera.CameraInfo();
+
+        for (int cameraId = 0; cameraId < count; cameraId++) {
+            Camera.getCameraInfo(cameraId, info);
+            Descriptor descriptor = new Descriptor(cameraId, info.facing);
+            Camera camera = Camera.open(descriptor.getCameraId());
+            Camera.Parameters params = camera.getParameters();
+            ArrayList<Size> sizes = new ArrayList<Size>();
+
+            for (Camera.Size size : params.getSupportedPreviewSizes()) {
+                if (size.height < 2160 && size.width < 2160) {
+                    sizes.add(new Size(size.width, size.height));
+                }
+            }
+
+            descriptor.setPreviewSizes(sizes);
+
+            sizes = new ArrayList<Size>();
+
+            for (Camera.Size size : params.getSupportedPictureSizes()) {
+                if (!"samsung".equals(Build.MANUFACTURER) ||
+                        !"jflteuc".equals(Build.PRODUCT) ||
+                        size.width < 2048) {
+                    sizes.add(new Size(size.width, size.height));
+                }
+            }
+
+            descriptor.setPictureSizes(sizes);
+            camera.release();
+            result.add(descriptor);
+        }
+
+        return (result);
+    }
+
+    /**
+     * Checks the cached roster against the cameras that are
+     * actually there. Only the count and facing can be checked
+     * without opening the cameras; if those still match, we
+     * trust the cached sizes, as they only change with an OS
+     * update, and that changes the fingerprint. Otherwise, we
+     * enumerate the cameras for real and update the descriptors
+     * in place, as the current session may be using them.
+     */
+    private void revalidate() {
+        List<Descriptor> current = descriptors;
+        int count = Camera.getNumberOfCameras();
+        boolean isValid = (count == current.size());
+        Camera.CameraInfo info = new Camera.CameraInfo();
+
+        for (int cameraId = 0; isValid && cameraId < count; cameraId++) {
+            Camera.getCameraInfo(cameraId, info);
+
+            Descriptor descriptor = current.get(cameraId);
+
+            isValid = (descriptor.getCameraId() == cameraId &&
+                    descriptor.facing == info.facing);
+        }
+
+        if (isValid) {
+            return;
+        }
+
+        List<Descriptor> fresh;
+
+        releaseIdleCameras(null);
+
+        try {
+            fresh = enumerateCameras();
+        } catch (Exception e) {
+            // camera is in use; try again next time
+            if (isDebug()) {
+                Log.w(getClass().getSimpleName(), "Exception revalidating cameras", e);
+            }
+
+            return;
+        }
+
+        List<Descriptor> merged = DescriptorCache.revalidate(current, fresh,
+                new DescriptorCache.Merger<Descriptor>() {
+                    @Override
+                    public boolean isSameCamera(Descriptor current, Descriptor fresh) {
+                        return (current.getCameraId() == fresh.getCameraId() &&
+                                current.facing == fresh.facing);
+                    }
+
+                    @Override
+                    public void update(Descriptor current, Descriptor fresh) {
+                        current.setPreviewSizes(fresh.getPreviewSizes());
+                        current.setPictureSizes(fresh.getPictureSizes());
+                    }
+                });
+
+        descriptors = merged;
+        cache.write(toCache(merged));
+    }
+
+    private static List<Descriptor> fromCache(List<DescriptorCache.Entry> entries) {
+        if (entries == null) {
+            return (null);
+        }
+
+        List<Descriptor> result = new ArrayList<Descriptor>();
+
+        for (DescriptorCache.Entry entry : entries) {
+            Descriptor descriptor;
+
+            try {
+                descriptor = new Descriptor(Integer.parseInt(entry.id), entry.facing);
+            } catch (NumberFormatException e) {
+                return (null);
+            }
+
+            descriptor.setPreviewSizes(entry.previewSizes);
+            descriptor.setPictureSizes(entry.pictureSizes);
+            result.add(descriptor);
+        }
+
+        return (result);
+    }
+
+    private static List<DescriptorCache.Entry> toCache(List<Descriptor> descriptors) {
+        List<DescriptorCache.Entry> result = new ArrayList<DescriptorCache.Entry>();
+
+        for (Descriptor descriptor : descriptors) {
+            result.add(new DescriptorCache.Entry(
+                    Integer.toString(descriptor.getCameraId()),
+                    descriptor.facing, descriptor.getPreviewSizes(),
+                    descriptor.getPictureSizes(), null));
+        }
+
+        return (result);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public void close(final CameraSession session) {
+    public void close(final CameraSession session, boolean isFinishing) {
         Descriptor descriptor = (Descriptor) session.getDescriptor();
-        Camera camera = descriptor.getCamera();
 
-        if (camera != null) {
-            camera.stopPreview();
-            camera.release();
-            descriptor.setCamera(null);
+        synchronized (descriptor) {
+            Camera camera = descriptor.getCamera();
+
+            if (camera != null) {
+                stopPreviewFrames(descriptor);
+                camera.stopPreview();
+
+                // unless we are finishing, hang onto the camera for
+                // a bit, in case we are being reopened (e.g.,
+                // configuration change)
+                releaseCamera(descriptor,
+                        isFinishing ? 0 : getCloseGracePeriod());
+            }
         }
 
         session.destroy();
-        getBus().post(new ClosedEvent());
+        post(new ClosedEvent());
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void takePicture(final CameraSession session, final PictureTransaction xact) {
+    public void prewarm(final CameraDescriptor cameraDescriptor) {
         getThreadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Descriptor descriptor = (Descriptor) session.getDescriptor();
-                Camera camera = descriptor.getCamera();
+                Descriptor descriptor = (Descriptor) cameraDescriptor;
 
-                if (savePreviewFile() != null) {
-                    camera.setOneShotPreviewCallback(ClassicCameraEngine.this);
+                releaseIdleCameras(descriptor);
 
-                    Camera.Parameters parameters = camera.getParameters();
+                synchronized (descriptor) {
+                    if (descriptor.getCamera() != null || descriptor.isOpening) {
+                        return;
+                    }
 
-                    previewWidth = parameters.getPreviewSize().width;
-                    previewHeight = parameters.getPreviewSize().height;
-                    previewFormat = parameters.getPreviewFormat();
+                    descriptor.isOpening = true;
                 }
 
+                Camera camera = null;
+
                 try {
-                    camera.takePicture(new Camera.ShutterCallback() {
-                                           @Override
-                                           public void onShutter() {
-                                               // empty plays a sound -- go figure
-                                           }
-                                       }, null,
-                            new TakePictureTransaction(session.getContext(), xact, descriptor));
+                    camera = Camera.open(descriptor.getCameraId());
                 } catch (Exception e) {
-                    getBus().post(new PictureTakenEvent(e));
-
                     if (isDebug()) {
-                        Log.e(getClass().getSimpleName(), "Exception taking picture", e);
+                        Log.w(getClass().getSimpleName(), "Exception prewarming camera", e);
+                    }
+                }
+
+                synchronized (descriptor) {
+                    finishOpening(descriptor, camera);
+
+                    if (camera != null) {
+                        releaseCamera(descriptor, PREWARM_IDLE_MILLIS);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Camera.open() can take hundreds of milliseconds, so it is
+     * called without holding the descriptor lock, lest close() on
+     * the main thread wait on it. isOpening stands in for the lock
+     * meanwhile, so only one thread opens a given camera. Call
+     * while synchronized on the descriptor.
+     */
+    private void awaitOpening(Descriptor descriptor) {
+        while (descriptor.isOpening) {
+            try {
+                descriptor.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of an open started while isOpening was
+     * set, and wakes anyone in awaitOpening(). Call while
+     * synchronized on the descriptor.
+     *
+     * @param camera the opened camera, or null if the open failed
+     */
+    private void finishOpening(Descriptor descriptor, Camera camera) {
+        if (camera != null) {
+            descriptor.setCamera(camera);
+        }
+
+        descriptor.isOpening = false;
+        descriptor.notifyAll();
+    }
+
+    /**
+     * Releases the camera, either now or after a delay. A
+     * delayed release is canceled if the camera is opened again
+     * in the meantime. Call while synchronized on the descriptor.
+     */
+    private void releaseCamera(final Descriptor descriptor, long delayMs) {
+        cancelPendingRelease(descriptor);
+
+        if (delayMs <= 0) {
+            doReleaseCamera(descriptor);
+        } else {
+            descriptor.pendingRelease = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (descriptor) {
+                        if (descriptor.pendingRelease == this) {
+                            doReleaseCamera(descriptor);
+                        }
+                    }
+                }
+            };
+
+            handler.postDelayed(descriptor.pendingRelease, delayMs);
+        }
+    }
+
+    private void cancelPendingRelease(Descriptor descriptor) {
+        if (descriptor.pendingRelease != null) {
+            handler.removeCallbacks(descriptor.pendingRelease);
+            descriptor.pendingRelease = null;
+        }
+    }
+
+    private void doReleaseCamera(Descriptor descriptor) {
+        Camera camera = descriptor.getCamera();
+
+        stopPreviewFrames(descriptor);
+        descriptor.pendingRelease = null;
+        descriptor.setCamera(null);
+
+        if (camera != null) {
+            camera.release();
+        }
+    }
+
+    /**
+     * Most devices cannot have two cameras open at once, so
+     * release any that are only open because of a grace period
+     * or prewarm. Call while not synchronized on any descriptor.
+     */
+    private void releaseIdleCameras(Descriptor except) {
+        List<Descriptor> all = descriptors;
+
+        if (all != null) {
+            for (Descriptor descriptor : all) {
+                if (descriptor != except) {
+                    synchronized (descriptor) {
+                        awaitOpening(descriptor);
+
+                        if (descriptor.pendingRelease != null) {
+                            cancelPendingRelease(descriptor);
+                            doReleaseCamera(descriptor);
+                        }
                     }
                 }
             }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void takePicture(final CameraSession session, final PictureTransaction xact) {
+        whenCaptureCapacity(new Runnable() {
+            @Override
+            public void run() {
+                getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        shoot(session, xact);
+                    }
+                });
+            }
+        });
+    }
+
+    private void shoot(CameraSession session, PictureTransaction xact) {
+        Descriptor descriptor = (Descriptor) session.getDescriptor();
+        Camera camera = descriptor.getCamera();
+
+        if (savePreviewFile() != null) {
+            saveNextPreviewFrame = true;
+        }
+
+        try {
+            camera.takePicture(new Camera.ShutterCallback() {
+                                   @Override
+                                   public void onShutter() {
+                                       // empty plays a sound -- go figure
+                                   }
+                               }, null,
+                    new TakePictureTransaction(session.getContext(), xact, descriptor));
+        } catch (Exception e) {
+            post(new PictureTakenEvent(e));
+
+            if (isDebug()) {
+                Log.e(getClass().getSimpleName(), "Exception taking picture", e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void takeBurst(final CameraSession session,
+                          final PictureTransaction xact,
+                          final int count, final long intervalMs) {
+        checkBurst(count, intervalMs);
+
+        if (count == 1) {
+            takePicture(session, xact);
+            return;
+        }
+
+        whenCaptureCapacity(new Runnable() {
+            @Override
+            public void run() {
+                getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Descriptor descriptor = (Descriptor) session.getDescriptor();
+
+                        try {
+                            new BurstTransaction(session.getContext(), xact,
+                                    descriptor, count, intervalMs).start();
+                        } catch (Exception e) {
+                            post(new PictureTakenEvent(e));
+
+                            if (isDebug()) {
+                                Log.e(getClass().getSimpleName(), "Exception taking burst", e);
+                            }
+                        }
+                    }
+                });
+            }
         });
     }
 
@@ -212,17 +540,38 @@ public class ClassicCameraEngine extends CameraEngine
         getThreadPool().execute(new Runnable() {
             @Override
             public void run() {
+                long openStartedAt = SystemClock.elapsedRealtime();
                 Descriptor descriptor = (Descriptor) session.getDescriptor();
-                Camera camera = descriptor.getCamera();
+                Camera camera;
+                boolean isWarm;
+
+                releaseIdleCameras(descriptor);
+
+                synchronized (descriptor) {
+                    awaitOpening(descriptor);
+                    cancelPendingRelease(descriptor);
+                    camera = descriptor.getCamera();
+                    isWarm = (camera != null);
+
+                    if (camera == null) {
+                        descriptor.isOpening = true;
+                    }
+                }
 
                 if (camera == null) {
                     try {
                         camera = Camera.open(descriptor.getCameraId());
                     } catch (Exception e) {
-                        getBus().post(new OpenedEvent(e));
+                        post(new OpenedEvent(e));
+                    }
+
+                    synchronized (descriptor) {
+                        finishOpening(descriptor, camera);
+                    }
+
+                    if (camera == null) {
                         return;
                     }
-                    descriptor.setCamera(camera);
                 }
 
                 Camera.Parameters params = camera.getParameters();
@@ -260,11 +609,34 @@ public class ClassicCameraEngine extends CameraEngine
                             false));
                     camera.setPreviewTexture(texture);
                     camera.startPreview();
-                    getBus().post(new OpenedEvent());
+
+                    final long startedAt = openStartedAt;
+                    long openDuration = SystemClock.elapsedRealtime() - openStartedAt;
+
+                    getMetrics().record(EngineMetrics.Metric.OPEN_TIME,
+                            openDuration * 1000L);
+
+                    List<PreviewFrame.Consumer> frameConsumers =
+                            ((Session) session).buildPreviewFrameConsumers();
+
+                    if (!frameConsumers.isEmpty() || hasPreviewFrameConsumers() ||
+                            savePreviewFile() != null) {
+                        startPreviewFrames(descriptor, camera, startedAt,
+                                frameConsumers);
+                    } else {
+                        camera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+                            @Override
+                            public void onPreviewFrame(byte[] data, Camera camera) {
+                                getMetrics().record(EngineMetrics.Metric.FIRST_FRAME_TIME,
+                                        (SystemClock.elapsedRealtime() - startedAt) * 1000L);
+                            }
+                        });
+                    }
+                    post(new OpenedEvent(openDuration, isWarm));
                 } catch (Exception e) {
                     camera.release();
                     descriptor.setCamera(null);
-                    getBus().post(new OpenedEvent(e));
+                    post(new OpenedEvent(e));
 
                     if (isDebug()) {
                         Log.e(getClass().getSimpleName(), "Exception opening camera", e);
@@ -283,28 +655,46 @@ public class ClassicCameraEngine extends CameraEngine
         if (camera != null) {
             camera.stopPreview();
             camera.unlock();
+            startRecorder(session, camera, xact, 0);
+        }
+    }
 
-            try {
-                recorder = new MediaRecorder();
-                recorder.setCamera(camera);
-                recorder.setAudioSource(
-                        MediaRecorder.AudioSource.CAMCORDER);
-                recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-
-                ((Session) session).configureRecorder(xact, recorder);
-
-                recorder.setOutputFile(xact.getOutputPath().getAbsolutePath());
+    /**
+     * Records into one file, or one segment of a segmented
+     * recording. The camera needs to be unlocked first.
+     */
+    private void startRecorder(CameraSession session, Camera camera,
+                               VideoTransaction xact, int segment)
+            throws IOException {
+        try {
+            recorder = new MediaRecorder();
+            recorder.setCamera(camera);
+            recorder.setAudioSource(
+                    MediaRecorder.AudioSource.CAMCORDER);
+            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+
+            ((Session) session).configureRecorder(xact, recorder);
+
+            recorder.setOutputFile(xact.getSegmentPath(segment).getAbsolutePath());
+
+            if (xact.isSegmented()) {
+                recorder.setMaxFileSize(xact.getSegmentSize());
+                recorder.setMaxDuration(xact.getSegmentDuration());
+            } else {
                 recorder.setMaxFileSize(xact.getSizeLimit());
                 recorder.setMaxDuration(xact.getDurationLimit());
-                recorder.setOnInfoListener(this);
-                recorder.prepare();
-                recorder.start();
-                this.xact = xact;
-            } catch (IOException e) {
-                recorder.release();
-                recorder = null;
-                throw e;
             }
+
+            recorder.setOnInfoListener(this);
+            recorder.prepare();
+            recorder.start();
+            this.xact = xact;
+            this.recordingSession = session;
+            this.segmentIndex = segment;
+        } catch (IOException e) {
+            recorder.release();
+            recorder = null;
+            throw e;
         }
     }
 
@@ -324,15 +714,21 @@ public class ClassicCameraEngine extends CameraEngine
 
             if (!abandon) {
                 camera.reconnect();
-                camera.startPreview();
+                restartPreview(descriptor, camera);
             }
         }
 
         if (!abandon) {
-            getBus().post(new VideoTakenEvent(xact));
+            if (xact != null && xact.isSegmented()) {
+                postVideoSegment(new VideoSegmentEvent(xact, segmentIndex,
+                        xact.getSegmentPath(segmentIndex), true));
+            }
+
+            postVideoTaken(xact);
         }
 
         xact = null;
+        recordingSession = null;
     }
 
 /*
@@ -366,6 +762,27 @@ public class ClassicCameraEngine extends CameraEngine
 
     @Override
     public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
+        if (xact != null && xact.isSegmented() && mediaRecorder == recorder) {
+            if (what == INFO_MAX_FILESIZE_APPROACHING) {
+                // if this fails, we restart at the limit instead
+                setNextOutputFile(mediaRecorder,
+                        xact.getSegmentPath(segmentIndex + 1));
+
+                return;
+            } else if (what == INFO_NEXT_OUTPUT_FILE_STARTED) {
+                postVideoSegment(new VideoSegmentEvent(xact, segmentIndex,
+                        xact.getSegmentPath(segmentIndex), false));
+                segmentIndex++;
+
+                return;
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
+                    what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                startNextSegment();
+
+                return;
+            }
+        }
+
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
                 what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED ||
                 what == MediaRecorder.MEDIA_RECORDER_INFO_UNKNOWN) {
@@ -378,37 +795,183 @@ public class ClassicCameraEngine extends CameraEngine
                 tempRecorder.release();
             }
 
-            getBus().post(new VideoTakenEvent(xact));
+            postVideoTaken(xact);
         }
     }
 
-    @Override
-    public void onPreviewFrame(final byte[] data, final Camera camera) {
-        new Thread() {
-            @Override
-            public void run() {
-                YuvImage yuv = new YuvImage(data, previewFormat,
-                        previewWidth, previewHeight, null);
+    /**
+     * Seamless switch to the next segment file, on API Level 26+.
+     *
+     * @return true if the switch is queued up, false otherwise
+     */
+    private boolean setNextOutputFile(MediaRecorder mediaRecorder,
+                                      File next) {
+        if (Build.VERSION.SDK_INT >= API_LEVEL_O) {
+            try {
+                MediaRecorder.class
+                        .getMethod("setNextOutputFile", File.class)
+                        .invoke(mediaRecorder, next);
+
+                return (true);
+            } catch (Exception e) {
+                if (isDebug()) {
+                    Log.w(getClass().getSimpleName(),
+                            "Exception setting next output file", e);
+                }
+            }
+        }
 
-                try {
-                    if (savePreviewFile().exists()) {
-                        savePreviewFile().delete();
-                    }
+        return (false);
+    }
 
-                    FileOutputStream fos =
-                            new FileOutputStream(savePreviewFile());
+    /**
+     * The recorder stopped at a segment limit, so finish that
+     * segment and start a fresh recorder on the next one. There
+     * is a short gap between the two, unlike with
+     * setNextOutputFile().
+     */
+    private void startNextSegment() {
+        MediaRecorder done = recorder;
+        VideoTransaction current = xact;
+        int index = segmentIndex;
 
-                    yuv.compressToJpeg(new Rect(0, 0, previewWidth, previewHeight),
-                            90, fos);
-                    fos.flush();
-                    fos.getFD().sync();
-                    fos.close();
-                } catch (Exception e) {
-                    Log.e(getClass().getSimpleName(),
-                            "Exception saving preview frame", e);
-                }
+        recorder = null;
+
+        try {
+            done.stop();
+        } catch (RuntimeException e) {
+            // nothing recorded since the last segment
+        }
+
+        done.release();
+        postVideoSegment(new VideoSegmentEvent(current, index,
+                current.getSegmentPath(index), false));
+
+        try {
+            Camera camera =
+                    ((Descriptor) recordingSession.getDescriptor()).getCamera();
+
+            camera.unlock();
+            startRecorder(recordingSession, camera, current, index + 1);
+        } catch (Exception e) {
+            xact = null;
+            recordingSession = null;
+            postVideoTaken(current, e);
+        }
+    }
+
+    /**
+     * Starts continuous preview frames from a PreviewBufferPool,
+     * in place of the one-shot callback for the first frame.
+     * Call after startPreview().
+     */
+    private void startPreviewFrames(Descriptor descriptor, Camera camera,
+                                    long startedAt,
+                                    List<PreviewFrame.Consumer> sessionConsumers) {
+        Camera.Parameters params = camera.getParameters();
+        Camera.Size size = params.getPreviewSize();
+        Camera.CameraInfo info = new Camera.CameraInfo();
+
+        Camera.getCameraInfo(descriptor.getCameraId(), info);
+
+        synchronized (descriptor) {
+            stopPreviewFrames(descriptor);
+            descriptor.previewPool = new PreviewBufferPool(camera,
+                    size.width, size.height, params.getPreviewFormat(), info,
+                    PreviewBufferPool.DEFAULT_BUFFER_COUNT, getFrameExecutor(),
+                    new FrameDelivery(startedAt, sessionConsumers));
+            getPreviewFrameRate().reset();
+            descriptor.previewPool.setFrameRateMonitor(getPreviewFrameRate());
+            descriptor.previewPool.start();
+        }
+    }
+
+    /**
+     * Call before stopping the preview or releasing the camera.
+     */
+    private void stopPreviewFrames(Descriptor descriptor) {
+        synchronized (descriptor) {
+            if (descriptor.previewPool != null) {
+                descriptor.previewPool.stop();
+                descriptor.previewPool = null;
             }
-        }.start();
+        }
+    }
+
+    /**
+     * Restarts the preview after a picture or a recording, which
+     * turn preview frame callbacks off.
+     */
+    private void restartPreview(Descriptor descriptor, Camera camera) {
+        camera.startPreview();
+
+        synchronized (descriptor) {
+            if (descriptor.previewPool != null) {
+                descriptor.previewPool.resume();
+            }
+        }
+    }
+
+    /**
+     * Receives the frames from the PreviewBufferPool, on the
+     * frame executor, for the session's and the engine's frame
+     * consumers, the first-frame metric, and the debug preview
+     * file.
+     */
+    private class FrameDelivery implements PreviewFrame.Consumer {
+        private final long startedAt;
+        private final List<PreviewFrame.Consumer> sessionConsumers;
+        private boolean isFirst = true;
+
+        FrameDelivery(long startedAt,
+                      List<PreviewFrame.Consumer> sessionConsumers) {
+            this.startedAt = startedAt;
+            this.sessionConsumers = sessionConsumers;
+        }
+
+        @Override
+        public void onPreviewFrame(PreviewFrame frame) {
+            if (isFirst) {
+                isFirst = false;
+                getMetrics().record(EngineMetrics.Metric.FIRST_FRAME_TIME,
+                        (SystemClock.elapsedRealtime() - startedAt) * 1000L);
+            }
+
+            if (saveNextPreviewFrame) {
+                saveNextPreviewFrame = false;
+                savePreviewFrame(frame);
+            }
+
+            deliverPreviewFrame(frame, sessionConsumers);
+        }
+    }
+
+    private void savePreviewFrame(PreviewFrame frame) {
+        File output = savePreviewFile();
+
+        if (output == null) {
+            return;
+        }
+
+        YuvImage yuv = new YuvImage(frame.getData(), frame.getFormat(),
+                frame.getWidth(), frame.getHeight(), null);
+
+        try {
+            if (output.exists()) {
+                output.delete();
+            }
+
+            FileOutputStream fos = new FileOutputStream(output);
+
+            yuv.compressToJpeg(new Rect(0, 0, frame.getWidth(), frame.getHeight()),
+                    90, fos);
+            fos.flush();
+            fos.getFD().sync();
+            fos.close();
+        } catch (Exception e) {
+            Log.e(getClass().getSimpleName(),
+                    "Exception saving preview frame", e);
+        }
     }
 
     /**
@@ -419,6 +982,11 @@ public class ClassicCameraEngine extends CameraEngine
         return (false);
     }
 
+    @Override
+    public String getCameraKey(CameraDescriptor descriptor) {
+        return ("classic:" + ((Descriptor) descriptor).getCameraId());
+    }
+
     @Override
     public boolean supportsZoom(CameraSession session) {
         Descriptor descriptor = (Descriptor) session.getDescriptor();
@@ -452,7 +1020,7 @@ public class ClassicCameraEngine extends CameraEngine
     public void onZoomChange(int zoomValue, boolean stopped,
                              Camera camera) {
         if (stopped) {
-            EventBus.getDefault().post(new SmoothZoomCompletedEvent());
+            post(new SmoothZoomCompletedEvent());
         }
     }
 
@@ -460,6 +1028,7 @@ public class ClassicCameraEngine extends CameraEngine
         private final PictureTransaction xact;
         private final Context ctxt;
         private final Descriptor descriptor;
+        private final long startNanos = System.nanoTime();
 
         TakePictureTransaction(Context ctxt, PictureTransaction xact, Descriptor descriptor) {
             this.ctxt = ctxt.getApplicationContext();
@@ -469,27 +1038,205 @@ public class ClassicCameraEngine extends CameraEngine
 
         @Override
         public void onPictureTaken(final byte[] bytes, final Camera camera) {
+            getMetrics().recordSince(EngineMetrics.Metric.SHUTTER_TO_JPEG, startNanos);
             getThreadPool().execute(new Runnable() {
                 @Override
                 public void run() {
-                    camera.startPreview();
-                    getBus().post(new PictureTakenEvent(xact,
-                            xact.process(new ImageContext(ctxt, bytes, descriptor))));
+                    restartPreview(descriptor, camera);
+                    processPicture(xact,
+                            new ImageContext(ctxt, bytes, descriptor));
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes the pictures of a burst back to back. The classic
+     * API cannot take a picture until the previous one is
+     * delivered and the preview restarted, so each frame is
+     * triggered from the callback for the one before it. Focus
+     * is settled once, and exposure and white balance are
+     * locked, for the whole burst.
+     */
+    private class BurstTransaction
+            implements Camera.PictureCallback, Camera.AutoFocusCallback,
+            Camera.ShutterCallback {
+        private final Context ctxt;
+        private final PictureTransaction xact;
+        private final Descriptor descriptor;
+        private final Camera camera;
+        private final int count;
+        private final long intervalMs;
+        private boolean isFocusLocked = false;
+        private int index = 0;
+        private volatile long lastShot = 0;
+
+        BurstTransaction(Context ctxt, PictureTransaction xact,
+                         Descriptor descriptor, int count, long intervalMs) {
+            this.ctxt = ctxt.getApplicationContext();
+            this.xact = xact;
+            this.descriptor = descriptor;
+            this.camera = descriptor.getCamera();
+            this.count = count;
+            this.intervalMs = intervalMs;
+        }
+
+        void start() {
+            String focusMode = camera.getParameters().getFocusMode();
+
+            if (Camera.Parameters.FOCUS_MODE_AUTO.equals(focusMode) ||
+                    Camera.Parameters.FOCUS_MODE_MACRO.equals(focusMode) ||
+                    Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(focusMode) ||
+                    Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(focusMode)) {
+                isFocusLocked = true;
+                camera.autoFocus(this);
+            } else {
+                onFocused();
+            }
+        }
+
+        @Override
+        public void onAutoFocus(boolean success, Camera camera) {
+            getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    onFocused();
+                }
+            });
+        }
+
+        @Override
+        public void onShutter() {
+            // empty plays a sound -- go figure
+        }
+
+        @Override
+        public void onPictureTaken(final byte[] bytes, final Camera camera) {
+            getMetrics().record(EngineMetrics.Metric.SHUTTER_TO_JPEG,
+                    (SystemClock.elapsedRealtime() - lastShot) * 1000L);
+            getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ImageContext imageContext =
+                            new ImageContext(ctxt, bytes, descriptor);
+
+                    imageContext.setBurstPosition(index, count);
+                    index++;
+                    processPicture(xact, imageContext);
+
+                    try {
+                        restartPreview(descriptor, camera);
+                    } catch (RuntimeException e) {
+                        return; // camera was closed mid-burst
+                    }
+
+                    if (index < count) {
+                        next();
+                    } else {
+                        finish();
+                    }
                 }
             });
         }
+
+        private void onFocused() {
+            try {
+                lock3A(true);
+            } catch (RuntimeException e) {
+                // not fatal; frames may just not match as well
+                if (isDebug()) {
+                    Log.w(getClass().getSimpleName(), "Exception locking exposure", e);
+                }
+            }
+
+            next();
+        }
+
+        private void next() {
+            if (index == 0) {
+                shoot();
+
+                return;
+            }
+
+            whenCaptureCapacity(new Runnable() {
+                @Override
+                public void run() {
+                    long delay = lastShot + intervalMs - SystemClock.elapsedRealtime();
+
+                    getCaptureTimer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            shoot();
+                        }
+                    }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+
+        private void shoot() {
+            try {
+                if (descriptor.getCamera() != camera) {
+                    return; // closed while we were waiting
+                }
+
+                lastShot = SystemClock.elapsedRealtime();
+                camera.takePicture(this, null, this);
+            } catch (Exception e) {
+                post(new PictureTakenEvent(e));
+
+                if (isDebug()) {
+                    Log.e(getClass().getSimpleName(), "Exception taking burst", e);
+                }
+
+                if (descriptor.getCamera() == camera) {
+                    finish();
+                }
+            }
+        }
+
+        private void finish() {
+            try {
+                lock3A(false);
+            } catch (RuntimeException e) {
+                if (isDebug()) {
+                    Log.w(getClass().getSimpleName(), "Exception unlocking exposure", e);
+                }
+            }
+        }
+
+        private void lock3A(boolean lock) {
+            Camera.Parameters params = camera.getParameters();
+
+            if (params.isAutoExposureLockSupported()) {
+                params.setAutoExposureLock(lock);
+            }
+
+            if (params.isAutoWhiteBalanceLockSupported()) {
+                params.setAutoWhiteBalanceLock(lock);
+            }
+
+            camera.setParameters(params);
+
+            if (!lock && isFocusLocked) {
+                camera.cancelAutoFocus();
+            }
+        }
     }
 
     static class Descriptor implements CameraDescriptor {
         private int cameraId;
         private Camera camera;
+        private Runnable pendingRelease;
+        private boolean isOpening;
+        private PreviewBufferPool previewPool;
         private ArrayList<Size> pictureSizes;
         private ArrayList<Size> previewSizes;
         private final int facing;
 
-        private Descriptor(int cameraId, Camera.CameraInfo info) {
+        private Descriptor(int cameraId, int facing) {
             this.cameraId = cameraId;
-            this.facing = info.facing;
+            this.facing = facing;
         }
 
         public boolean isFrontCamera(){
@@ -582,6 +1329,27 @@ public class ClassicCameraEngine extends CameraEngine
             return (params);
         }
 
+        List<PreviewFrame.Consumer> buildPreviewFrameConsumers() {
+            ArrayList<PreviewFrame.Consumer> result =
+                    new ArrayList<PreviewFrame.Consumer>();
+
+            for (CameraPlugin plugin : getPlugins()) {
+                ClassicCameraConfigurator configurator =
+                        plugin.buildConfigurator(ClassicCameraConfigurator.class);
+
+                if (configurator != null) {
+                    PreviewFrame.Consumer consumer =
+                            configurator.buildPreviewFrameConsumer(this);
+
+                    if (consumer != null) {
+                        result.add(consumer);
+                    }
+                }
+            }
+
+            return (result);
+        }
+
         void configureRecorder(VideoTransaction xact,
                                MediaRecorder recorder) {
             final Descriptor descriptor = (Descriptor) getDescriptor();
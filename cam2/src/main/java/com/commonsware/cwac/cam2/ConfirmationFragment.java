@@ -169,6 +169,14 @@ public class ConfirmationFragment extends Fragment {
                 quality, getArguments().getBoolean(ARG_NORMALIZE_ORIENTATION)));
     }
 
+    /**
+     * Shows the thumbnail that came with the event, so the video
+     * need not be decoded to get one.
+     */
+    public void setVideoThumbnail(CameraEngine.VideoTakenEvent event) {
+        setVideoThumbnail(event, event.getThumbnail());
+    }
+
     public void setVideoThumbnail(CameraEngine.VideoTakenEvent event, Bitmap bitmap) {
         this.videoContext = event;
         ivConfirm.setImageBitmap(bitmap);
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.os.Build;
+import com.commonsware.cwac.cam2.util.Size;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk copy of the camera roster an engine built in
+ * loadCameraDescriptors(), so later launches need not enumerate
+ * (and, for the classic API, open) every camera before showing
+ * anything. The engine still revalidates in the background and
+ * calls write() with what it found; the file only changes if
+ * the roster did.
+ * <p/>
+ * The file is tied to Build.FINGERPRINT, so an OS update (which
+ * can change what the cameras support) throws it away.
+ */
+class DescriptorCache {
+  private static final int MAGIC=0x43414d32; // "CAM2"
+  private static final int VERSION=1;
+  private final File file;
+  private final String fingerprint;
+
+  /**
+   * What we remember about one camera.
+   */
+  static class Entry {
+    final String id;
+    final int facing;
+    final ArrayList<Size> previewSizes;
+    final ArrayList<Size> pictureSizes;
+    final CharacteristicsSnapshot snapshot;
+
+    /**
+     * Constructor.
+     *
+     * @param id the engine's ID for the camera
+     * @param facing the engine's value for which way the camera
+     *               faces
+     * @param previewSizes supported preview sizes
+     * @param pictureSizes supported picture sizes
+     * @param snapshot characteristics to save as well, or null
+     */
+    Entry(String id, int facing, List<Size> previewSizes,
+          List<Size> pictureSizes, CharacteristicsSnapshot snapshot) {
+      this.id=id;
+      this.facing=facing;
+      this.previewSizes=new ArrayList<Size>(previewSizes);
+      this.pictureSizes=new ArrayList<Size>(pictureSizes);
+      this.snapshot=snapshot;
+    }
+  }
+
+  /**
+   * How revalidation matches a freshly-enumerated camera to
+   * one in the roster that the current session may be using.
+   *
+   * @param <T> the engine's descriptor class
+   */
+  interface Merger<T> {
+    boolean isSameCamera(T current, T fresh);
+
+    /**
+     * Updates the current descriptor in place with what the
+     * fresh one found.
+     */
+    void update(T current, T fresh);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param name distinguishes this engine's cache from another's
+   */
+  DescriptorCache(Context ctxt, String name) {
+    this(new File(ctxt.getCacheDir(), "cwac_cam2_"+name+".bin"),
+      Build.FINGERPRINT);
+  }
+
+  DescriptorCache(File file, String fingerprint) {
+    this.file=file;
+    this.fingerprint=(fingerprint==null ? "" : fingerprint);
+  }
+
+  /**
+   * @return the saved roster, or null if there is none, it is
+   * from another build of the OS, or it cannot be read
+   */
+  List<Entry> read() {
+    if (!file.exists()) {
+      return(null);
+    }
+
+    try {
+      byte[] data=new byte[(int)file.length()];
+      FileInputStream fis=new FileInputStream(file);
+
+      try {
+        int offset=0;
+
+        while (offset<data.length) {
+          int count=fis.read(data, offset, data.length-offset);
+
+          if (count<0) {
+            return(null);
+          }
+
+          offset+=count;
+        }
+      }
+      finally {
+        fis.close();
+      }
+
+      return(decode(data, fingerprint));
+    }
+    catch (IOException e) {
+      return(null);
+    }
+  }
+
+  /**
+   * Saves the roster, unless it matches what is already saved.
+   *
+   * @param entries the cameras, in the engine's order
+   * @return true if the roster differed from the saved one
+   */
+  synchronized boolean write(List<Entry> entries) {
+    if (isSame(read(), entries)) {
+      return(false);
+    }
+
+    byte[] data;
+
+    try {
+      data=encode(entries, fingerprint);
+    }
+    catch (IOException e) {
+      return(false); // not from a ByteArrayOutputStream
+    }
+
+    // write to the side and rename, so a reader never sees
+    // half a file
+
+    File tmp=new File(file.getPath()+".tmp");
+
+    try {
+      FileOutputStream fos=new FileOutputStream(tmp);
+
+      try {
+        fos.write(data);
+        fos.getFD().sync();
+      }
+      finally {
+        fos.close();
+      }
+
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    }
+    catch (IOException e) {
+      tmp.delete();
+    }
+
+    return(true);
+  }
+
+  /**
+   * Merges a fresh enumeration of the cameras into the roster
+   * that came from the cache. Cameras that are still there keep
+   * their current descriptors, updated in place; new cameras
+   * are added; stale ones, no longer there, are dropped.
+   *
+   * @param current the roster in use
+   * @param fresh what enumerating the cameras found
+   * @param merger matches and updates descriptors
+   * @return the merged roster, in the order of the fresh one
+   */
+  static <T> List<T> revalidate(List<T> current, List<T> fresh,
+                                Merger<T> merger) {
+    ArrayList<T> result=new ArrayList<T>(fresh.size());
+
+    for (T camera : fresh) {
+      T existing=null;
+
+      for (T candidate : current) {
+        if (merger.isSameCamera(candidate, camera)) {
+          existing=candidate;
+          break;
+        }
+      }
+
+      if (existing==null) {
+        result.add(camera);
+      }
+      else {
+        merger.update(existing, camera);
+        result.add(existing);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return true if the two rosters would be saved identically
+   */
+  static boolean isSame(List<Entry> lhs, List<Entry> rhs) {
+    if (lhs==null || rhs==null) {
+      return(lhs==rhs);
+    }
+
+    return(Arrays.equals(encodeQuietly(lhs), encodeQuietly(rhs)));
+  }
+
+  static byte[] encode(List<Entry> entries, String fingerprint)
+    throws IOException {
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(baos);
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(fingerprint);
+    out.writeShort(entries.size());
+
+    for (Entry entry : entries) {
+      out.writeUTF(entry.id);
+      out.writeInt(entry.facing);
+      writeSizes(out, entry.previewSizes);
+      writeSizes(out, entry.pictureSizes);
+      out.writeBoolean(entry.snapshot!=null);
+
+      if (entry.snapshot!=null) {
+        entry.snapshot.writeTo(out);
+      }
+    }
+
+    out.flush();
+
+    return(baos.toByteArray());
+  }
+
+  /**
+   * @return the roster, or null if the data is not a roster for
+   * the given fingerprint
+   */
+  static List<Entry> decode(byte[] data, String fingerprint) {
+    DataInputStream in=
+      new DataInputStream(new ByteArrayInputStream(data));
+
+    try {
+      if (in.readInt()!=MAGIC || in.readInt()!=VERSION ||
+        !fingerprint.equals(in.readUTF())) {
+        return(null);
+      }
+
+      int count=in.readUnsignedShort();
+      ArrayList<Entry> result=new ArrayList<Entry>(count);
+
+      for (int i=0;i<count;i++) {
+        String id=in.readUTF();
+        int facing=in.readInt();
+        List<Size> previewSizes=readSizes(in);
+        List<Size> pictureSizes=readSizes(in);
+        CharacteristicsSnapshot snapshot=null;
+
+        if (in.readBoolean()) {
+          snapshot=CharacteristicsSnapshot.readFrom(in);
+        }
+
+        result.add(new Entry(id, facing, previewSizes, pictureSizes,
+          snapshot));
+      }
+
+      if (in.available()>0) {
+        return(null); // trailing junk, so do not trust any of it
+      }
+
+      return(result);
+    }
+    catch (IOException e) {
+      return(null); // truncated or otherwise mangled
+    }
+  }
+
+  private static byte[] encodeQuietly(List<Entry> entries) {
+    try {
+      return(encode(entries, ""));
+    }
+    catch (IOException e) {
+      return(null);
+    }
+  }
+
+  private static void writeSizes(DataOutputStream out, List<Size> sizes)
+    throws IOException {
+    out.writeShort(sizes.size());
+
+    for (Size size : sizes) {
+      out.writeInt(size.getWidth());
+      out.writeInt(size.getHeight());
+    }
+  }
+
+  private static List<Size> readSizes(DataInputStream in)
+    throws IOException {
+    int count=in.readUnsignedShort();
+    ArrayList<Size> result=new ArrayList<Size>(count);
+
+    for (int i=0;i<count;i++) {
+      result.add(new Size(in.readInt(), in.readInt()));
+    }
+
+    return(result);
+  }
+}
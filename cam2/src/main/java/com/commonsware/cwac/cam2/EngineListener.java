@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Typed callbacks for what a CameraEngine reports. Register one
+ * with CameraEngine.addListener(); each event is handed straight
+ * to the matching method, with no reflection or lookup, on
+ * whichever Executor the listener was registered with (or on the
+ * engine's own thread, if none).
+ * <p/>
+ * The engine still posts every event to its EventBus as well,
+ * unless setBus(null) was called, so existing subscribers keep
+ * working. Extend SimpleEngineListener to only override the
+ * callbacks you care about.
+ */
+public interface EngineListener {
+  void onCameraDescriptors(CameraEngine.CameraDescriptorsEvent event);
+  void onOpened(CameraEngine.OpenedEvent event);
+  void onClosed(CameraEngine.ClosedEvent event);
+  void onPictureTaken(CameraEngine.PictureTakenEvent event);
+  void onVideoTaken(CameraEngine.VideoTakenEvent event);
+  void onVideoSegment(CameraEngine.VideoSegmentEvent event);
+  void onSmoothZoomCompleted(CameraEngine.SmoothZoomCompletedEvent event);
+  void onOrientationChanged(CameraEngine.OrientationChangedEvent event);
+  void onCaptureTrace(CameraEngine.CaptureTraceEvent event);
+  void onCaptureDropped(CameraEngine.CaptureDroppedEvent event);
+  void onDeepImpact(CameraEngine.DeepImpactEvent event);
+
+  /**
+   * Called for any event without a callback of its own, such as
+   * the CameraTwoGenericEvent subclasses.
+   *
+   * @param event the event
+   */
+  void onOtherEvent(Object event);
+}
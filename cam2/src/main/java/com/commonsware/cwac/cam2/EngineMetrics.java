@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograms for the engine's hot paths, for finding out where
+ * the time goes on a given device. Recording is lock-free and
+ * allocates nothing, so it is safe to leave on in production;
+ * getSnapshot() copies the numbers out for reporting.
+ * <p/>
+ * Values land in log-linear buckets (eight per power of two),
+ * so percentiles are accurate to within 12.5%, whatever the
+ * range of the values.
+ * <p/>
+ * To send the numbers somewhere else as they are recorded,
+ * subclass this, override record(), and hand an instance to
+ * CameraEngine.setMetrics().
+ */
+public class EngineMetrics {
+  /**
+   * What is being measured. Times are in microseconds.
+   */
+  public enum Metric {
+    /**
+     * From open() to the preview being started
+     */
+    OPEN_TIME,
+
+    /**
+     * From open() to the first preview frame arriving
+     */
+    FIRST_FRAME_TIME,
+
+    /**
+     * From takePicture() to the JPEG arriving from the camera
+     */
+    SHUTTER_TO_JPEG,
+
+    /**
+     * Time spent in a single ImageProcessor
+     */
+    PROCESSOR_TIME,
+
+    /**
+     * Size of each JPEG from the camera, in bytes
+     */
+    JPEG_BYTES,
+
+    /**
+     * Time spent writing a JPEG, not counting fsync
+     */
+    WRITE_TIME,
+
+    /**
+     * Time spent in fsync after writing a JPEG to a file
+     */
+    FSYNC_TIME,
+
+    /**
+     * Tasks waiting for the engine's thread pool, sampled as
+     * each picture is handed off for processing
+     */
+    POOL_QUEUE_DEPTH,
+
+    /**
+     * Bitmap decodes retried at a larger sample size after an
+     * OutOfMemoryError; each retry records a 1
+     */
+    BITMAP_OOM_RETRIES
+  }
+
+  private final Histogram[] histograms=
+    new Histogram[Metric.values().length];
+
+  public EngineMetrics() {
+    for (int i=0;i<histograms.length;i++) {
+      histograms[i]=new Histogram();
+    }
+  }
+
+  /**
+   * Records a value. Called on whatever thread did the work
+   * being measured, so overrides need to be thread-safe and
+   * quick.
+   *
+   * @param metric what the value is for
+   * @param value the value; negative values count as 0
+   */
+  public void record(Metric metric, long value) {
+    histograms[metric.ordinal()].record(value);
+  }
+
+  /**
+   * Records the time since a System.nanoTime() reading.
+   *
+   * @param metric what the time is for
+   * @param startNanos when the work started
+   */
+  public void recordSince(Metric metric, long startNanos) {
+    record(metric, (System.nanoTime()-startNanos)/1000L);
+  }
+
+  /**
+   * @param metric the metric of interest
+   * @return a copy of what has been recorded for it so far
+   */
+  public Snapshot getSnapshot(Metric metric) {
+    return(histograms[metric.ordinal()].snapshot());
+  }
+
+  /**
+   * @return copies of what has been recorded for every metric
+   */
+  public Map<Metric, Snapshot> getSnapshots() {
+    EnumMap<Metric, Snapshot> result=
+      new EnumMap<Metric, Snapshot>(Metric.class);
+
+    for (Metric metric : Metric.values()) {
+      result.put(metric, getSnapshot(metric));
+    }
+
+    return(result);
+  }
+
+  /**
+   * Forgets everything recorded so far. Values recorded while
+   * this is running may or may not survive.
+   */
+  public void reset() {
+    for (Histogram histogram : histograms) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * A point-in-time copy of one metric.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts=counts;
+      this.count=count;
+      this.sum=sum;
+      this.max=max;
+    }
+
+    /**
+     * @return how many values were recorded
+     */
+    public long getCount() {
+      return(count);
+    }
+
+    /**
+     * @return the total of the recorded values
+     */
+    public long getSum() {
+      return(sum);
+    }
+
+    /**
+     * @return the largest recorded value, 0 if none
+     */
+    public long getMax() {
+      return(max);
+    }
+
+    /**
+     * @return the average recorded value, 0 if none
+     */
+    public double getMean() {
+      return(count==0 ? 0.0d : (double)sum/count);
+    }
+
+    /**
+     * @param percentile 0-100 (e.g., 99.0 for the 99th
+     *                   percentile)
+     * @return the value that percentile of recorded values were
+     * at or below, rounded up to the top of its bucket
+     */
+    public long getPercentile(double percentile) {
+      long total=0;
+
+      for (long bucketCount : counts) {
+        total+=bucketCount;
+      }
+
+      if (total==0) {
+        return(0);
+      }
+
+      long target=(long)Math.ceil(total*percentile/100.0d);
+      long seen=0;
+
+      for (int i=0;i<counts.length;i++) {
+        seen+=counts[i];
+
+        if (seen>=target && counts[i]>0) {
+          return(Math.min(max, Histogram.upperBound(i)));
+        }
+      }
+
+      return(max);
+    }
+
+    @Override
+    public String toString() {
+      return("count="+count+", mean="+(long)getMean()+", p50="+
+        getPercentile(50)+", p90="+getPercentile(90)+", p99="+
+        getPercentile(99)+", max="+max);
+    }
+  }
+
+  /**
+   * The values 0-7 get a bucket each; above that, each power of
+   * two is split into eight buckets.
+   */
+  static class Histogram {
+    private static final int SUB_BITS=3;
+    private static final int SUB_BUCKETS=1<<SUB_BITS;
+    private static final int BUCKETS=(64-SUB_BITS+1)*SUB_BUCKETS;
+    private final AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+    private final AtomicLong count=new AtomicLong();
+    private final AtomicLong sum=new AtomicLong();
+    private final AtomicLong max=new AtomicLong();
+
+    void record(long value) {
+      if (value<0) {
+        value=0;
+      }
+
+      counts.incrementAndGet(bucketFor(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+
+      long current=max.get();
+
+      while (value>current && !max.compareAndSet(current, value)) {
+        current=max.get();
+      }
+    }
+
+    Snapshot snapshot() {
+      long[] copy=new long[BUCKETS];
+
+      for (int i=0;i<BUCKETS;i++) {
+        copy[i]=counts.get(i);
+      }
+
+      return(new Snapshot(copy, count.get(), sum.get(), max.get()));
+    }
+
+    void reset() {
+      for (int i=0;i<BUCKETS;i++) {
+        counts.set(i, 0);
+      }
+
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+
+    static int bucketFor(long value) {
+      if (value<SUB_BUCKETS) {
+        return((int)value);
+      }
+
+      int exponent=63-Long.numberOfLeadingZeros(value);
+      int sub=(int)(value>>>(exponent-SUB_BITS))&(SUB_BUCKETS-1);
+
+      return((exponent-SUB_BITS+1)*SUB_BUCKETS+sub);
+    }
+
+    /**
+     * @return the largest value that lands in the bucket
+     */
+    static long upperBound(int bucket) {
+      if (bucket<SUB_BUCKETS) {
+        return(bucket);
+      }
+
+      int exponent=bucket/SUB_BUCKETS+SUB_BITS-1;
+      long sub=bucket%SUB_BUCKETS;
+      long lower=(SUB_BUCKETS+sub)<<(exponent-SUB_BITS);
+
+      return(lower+(1L<<(exponent-SUB_BITS))-1);
+    }
+  }
+}
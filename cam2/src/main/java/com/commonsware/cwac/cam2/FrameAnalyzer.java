@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * Looks at live preview frames, such as for barcode scanning or
+ * blur detection. Wrap one in a FrameAnalyzerPlugin and add that
+ * to the CameraSession.Builder.
+ */
+public interface FrameAnalyzer {
+  /**
+   * Called on a background thread with the latest preview frame,
+   * in NV21 format. Frames that arrive while this is still
+   * running are dropped, so take as long as you need, but the
+   * longer you take, the fewer frames you see.
+   *
+   * @param frame the frame; only valid until this returns
+   * @param rotation how far to rotate the frame, clockwise, for
+   *                 it to appear upright given how the device is
+   *                 being held: 0, 90, 180, or 270
+   */
+  void analyze(PreviewFrame frame, int rotation);
+}
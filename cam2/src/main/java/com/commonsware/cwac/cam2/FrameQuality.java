@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * How one preview frame measured up, from a
+ * FrameQualityAnalyzer. All values come from a downsampled
+ * luminance plane, so compare them between frames of the same
+ * session rather than against absolute expectations.
+ */
+public final class FrameQuality {
+  private final long timestamp;
+  private final double sharpness;
+  private final double motion;
+  private final double meanLuma;
+  private final int[] histogram;
+  private final int scale;
+  private final long analysisNanos;
+
+  FrameQuality(long timestamp, double sharpness, double motion,
+               double meanLuma, int[] histogram, int scale,
+               long analysisNanos) {
+    this.timestamp=timestamp;
+    this.sharpness=sharpness;
+    this.motion=motion;
+    this.meanLuma=meanLuma;
+    this.histogram=histogram;
+    this.scale=scale;
+    this.analysisNanos=analysisNanos;
+  }
+
+  /**
+   * @return the frame's timestamp, from PreviewFrame
+   */
+  public long getTimestamp() {
+    return(timestamp);
+  }
+
+  /**
+   * @return the variance of the Laplacian: higher is sharper,
+   * and a blurry frame scores far lower than a sharp one of the
+   * same scene
+   */
+  public double getSharpness() {
+    return(sharpness);
+  }
+
+  /**
+   * @return the mean absolute luminance difference from the
+   * previous analyzed frame, 0-255, or NaN if there was no
+   * comparable previous frame
+   */
+  public double getMotion() {
+    return(motion);
+  }
+
+  /**
+   * @return the mean luminance, 0-255
+   */
+  public double getMeanLuma() {
+    return(meanLuma);
+  }
+
+  /**
+   * @return pixel counts for each luminance value, 0-255; do not
+   * modify the array
+   */
+  public int[] getHistogram() {
+    return(histogram);
+  }
+
+  /**
+   * @return how much the frame was scaled down by for analysis
+   */
+  public int getScale() {
+    return(scale);
+  }
+
+  /**
+   * @return how long the analysis took
+   */
+  public long getAnalysisNanos() {
+    return(analysisNanos);
+  }
+}
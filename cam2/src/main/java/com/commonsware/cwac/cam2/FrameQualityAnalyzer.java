@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.YuvConverter;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FrameAnalyzer that scores preview frames for sharpness
+ * (variance of the Laplacian), exposure (a luminance histogram),
+ * and motion (the change from the previous frame), working on a
+ * luminance plane scaled down to about TARGET_WIDTH pixels wide.
+ * Add it to a session with a FrameAnalyzerPlugin, or hand it to
+ * CameraController.setCaptureWhenSteady().
+ * <p/>
+ * The analyzer keeps to a per-frame CPU budget: when a frame
+ * takes longer than the budget, it skips enough of the following
+ * frames to make up for it, and analyzes at a coarser scale from
+ * then on. When frames come in well under budget, the scale is
+ * refined again.
+ */
+public class FrameQualityAnalyzer implements FrameAnalyzer {
+  /**
+   * Width that frames are scaled down to before analysis
+   */
+  public static final int TARGET_WIDTH=320;
+
+  /**
+   * Default for the per-frame CPU budget
+   */
+  public static final long DEFAULT_BUDGET_NANOS=5000000L;
+
+  /**
+   * Default for setSteadyThresholds()
+   */
+  public static final double DEFAULT_MIN_SHARPNESS=100.0;
+
+  /**
+   * Default for setSteadyThresholds()
+   */
+  public static final double DEFAULT_MAX_MOTION=4.0;
+
+  /**
+   * Default for setSteadyThresholds()
+   */
+  public static final int DEFAULT_STEADY_FRAMES=2;
+  private static final int MAX_EXTRA_SCALE=3;
+  private final YuvConverter converter=new YuvConverter();
+  private final long budgetNanos;
+  private final AtomicReference<Runnable> whenSteady=
+    new AtomicReference<Runnable>();
+  private volatile FrameQuality latest;
+  private volatile Listener listener;
+  private volatile double minSharpness=DEFAULT_MIN_SHARPNESS;
+  private volatile double maxMotion=DEFAULT_MAX_MOTION;
+  private volatile int steadyFrames=DEFAULT_STEADY_FRAMES;
+
+  // only touched on the analysis thread
+  private byte[] luma;
+  private byte[] previous;
+  private int lumaWidth;
+  private int lumaHeight;
+  private int extraScale=0;
+  private int framesToSkip=0;
+  private int steadyCount=0;
+
+  /**
+   * Told about each analyzed frame.
+   */
+  public interface Listener {
+    /**
+     * Called on the analysis thread.
+     *
+     * @param quality the results for the frame
+     */
+    void onFrameQuality(FrameQuality quality);
+  }
+
+  /**
+   * Constructor, with DEFAULT_BUDGET_NANOS as the budget.
+   */
+  public FrameQualityAnalyzer() {
+    this(DEFAULT_BUDGET_NANOS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param budgetNanos how much time to spend per frame, on
+   *                    average
+   */
+  public FrameQualityAnalyzer(long budgetNanos) {
+    if (budgetNanos<=0) {
+      throw new IllegalArgumentException("budgetNanos must be positive");
+    }
+
+    this.budgetNanos=budgetNanos;
+  }
+
+  public void setListener(Listener listener) {
+    this.listener=listener;
+  }
+
+  /**
+   * @return the results for the most recently analyzed frame,
+   * or null if none have been analyzed yet
+   */
+  public FrameQuality getLatest() {
+    return(latest);
+  }
+
+  /**
+   * Sets what counts as sharp and steady, for whenSteady().
+   *
+   * @param minSharpness lowest acceptable getSharpness()
+   * @param maxMotion highest acceptable getMotion()
+   * @param frames how many analyzed frames in a row need to
+   *               qualify
+   */
+  public void setSteadyThresholds(double minSharpness, double maxMotion,
+                                  int frames) {
+    this.minSharpness=minSharpness;
+    this.maxMotion=maxMotion;
+    this.steadyFrames=Math.max(1, frames);
+  }
+
+  /**
+   * Arranges for a callback once the frames are sharp and
+   * steady, replacing any callback still waiting. The callback
+   * is called on the analysis thread, at most once.
+   *
+   * @param callback what to run
+   */
+  public void whenSteady(Runnable callback) {
+    whenSteady.set(callback);
+  }
+
+  /**
+   * Cancels a callback passed to whenSteady(), if it is still
+   * waiting.
+   *
+   * @param callback the callback to cancel
+   * @return true if the callback was canceled, false if it
+   * already ran or was replaced
+   */
+  public boolean cancelWhenSteady(Runnable callback) {
+    return(whenSteady.compareAndSet(callback, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void analyze(PreviewFrame frame, int rotation) {
+    if (framesToSkip>0) {
+      framesToSkip--;
+
+      return;
+    }
+
+    long startNanos=System.nanoTime();
+    int scale=Math.max(1, frame.getWidth()/TARGET_WIDTH)+extraScale;
+    int width=frame.getWidth()/scale;
+    int height=frame.getHeight()/scale;
+
+    if (width<3 || height<3) {
+      return;
+    }
+
+    if (luma==null || width!=lumaWidth || height!=lumaHeight) {
+      luma=new byte[width*height];
+      previous=null;
+      lumaWidth=width;
+      lumaHeight=height;
+    }
+
+    // rotation does not change any of the scores, so skip it
+
+    converter.nv21ToGray(frame.getData(), frame.getWidth(),
+      frame.getHeight(), luma, scale, 0);
+
+    int[] histogram=new int[256];
+    long lumaSum=0;
+    long motionSum=0;
+
+    for (int i=0;i<luma.length;i++) {
+      int value=luma[i]&0xff;
+
+      histogram[value]++;
+      lumaSum+=value;
+
+      if (previous!=null) {
+        motionSum+=Math.abs(value-(previous[i]&0xff));
+      }
+    }
+
+    double motion=(previous==null ? Double.NaN :
+      (double)motionSum/luma.length);
+    double sharpness=laplacianVariance(luma, width, height);
+    FrameQuality quality=new FrameQuality(frame.getTimestamp(),
+      sharpness, motion, (double)lumaSum/luma.length, histogram, scale,
+      System.nanoTime()-startNanos);
+
+    // swap, rather than copy, so the next frame is compared
+    // against this one
+
+    byte[] temp=previous;
+
+    previous=luma;
+    luma=(temp==null ? new byte[width*height] : temp);
+    latest=quality;
+    applyBudget(quality.getAnalysisNanos());
+
+    Listener current=listener;
+
+    if (current!=null) {
+      current.onFrameQuality(quality);
+    }
+
+    checkSteady(quality);
+  }
+
+  private void applyBudget(long elapsed) {
+    if (elapsed>budgetNanos) {
+      framesToSkip=(int)(elapsed/budgetNanos);
+
+      if (extraScale<MAX_EXTRA_SCALE) {
+        extraScale++;
+      }
+    }
+    else if (elapsed<budgetNanos/4 && extraScale>0) {
+      extraScale--;
+    }
+  }
+
+  private void checkSteady(FrameQuality quality) {
+    if (quality.getSharpness()>=minSharpness &&
+      quality.getMotion()<=maxMotion) { // false for NaN
+      steadyCount++;
+    }
+    else {
+      steadyCount=0;
+    }
+
+    if (steadyCount>=steadyFrames) {
+      Runnable callback=whenSteady.getAndSet(null);
+
+      if (callback!=null) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * @return the variance of the 4-neighbor Laplacian over the
+   * interior of the plane
+   */
+  static double laplacianVariance(byte[] plane, int width, int height) {
+    long sum=0;
+    long sumSquares=0;
+    int count=(width-2)*(height-2);
+
+    for (int y=1;y<height-1;y++) {
+      int row=y*width;
+
+      for (int x=1;x<width-1;x++) {
+        int i=row+x;
+        int value=4*(plane[i]&0xff)-(plane[i-1]&0xff)-(plane[i+1]&0xff)
+          -(plane[i-width]&0xff)-(plane[i+width]&0xff);
+
+        sum+=value;
+        sumSquares+=(long)value*value;
+      }
+    }
+
+    double mean=(double)sum/count;
+
+    return((double)sumSquares/count-mean*mean);
+  }
+}
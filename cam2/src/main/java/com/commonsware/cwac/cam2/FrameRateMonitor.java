@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the arrival times of the most recent frames in a ring,
+ * and works out frame rate, jitter, and dropped frames from them
+ * on request. Recording is a couple of volatile writes, with no
+ * locks or allocation, so it is cheap enough to do for every
+ * frame on the thread that receives it.
+ * <p/>
+ * One thread at a time should record; any thread may call
+ * getStats().
+ */
+public class FrameRateMonitor {
+  /**
+   * Default number of frames to keep, about four seconds' worth
+   * at 30fps
+   */
+  public static final int DEFAULT_CAPACITY=128;
+
+  // entries this close to being overwritten are left out of
+  // getStats(), in case the recording thread laps us mid-read
+  private static final int SLACK=8;
+  private static final int MAX_READ_ATTEMPTS=3;
+  private final AtomicLongArray ring;
+  private final int mask;
+  private final AtomicLong count=new AtomicLong();
+
+  /**
+   * Frame statistics over the frames still in the ring.
+   */
+  public static class Stats {
+    private final long frameCount;
+    private final int sampleCount;
+    private final double fps;
+    private final double jitterMillis;
+    private final int droppedFrames;
+
+    Stats(long frameCount, int sampleCount, double fps,
+          double jitterMillis, int droppedFrames) {
+      this.frameCount=frameCount;
+      this.sampleCount=sampleCount;
+      this.fps=fps;
+      this.jitterMillis=jitterMillis;
+      this.droppedFrames=droppedFrames;
+    }
+
+    /**
+     * @return how many frames have been recorded in all
+     */
+    public long getFrameCount() {
+      return(frameCount);
+    }
+
+    /**
+     * @return how many recent frames the other values are based
+     * on
+     */
+    public int getSampleCount() {
+      return(sampleCount);
+    }
+
+    /**
+     * @return frames per second, or 0 if there are not yet two
+     * frames to go on
+     */
+    public double getFps() {
+      return(fps);
+    }
+
+    /**
+     * @return the standard deviation of the time between frames,
+     * in milliseconds
+     */
+    public double getJitterMillis() {
+      return(jitterMillis);
+    }
+
+    /**
+     * @return how many frames appear to be missing, judging by
+     * gaps that are a multiple of the usual time between frames
+     */
+    public int getDroppedFrames() {
+      return(droppedFrames);
+    }
+  }
+
+  /**
+   * Constructor, for a ring of DEFAULT_CAPACITY frames.
+   */
+  public FrameRateMonitor() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity how many frames to keep; rounded up to a
+   *                 power of two
+   */
+  public FrameRateMonitor(int capacity) {
+    if (capacity<=SLACK) {
+      throw new IllegalArgumentException("capacity must be more than "+SLACK);
+    }
+
+    int size=Integer.highestOneBit(capacity-1)<<1;
+
+    ring=new AtomicLongArray(size);
+    mask=size-1;
+  }
+
+  /**
+   * Records a frame.
+   *
+   * @param nanos when the frame arrived, in System.nanoTime()
+   *              terms
+   */
+  public void record(long nanos) {
+    long index=count.get();
+
+    ring.set((int)(index & mask), nanos);
+    count.set(index+1); // publishes the entry to readers
+  }
+
+  /**
+   * Forgets all recorded frames, such as when the preview
+   * restarts. Call on the recording thread.
+   */
+  public void reset() {
+    count.set(0);
+  }
+
+  /**
+   * @return statistics over the frames in the ring
+   */
+  public Stats getStats() {
+    long end=0;
+    long[] times=null;
+
+    for (int attempt=0;attempt<MAX_READ_ATTEMPTS;attempt++) {
+      end=count.get();
+
+      int n=(int)Math.min(end, ring.length()-SLACK);
+
+      times=new long[n];
+
+      for (int i=0;i<n;i++) {
+        times[i]=ring.get((int)((end-n+i) & mask));
+      }
+
+      if (count.get()-end<SLACK) {
+        break;
+      }
+    }
+
+    return(computeStats(end, times));
+  }
+
+  static Stats computeStats(long frameCount, long[] times) {
+    int n=times.length;
+
+    if (n<2 || times[n-1]<=times[0]) {
+      return(new Stats(frameCount, n, 0, 0, 0));
+    }
+
+    long[] intervals=new long[n-1];
+    double sum=0;
+
+    for (int i=1;i<n;i++) {
+      intervals[i-1]=times[i]-times[i-1];
+      sum+=intervals[i-1];
+    }
+
+    double mean=sum/intervals.length;
+    double squares=0;
+
+    for (long interval : intervals) {
+      squares+=(interval-mean)*(interval-mean);
+    }
+
+    double jitter=Math.sqrt(squares/intervals.length)/1000000.0;
+    double fps=intervals.length*1000000000.0/(times[n-1]-times[0]);
+
+    long[] sorted=intervals.clone();
+
+    Arrays.sort(sorted);
+
+    long median=sorted[sorted.length/2];
+    int dropped=0;
+
+    if (median>0) {
+      for (long interval : intervals) {
+        // 1.5x the usual gap means at least one frame went missing
+        long missing=Math.round((double)interval/median)-1;
+
+        if (missing>0) {
+          dropped+=missing;
+        }
+      }
+    }
+
+    return(new Stats(frameCount, n, fps, jitter, dropped));
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.widget.TextView;
+import java.util.Locale;
+
+/**
+ * Debug overlay showing the preview frame rate, jitter, and
+ * dropped frames, both as the camera delivers frames to the
+ * engine and as they reach the CameraView. A gap between the two
+ * points at the display side (e.g., a preview size too large for
+ * the device); poor numbers for both point at the camera.
+ * <p/>
+ * Put it over the CameraView, such as in the same FrameLayout.
+ */
+public class FrameRateOverlay extends TextView {
+  private static final long REFRESH_MS=500;
+  private FrameRateMonitor camera;
+  private FrameRateMonitor view;
+  private final Runnable refresh=new Runnable() {
+    @Override
+    public void run() {
+      update();
+      postDelayed(this, REFRESH_MS);
+    }
+  };
+
+  public FrameRateOverlay(Context context) {
+    this(context, null);
+  }
+
+  public FrameRateOverlay(Context context, AttributeSet attrs) {
+    super(context, attrs);
+    setTextColor(Color.WHITE);
+    setBackgroundColor(0x80000000);
+    setTextSize(TypedValue.COMPLEX_UNIT_SP, 12);
+    setPadding(8, 8, 8, 8);
+  }
+
+  /**
+   * Sets what to report on. Either may be null.
+   *
+   * @param camera frames reaching the engine, from
+   *               CameraEngine.getPreviewFrameRate()
+   * @param view frames reaching the view, from
+   *             CameraView.getFrameRateMonitor()
+   */
+  public void setMonitors(FrameRateMonitor camera, FrameRateMonitor view) {
+    this.camera=camera;
+    this.view=view;
+    update();
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    post(refresh);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    removeCallbacks(refresh);
+    super.onDetachedFromWindow();
+  }
+
+  private void update() {
+    StringBuilder text=new StringBuilder();
+
+    append(text, "camera", camera);
+    append(text, "view", view);
+    setText(text);
+  }
+
+  private static void append(StringBuilder text, String label,
+                             FrameRateMonitor monitor) {
+    if (monitor!=null) {
+      FrameRateMonitor.Stats stats=monitor.getStats();
+
+      if (text.length()>0) {
+        text.append('\n');
+      }
+
+      text.append(String.format(Locale.US,
+        "%s: %.1f fps, jitter %.1f ms, %d dropped", label,
+        stats.getFps(), stats.getJitterMillis(),
+        stats.getDroppedFrames()));
+    }
+  }
+}
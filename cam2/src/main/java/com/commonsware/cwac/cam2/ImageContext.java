@@ -27,6 +27,10 @@ import com.android.mms.exif.ExifInterface;
 import com.android.mms.exif.ExifTag;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import de.greenrobot.event.EventBus;
@@ -40,15 +44,29 @@ import de.greenrobot.event.EventBus;
  * call getBitmap(true) to force creation of a Bitmap for those
  * JPEG bytes, but this is memory-intensive and should be avoided
  * where possible.
+ * <p/>
+ * READ processors in the same stage of an ImagePipeline share
+ * one ImageContext across threads. The JPEG bytes and EXIF are
+ * published once, before such a stage starts, and readers get
+ * at them without locking; only the paths that change the
+ * picture take the ImageContext's monitor. Bitmaps are built
+ * under a lock of their own, so decoding one does not hold up
+ * readers of the JPEG or EXIF.
  */
 public class ImageContext {
     private static final double LOG_2 = Math.log(2.0d);
     private Context ctxt;
-    private byte[] jpegOriginal;
+    private volatile byte[] jpegOriginal;
+    private volatile ExifInterface exif;
+    private final Object bitmapLock = new Object();
     private Bitmap bmp;
     private Bitmap thumbnail;
-    private ExifInterface exif;
     private ClassicCameraEngine.Descriptor descriptor;
+    private int burstIndex = 0;
+    private int burstCount = 1;
+    private volatile int orientationOverride = 0;
+    private volatile EngineMetrics metrics;
+    private volatile CameraEngine engine;
 
     ImageContext(Context ctxt, byte[] jpeg) {
         this.ctxt = ctxt.getApplicationContext();
@@ -69,6 +87,71 @@ public class ImageContext {
         return (ctxt);
     }
 
+    /**
+     * @return the position of this picture in its burst, 0 for
+     * the first (or only) picture
+     */
+    public int getBurstIndex() {
+        return (burstIndex);
+    }
+
+    /**
+     * @return the number of pictures in this picture's burst, 1
+     * if it was not taken as part of a burst
+     */
+    public int getBurstCount() {
+        return (burstCount);
+    }
+
+    void setBurstPosition(int burstIndex, int burstCount) {
+        this.burstIndex = burstIndex;
+        this.burstCount = burstCount;
+    }
+
+    /**
+     * For pictures whose JPEG does not carry the right EXIF
+     * orientation (e.g., frames taken from a preview stream),
+     * sets the orientation to use instead.
+     *
+     * @param orientation an EXIF orientation value
+     */
+    void setOrientation(int orientation) {
+        this.orientationOverride = orientation;
+    }
+
+    /**
+     * @return where to record timings for work on this picture,
+     * or null if it did not come from an engine
+     */
+    EngineMetrics getMetrics() {
+        return (metrics);
+    }
+
+    void setMetrics(EngineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setEngine(CameraEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Reports a failure in working on this picture, through the
+     * engine that took it, so its listeners hear about it too.
+     *
+     * @param e what went wrong
+     */
+    void postDeepImpact(Throwable e) {
+        CameraEngine current = engine;
+        CameraEngine.DeepImpactEvent event = new CameraEngine.DeepImpactEvent(e);
+
+        if (current == null) {
+            EventBus.getDefault().post(event);
+        } else {
+            current.post(event);
+        }
+    }
+
     /**
      * @return the byte[] of JPEG-encoded data for the picture
      */
@@ -82,22 +165,103 @@ public class ImageContext {
      * @param jpeg the new JPEG data
      */
     public void setJpeg(byte[] jpeg) {
-        this.jpegOriginal = jpeg;
-        this.bmp = null;
-        this.thumbnail = null;
+        synchronized (this) {
+            this.jpegOriginal = jpeg;
+            this.exif = null;
+        }
+
+        clearBitmaps();
+    }
+
+    /**
+     * Parses the EXIF ahead of a stage of parallel READ
+     * processors, so they find it ready and need not contend
+     * for the lock to build it.
+     */
+    void publish() {
+        try {
+            getExifInterface();
+        } catch (IOException e) {
+            // readers that want the EXIF will hear about this
+        }
+    }
+
+    /**
+     * Writes the JPEG data out to the supplied file, so it can
+     * later be dropped from the heap while the picture waits in
+     * the CaptureScheduler queue. Takes no lock, so it can run
+     * without holding anything up.
+     *
+     * @param f where to write the JPEG
+     */
+    void writeJpeg(File f) throws IOException {
+        byte[] jpeg = getJpeg();
+        FileOutputStream fos = new FileOutputStream(f);
+
+        try {
+            fos.write(jpeg);
+            fos.flush();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Drops the JPEG data from the heap, once writeJpeg() has
+     * saved it.
+     */
+    void dropJpeg() {
+        synchronized (this) {
+            jpegOriginal = null;
+            exif = null;
+        }
+
+        clearBitmaps();
+    }
+
+    /**
+     * Reads back JPEG data written by writeJpeg(), deleting the
+     * file.
+     *
+     * @param f where the JPEG was written
+     */
+    synchronized void unspill(File f) throws IOException {
+        byte[] jpeg = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+
+        try {
+            in.readFully(jpeg);
+        } finally {
+            in.close();
+            f.delete();
+        }
+
+        jpegOriginal = jpeg;
     }
 
     public ExifInterface getExifInterface() throws IOException {
-        if (exif == null) {
-            exif = new ExifInterface();
+        ExifInterface result = exif;
 
-            exif.readExif(jpegOriginal);
+        if (result == null) {
+            synchronized (this) {
+                result = exif;
+
+                if (result == null) {
+                    result = new ExifInterface();
+                    result.readExif(jpegOriginal);
+                    exif = result;
+                }
+            }
         }
 
-        return (exif);
+        return (result);
     }
 
     public int getOrientation() throws IOException {
+        if (orientationOverride > 0) {
+            return (orientationOverride);
+        }
+
         ExifTag tag = getExifInterface().getTag(ExifInterface.TAG_ORIENTATION);
         boolean isPortrait = ctxt.getResources().getConfiguration().orientation == Configuration.ORIENTATION_PORTRAIT;
         //Hack for Nexus 6P front camera is inverted
@@ -115,40 +279,72 @@ public class ImageContext {
                 int orientation = getOrientation();
 
                 if (needsNormalization(orientation)) {
-                    try {
-                        Bitmap original =
-                                BitmapFactory.decodeByteArray(jpegOriginal, 0,
-                                        jpegOriginal.length);
-                        Bitmap rotated = rotateViaMatrix(original, orientation);
-
-                        exif.setTagValue(ExifInterface.TAG_ORIENTATION, 1);
-                        exif.removeCompressedThumbnail();
-
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-                        exif.writeExif(rotated, baos, 100);
-
-                        byte[] res = baos.toByteArray();
-                        if (res != null) {
-                            jpegOriginal = res;
-                        }
-                        return res;
-                    } catch (OutOfMemoryError e) {
-                        EventBus
-                                .getDefault()
-                                .post(new CameraEngine.DeepImpactEvent(e));
-                    }
+                    return (normalize());
                 }
             } catch (Exception e) {
-                EventBus
-                        .getDefault()
-                        .post(new CameraEngine.DeepImpactEvent(e));
+                postDeepImpact(e);
             }
         }
 
         return (getJpeg());
     }
 
+    /**
+     * Rotates the JPEG upright and publishes the result in
+     * place of the original. Works on its own copy of the EXIF,
+     * so readers of the published one never see it change.
+     */
+    private byte[] normalize() throws IOException {
+        byte[] res;
+
+        synchronized (this) {
+            res = normalizeLocked();
+        }
+
+        clearBitmaps();
+
+        return (res);
+    }
+
+    private byte[] normalizeLocked() throws IOException {
+        byte[] jpeg = jpegOriginal;
+        int orientation = getOrientation();
+
+        if (!needsNormalization(orientation)) {
+            return (jpeg); // another caller got here first
+        }
+
+        try {
+            ExifInterface updated = new ExifInterface();
+
+            updated.readExif(jpeg);
+
+            Bitmap original = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            Bitmap rotated = rotateViaMatrix(original, orientation);
+
+            updated.setTagValue(ExifInterface.TAG_ORIENTATION, 1);
+            updated.removeCompressedThumbnail();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+            updated.writeExif(rotated, baos, 100);
+
+            byte[] res = baos.toByteArray();
+
+            if (res != null) {
+                jpegOriginal = res;
+                exif = updated;
+                orientationOverride = 0;
+            }
+
+            return (res);
+        } catch (OutOfMemoryError e) {
+            postDeepImpact(e);
+        }
+
+        return (jpeg);
+    }
+
     /**
      * Retrieve a Bitmap rendition of the picture. Try to avoid
      * this where possible, as it is memory-intensive.
@@ -159,11 +355,13 @@ public class ImageContext {
      * @return the Bitmap rendition of the picture
      */
     public Bitmap getBitmap(boolean force, boolean normalizeOrientation) {
-        if (bmp == null && force) {
-            updateBitmap(normalizeOrientation);
-        }
+        synchronized (bitmapLock) {
+            if (bmp == null && force) {
+                updateBitmap(normalizeOrientation);
+            }
 
-        return (bmp);
+            return (bmp);
+        }
     }
 
     public Bitmap buildPreviewThumbnail(Context ctxt, Float quality,
@@ -171,6 +369,14 @@ public class ImageContext {
         // TODO: move this into PictureTransaction work somewhere, so done
         // on a background thread
 
+        synchronized (bitmapLock) {
+            return (buildPreviewThumbnailLocked(ctxt, quality,
+                    normalizeOrientation));
+        }
+    }
+
+    private Bitmap buildPreviewThumbnailLocked(Context ctxt, Float quality,
+                                               boolean normalizeOrientation) {
         if (thumbnail == null) {
             int limit = 2000000;
 
@@ -199,9 +405,20 @@ public class ImageContext {
         return (createBitmap(null, 750000, normalizeOrientation));
     }
 
+    /**
+     * Never call this while holding the ImageContext's monitor,
+     * as building a Bitmap takes the locks in the other order.
+     */
+    private void clearBitmaps() {
+        synchronized (bitmapLock) {
+            bmp = null;
+            thumbnail = null;
+        }
+    }
+
     private Bitmap createBitmap(Bitmap inBitmap, int limit,
                                 boolean normalizeOrientation) {
-        double ratio = (double) jpegOriginal.length * 10.0d / (double) limit;
+        double ratio = (double) getJpeg().length * 10.0d / (double) limit;
         int inSampleSize;
 
         if (ratio > 1.0d) {
@@ -223,16 +440,23 @@ public class ImageContext {
         opts.inBitmap = inBitmap;
 
         Bitmap result;
+        byte[] jpeg = getJpeg();
 
         try {
             result =
-                    BitmapFactory.decodeByteArray(jpegOriginal, 0, jpegOriginal.length, opts);
+                    BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
 
             if (limit > 0 && result.getByteCount() > limit) {
                 return (createBitmap(inSampleSize + 1, inBitmap,
                         limit, normalizeOrientation));
             }
         } catch (OutOfMemoryError e) {
+            EngineMetrics current = metrics;
+
+            if (current != null) {
+                current.record(EngineMetrics.Metric.BITMAP_OOM_RETRIES, 1);
+            }
+
             return (createBitmap(inSampleSize + 1, inBitmap,
                     limit, normalizeOrientation));
         }
@@ -246,8 +470,7 @@ public class ImageContext {
                 }
             }
         } catch (IOException e) {
-            EventBus.getDefault().post(
-                    new CameraEngine.DeepImpactEvent(e));
+            postDeepImpact(e);
         }
 
         return (result);
@@ -0,0 +1,410 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the ImageProcessor chain of a PictureTransaction on an
+ * Executor, off of whatever thread delivered the picture.
+ * <p/>
+ * The chain is split into stages. Adjacent processors that
+ * only READ the picture share a stage and run in parallel;
+ * every other processor gets a stage to itself, so the order
+ * of mutations and writes is preserved. Each stage has a
+ * Future that completes when all of its processors are done.
+ * <p/>
+ * The picture is considered ready once the last stage that
+ * mutates or writes it is done. Any READ stages after that
+ * point keep running, but they do not hold up the Listener.
+ */
+public class ImagePipeline {
+  /**
+   * Callbacks for the progress of an ImagePipeline. These
+   * are called on a thread of the pipeline's Executor.
+   */
+  public interface Listener {
+    /**
+     * The picture is in its final form and has been written
+     * wherever it needs writing to. Trailing READ stages may
+     * still be running.
+     *
+     * @param pipeline the pipeline that is ready
+     */
+    void onImageReady(ImagePipeline pipeline);
+
+    /**
+     * A processor failed before the picture became ready.
+     * Later stages are skipped.
+     *
+     * @param pipeline the pipeline that failed
+     * @param t what went wrong
+     */
+    void onFailed(ImagePipeline pipeline, Throwable t);
+  }
+
+  private final PictureTransaction xact;
+  private final ImageContext imageContext;
+  private final Executor executor;
+  private final Listener listener;
+  private final Runnable onFinished;
+  private final ArrayList<Stage> stages;
+  private final List<Future<ImageContext>> stageFutures;
+  private final int readyStage;
+  private final AtomicBoolean started=new AtomicBoolean(false);
+
+  ImagePipeline(PictureTransaction xact, ImageContext imageContext,
+                List<ImageProcessor> processors,
+                Executor executor, Listener listener,
+                Runnable onFinished) {
+    this.xact=xact;
+    this.imageContext=imageContext;
+    this.executor=executor;
+    this.listener=listener;
+    this.onFinished=onFinished;
+    this.stages=plan(processors);
+
+    int lastMutation=-1;
+    ArrayList<Future<ImageContext>> futures=
+      new ArrayList<Future<ImageContext>>(stages.size());
+
+    for (int i=0;i<stages.size();i++) {
+      Stage stage=stages.get(i);
+
+      if (!stage.isReadOnly()) {
+        lastMutation=i;
+      }
+
+      futures.add(stage.future);
+    }
+
+    this.readyStage=lastMutation;
+    this.stageFutures=Collections.unmodifiableList(futures);
+  }
+
+  /**
+   * @return the transaction whose processors are being run
+   */
+  public PictureTransaction getTransaction() {
+    return(xact);
+  }
+
+  /**
+   * @return the picture being processed
+   */
+  public ImageContext getImageContext() {
+    return(imageContext);
+  }
+
+  /**
+   * @return one Future per stage, in chain order; each
+   * yields the ImageContext once that stage completes, or
+   * throws an ExecutionException if a processor in it (or
+   * in an earlier stage) failed
+   */
+  public List<Future<ImageContext>> getStageFutures() {
+    return(stageFutures);
+  }
+
+  /**
+   * @return a Future that completes when every stage,
+   * including trailing READ stages, is done
+   */
+  public Future<ImageContext> getCompletion() {
+    if (stages.isEmpty()) {
+      return(new StageFuture(imageContext));
+    }
+
+    return(stages.get(stages.size()-1).future);
+  }
+
+  /**
+   * Kicks off the first stage on the Executor. Only the first
+   * call has any effect.
+   */
+  void start() {
+    if (started.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (readyStage<0) {
+            listener.onImageReady(ImagePipeline.this);
+          }
+
+          if (stages.isEmpty()) {
+            finished();
+          }
+          else {
+            runFrom(0);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs stages starting at the given index on the current
+   * (worker) thread. Single-processor stages run inline; for a
+   * parallel stage, all but one processor are handed to the
+   * Executor and the last one to finish carries on with the
+   * next stage.
+   *
+   * @param index the stage to start with
+   */
+  private void runFrom(int index) {
+    while (index<stages.size()) {
+      final Stage stage=stages.get(index);
+      final int stageIndex=index;
+      int count=stage.processors.size();
+
+      stage.remaining.set(count);
+
+      if (count>1) {
+        // parallel readers then find the EXIF ready, rather
+        // than taking turns to build it
+        imageContext.publish();
+      }
+
+      for (int i=1;i<count;i++) {
+        final ImageProcessor processor=stage.processors.get(i);
+
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (runProcessor(stage, processor) &&
+              finishStage(stageIndex)) {
+              runFrom(stageIndex+1);
+            }
+          }
+        });
+      }
+
+      if (!runProcessor(stage, stage.processors.get(0))) {
+        return; // some other worker will finish this stage
+      }
+
+      if (!finishStage(index)) {
+        return; // failed, so we are done
+      }
+
+      index++;
+    }
+  }
+
+  /**
+   * @return true if this was the last processor of the stage
+   * to finish
+   */
+  private boolean runProcessor(Stage stage, ImageProcessor processor) {
+    long startNanos=System.nanoTime();
+
+    try {
+      processor.process(xact, imageContext);
+    }
+    catch (Throwable t) {
+      stage.failure.compareAndSet(null, t);
+    }
+
+    EngineMetrics metrics=imageContext.getMetrics();
+
+    if (metrics!=null) {
+      metrics.recordSince(EngineMetrics.Metric.PROCESSOR_TIME, startNanos);
+    }
+
+    return(stage.remaining.decrementAndGet()==0);
+  }
+
+  /**
+   * Completes the Future for a stage whose processors are all
+   * done, and reports on the picture if warranted.
+   *
+   * @return true if the pipeline should continue with the
+   * next stage, false if it failed
+   */
+  private boolean finishStage(int index) {
+    Stage stage=stages.get(index);
+    Throwable failure=stage.failure.get();
+
+    if (failure==null) {
+      stage.future.complete(imageContext);
+
+      if (index==readyStage) {
+        listener.onImageReady(this);
+      }
+
+      if (index==stages.size()-1) {
+        finished();
+      }
+
+      return(true);
+    }
+
+    for (int i=index;i<stages.size();i++) {
+      stages.get(i).future.fail(failure);
+    }
+
+    if (index<=readyStage) {
+      listener.onFailed(this, failure);
+    }
+
+    finished();
+
+    return(false);
+  }
+
+  private void finished() {
+    if (onFinished!=null) {
+      onFinished.run();
+    }
+  }
+
+  /**
+   * Splits the processor chain into stages: runs of READ
+   * processors become one parallel stage, and everything else
+   * is a stage of its own.
+   *
+   * @param processors the chain, in order
+   * @return the stages, in order
+   */
+  static ArrayList<Stage> plan(List<ImageProcessor> processors) {
+    ArrayList<Stage> result=new ArrayList<Stage>();
+    Stage current=null;
+
+    for (ImageProcessor processor : processors) {
+      boolean isRead=(getAccess(processor)==ImageProcessor.Access.READ);
+
+      if (current==null || !isRead || !current.isReadOnly()) {
+        current=new Stage(isRead);
+        result.add(current);
+      }
+
+      current.processors.add(processor);
+    }
+
+    return(result);
+  }
+
+  static ImageProcessor.Access getAccess(ImageProcessor processor) {
+    if (processor instanceof StagedImageProcessor) {
+      ImageProcessor.Access access=
+        ((StagedImageProcessor)processor).getAccess();
+
+      if (access!=null) {
+        return(access);
+      }
+    }
+
+    return(ImageProcessor.Access.MUTATE_PIXELS);
+  }
+
+  static class Stage {
+    final ArrayList<ImageProcessor> processors=
+      new ArrayList<ImageProcessor>();
+    final StageFuture future=new StageFuture();
+    final AtomicInteger remaining=new AtomicInteger();
+    final AtomicReference<Throwable> failure=
+      new AtomicReference<Throwable>();
+    private final boolean isReadOnly;
+
+    Stage(boolean isReadOnly) {
+      this.isReadOnly=isReadOnly;
+    }
+
+    boolean isReadOnly() {
+      return(isReadOnly);
+    }
+  }
+
+  /**
+   * Minimal settable Future for stage completion. Stages
+   * cannot be cancelled once the pipeline is started.
+   */
+  static class StageFuture implements Future<ImageContext> {
+    private final CountDownLatch latch=new CountDownLatch(1);
+    private volatile ImageContext result;
+    private volatile Throwable failure;
+
+    StageFuture() {
+      // completed later
+    }
+
+    StageFuture(ImageContext result) {
+      complete(result);
+    }
+
+    void complete(ImageContext result) {
+      this.result=result;
+      latch.countDown();
+    }
+
+    void fail(Throwable failure) {
+      this.failure=failure;
+      latch.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return(false);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return(false);
+    }
+
+    @Override
+    public boolean isDone() {
+      return(latch.getCount()==0);
+    }
+
+    @Override
+    public ImageContext get()
+      throws InterruptedException, ExecutionException {
+      latch.await();
+
+      return(report());
+    }
+
+    @Override
+    public ImageContext get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException,
+      TimeoutException {
+      if (!latch.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+
+      return(report());
+    }
+
+    private ImageContext report() throws ExecutionException {
+      if (failure!=null) {
+        throw new ExecutionException(failure);
+      }
+
+      return(result);
+    }
+  }
+}
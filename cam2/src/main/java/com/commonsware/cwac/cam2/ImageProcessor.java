@@ -21,6 +21,34 @@ package com.commonsware.cwac.cam2;
  * needs writing to.
  */
 public interface ImageProcessor {
+  /**
+   * What a processor does with the picture, used by the
+   * ImagePipeline to decide which processors may run in
+   * parallel and which need to be kept in order.
+   */
+  enum Access {
+    /**
+     * Only reads the picture (e.g., hashing, thumbnails,
+     * analytics). Adjacent READ processors run in parallel.
+     */
+    READ,
+
+    /**
+     * Replaces the JPEG data or otherwise changes the pixels.
+     */
+    MUTATE_PIXELS,
+
+    /**
+     * Changes EXIF or other metadata of the picture.
+     */
+    MUTATE_METADATA,
+
+    /**
+     * Writes the picture somewhere outside of the ImageContext.
+     */
+    WRITE
+  }
+
   /**
    * Manipulate the picture indicated by the ImageContext.
    * Properties for configuring this particular bit of image
@@ -27,7 +27,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import de.greenrobot.event.EventBus;
 
 /**
  * ImageProcessor that writes a JPEG file out to some form
@@ -39,6 +38,10 @@ public class JPEGWriter extends AbstractImageProcessor {
    * Property key to identify the Uri where
    * the image should be written. Look up the value for this
    * property in the PictureTransaction.
+   * <p/>
+   * For a burst, pictures after the first get "-1", "-2", etc.
+   * appended to the base name of a file Uri. Other Uris can
+   * only hold one picture, so they get just the first.
    */
   public static final String PROP_OUTPUT="output";
 
@@ -72,6 +75,14 @@ public class JPEGWriter extends AbstractImageProcessor {
     super(ctxt, tag);
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Access getAccess() {
+    return(Access.WRITE);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -85,19 +96,25 @@ public class JPEGWriter extends AbstractImageProcessor {
       .getProperties()
       .getBoolean(PROP_SKIP_ORIENTATION_NORMALIZATION, false));
 
+    int burstIndex=imageContext.getBurstIndex();
+
     if (output!=null) {
       try {
         if (output.getScheme().equals("file")) {
-          String path=output.getPath();
+          String path=getBurstPath(output.getPath(), burstIndex);
           File f=new File(path);
 
           f.getParentFile().mkdirs();
 
+          long startNanos=System.nanoTime();
           FileOutputStream fos=new FileOutputStream(f);
 
           fos.write(jpeg);
           fos.flush();
+          record(imageContext, EngineMetrics.Metric.WRITE_TIME, startNanos);
+          startNanos=System.nanoTime();
           fos.getFD().sync();
+          record(imageContext, EngineMetrics.Metric.FSYNC_TIME, startNanos);
           fos.close();
 
           if (updateMediaStore) {
@@ -106,18 +123,45 @@ public class JPEGWriter extends AbstractImageProcessor {
                 null);
           }
         }
-        else {
+        else if (burstIndex==0) {
+          long startNanos=System.nanoTime();
           OutputStream out=getContext().getContentResolver().openOutputStream(output);
 
           out.write(jpeg);
           out.flush();
           out.close();
+          record(imageContext, EngineMetrics.Metric.WRITE_TIME, startNanos);
         }
       }
       catch (Exception e) {
         // throw new UnsupportedOperationException("Exception when trying to write JPEG", e);
-        EventBus.getDefault().post(new CameraEngine.DeepImpactEvent(e));
+        imageContext.postDeepImpact(e);
       }
     }
   }
+
+  private static void record(ImageContext imageContext,
+                             EngineMetrics.Metric metric,
+                             long startNanos) {
+    EngineMetrics metrics=imageContext.getMetrics();
+
+    if (metrics!=null) {
+      metrics.recordSince(metric, startNanos);
+    }
+  }
+
+  static String getBurstPath(String path, int burstIndex) {
+    if (burstIndex==0) {
+      return(path);
+    }
+
+    int slash=path.lastIndexOf('/');
+    int dot=path.lastIndexOf('.');
+
+    if (dot<=slash+1) {
+      return(path+"-"+burstIndex);
+    }
+
+    return(path.substring(0, dot)+"-"+burstIndex+path.substring(dot));
+  }
 }
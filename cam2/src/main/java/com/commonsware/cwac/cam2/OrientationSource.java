@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.OrientationEventListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One OrientationEventListener for the whole process, turning raw
+ * sensor degrees into a device rotation of 0, 90, 180, or 270.
+ * <p/>
+ * Raw readings wobble by a few degrees even when the device is
+ * held still, and sweep through every value in between when it is
+ * turned, so listeners are only told when the rotation changes.
+ * To keep a device held near 45 degrees from flapping between two
+ * rotations, a new rotation only counts once the reading is
+ * HYSTERESIS_DEGREES past the halfway point. Changes are also
+ * spaced at least MIN_INTERVAL_MS apart; one that arrives sooner
+ * is picked up from a later reading, since the sensor keeps
+ * reporting while the device is held in the new position.
+ * <p/>
+ * The sensor is only on while there are listeners.
+ */
+public class OrientationSource {
+  /**
+   * How far past the halfway point between two rotations a
+   * reading needs to be to switch to the new one
+   */
+  public static final int HYSTERESIS_DEGREES=15;
+
+  /**
+   * Shortest time between two changes reported to listeners
+   */
+  public static final long MIN_INTERVAL_MS=250;
+
+  /**
+   * Value of getRotation() before the sensor has reported
+   */
+  public static final int ROTATION_UNKNOWN=
+    OrientationEventListener.ORIENTATION_UNKNOWN;
+
+  private static OrientationSource singleton=null;
+  private final Context ctxt;
+  private final CopyOnWriteArrayList<Listener> listeners=
+    new CopyOnWriteArrayList<Listener>();
+  private OrientationEventListener sensor;
+  private volatile int rotation=ROTATION_UNKNOWN;
+  private long lastChange=0;
+
+  /**
+   * Told when the device rotation changes.
+   */
+  public interface Listener {
+    /**
+     * Called on the main application thread.
+     *
+     * @param rotation 0, 90, 180, or 270
+     */
+    void onRotationChanged(int rotation);
+  }
+
+  /**
+   * @param ctxt any Context will do
+   * @return the process-wide OrientationSource
+   */
+  synchronized public static OrientationSource get(Context ctxt) {
+    if (singleton==null) {
+      singleton=new OrientationSource(ctxt.getApplicationContext());
+    }
+
+    return(singleton);
+  }
+
+  private OrientationSource(Context ctxt) {
+    this.ctxt=ctxt;
+  }
+
+  /**
+   * Registers a listener, turning the sensor on if this is the
+   * first one.
+   *
+   * @param listener the listener to add
+   * @return false if the device cannot report its orientation,
+   * in which case the listener will never be called
+   */
+  synchronized public boolean addListener(Listener listener) {
+    if (sensor==null) {
+      sensor=new OrientationEventListener(ctxt) {
+        @Override
+        public void onOrientationChanged(int orientation) {
+          onReading(orientation);
+        }
+      };
+
+      if (!sensor.canDetectOrientation()) {
+        sensor=null;
+
+        return(false);
+      }
+
+      sensor.enable();
+    }
+
+    listeners.addIfAbsent(listener);
+
+    return(true);
+  }
+
+  /**
+   * Unregisters a listener, turning the sensor off if this was
+   * the last one.
+   *
+   * @param listener the listener to remove
+   */
+  synchronized public void removeListener(Listener listener) {
+    listeners.remove(listener);
+
+    if (listeners.isEmpty() && sensor!=null) {
+      sensor.disable();
+      sensor=null;
+      rotation=ROTATION_UNKNOWN;
+    }
+  }
+
+  /**
+   * @return the current device rotation (0, 90, 180, or 270),
+   * or ROTATION_UNKNOWN if the sensor has not reported (or
+   * nobody is listening)
+   */
+  public int getRotation() {
+    return(rotation);
+  }
+
+  private void onReading(int orientation) {
+    if (orientation==OrientationEventListener.ORIENTATION_UNKNOWN) {
+      return; // flat on a table; keep what we had
+    }
+
+    int current=rotation;
+    int next=quantize(orientation, current, HYSTERESIS_DEGREES);
+
+    if (next==current) {
+      return;
+    }
+
+    long now=SystemClock.elapsedRealtime();
+
+    if (current!=ROTATION_UNKNOWN && now-lastChange<MIN_INTERVAL_MS) {
+      return;
+    }
+
+    lastChange=now;
+    rotation=next;
+
+    for (Listener listener : listeners) {
+      listener.onRotationChanged(next);
+    }
+  }
+
+  /**
+   * Works out the rotation for a sensor reading.
+   *
+   * @param orientation the reading, 0-359
+   * @param current the rotation so far, or ROTATION_UNKNOWN
+   * @param hysteresis how far past the halfway point the reading
+   *                   needs to be to leave the current rotation
+   * @return the new rotation, possibly the same as current
+   */
+  static int quantize(int orientation, int current, int hysteresis) {
+    int nearest=((orientation+45)/90*90)%360;
+
+    if (current==ROTATION_UNKNOWN || nearest==current) {
+      return(nearest);
+    }
+
+    int distance=Math.abs(orientation-current)%360;
+
+    if (distance>180) {
+      distance=360-distance;
+    }
+
+    return(distance>=45+hysteresis ? nearest : current);
+  }
+}
@@ -19,6 +19,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Class encapsulating the information needed to take a picture
@@ -33,12 +34,27 @@ public class PictureTransaction {
     // use the builder, please
   }
 
-  ImageContext process(ImageContext imageContext) {
-    for (ImageProcessor processor : processors) {
-      processor.process(this, imageContext);
-    }
+  /**
+   * Starts running the chain of ImageProcessors on the
+   * supplied Executor.
+   *
+   * @param imageContext the picture to process
+   * @param executor where the processors should run
+   * @param listener told when the picture is ready (or not)
+   * @param onFinished run once every stage is done or the
+   *                   pipeline has failed; may be null
+   * @return the running pipeline, for its per-stage Futures
+   */
+  ImagePipeline process(ImageContext imageContext,
+                        Executor executor,
+                        ImagePipeline.Listener listener,
+                        Runnable onFinished) {
+    ImagePipeline pipeline=new ImagePipeline(this, imageContext,
+      processors, executor, listener, onFinished);
+
+    pipeline.start();
 
-    return(imageContext);
+    return(pipeline);
   }
 
   ImageProcessor findProcessorByTag(String tag) {
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Continuous preview frames for the classic camera API, using a
+ * fixed set of buffers handed to the camera with
+ * addCallbackBuffer(). The camera fills a buffer, we pass the
+ * frame to a consumer on an Executor, and the buffer goes back
+ * to the camera once the consumer is done. Nothing is allocated
+ * per frame.
+ * <p/>
+ * If the executor is busy, the frame is dropped and its buffer
+ * goes straight back to the camera, so a slow consumer lowers
+ * the frame rate it sees rather than queueing up stale frames.
+ */
+class PreviewBufferPool implements Camera.PreviewCallback {
+  static final int DEFAULT_BUFFER_COUNT=3;
+  private final Camera camera;
+  private final Executor executor;
+  private final PreviewFrame.Consumer consumer;
+  private final Slot[] slots;
+  private FrameRateMonitor frameRate;
+  private boolean isStopped=false;
+
+  /**
+   * Constructor. Call start() to begin receiving frames.
+   *
+   * @param camera the camera, with its preview size and format
+   *               already set
+   * @param width the preview width
+   * @param height the preview height
+   * @param format the preview format (Camera.Parameters
+   *               getPreviewFormat())
+   * @param info the camera's CameraInfo, for its orientation
+   *             and facing
+   * @param count how many buffers to use
+   * @param executor where to call the consumer; if it rejects a
+   *                 frame, the frame is dropped
+   * @param consumer what to hand the frames to
+   */
+  PreviewBufferPool(Camera camera, int width, int height, int format,
+                    Camera.CameraInfo info, int count, Executor executor,
+                    PreviewFrame.Consumer consumer) {
+    this.camera=camera;
+    this.executor=executor;
+    this.consumer=consumer;
+
+    int bytes=getBufferSize(width, height, format);
+
+    slots=new Slot[count];
+
+    for (int i=0;i<count;i++) {
+      slots[i]=new Slot(new PreviewFrame(new byte[bytes], width, height,
+        format, info.orientation,
+        info.facing==Camera.CameraInfo.CAMERA_FACING_FRONT));
+    }
+  }
+
+  /**
+   * Records the arrival of every frame the camera delivers,
+   * including those dropped because the consumer is busy. Call
+   * before start().
+   *
+   * @param frameRate where to record frames, or null
+   */
+  void setFrameRateMonitor(FrameRateMonitor frameRate) {
+    this.frameRate=frameRate;
+  }
+
+  /**
+   * Hands the buffers to the camera. Call once.
+   */
+  void start() {
+    camera.setPreviewCallbackWithBuffer(this);
+
+    for (Slot slot : slots) {
+      camera.addCallbackBuffer(slot.frame.getData());
+    }
+  }
+
+  /**
+   * Turns frame delivery back on after the camera turned it off,
+   * as it does when taking a picture. The buffers stay with the
+   * camera throughout.
+   */
+  synchronized void resume() {
+    if (!isStopped) {
+      camera.setPreviewCallbackWithBuffer(this);
+    }
+  }
+
+  /**
+   * Stops delivering frames. Call before releasing the camera;
+   * buffers still out with the consumer are not handed back.
+   */
+  synchronized void stop() {
+    if (!isStopped) {
+      isStopped=true;
+      camera.setPreviewCallbackWithBuffer(null);
+    }
+  }
+
+  @Override
+  public void onPreviewFrame(byte[] data, Camera camera) {
+    Slot slot=find(data);
+
+    if (slot==null) {
+      return; // not ours, or the camera gave up on the buffer
+    }
+
+    long now=System.nanoTime();
+
+    slot.frame.setTimestamp(now);
+
+    if (frameRate!=null) {
+      frameRate.record(now);
+    }
+
+    try {
+      executor.execute(slot);
+    }
+    catch (RejectedExecutionException e) {
+      recycle(data);
+    }
+  }
+
+  private Slot find(byte[] data) {
+    if (data!=null) {
+      for (Slot slot : slots) {
+        if (slot.frame.getData()==data) {
+          return(slot);
+        }
+      }
+    }
+
+    return(null);
+  }
+
+  private synchronized void recycle(byte[] data) {
+    if (!isStopped) {
+      camera.addCallbackBuffer(data);
+    }
+  }
+
+  /**
+   * @return how big a callback buffer needs to be for a frame,
+   * per the Camera.Parameters setPreviewFormat() documentation
+   */
+  static int getBufferSize(int width, int height, int format) {
+    if (format==ImageFormat.YV12) {
+      int yStride=(int)Math.ceil(width/16.0)*16;
+      int uvStride=(int)Math.ceil((yStride/2)/16.0)*16;
+      int uvSize=uvStride*height/2;
+
+      return(yStride*height+uvSize*2);
+    }
+
+    return(width*height*ImageFormat.getBitsPerPixel(format)/8);
+  }
+
+  private class Slot implements Runnable {
+    final PreviewFrame frame;
+
+    Slot(PreviewFrame frame) {
+      this.frame=frame;
+    }
+
+    @Override
+    public void run() {
+      try {
+        consumer.onPreviewFrame(frame);
+      }
+      finally {
+        recycle(frame.getData());
+      }
+    }
+  }
+}
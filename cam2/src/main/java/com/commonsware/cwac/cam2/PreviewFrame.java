@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * One frame of the camera preview, handed to the
+ * PreviewFrame.Consumers registered on a CameraEngine.
+ * <p/>
+ * The data is in a buffer that goes back to the camera once the
+ * consumers return, so a consumer must copy anything it wants to
+ * keep before returning, and must not hang on to the frame.
+ */
+public class PreviewFrame {
+  /**
+   * Receives preview frames. Called on the engine's frame
+   * executor, one frame at a time.
+   */
+  public interface Consumer {
+    /**
+     * @param frame the frame; only valid until this returns
+     */
+    void onPreviewFrame(PreviewFrame frame);
+  }
+
+  private final byte[] data;
+  private final int width;
+  private final int height;
+  private final int format;
+  private final int sensorOrientation;
+  private final boolean isFacingFront;
+  private long timestamp;
+
+  /**
+   * Constructor, for engines and plugins that produce frames.
+   * Frames are meant to be reused: allocate one per buffer and
+   * update the timestamp as the buffer is refilled.
+   *
+   * @param data the buffer the frame contents are in
+   * @param width the frame width
+   * @param height the frame height
+   * @param format the ImageFormat of the data
+   * @param sensorOrientation how far the camera sensor is rotated
+   *                          from the device's natural
+   *                          orientation, in degrees
+   * @param isFacingFront true if the frames come from a
+   *                      front-facing camera
+   */
+  public PreviewFrame(byte[] data, int width, int height, int format,
+                      int sensorOrientation, boolean isFacingFront) {
+    this.data=data;
+    this.width=width;
+    this.height=height;
+    this.format=format;
+    this.sensorOrientation=sensorOrientation;
+    this.isFacingFront=isFacingFront;
+  }
+
+  /**
+   * @return the frame contents, in the layout given by
+   * getFormat()
+   */
+  public byte[] getData() {
+    return(data);
+  }
+
+  public int getWidth() {
+    return(width);
+  }
+
+  public int getHeight() {
+    return(height);
+  }
+
+  /**
+   * @return the ImageFormat of the data, such as
+   * ImageFormat.NV21
+   */
+  public int getFormat() {
+    return(format);
+  }
+
+  public int getSensorOrientation() {
+    return(sensorOrientation);
+  }
+
+  public boolean isFacingFront() {
+    return(isFacingFront);
+  }
+
+  /**
+   * Works out how far to rotate the frame, clockwise, for it to
+   * appear upright, given how the device is being held.
+   *
+   * @param deviceRotation the device rotation from
+   *                       OrientationSource, 0/90/180/270
+   * @return 0, 90, 180, or 270
+   */
+  public int getRotation(int deviceRotation) {
+    if (isFacingFront) {
+      return((sensorOrientation-deviceRotation+360)%360);
+    }
+
+    return((sensorOrientation+deviceRotation)%360);
+  }
+
+  /**
+   * @return when the frame was captured or arrived, in
+   * nanoseconds; only the differences between frames of one
+   * session are meaningful
+   */
+  public long getTimestamp() {
+    return(timestamp);
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp=timestamp;
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import com.commonsware.cwac.cam2.util.Size;
+import java.util.List;
+
+/**
+ * Remembers, per camera, the largest preview size that this
+ * device can actually run at a decent frame rate. Some devices
+ * advertise preview sizes that they can only get onto the
+ * screen at a fraction of the rate the camera delivers them;
+ * once we see that, we step down to the next smaller size of
+ * the same shape, and start there next time.
+ * <p/>
+ * A slow camera alone (e.g., auto-exposure dropping to 15 fps
+ * in a dim room) is no reason to step down, as a smaller
+ * preview would not help; only a view that lags the camera is.
+ * <p/>
+ * Sizes are saved in SharedPreferences, tied to
+ * Build.FINGERPRINT, so an OS update gets a fresh start. A
+ * saved size is also dropped after RETRY_AFTER_MS, so the
+ * larger size gets another try, in case the slowdown was a
+ * passing one.
+ */
+public class PreviewSizeAdvisor {
+  public static final float DEFAULT_TARGET_FPS=24.0f;
+  public static final int DEFAULT_SAMPLE_FRAMES=60;
+  public static final long RETRY_AFTER_MS=7L*24*60*60*1000;
+  private static final float VIEW_LAG_RATIO=0.8f;
+  private static final String PREFS_NAME="cwac_cam2_preview_sizes";
+  private static final float ASPECT_TOLERANCE=0.01f;
+  private final SharedPreferences prefs;
+  private final float targetFps;
+  private final int sampleFrames;
+
+  /**
+   * Constructor, using DEFAULT_TARGET_FPS and
+   * DEFAULT_SAMPLE_FRAMES.
+   *
+   * @param ctxt any Context will do
+   */
+  public PreviewSizeAdvisor(Context ctxt) {
+    this(ctxt, DEFAULT_TARGET_FPS, DEFAULT_SAMPLE_FRAMES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param targetFps the slowest acceptable preview frame rate
+   * @param sampleFrames how many frames to measure before
+   *                     judging the frame rate
+   */
+  public PreviewSizeAdvisor(Context ctxt, float targetFps,
+                            int sampleFrames) {
+    if (sampleFrames<2) {
+      throw new IllegalArgumentException("sampleFrames must be at least 2");
+    }
+
+    this.prefs=ctxt.getApplicationContext()
+      .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    this.targetFps=targetFps;
+    this.sampleFrames=sampleFrames;
+  }
+
+  /**
+   * @return how many frames to measure before judging the
+   * frame rate
+   */
+  public int getSampleFrames() {
+    return(sampleFrames);
+  }
+
+  /**
+   * Applies what we learned in earlier sessions to a proposed
+   * preview size.
+   *
+   * @param cameraKey from CameraEngine.getCameraKey()
+   * @param choices the preview sizes the camera supports
+   * @param proposed the size we would otherwise use
+   * @return the saved size, if it is a smaller supported size
+   * of the same shape, otherwise the proposed size
+   */
+  public Size choose(String cameraKey, List<Size> choices,
+                     Size proposed) {
+    Size saved=getSaved(cameraKey, System.currentTimeMillis());
+
+    if (saved!=null && choices.contains(saved) &&
+      area(saved)<area(proposed) && isSameShape(saved, proposed)) {
+      return(saved);
+    }
+
+    return(proposed);
+  }
+
+  /**
+   * @param stats the measured preview frame rate
+   * @return true if enough frames were measured and they came
+   * in slower than the target rate
+   * @deprecated this cannot tell a slow view from a slow
+   * camera; use isTooSlow(Stats, Stats)
+   */
+  @Deprecated
+  public boolean isTooSlow(FrameRateMonitor.Stats stats) {
+    return(isMeasured(stats) && stats.getFps()<targetFps);
+  }
+
+  /**
+   * @param view the frame rate reaching the CameraView, from
+   *             CameraView.getFrameRateMonitor()
+   * @param camera the frame rate the camera delivers, from
+   *               CameraEngine.getPreviewFrameRate()
+   * @return true if enough frames were measured, they reached
+   * the view slower than the target rate, and the view is
+   * lagging what the camera delivers, so a smaller preview
+   * size would help
+   */
+  public boolean isTooSlow(FrameRateMonitor.Stats view,
+                           FrameRateMonitor.Stats camera) {
+    return(isMeasured(view) && isMeasured(camera) &&
+      view.getFps()<targetFps &&
+      view.getFps()<camera.getFps()*VIEW_LAG_RATIO);
+  }
+
+  /**
+   * @param stats the measured preview frame rate
+   * @return true if enough frames were measured to call
+   * isTooSlow()
+   */
+  public boolean isMeasured(FrameRateMonitor.Stats stats) {
+    return(stats.getFrameCount()>=sampleFrames);
+  }
+
+  /**
+   * Picks the next smaller preview size of the same shape, and
+   * saves it for the camera.
+   *
+   * @param cameraKey from CameraEngine.getCameraKey(), or null
+   *                  to not save the choice
+   * @param choices the preview sizes the camera supports
+   * @param current the preview size that was too slow
+   * @return the smaller size, or null if there is none
+   */
+  public Size stepDown(String cameraKey, List<Size> choices,
+                       Size current) {
+    Size result=null;
+
+    for (Size candidate : choices) {
+      if (area(candidate)<area(current) &&
+        isSameShape(candidate, current) &&
+        (result==null || area(candidate)>area(result))) {
+        result=candidate;
+      }
+    }
+
+    if (result!=null && cameraKey!=null) {
+      prefs
+        .edit()
+        .putString(cameraKey, Build.FINGERPRINT+"|"+result.toString()+
+          "|"+System.currentTimeMillis())
+        .apply();
+    }
+
+    return(result);
+  }
+
+  /**
+   * Forgets what we learned about a camera.
+   *
+   * @param cameraKey from CameraEngine.getCameraKey()
+   */
+  public void forget(String cameraKey) {
+    prefs.edit().remove(cameraKey).apply();
+  }
+
+  /**
+   * @return the saved size for the camera, or null if there is
+   * none, or it is time to try the larger size again
+   */
+  private Size getSaved(String cameraKey, long now) {
+    if (cameraKey==null) {
+      return(null);
+    }
+
+    String value=prefs.getString(cameraKey, null);
+    String prefix=Build.FINGERPRINT+"|";
+
+    if (value==null || !value.startsWith(prefix)) {
+      return(null);
+    }
+
+    String[] parts=value.substring(prefix.length()).split("\\|");
+
+    try {
+      long savedAt=(parts.length>1 ? Long.parseLong(parts[1]) : 0);
+
+      if (now-savedAt>=RETRY_AFTER_MS || now<savedAt) {
+        // if it is still too slow, we will step down again
+        forget(cameraKey);
+
+        return(null);
+      }
+
+      return(Size.parseSize(parts[0]));
+    }
+    catch (NumberFormatException e) {
+      return(null); // mangled, so start over
+    }
+  }
+
+  private static long area(Size size) {
+    return((long)size.getWidth()*size.getHeight());
+  }
+
+  private static boolean isSameShape(Size lhs, Size rhs) {
+    float lhsRatio=(float)lhs.getWidth()/lhs.getHeight();
+    float rhsRatio=(float)rhs.getWidth()/rhs.getHeight();
+
+    return(Math.abs(lhsRatio-rhsRatio)<ASPECT_TOLERANCE*rhsRatio);
+  }
+}
@@ -3,6 +3,9 @@ package com.commonsware.cwac.cam2;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureRequest;
 import android.media.ImageReader;
+import android.view.Surface;
+import com.commonsware.cwac.cam2.video.VideoEncoderConfig;
+import java.util.List;
 
 /**
  * Stub implementation of CameraTwoConfigurator, to help ease
@@ -30,4 +33,24 @@ public class SimpleCameraTwoConfigurator
                                   CaptureRequest.Builder captureBuilder) {
 
   }
+
+  @Override
+  public List<Surface> buildPreviewTargets(CameraSession session,
+                                           CameraCharacteristics cc) {
+    return null;
+  }
+
+  @Override
+  public byte[] takeBufferedPicture(CameraSession session,
+                                    long shutterNanos) {
+    return null;
+  }
+
+  @Override
+  public void configureEncoder(CameraSession session,
+                               CameraCharacteristics cc,
+                               VideoTransaction xact,
+                               VideoEncoderConfig.Builder config) {
+
+  }
 }
@@ -24,4 +24,9 @@ public class SimpleClassicCameraConfigurator implements ClassicCameraConfigurato
                                 MediaRecorder recorder) {
     // no-op
   }
+
+  @Override
+  public PreviewFrame.Consumer buildPreviewFrameConsumer(CameraSession session) {
+    return(null);
+  }
 }
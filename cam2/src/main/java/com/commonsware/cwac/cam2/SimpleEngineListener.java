@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * EngineListener that ignores everything, for subclasses that
+ * only care about a few events.
+ */
+public class SimpleEngineListener implements EngineListener {
+  @Override
+  public void onCameraDescriptors(CameraEngine.CameraDescriptorsEvent event) {
+
+  }
+
+  @Override
+  public void onOpened(CameraEngine.OpenedEvent event) {
+
+  }
+
+  @Override
+  public void onClosed(CameraEngine.ClosedEvent event) {
+
+  }
+
+  @Override
+  public void onPictureTaken(CameraEngine.PictureTakenEvent event) {
+
+  }
+
+  @Override
+  public void onVideoTaken(CameraEngine.VideoTakenEvent event) {
+
+  }
+
+  @Override
+  public void onVideoSegment(CameraEngine.VideoSegmentEvent event) {
+
+  }
+
+  @Override
+  public void onSmoothZoomCompleted(CameraEngine.SmoothZoomCompletedEvent event) {
+
+  }
+
+  @Override
+  public void onOrientationChanged(CameraEngine.OrientationChangedEvent event) {
+
+  }
+
+  @Override
+  public void onCaptureTrace(CameraEngine.CaptureTraceEvent event) {
+
+  }
+
+  @Override
+  public void onCaptureDropped(CameraEngine.CaptureDroppedEvent event) {
+
+  }
+
+  @Override
+  public void onDeepImpact(CameraEngine.DeepImpactEvent event) {
+
+  }
+
+  @Override
+  public void onOtherEvent(Object event) {
+
+  }
+}
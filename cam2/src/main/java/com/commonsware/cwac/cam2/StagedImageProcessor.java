@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+/**
+ * An ImageProcessor that declares what it does with the
+ * picture. Processors that do not implement this interface
+ * are treated as MUTATE_PIXELS, and so always run in order
+ * with respect to the rest of the chain.
+ */
+public interface StagedImageProcessor extends ImageProcessor {
+  /**
+   * @return how this processor accesses the picture
+   */
+  Access getAccess();
+}
@@ -14,13 +14,22 @@
 
 package com.commonsware.cwac.cam2;
 
+import android.graphics.Bitmap;
 import java.io.File;
+import java.util.Locale;
 
 public class VideoTransaction {
   File outputPath;
   int quality=1;
   int sizeLimit=0;
   int durationLimit=0;
+  int bitrate=0;
+  int frameRate=0;
+  int keyFrameInterval=0;
+  int segmentDuration=0;
+  long segmentSize=0;
+  boolean fastStart=false;
+  private volatile Bitmap thumbnail;
 
   private VideoTransaction() {
     // please use the Builder
@@ -42,6 +51,94 @@ public class VideoTransaction {
     return(durationLimit);
   }
 
+  /**
+   * @return the video bitrate in bits per second, or 0 for the
+   * default
+   */
+  public int getBitrate() {
+    return(bitrate);
+  }
+
+  /**
+   * @return frames per second, or 0 for the default
+   */
+  public int getFrameRate() {
+    return(frameRate);
+  }
+
+  /**
+   * @return seconds between key frames, or 0 for the default;
+   * only the camera2 engine can honor this
+   */
+  public int getKeyFrameInterval() {
+    return(keyFrameInterval);
+  }
+
+  /**
+   * @return the length of each segment, in milliseconds, or 0
+   * if segments are not limited by time
+   */
+  public int getSegmentDuration() {
+    return(segmentDuration);
+  }
+
+  /**
+   * @return the size of each segment, in bytes, or 0 if
+   * segments are not limited by size
+   */
+  public long getSegmentSize() {
+    return(segmentSize);
+  }
+
+  /**
+   * @return true if the recording is to be split into segment
+   * files
+   */
+  public boolean isSegmented() {
+    return(segmentDuration>0 || segmentSize>0);
+  }
+
+  /**
+   * @return true if the moov atom is to be moved to the front
+   * of each finished file
+   */
+  public boolean isFastStart() {
+    return(fastStart);
+  }
+
+  /**
+   * @param index the position of the segment in the recording,
+   *              starting at 0
+   * @return the file for that segment: the output path for the
+   * first one, and the output path with -001, -002, etc. added
+   * to the name for the rest
+   */
+  public File getSegmentPath(int index) {
+    if (index==0) {
+      return(outputPath);
+    }
+
+    String name=outputPath.getName();
+    int dot=name.lastIndexOf('.');
+    String base=(dot<0 ? name : name.substring(0, dot));
+    String ext=(dot<0 ? "" : name.substring(dot));
+
+    return(new File(outputPath.getParentFile(),
+      String.format(Locale.US, "%s-%03d%s", base, index, ext)));
+  }
+
+  /**
+   * @return a frame of the preview from when the recording
+   * started, or null if none could be grabbed
+   */
+  public Bitmap getThumbnail() {
+    return(thumbnail);
+  }
+
+  void setThumbnail(Bitmap thumbnail) {
+    this.thumbnail=thumbnail;
+  }
+
   public static class Builder {
     VideoTransaction result=new VideoTransaction();
 
@@ -72,5 +169,64 @@ public class VideoTransaction {
 
       return(this);
     }
+
+    public Builder bitrate(int bitrate) {
+      result.bitrate=bitrate;
+
+      return(this);
+    }
+
+    public Builder frameRate(int frameRate) {
+      result.frameRate=frameRate;
+
+      return(this);
+    }
+
+    public Builder keyFrameInterval(int keyFrameInterval) {
+      result.keyFrameInterval=keyFrameInterval;
+
+      return(this);
+    }
+
+    /**
+     * Splits the recording into segment files of about this
+     * length, each reported by a VideoSegmentEvent when it is
+     * done. In a segmented recording, sizeLimit and
+     * durationLimit do not apply; the recording runs until it is
+     * stopped.
+     *
+     * @param segmentDuration milliseconds per segment
+     */
+    public Builder segmentDuration(int segmentDuration) {
+      result.segmentDuration=segmentDuration;
+
+      return(this);
+    }
+
+    /**
+     * Like segmentDuration(), but splitting by size.
+     *
+     * @param segmentSize bytes per segment
+     */
+    public Builder segmentSize(long segmentSize) {
+      result.segmentSize=segmentSize;
+
+      return(this);
+    }
+
+    /**
+     * Rewrites each finished file with its moov atom ahead of
+     * the media data, so players can start before they have the
+     * whole file. This happens on the engine's thread pool, and
+     * the VideoSegmentEvent or VideoTakenEvent for a file is not
+     * raised until it is done. The default is false.
+     *
+     * @param fastStart true to rewrite the files
+     */
+    public Builder fastStart(boolean fastStart) {
+      result.fastStart=fastStart;
+
+      return(this);
+    }
   }
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives zoom for a repeating preview. Pinch and SeekBar events
+ * can arrive far faster than the camera can take new repeating
+ * requests, so we only remember the latest requested level, and
+ * move toward it at most once per preview frame, when the engine
+ * reports that a frame completed.
+ * <p/>
+ * Rather than jumping, the zoom eases out toward the requested
+ * level over a few frames, with longer moves taking more frames.
+ * A new request mid-flight starts a fresh move from wherever the
+ * zoom is at that moment.
+ * <p/>
+ * request() may be called from any thread; onFrame() is called
+ * from the camera's callback thread, and is the only place the
+ * Target is invoked.
+ */
+class ZoomScheduler {
+  /**
+   * What actually changes the zoom level on the camera.
+   */
+  interface Target {
+    /**
+     * Replaces the repeating preview request with one for the
+     * given zoom level.
+     *
+     * @param zoomLevel 0-100, 100=max zoom
+     */
+    void applyZoom(int zoomLevel);
+
+    /**
+     * The zoom has arrived at the most recently requested level.
+     */
+    void onZoomCompleted();
+  }
+
+  private static final int FULL_RANGE_FRAMES=15;
+  private static final int MIN_FRAMES=3;
+  private final Target target;
+  private final AtomicLong requests=new AtomicLong();
+  private final AtomicLong applies=new AtomicLong();
+  private boolean isMoving=false;
+  private float position=0.0f;
+  private float from=0.0f;
+  private int to=0;
+  private int frame=0;
+  private int frames=0;
+  private int applied=0;
+
+  ZoomScheduler(Target target) {
+    this.target=target;
+  }
+
+  /**
+   * Asks for a new zoom level, replacing any move that is
+   * still under way.
+   *
+   * @param zoomLevel 0-100, 100=max zoom
+   */
+  void request(int zoomLevel) {
+    requests.incrementAndGet();
+
+    synchronized(this) {
+      from=position;
+      to=zoomLevel;
+      frame=0;
+      frames=Math.max(MIN_FRAMES,
+        Math.round(Math.abs(to-from)*FULL_RANGE_FRAMES/100.0f));
+      isMoving=true;
+    }
+  }
+
+  /**
+   * Called when the repeating request completes a frame. Takes
+   * the next step toward the requested level, if we are not
+   * there yet.
+   */
+  void onFrame() {
+    int step=-1;
+    boolean isDone=false;
+
+    synchronized(this) {
+      if (!isMoving) {
+        return;
+      }
+
+      frame++;
+
+      if (frame>=frames) {
+        position=to;
+        isMoving=false;
+        isDone=true;
+      }
+      else {
+        position=from+(to-from)*ease((float)frame/frames);
+      }
+
+      int level=Math.round(position);
+
+      if (level!=applied) {
+        applied=level;
+        step=level;
+      }
+    }
+
+    if (step>=0) {
+      applies.incrementAndGet();
+      target.applyZoom(step);
+    }
+
+    if (isDone) {
+      target.onZoomCompleted();
+    }
+  }
+
+  /**
+   * Ease-out cubic: fast at first, so the zoom responds right
+   * away, then settling gently on the target.
+   *
+   * @param t progress through the move, 0-1
+   * @return progress through the distance, 0-1
+   */
+  static float ease(float t) {
+    float remaining=1.0f-t;
+
+    return(1.0f-remaining*remaining*remaining);
+  }
+
+  /**
+   * @return true if the zoom is still on its way to the
+   * requested level
+   */
+  synchronized boolean isMoving() {
+    return(isMoving);
+  }
+
+  /**
+   * @return how many times request() has been called
+   */
+  long getRequestCount() {
+    return(requests.get());
+  }
+
+  /**
+   * @return how many times the Target was asked to apply a level
+   */
+  long getApplyCount() {
+    return(applies.get());
+  }
+}
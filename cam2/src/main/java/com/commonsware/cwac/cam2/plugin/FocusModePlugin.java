@@ -22,7 +22,6 @@ import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Build;
 import android.util.Log;
-import android.view.OrientationEventListener;
 import com.commonsware.cwac.cam2.CameraConfigurator;
 import com.commonsware.cwac.cam2.CameraPlugin;
 import com.commonsware.cwac.cam2.CameraSession;
@@ -38,8 +37,6 @@ public class FocusModePlugin implements CameraPlugin {
   private final Context ctxt;
   private final boolean isVideo;
   private final FocusMode focusMode;
-  private OrientationEventListener orientationEventListener;
-  private int lastOrientation=OrientationEventListener.ORIENTATION_UNKNOWN;
 
   public FocusModePlugin(Context ctxt,
                          FocusMode focusMode,
@@ -47,21 +44,6 @@ public class FocusModePlugin implements CameraPlugin {
     this.ctxt=ctxt.getApplicationContext();
     this.focusMode=focusMode;
     this.isVideo=isVideo;
-
-    orientationEventListener=new OrientationEventListener(ctxt) {
-      @Override
-      public void onOrientationChanged(int orientation) {
-        lastOrientation=orientation;
-      }
-    };
-
-    if (orientationEventListener.canDetectOrientation()) {
-      orientationEventListener.enable();
-    }
-    else {
-      orientationEventListener.disable();
-      orientationEventListener=null;
-    }
   }
 
   /**
@@ -89,10 +71,7 @@ public class FocusModePlugin implements CameraPlugin {
    */
   @Override
   public void destroy() {
-    if (orientationEventListener!=null) {
-      orientationEventListener.disable();
-      orientationEventListener=null;
-    }
+    // no cleanup required
   }
 
   class Classic extends SimpleClassicCameraConfigurator {
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.plugin;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+import com.commonsware.cwac.cam2.CameraConfigurator;
+import com.commonsware.cwac.cam2.CameraPlugin;
+import com.commonsware.cwac.cam2.CameraSession;
+import com.commonsware.cwac.cam2.CameraTwoConfigurator;
+import com.commonsware.cwac.cam2.ClassicCameraConfigurator;
+import com.commonsware.cwac.cam2.FrameAnalyzer;
+import com.commonsware.cwac.cam2.OrientationSource;
+import com.commonsware.cwac.cam2.PreviewFrame;
+import com.commonsware.cwac.cam2.SimpleCameraTwoConfigurator;
+import com.commonsware.cwac.cam2.SimpleClassicCameraConfigurator;
+import com.commonsware.cwac.cam2.util.Size;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plugin that hands live preview frames to a FrameAnalyzer, as
+ * NV21 data along with the rotation needed to make them upright.
+ * <p/>
+ * With the classic API, the analyzer gets the preview callback
+ * buffers directly, at the preview size. With camera2, the
+ * plugin adds a YUV_420_888 ImageReader to the repeating preview
+ * request, at the preview size unless another size is given, and
+ * copies each frame it uses into a reusable NV21 buffer.
+ * <p/>
+ * Either way, a frame that arrives while the analyzer is busy is
+ * dropped.
+ */
+public class FrameAnalyzerPlugin implements CameraPlugin {
+  // one being copied, one arriving
+  private static final int MAX_IMAGES=2;
+  private final FrameAnalyzer analyzer;
+  private final Size size;
+  private final OrientationSource orientation;
+  private final OrientationSource.Listener rotationListener=
+    new OrientationSource.Listener() {
+      @Override
+      public void onRotationChanged(int rotation) {
+        // we only need the sensor running; getRotation() is read
+        // per frame
+      }
+    };
+  private final AtomicBoolean isBusy=new AtomicBoolean(false);
+  private final Runnable analyze=new Runnable() {
+    @Override
+    public void run() {
+      try {
+        analyzer.analyze(frame, frame.getRotation(getDeviceRotation()));
+      }
+      finally {
+        isBusy.set(false);
+      }
+    }
+  };
+  private HandlerThread thread;
+  private ImageReader reader;
+  private ThreadPoolExecutor executor;
+  private PreviewFrame frame;
+  private byte[] row;
+
+  /**
+   * Constructor, for frames at the preview size.
+   *
+   * @param ctxt any Context will do
+   * @param analyzer the analyzer to hand frames to
+   */
+  public FrameAnalyzerPlugin(Context ctxt, FrameAnalyzer analyzer) {
+    this(ctxt, analyzer, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctxt any Context will do
+   * @param analyzer the analyzer to hand frames to
+   * @param size the frame size for camera2, or null for the
+   *             preview size; the classic API always uses the
+   *             preview size
+   */
+  public FrameAnalyzerPlugin(Context ctxt, FrameAnalyzer analyzer,
+                             Size size) {
+    if (analyzer==null) {
+      throw new IllegalArgumentException("analyzer cannot be null");
+    }
+
+    this.analyzer=analyzer;
+    this.size=size;
+    this.orientation=OrientationSource.get(ctxt);
+    orientation.addListener(rotationListener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T extends CameraConfigurator> T buildConfigurator(Class<T> type) {
+    if (type==ClassicCameraConfigurator.class) {
+      return(type.cast(new Classic()));
+    }
+
+    return(type.cast(new Two()));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void validate(CameraSession session) {
+    // no validation required
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void destroy() {
+    orientation.removeListener(rotationListener);
+
+    synchronized(this) {
+      if (reader!=null) {
+        reader.close();
+        reader=null;
+      }
+
+      if (thread!=null) {
+        thread.quit();
+        thread=null;
+      }
+
+      if (executor!=null) {
+        executor.shutdown();
+        executor=null;
+      }
+    }
+  }
+
+  private int getDeviceRotation() {
+    int rotation=orientation.getRotation();
+
+    return(rotation==OrientationSource.ROTATION_UNKNOWN ? 0 : rotation);
+  }
+
+  class Classic extends SimpleClassicCameraConfigurator {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreviewFrame.Consumer buildPreviewFrameConsumer(CameraSession session) {
+      // the engine already drops frames while we are busy
+      return(new PreviewFrame.Consumer() {
+        @Override
+        public void onPreviewFrame(PreviewFrame frame) {
+          analyzer.analyze(frame, frame.getRotation(getDeviceRotation()));
+        }
+      });
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  class Two extends SimpleCameraTwoConfigurator
+    implements ImageReader.OnImageAvailableListener {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Surface> buildPreviewTargets(CameraSession session,
+                                             CameraCharacteristics cc) {
+      synchronized(FrameAnalyzerPlugin.this) {
+        if (reader==null) {
+          Size target=(size==null ? session.getPreviewSize() : size);
+          Integer sensorOrientation=
+            cc.get(CameraCharacteristics.SENSOR_ORIENTATION);
+          Integer facing=cc.get(CameraCharacteristics.LENS_FACING);
+          int width=target.getWidth();
+          int height=target.getHeight();
+
+          frame=new PreviewFrame(new byte[Nv21Copier.getSize(width, height)],
+            width, height, ImageFormat.NV21,
+            sensorOrientation==null ? 0 : sensorOrientation,
+            facing!=null &&
+              facing==CameraCharacteristics.LENS_FACING_FRONT);
+          executor=new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>());
+          thread=new HandlerThread(FrameAnalyzerPlugin.class.getSimpleName());
+          thread.start();
+          reader=ImageReader.newInstance(width, height,
+            ImageFormat.YUV_420_888, MAX_IMAGES);
+          reader.setOnImageAvailableListener(this,
+            new Handler(thread.getLooper()));
+        }
+
+        return(Collections.singletonList(reader.getSurface()));
+      }
+    }
+
+    /**
+     * Keeps the reader drained, so the camera never waits on
+     * us, and copies out a frame only if the analyzer is free.
+     */
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+      synchronized(FrameAnalyzerPlugin.this) {
+        if (reader!=imageReader) {
+          return; // destroyed
+        }
+
+        Image image;
+
+        try {
+          image=imageReader.acquireLatestImage();
+        }
+        catch (IllegalStateException e) {
+          return;
+        }
+
+        if (image==null) {
+          return;
+        }
+
+        try {
+          if (!isBusy.compareAndSet(false, true)) {
+            return; // drop it
+          }
+
+          frame.setTimestamp(image.getTimestamp());
+          row=Nv21Copier.copy(image, frame.getData(), row);
+        }
+        finally {
+          image.close();
+        }
+
+        try {
+          executor.execute(analyze);
+        }
+        catch (RejectedExecutionException e) {
+          isBusy.set(false);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.plugin;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+import java.nio.ByteBuffer;
+
+/**
+ * Copies a YUV_420_888 Image into NV21 layout: the full Y plane,
+ * then V and U interleaved at half resolution. Callers supply
+ * the output array and a scratch row, so copying a stream of
+ * frames need not allocate anything.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class Nv21Copier {
+  private Nv21Copier() {
+    // static methods only
+  }
+
+  /**
+   * @return how big an NV21 array needs to be for a frame
+   */
+  static int getSize(int width, int height) {
+    int lumaSize=width*height;
+
+    return(lumaSize+lumaSize/2);
+  }
+
+  /**
+   * Copies the image.
+   *
+   * @param image a YUV_420_888 image
+   * @param out at least getSize() bytes
+   * @param row scratch space, or null to have one allocated
+   * @return the scratch space, possibly reallocated, to pass in
+   * next time
+   */
+  static byte[] copy(Image image, byte[] out, byte[] row) {
+    int width=image.getWidth();
+    int height=image.getHeight();
+    int lumaSize=width*height;
+    Image.Plane[] planes=image.getPlanes();
+
+    row=copyPlane(planes[0], width, height, out, 0, 1, row);
+    row=copyPlane(planes[2], width/2, height/2, out, lumaSize, 2, row);
+    row=copyPlane(planes[1], width/2, height/2, out, lumaSize+1, 2, row);
+
+    return(row);
+  }
+
+  private static byte[] copyPlane(Image.Plane plane, int width,
+                                  int height, byte[] out, int offset,
+                                  int outStride, byte[] row) {
+    ByteBuffer buffer=plane.getBuffer();
+    int rowStride=plane.getRowStride();
+    int pixelStride=plane.getPixelStride();
+
+    if (pixelStride==1 && outStride==1 && rowStride==width) {
+      buffer.position(0);
+      buffer.get(out, offset, width*height);
+
+      return(row);
+    }
+
+    if (row==null || row.length<rowStride) {
+      row=new byte[rowStride];
+    }
+
+    for (int y=0;y<height;y++) {
+      // the last row need not be padded out to the full stride
+      int length=(y<height-1) ? rowStride : (width-1)*pixelStride+1;
+
+      buffer.position(y*rowStride);
+      buffer.get(row, 0, length);
+
+      for (int x=0;x<width;x++) {
+        out[offset]=row[x*pixelStride];
+        offset+=outStride;
+      }
+    }
+
+    return(row);
+  }
+}
@@ -21,7 +21,6 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureRequest;
 import android.media.MediaRecorder;
 import android.os.Build;
-import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.WindowManager;
 
@@ -30,9 +29,11 @@ import com.commonsware.cwac.cam2.CameraEngine;
 import com.commonsware.cwac.cam2.CameraPlugin;
 import com.commonsware.cwac.cam2.CameraSession;
 import com.commonsware.cwac.cam2.ClassicCameraConfigurator;
+import com.commonsware.cwac.cam2.OrientationSource;
 import com.commonsware.cwac.cam2.SimpleCameraTwoConfigurator;
 import com.commonsware.cwac.cam2.SimpleClassicCameraConfigurator;
 import com.commonsware.cwac.cam2.VideoTransaction;
+import com.commonsware.cwac.cam2.video.VideoEncoderConfig;
 
 import de.greenrobot.event.EventBus;
 
@@ -42,32 +43,54 @@ import de.greenrobot.event.EventBus;
  */
 public class OrientationPlugin implements CameraPlugin {
     private final Context ctxt;
-    private OrientationEventListener orientationEventListener;
-    private int lastOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
+    private OrientationSource source;
+    private OrientationSource.Listener rotationListener;
 
     public OrientationPlugin(Context ctxt, boolean listenForOrientationChange) {
+        this(ctxt, listenForOrientationChange, null);
+    }
+
+    /**
+     * Constructor for a plugin that reports orientation changes
+     * through the engine, so they reach its EngineListeners
+     * directly rather than going through the default EventBus.
+     *
+     * @param ctxt any Context will do
+     * @param engine the engine to post OrientationChangedEvents to
+     */
+    public OrientationPlugin(Context ctxt, CameraEngine engine) {
+        this(ctxt, true, engine);
+    }
+
+    private OrientationPlugin(Context ctxt,
+                              boolean listenForOrientationChange,
+                              final CameraEngine engine) {
         this.ctxt = ctxt.getApplicationContext();
         if (!listenForOrientationChange) {
             return;
         }
-        orientationEventListener = new OrientationEventListener(ctxt) {
+
+        // the source only calls us when the device crosses into
+        // another quarter turn, so the engine is not asked to
+        // reconfigure the camera for every degree of wobble
+        rotationListener = new OrientationSource.Listener() {
             @Override
-            public void onOrientationChanged(int orientation) {
-                if (lastOrientation != orientation) {
+            public void onRotationChanged(int rotation) {
+                if (engine == null) {
                     EventBus
                             .getDefault()
-                            .post(new CameraEngine.OrientationChangedEvent());
+                            .post(CameraEngine.OrientationChangedEvent.INSTANCE);
+                } else {
+                    engine.post(CameraEngine.OrientationChangedEvent.INSTANCE);
                 }
-
-                lastOrientation = orientation;
             }
         };
 
-        if (orientationEventListener.canDetectOrientation()) {
-            orientationEventListener.enable();
-        } else {
-            orientationEventListener.disable();
-            orientationEventListener = null;
+        source = OrientationSource.get(ctxt);
+
+        if (!source.addListener(rotationListener)) {
+            source = null;
+            rotationListener = null;
         }
     }
 
@@ -91,14 +114,48 @@ public class OrientationPlugin implements CameraPlugin {
         // no validation required
     }
 
+    /**
+     * Works out the rotation for pictures from the camera2 API,
+     * as used for JPEG_ORIENTATION, for callers that need it
+     * without building a CaptureRequest (e.g., for frames taken
+     * from the preview stream).
+     *
+     * @param cc the camera's characteristics
+     * @param facingFront true if this is a front-facing camera
+     * @return the clockwise rotation, in degrees
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public int getOutputOrientation(CameraCharacteristics cc,
+                                    boolean facingFront) {
+        // based on https://developer.android.com/reference/android/hardware/camera2/CaptureRequest.html#JPEG_ORIENTATION
+
+        int result = 0;
+        int rotation = (source == null ?
+                OrientationSource.ROTATION_UNKNOWN : source.getRotation());
+
+        if (rotation != OrientationSource.ROTATION_UNKNOWN) {
+            int sensorOrientation = cc.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            int deviceOrientation = rotation;
+
+            if (facingFront) {
+                deviceOrientation = -deviceOrientation;
+            }
+
+            result = (sensorOrientation + deviceOrientation + 360) % 360;
+        }
+
+        return (result);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void destroy() {
-        if (orientationEventListener != null) {
-            orientationEventListener.disable();
-            orientationEventListener = null;
+        if (source != null) {
+            source.removeListener(rotationListener);
+            source = null;
+            rotationListener = null;
         }
     }
 
@@ -257,22 +314,23 @@ public class OrientationPlugin implements CameraPlugin {
                                         CameraCharacteristics cc,
                                         boolean facingFront,
                                         CaptureRequest.Builder captureBuilder) {
-            // based on https://developer.android.com/reference/android/hardware/camera2/CaptureRequest.html#JPEG_ORIENTATION
-
-            int pictureOrientation = 0;
-
-            if (lastOrientation != OrientationEventListener.ORIENTATION_UNKNOWN) {
-                int sensorOrientation = cc.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                int deviceOrientation = (lastOrientation + 45) / 90 * 90;
-
-                if (facingFront) {
-                    deviceOrientation = -deviceOrientation;
-                }
-
-                pictureOrientation = (sensorOrientation + deviceOrientation + 360) % 360;
-            }
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+                    getOutputOrientation(cc, facingFront));
+        }
 
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, pictureOrientation);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void configureEncoder(CameraSession session,
+                                     CameraCharacteristics cc,
+                                     VideoTransaction xact,
+                                     VideoEncoderConfig.Builder config) {
+            Integer facing = cc.get(CameraCharacteristics.LENS_FACING);
+            boolean facingFront = (facing != null &&
+                    facing == CameraCharacteristics.LENS_FACING_FRONT);
+
+            config.orientationHint(getOutputOrientation(cc, facingFront));
         }
     }
 }
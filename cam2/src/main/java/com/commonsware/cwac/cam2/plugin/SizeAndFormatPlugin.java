@@ -15,9 +15,13 @@
 package com.commonsware.cwac.cam2.plugin;
 
 import android.annotation.TargetApi;
+import android.content.Context;
 import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
 import android.media.ImageReader;
+import android.media.MediaCodec;
 import android.media.MediaRecorder;
 import android.os.Build;
 
@@ -29,6 +33,9 @@ import com.commonsware.cwac.cam2.SimpleCameraTwoConfigurator;
 import com.commonsware.cwac.cam2.SimpleClassicCameraConfigurator;
 import com.commonsware.cwac.cam2.VideoTransaction;
 import com.commonsware.cwac.cam2.util.Size;
+import com.commonsware.cwac.cam2.video.CamcorderProfileProvider;
+import com.commonsware.cwac.cam2.video.VideoEncoderConfig;
+import com.commonsware.cwac.cam2.video.VideoProfileResolver;
 
 import java.util.List;
 
@@ -42,13 +49,11 @@ public class SizeAndFormatPlugin implements CameraPlugin {
     final private Size previewSize;
     private final int pictureFormat;
 
-    private static int cachedHighResQuality = -1;
-    private static int cachedLowResQuality = -1;
-
     private static final int VIDEO_MAX_WIDTH = 640;
     private static final int IMAGE_MAX_AREA = 960 * 720;
 
-    private static Size cachedBestPictureSize = null;
+    private static VideoProfileResolver resolver = null;
+    private static VideoProfileResolver memoryResolver = null;
 
     /**
      * Constructor.
@@ -128,7 +133,8 @@ public class SizeAndFormatPlugin implements CameraPlugin {
 
             // HACKED TO SELECT A GOOD SIZE:
             CamcorderProfile profile =
-                    CamcorderProfile.get(cameraId, chooseQualityFor(xact.getQuality() == 1));
+                    CamcorderProfile.get(cameraId, chooseQualityFor(session.getContext(),
+                            cameraId, xact.getQuality() == 1));
             recorder.setProfile(profile);
 
             int highD = Math.max(profile.videoFrameWidth, profile.videoFrameHeight);
@@ -158,6 +164,14 @@ public class SizeAndFormatPlugin implements CameraPlugin {
             } else {
                 recorder.setVideoSize(lowD, highD);
             }
+
+            if (xact.getBitrate() > 0) {
+                recorder.setVideoEncodingBitRate(xact.getBitrate());
+            }
+
+            if (xact.getFrameRate() > 0) {
+                recorder.setVideoFrameRate(xact.getFrameRate());
+            }
         }
     }
 
@@ -166,10 +180,6 @@ public class SizeAndFormatPlugin implements CameraPlugin {
     }
 
     public static Size choosePictureSize(List<Camera.Size> sizes, Size originalSize) {
-        if (cachedBestPictureSize != null) {
-            return cachedBestPictureSize;
-        }
-
         Camera.Size best = null;
         float originalAR = (float) originalSize.getWidth() / originalSize.getHeight();
         int bestAreaDiff = Integer.MAX_VALUE;
@@ -183,76 +193,57 @@ public class SizeAndFormatPlugin implements CameraPlugin {
             }
         }
 
-        cachedBestPictureSize = new Size(best.width, best.height);
-        return cachedBestPictureSize;
+        if (best == null) {
+            return (originalSize);
+        }
 
+        return (new Size(best.width, best.height));
     }
 
-    public static int chooseQualityFor(boolean hiRes) {
-        if (hiRes) {
-            if (cachedHighResQuality < 0) {
-                cachedHighResQuality = internalChooseQualityFor(true);
-            }
-            return cachedHighResQuality;
-        } else {
-            if (cachedLowResQuality < 0) {
-                cachedLowResQuality = internalChooseLowQuality();
-            }
-            return cachedLowResQuality;
-        }
+    /**
+     * Picks the CamcorderProfile quality to record with on a
+     * given camera. Cameras on the same device can have very
+     * different profiles, so the answer is worked out (and
+     * saved, for later launches) per camera.
+     *
+     * @param ctxt     any Context will do
+     * @param cameraId the classic API camera ID
+     * @param hiRes    true for the best quality, false for a
+     *                 small one
+     * @return the CamcorderProfile quality to use
+     */
+    public static int chooseQualityFor(Context ctxt, int cameraId, boolean hiRes) {
+        return (getResolver(ctxt).resolve(cameraId, hiRes));
     }
 
-    private static int internalChooseLowQuality() {
-        if (isCamcorderProfileSupported(CamcorderProfile.get(CamcorderProfile.QUALITY_QVGA))) {
-            return CamcorderProfile.QUALITY_QVGA;
-        }
-
-        if (isCamcorderProfileSupported(CamcorderProfile.get(CamcorderProfile.QUALITY_CIF))) {
-            return CamcorderProfile.QUALITY_CIF;
-        }
-
-        if (isCamcorderProfileSupported(CamcorderProfile.get(CamcorderProfile.QUALITY_480P))) {
-            return CamcorderProfile.QUALITY_480P;
-        }
-
-        return CamcorderProfile.QUALITY_LOW;
+    /**
+     * @deprecated use chooseQualityFor(Context, int, boolean),
+     * as this only answers for the first camera
+     */
+    @Deprecated
+    public static int chooseQualityFor(boolean hiRes) {
+        return (chooseQualityFor(null, 0, hiRes));
     }
 
-    private static int internalChooseQualityFor(boolean hiRes) {
-        // https://parsable.atlassian.net/browse/SERA-3488
-        int defaultQuality = hiRes ? CamcorderProfile.QUALITY_HIGH : CamcorderProfile.QUALITY_LOW;
-
-        try {
-            if (isCamcorderProfileSupported(CamcorderProfile.get(defaultQuality))) {
-                return defaultQuality;
-            }
-
-            int bestRate = hiRes ? Integer.MIN_VALUE : Integer.MAX_VALUE;
-            int bestQuality = defaultQuality;
-
-            int end = 8; // Can't use CamcorderProfile.QUALITY_2160P, only added in Android 5.0
-
-            for (int i = CamcorderProfile.QUALITY_HIGH + 1; i < end; i++) {
-                try {
-                    CamcorderProfile profile = CamcorderProfile.get(i);
-                    if (isCamcorderProfileSupported(profile)) {
-                        if ((hiRes && profile.videoBitRate > bestRate) ||
-                                (!hiRes && profile.videoBitRate < bestRate)) {
-                            bestRate = profile.videoBitRate;
-                            bestQuality = i;
-                        }
-                    }
-                } catch (Throwable t) {
-                    // Ignore
+    private static synchronized VideoProfileResolver getResolver(Context ctxt) {
+        if (resolver == null) {
+            if (ctxt == null) {
+                // nowhere to save the answers, so only keep them
+                // in memory; try again with a Context next time
+                if (memoryResolver == null) {
+                    memoryResolver = new VideoProfileResolver(
+                            new CamcorderProfileProvider(), null,
+                            Build.FINGERPRINT);
                 }
-            }
 
-            return bestQuality;
+                return (memoryResolver);
+            }
 
-        } catch (Throwable t) {
+            resolver = CamcorderProfileProvider.buildResolver(ctxt);
+            memoryResolver = null;
         }
 
-        return defaultQuality;
+        return (resolver);
     }
 
     public static boolean isCamcorderProfileSupported(CamcorderProfile profile) {
@@ -273,5 +264,63 @@ public class SizeAndFormatPlugin implements CameraPlugin {
             return (ImageReader.newInstance(pictureSize.getWidth(),
                     pictureSize.getHeight(), pictureFormat, 2));
         }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Uses the size, bitrate, and frame rate of the
+         * CamcorderProfile for the requested quality, if the
+         * encoder can take frames of that size from the camera.
+         */
+        @Override
+        public void configureEncoder(CameraSession session,
+                                     CameraCharacteristics cc,
+                                     VideoTransaction xact,
+                                     VideoEncoderConfig.Builder config) {
+            int cameraId = getClassicCameraId(cc);
+            CamcorderProfile profile =
+                    CamcorderProfile.get(cameraId, chooseQualityFor(session.getContext(),
+                            cameraId, xact.getQuality() == 1));
+            StreamConfigurationMap map =
+                    cc.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size size = new Size(profile.videoFrameWidth, profile.videoFrameHeight);
+
+            if (map != null) {
+                for (android.util.Size candidate : map.getOutputSizes(MediaCodec.class)) {
+                    if (candidate.getWidth() == size.getWidth() &&
+                            candidate.getHeight() == size.getHeight()) {
+                        config
+                                .size(size)
+                                .bitrate(profile.videoBitRate)
+                                .frameRate(profile.videoFrameRate);
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * CamcorderProfile only knows about classic API camera
+         * IDs, so find the first classic camera facing the same
+         * way as this one.
+         */
+        private int getClassicCameraId(CameraCharacteristics cc) {
+            Integer facing = cc.get(CameraCharacteristics.LENS_FACING);
+            int wanted = (facing != null &&
+                    facing == CameraCharacteristics.LENS_FACING_FRONT)
+                    ? Camera.CameraInfo.CAMERA_FACING_FRONT
+                    : Camera.CameraInfo.CAMERA_FACING_BACK;
+            Camera.CameraInfo info = new Camera.CameraInfo();
+
+            for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+                Camera.getCameraInfo(i, info);
+
+                if (info.facing == wanted) {
+                    return (i);
+                }
+            }
+
+            return (0);
+        }
     }
 }
@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.plugin;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.camera2.CameraCharacteristics;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+import com.commonsware.cwac.cam2.CameraConfigurator;
+import com.commonsware.cwac.cam2.CameraPlugin;
+import com.commonsware.cwac.cam2.CameraSession;
+import com.commonsware.cwac.cam2.CameraTwoConfigurator;
+import com.commonsware.cwac.cam2.SimpleCameraTwoConfigurator;
+import com.commonsware.cwac.cam2.util.Size;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plugin for zero-shutter-lag pictures. The preview stream also
+ * feeds a small ring of full-size frames, and takePicture()
+ * hands back the frame closest to the shutter press, skipping
+ * focus, precapture, and the still capture. If there is no
+ * suitable frame, the engine takes the picture normally.
+ * <p/>
+ * Only the camera2 API supports this; with the classic API,
+ * the plugin does nothing.
+ * <p/>
+ * JPEG frames can be handed back as-is, but few devices can
+ * stream a second full-size JPEG alongside the still-capture
+ * one. YUV_420_888 frames (the default) need to be encoded when
+ * picked, but are more widely supported.
+ */
+public class ZslPlugin implements CameraPlugin {
+  public static final int DEFAULT_RING_SIZE=3;
+  private static final long MAX_SKEW_NANOS=250000000L;
+  private static final int YUV_JPEG_QUALITY=95;
+  private final Size size;
+  private final int format;
+  private final int ringSize;
+  private final ArrayDeque<Image> ring=new ArrayDeque<Image>();
+  private HandlerThread thread;
+  private ImageReader reader;
+  private boolean isRealtime=false;
+
+  /**
+   * Constructor, for a ring of DEFAULT_RING_SIZE YUV_420_888
+   * frames.
+   *
+   * @param size the size of the frames, usually the picture size
+   */
+  public ZslPlugin(Size size) {
+    this(size, ImageFormat.YUV_420_888, DEFAULT_RING_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param size the size of the frames, usually the picture size
+   * @param format ImageFormat.YUV_420_888 or ImageFormat.JPEG
+   * @param ringSize how many recent frames to hold on to
+   */
+  public ZslPlugin(Size size, int format, int ringSize) {
+    if (format!=ImageFormat.YUV_420_888 && format!=ImageFormat.JPEG) {
+      throw new IllegalArgumentException("format must be YUV_420_888 or JPEG");
+    }
+
+    if (ringSize<1) {
+      throw new IllegalArgumentException("ringSize must be at least 1");
+    }
+
+    this.size=size;
+    this.format=format;
+    this.ringSize=ringSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T extends CameraConfigurator> T buildConfigurator(Class<T> type) {
+    if (type==CameraTwoConfigurator.class) {
+      return(type.cast(new Two()));
+    }
+
+    return(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void validate(CameraSession session) {
+    // no validation required
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void destroy() {
+    synchronized(ring) {
+      while (!ring.isEmpty()) {
+        ring.removeFirst().close();
+      }
+
+      if (reader!=null) {
+        reader.close();
+        reader=null;
+      }
+
+      if (thread!=null) {
+        thread.quit();
+        thread=null;
+      }
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  class Two extends SimpleCameraTwoConfigurator
+    implements ImageReader.OnImageAvailableListener {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Surface> buildPreviewTargets(CameraSession session,
+                                             CameraCharacteristics cc) {
+      synchronized(ring) {
+        if (reader==null) {
+          Integer source=null;
+
+          if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.M) {
+            source=cc.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+          }
+
+          isRealtime=(source!=null &&
+            source==CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
+
+          thread=new HandlerThread(ZslPlugin.class.getSimpleName());
+          thread.start();
+
+          // one frame being acquired and one checked out for
+          // a picture, on top of the ring itself
+          reader=ImageReader.newInstance(size.getWidth(),
+            size.getHeight(), format, ringSize+2);
+          reader.setOnImageAvailableListener(this,
+            new Handler(thread.getLooper()));
+        }
+
+        return(Collections.singletonList(reader.getSurface()));
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] takeBufferedPicture(CameraSession session,
+                                      long shutterNanos) {
+      Image image=checkOut(shutterNanos);
+
+      if (image==null) {
+        return(null);
+      }
+
+      try {
+        return(toJpeg(image));
+      }
+      finally {
+        image.close();
+      }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader imageReader) {
+      synchronized(ring) {
+        if (reader!=imageReader) {
+          return; // destroyed
+        }
+
+        Image image;
+
+        try {
+          image=imageReader.acquireNextImage();
+        }
+        catch (IllegalStateException e) {
+          return; // maxImages in use; catch the next one
+        }
+
+        if (image!=null) {
+          if (ring.size()>=ringSize) {
+            ring.removeFirst().close();
+          }
+
+          ring.addLast(image);
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the frame closest to the shutter out of the ring. If
+   * the frame timestamps are not comparable to elapsedRealtime,
+   * the newest frame is the best we can do.
+   *
+   * @return the frame, which the caller needs to close(), or
+   * null if there is no suitable frame
+   */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private Image checkOut(long shutterNanos) {
+    synchronized(ring) {
+      Image result=null;
+
+      if (isRealtime) {
+        long bestSkew=Long.MAX_VALUE;
+
+        for (Image image : ring) {
+          long skew=Math.abs(image.getTimestamp()-shutterNanos);
+
+          if (skew<bestSkew) {
+            bestSkew=skew;
+            result=image;
+          }
+        }
+
+        if (bestSkew>MAX_SKEW_NANOS) {
+          result=null; // preview stalled, so take a fresh picture
+        }
+      }
+      else {
+        result=ring.peekLast();
+      }
+
+      if (result!=null) {
+        ring.remove(result);
+      }
+
+      return(result);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private static byte[] toJpeg(Image image) {
+    if (image.getFormat()==ImageFormat.JPEG) {
+      ByteBuffer buffer=image.getPlanes()[0].getBuffer();
+      byte[] result=new byte[buffer.remaining()];
+
+      buffer.get(result);
+
+      return(result);
+    }
+
+    int width=image.getWidth();
+    int height=image.getHeight();
+    byte[] nv21=new byte[Nv21Copier.getSize(width, height)];
+
+    Nv21Copier.copy(image, nv21, null);
+
+    YuvImage yuv=new YuvImage(nv21, ImageFormat.NV21, width, height,
+      null);
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+
+    yuv.compressToJpeg(new Rect(0, 0, width, height), YUV_JPEG_QUALITY,
+      baos);
+
+    return(baos.toByteArray());
+  }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Converts preview frames from YUV to ARGB or grayscale, scaling
+ * down by a whole-number factor and rotating by quarter turns in
+ * the same pass. Input is either NV21 (classic preview frames) or
+ * the three planes of a YUV_420_888 Image (camera2), as plain
+ * ByteBuffers, so there are no Android dependencies.
+ * <p/>
+ * Output goes into arrays that the caller supplies and reuses;
+ * converting a frame allocates nothing. Given an Executor, large
+ * frames are split into bands of rows, converted in parallel,
+ * with the calling thread taking one band itself.
+ * <p/>
+ * An instance converts one frame at a time: do not share one
+ * between threads without synchronizing on it.
+ */
+public final class YuvConverter {
+  /**
+   * Frames with fewer output pixels than this are converted on
+   * the calling thread, as splitting them up costs more than it
+   * saves
+   */
+  public static final int MIN_PARALLEL_PIXELS=320*240;
+  private static final int NV21_ARGB=0;
+  private static final int NV21_GRAY=1;
+  private static final int PLANES_ARGB=2;
+  private static final int PLANES_GRAY=3;
+  private final Executor executor;
+  private final Band[] bands;
+  private final Object lock=new Object();
+  private int pending;
+
+  // the conversion under way, read by the bands
+  private int op;
+  private byte[] nv21;
+  private ByteBuffer yPlane, uPlane, vPlane;
+  private int yRowStride, uvRowStride, uvPixelStride;
+  private int width, height, scale;
+  private int scaledWidth;
+  private int rowBase, rowStep, pixelStep;
+  private int[] argbOut;
+  private byte[] grayOut;
+
+  /**
+   * Constructor, for converting on the calling thread only.
+   */
+  public YuvConverter() {
+    this(null, 1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param executor where to convert bands of rows in parallel,
+   *                 or null to convert on the calling thread
+   * @param parallelism how many bands to split large frames
+   *                    into, such as the number of cores
+   */
+  public YuvConverter(Executor executor, int parallelism) {
+    if (parallelism<1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+
+    this.executor=executor;
+    this.bands=new Band[executor==null ? 1 : parallelism];
+
+    for (int i=0;i<bands.length;i++) {
+      bands[i]=new Band();
+    }
+  }
+
+  /**
+   * @return the width of the converted frame
+   */
+  public static int getOutputWidth(int width, int height, int scale,
+                                   int rotation) {
+    return(rotation==90 || rotation==270 ? height/scale : width/scale);
+  }
+
+  /**
+   * @return the height of the converted frame
+   */
+  public static int getOutputHeight(int width, int height, int scale,
+                                    int rotation) {
+    return(rotation==90 || rotation==270 ? width/scale : height/scale);
+  }
+
+  /**
+   * Converts an NV21 frame to ARGB_8888 pixels, as used by
+   * Bitmap.setPixels().
+   *
+   * @param nv21 the frame
+   * @param width the frame width
+   * @param height the frame height
+   * @param out at least (width/scale)*(height/scale) entries
+   * @param scale 1 for full size, 2 for half size, etc.
+   * @param rotation clockwise rotation: 0, 90, 180, or 270
+   */
+  public void nv21ToArgb(byte[] nv21, int width, int height, int[] out,
+                         int scale, int rotation) {
+    checkNv21(nv21, width, height);
+    this.nv21=nv21;
+    this.argbOut=out;
+    convert(NV21_ARGB, width, height, out.length, scale, rotation);
+  }
+
+  /**
+   * Converts an NV21 frame to one byte of luminance per pixel.
+   *
+   * @param nv21 the frame
+   * @param width the frame width
+   * @param height the frame height
+   * @param out at least (width/scale)*(height/scale) bytes
+   * @param scale 1 for full size, 2 for half size, etc.
+   * @param rotation clockwise rotation: 0, 90, 180, or 270
+   */
+  public void nv21ToGray(byte[] nv21, int width, int height, byte[] out,
+                         int scale, int rotation) {
+    checkNv21(nv21, width, height);
+    this.nv21=nv21;
+    this.grayOut=out;
+    convert(NV21_GRAY, width, height, out.length, scale, rotation);
+  }
+
+  /**
+   * Converts a YUV_420_888 frame to ARGB_8888 pixels. Pass the
+   * buffers, row strides, and pixel stride from the Image's
+   * planes; the U and V planes must share their strides, as
+   * camera2 guarantees.
+   *
+   * @param y the Y plane
+   * @param u the U plane
+   * @param v the V plane
+   * @param yRowStride row stride of the Y plane
+   * @param uvRowStride row stride of the U and V planes
+   * @param uvPixelStride pixel stride of the U and V planes
+   * @param width the frame width
+   * @param height the frame height
+   * @param out at least (width/scale)*(height/scale) entries
+   * @param scale 1 for full size, 2 for half size, etc.
+   * @param rotation clockwise rotation: 0, 90, 180, or 270
+   */
+  public void yuv420ToArgb(ByteBuffer y, ByteBuffer u, ByteBuffer v,
+                           int yRowStride, int uvRowStride,
+                           int uvPixelStride, int width, int height,
+                           int[] out, int scale, int rotation) {
+    setPlanes(y, u, v, yRowStride, uvRowStride, uvPixelStride);
+    this.argbOut=out;
+    convert(PLANES_ARGB, width, height, out.length, scale, rotation);
+  }
+
+  /**
+   * Converts the Y plane of a YUV_420_888 frame to one byte of
+   * luminance per pixel.
+   *
+   * @param y the Y plane
+   * @param yRowStride row stride of the Y plane
+   * @param width the frame width
+   * @param height the frame height
+   * @param out at least (width/scale)*(height/scale) bytes
+   * @param scale 1 for full size, 2 for half size, etc.
+   * @param rotation clockwise rotation: 0, 90, 180, or 270
+   */
+  public void yuv420ToGray(ByteBuffer y, int yRowStride, int width,
+                           int height, byte[] out, int scale,
+                           int rotation) {
+    setPlanes(y, null, null, yRowStride, 0, 0);
+    this.grayOut=out;
+    convert(PLANES_GRAY, width, height, out.length, scale, rotation);
+  }
+
+  private void setPlanes(ByteBuffer y, ByteBuffer u, ByteBuffer v,
+                         int yRowStride, int uvRowStride,
+                         int uvPixelStride) {
+    this.yPlane=y;
+    this.uPlane=u;
+    this.vPlane=v;
+    this.yRowStride=yRowStride;
+    this.uvRowStride=uvRowStride;
+    this.uvPixelStride=uvPixelStride;
+  }
+
+  private static void checkNv21(byte[] nv21, int width, int height) {
+    if (nv21.length<width*height+width*height/2) {
+      throw new IllegalArgumentException("nv21 is too small for the frame");
+    }
+  }
+
+  private void convert(int op, int width, int height, int outLength,
+                       int scale, int rotation) {
+    if (scale<1) {
+      throw new IllegalArgumentException("scale must be at least 1");
+    }
+
+    int sw=width/scale;
+    int sh=height/scale;
+
+    if (outLength<sw*sh) {
+      throw new IllegalArgumentException("out is too small for the frame");
+    }
+
+    this.op=op;
+    this.width=width;
+    this.height=height;
+    this.scale=scale;
+    this.scaledWidth=sw;
+
+    // each source row y lands at rowBase+y*rowStep, and each
+    // pixel along it another pixelStep further on
+
+    switch (rotation) {
+      case 0:
+        rowBase=0;
+        rowStep=sw;
+        pixelStep=1;
+        break;
+
+      case 90:
+        rowBase=sh-1;
+        rowStep=-1;
+        pixelStep=sh;
+        break;
+
+      case 180:
+        rowBase=sh*sw-1;
+        rowStep=-sw;
+        pixelStep=-1;
+        break;
+
+      case 270:
+        rowBase=(sw-1)*sh;
+        rowStep=1;
+        pixelStep=-sh;
+        break;
+
+      default:
+        throw new IllegalArgumentException("rotation must be 0, 90, 180, or 270");
+    }
+
+    try {
+      if (bands.length==1 || sw*sh<MIN_PARALLEL_PIXELS) {
+        convertRows(0, sh);
+      }
+      else {
+        convertInBands(sh);
+      }
+    }
+    finally {
+      nv21=null;
+      yPlane=uPlane=vPlane=null;
+      argbOut=null;
+      grayOut=null;
+    }
+  }
+
+  private void convertInBands(int rows) {
+    int count=bands.length;
+    int perBand=(rows+count-1)/count;
+
+    synchronized(lock) {
+      pending=count-1;
+    }
+
+    for (int i=0;i<count-1;i++) {
+      Band band=bands[i];
+
+      band.start=Math.min(rows, i*perBand);
+      band.end=Math.min(rows, (i+1)*perBand);
+
+      try {
+        executor.execute(band);
+      }
+      catch (RejectedExecutionException e) {
+        band.run(); // pool is saturated or shut down; do it here
+      }
+    }
+
+    convertRows(Math.min(rows, (count-1)*perBand), rows);
+
+    synchronized(lock) {
+      while (pending>0) {
+        try {
+          lock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          // the bands still hold our arrays, so keep waiting
+        }
+      }
+    }
+  }
+
+  private void convertRows(int start, int end) {
+    switch (op) {
+      case NV21_ARGB:
+        nv21ToArgbRows(start, end);
+        break;
+
+      case NV21_GRAY:
+        nv21ToGrayRows(start, end);
+        break;
+
+      case PLANES_ARGB:
+        planesToArgbRows(start, end);
+        break;
+
+      case PLANES_GRAY:
+        planesToGrayRows(start, end);
+        break;
+    }
+  }
+
+  private void nv21ToArgbRows(int start, int end) {
+    byte[] in=nv21;
+    int[] out=argbOut;
+    int frameSize=width*height;
+
+    for (int row=start;row<end;row++) {
+      int y=row*scale;
+      int yOffset=y*width;
+      int uvOffset=frameSize+(y>>1)*width;
+      int index=rowBase+row*rowStep;
+
+      for (int col=0;col<scaledWidth;col++) {
+        int x=col*scale;
+        int uv=uvOffset+(x&~1);
+
+        out[index]=toArgb(in[yOffset+x]&0xff, in[uv+1]&0xff,
+          in[uv]&0xff);
+        index+=pixelStep;
+      }
+    }
+  }
+
+  private void nv21ToGrayRows(int start, int end) {
+    byte[] in=nv21;
+    byte[] out=grayOut;
+
+    for (int row=start;row<end;row++) {
+      int yOffset=row*scale*width;
+      int index=rowBase+row*rowStep;
+
+      for (int col=0;col<scaledWidth;col++) {
+        out[index]=in[yOffset+col*scale];
+        index+=pixelStep;
+      }
+    }
+  }
+
+  private void planesToArgbRows(int start, int end) {
+    ByteBuffer yIn=yPlane;
+    ByteBuffer uIn=uPlane;
+    ByteBuffer vIn=vPlane;
+    int[] out=argbOut;
+
+    for (int row=start;row<end;row++) {
+      int y=row*scale;
+      int yOffset=y*yRowStride;
+      int uvOffset=(y>>1)*uvRowStride;
+      int index=rowBase+row*rowStep;
+
+      for (int col=0;col<scaledWidth;col++) {
+        int x=col*scale;
+        int uv=uvOffset+(x>>1)*uvPixelStride;
+
+        out[index]=toArgb(yIn.get(yOffset+x)&0xff, uIn.get(uv)&0xff,
+          vIn.get(uv)&0xff);
+        index+=pixelStep;
+      }
+    }
+  }
+
+  private void planesToGrayRows(int start, int end) {
+    ByteBuffer yIn=yPlane;
+    byte[] out=grayOut;
+
+    for (int row=start;row<end;row++) {
+      int yOffset=row*scale*yRowStride;
+      int index=rowBase+row*rowStep;
+
+      for (int col=0;col<scaledWidth;col++) {
+        out[index]=yIn.get(yOffset+col*scale);
+        index+=pixelStep;
+      }
+    }
+  }
+
+  /**
+   * BT.601 video-range YUV to ARGB, in 10-bit fixed point.
+   */
+  static int toArgb(int y, int u, int v) {
+    int luma=1192*Math.max(0, y-16);
+    int cb=u-128;
+    int cr=v-128;
+    int r=clamp(luma+1634*cr);
+    int g=clamp(luma-833*cr-400*cb);
+    int b=clamp(luma+2066*cb);
+
+    return(0xff000000 | ((r<<6) & 0xff0000) | ((g>>2) & 0xff00) |
+      ((b>>10) & 0xff));
+  }
+
+  private static int clamp(int value) {
+    return(value<0 ? 0 : (value>262143 ? 262143 : value));
+  }
+
+  private class Band implements Runnable {
+    int start;
+    int end;
+
+    @Override
+    public void run() {
+      try {
+        convertRows(start, end);
+      }
+      finally {
+        synchronized(lock) {
+          pending--;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+}
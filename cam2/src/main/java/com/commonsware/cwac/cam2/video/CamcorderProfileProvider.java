@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.CamcorderProfile;
+import android.os.Build;
+
+/**
+ * Supplies VideoProfileResolver with the device's real
+ * CamcorderProfiles.
+ */
+public class CamcorderProfileProvider
+  implements VideoProfileResolver.ProfileProvider {
+  private static final String PREFS_NAME="cwac_cam2_video_profiles";
+
+  /**
+   * Builds a resolver for this device, saving its answers in
+   * SharedPreferences.
+   *
+   * @param ctxt any Context will do
+   * @return the resolver
+   */
+  public static VideoProfileResolver buildResolver(Context ctxt) {
+    final SharedPreferences prefs=ctxt.getApplicationContext()
+      .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+    return(new VideoProfileResolver(new CamcorderProfileProvider(),
+      new VideoProfileResolver.Store() {
+        @Override
+        public String get(String key) {
+          return(prefs.getString(key, null));
+        }
+
+        @Override
+        public void put(String key, String value) {
+          prefs.edit().putString(key, value).apply();
+        }
+      }, Build.FINGERPRINT));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public VideoProfile get(int cameraId, int quality) {
+    if (!CamcorderProfile.hasProfile(cameraId, quality)) {
+      return(null);
+    }
+
+    CamcorderProfile profile=CamcorderProfile.get(cameraId, quality);
+
+    if (profile==null) {
+      return(null);
+    }
+
+    return(new VideoProfile(quality, profile.videoFrameWidth,
+      profile.videoFrameHeight, profile.videoBitRate,
+      profile.videoCodec, profile.audioCodec));
+  }
+}
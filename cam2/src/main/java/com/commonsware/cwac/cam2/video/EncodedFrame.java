@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One buffer of encoder output: a frame, codec configuration
+ * data, or the end-of-stream marker. Instances are reused from
+ * one buffer to the next, so do not hold onto one past the call
+ * that it was handed to.
+ * <p/>
+ * The flag values match those of MediaCodec.BufferInfo, so
+ * encoders can pass theirs straight through.
+ */
+public class EncodedFrame {
+  public static final int FLAG_KEY_FRAME=1;
+  public static final int FLAG_CODEC_CONFIG=2;
+  public static final int FLAG_END_OF_STREAM=4;
+  private ByteBuffer data;
+  private int offset;
+  private int size;
+  private long presentationTimeUs;
+  private int flags;
+
+  /**
+   * Fills in the frame.
+   *
+   * @param data the buffer holding the encoded data
+   * @param offset where the data starts within the buffer
+   * @param size how many bytes of data there are
+   * @param presentationTimeUs when the frame is to be shown
+   * @param flags some combination of the FLAG_* values
+   */
+  public void set(ByteBuffer data, int offset, int size,
+                  long presentationTimeUs, int flags) {
+    this.data=data;
+    this.offset=offset;
+    this.size=size;
+    this.presentationTimeUs=presentationTimeUs;
+    this.flags=flags;
+  }
+
+  public ByteBuffer getData() {
+    return(data);
+  }
+
+  public int getOffset() {
+    return(offset);
+  }
+
+  public int getSize() {
+    return(size);
+  }
+
+  public long getPresentationTimeUs() {
+    return(presentationTimeUs);
+  }
+
+  /**
+   * Adjusts the presentation time, such as to make it relative
+   * to the start of a file.
+   *
+   * @param presentationTimeUs the new presentation time
+   */
+  public void setPresentationTimeUs(long presentationTimeUs) {
+    this.presentationTimeUs=presentationTimeUs;
+  }
+
+  public int getFlags() {
+    return(flags);
+  }
+
+  public boolean isKeyFrame() {
+    return((flags & FLAG_KEY_FRAME)!=0);
+  }
+
+  public boolean isCodecConfig() {
+    return((flags & FLAG_CODEC_CONFIG)!=0);
+  }
+
+  public boolean isEndOfStream() {
+    return((flags & FLAG_END_OF_STREAM)!=0);
+  }
+}
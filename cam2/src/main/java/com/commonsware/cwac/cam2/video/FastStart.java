@@ -0,0 +1,454 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites an MP4 file so its moov atom comes before the media
+ * data ("fast start"), letting a player begin playback before
+ * it has the whole file. MediaMuxer and MediaRecorder both write
+ * the moov atom last, as they do not know what goes in it until
+ * the recording ends.
+ * <p/>
+ * Only the moov atom is held in memory, to adjust the chunk
+ * offsets in its stco and co64 atoms; everything else is copied
+ * from channel to channel. If moving the moov atom would push
+ * an offset past what a stco atom can hold, that atom becomes
+ * a co64 one.
+ * <p/>
+ * Has no Android dependencies.
+ */
+public class FastStart {
+  static final long MAX_MOOV_SIZE=64L*1024*1024;
+  private static final long TRANSFER_CHUNK=8L*1024*1024;
+  private static final long MAX_STCO_OFFSET=0xFFFFFFFFL;
+  private static final int MOOV=fourcc("moov");
+  private static final int MDAT=fourcc("mdat");
+  private static final int STCO=fourcc("stco");
+  private static final int CO64=fourcc("co64");
+  private static final int[] CONTAINERS={
+    MOOV, fourcc("trak"), fourcc("mdia"), fourcc("minf"),
+    fourcc("stbl")
+  };
+
+  /**
+   * A top-level box in the file.
+   */
+  static class Box {
+    final int type;
+    final long offset;
+    final long size;
+
+    Box(int type, long offset, long size) {
+      this.type=type;
+      this.offset=offset;
+      this.size=size;
+    }
+
+    long getEnd() {
+      return(offset+size);
+    }
+  }
+
+  /**
+   * Rewrites the file in place, by way of a temporary file
+   * next to it, so the original is untouched if anything goes
+   * wrong.
+   *
+   * @param file the MP4 file
+   * @return true if the file was rewritten, false if it was
+   * already fast start or cannot be made so
+   * @throws IOException if the file could not be read, is not
+   * a well-formed MP4 file, or could not be replaced
+   */
+  public static boolean process(File file) throws IOException {
+    File tmp=new File(file.getPath()+".faststart");
+    boolean result;
+
+    try {
+      result=process(file, tmp);
+    }
+    catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+
+    if (result && !tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not replace "+file);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Writes a fast start copy of an MP4 file.
+   *
+   * @param in the MP4 file
+   * @param out where to write the copy; not written if this
+   *            returns false
+   * @return true if the copy was written, false if the file
+   * was already fast start or cannot be made so
+   * @throws IOException if the file could not be read, is not
+   * a well-formed MP4 file, or the copy could not be written
+   */
+  public static boolean process(File in, File out) throws IOException {
+    FileInputStream fis=new FileInputStream(in);
+
+    try {
+      FileChannel src=fis.getChannel();
+      List<Box> boxes=readBoxes(src);
+      Box moov=null;
+      Box mdat=null;
+
+      for (Box box : boxes) {
+        if (box.type==MOOV) {
+          if (moov!=null) {
+            return(false); // not something we know how to handle
+          }
+
+          moov=box;
+        }
+        else if (box.type==MDAT && mdat==null) {
+          mdat=box;
+        }
+      }
+
+      if (moov==null || mdat==null || moov.offset<mdat.offset ||
+        moov.size>MAX_MOOV_SIZE) {
+        return(false);
+      }
+
+      ByteBuffer atom=read(src, moov);
+
+      if (atom.getInt(0)==1) {
+        return(false); // 64-bit size, which we do not rewrite
+      }
+
+      if (atom.getInt(0)==0) {
+        // ran to the end of the file, which it no longer will
+        atom.putInt(0, (int)moov.size);
+      }
+
+      atom=relocate(atom, moov, mdat.offset);
+      FileOutputStream fos=new FileOutputStream(out);
+
+      try {
+        FileChannel dest=fos.getChannel();
+
+        copy(src, 0, mdat.offset, dest);
+
+        while (atom.hasRemaining()) {
+          dest.write(atom);
+        }
+
+        copy(src, mdat.offset, moov.offset-mdat.offset, dest);
+        copy(src, moov.getEnd(), src.size()-moov.getEnd(), dest);
+        fos.getFD().sync();
+      }
+      finally {
+        fos.close();
+      }
+
+      return(true);
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  /**
+   * @return the top-level boxes, in file order
+   */
+  static List<Box> readBoxes(FileChannel src) throws IOException {
+    ArrayList<Box> result=new ArrayList<Box>();
+    ByteBuffer header=ByteBuffer.allocate(16);
+    long fileSize=src.size();
+    long offset=0;
+
+    while (offset<fileSize) {
+      if (fileSize-offset<8) {
+        throw new IOException("Trailing junk at "+offset);
+      }
+
+      header.clear().limit(8);
+      readFully(src, header, offset);
+
+      long size=header.getInt(0) & 0xFFFFFFFFL;
+      int type=header.getInt(4);
+      int headerSize=8;
+
+      if (size==1) {
+        header.limit(16);
+        readFully(src, header, offset+8);
+        size=header.getLong(8);
+        headerSize=16;
+      }
+      else if (size==0) {
+        size=fileSize-offset; // runs to the end of the file
+      }
+
+      if (size<headerSize || size>fileSize-offset) {
+        throw new IOException("Malformed box at "+offset);
+      }
+
+      result.add(new Box(type, offset, size));
+      offset+=size;
+    }
+
+    return(result);
+  }
+
+  /**
+   * Adjusts the chunk offsets in the moov atom for its move to
+   * just before the first mdat atom, converting stco atoms to
+   * co64 if needed.
+   *
+   * @return the atom to write
+   */
+  static ByteBuffer relocate(ByteBuffer atom, Box moov, long insertAt)
+    throws IOException {
+    if (!patch(atom, 0, atom.limit(), moov, insertAt, atom.limit(), true)) {
+      ByteArrayOutputStream baos=new ByteArrayOutputStream();
+
+      widen(atom, 0, atom.limit(), new DataOutputStream(baos));
+      atom=ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    patch(atom, 0, atom.limit(), moov, insertAt, atom.limit(), false);
+
+    return(atom);
+  }
+
+  /**
+   * Walks the boxes from start to end, adjusting the stco and
+   * co64 atoms it finds.
+   *
+   * @param newSize the size of the moov atom as it will be
+   *                written
+   * @param dryRun true to only check the offsets, without
+   *               changing them
+   * @return false if a stco atom cannot hold an adjusted offset
+   */
+  private static boolean patch(ByteBuffer atom, int start, int end,
+                               Box moov, long insertAt, long newSize,
+                               boolean dryRun) throws IOException {
+    int offset=start;
+
+    while (offset<end) {
+      int size=childSize(atom, offset, end);
+      int type=atom.getInt(offset+4);
+
+      if (isContainer(type)) {
+        if (!patch(atom, offset+8, offset+size, moov, insertAt,
+          newSize, dryRun)) {
+          return(false);
+        }
+      }
+      else if (type==STCO || type==CO64) {
+        int width=(type==STCO ? 4 : 8);
+        int count=entryCount(atom, offset, size, width);
+
+        for (int i=0;i<count;i++) {
+          int at=offset+16+i*width;
+          long chunk=(width==4 ? atom.getInt(at) & 0xFFFFFFFFL :
+            atom.getLong(at));
+          long moved=move(chunk, moov, insertAt, newSize);
+
+          if (width==4 && moved>MAX_STCO_OFFSET) {
+            return(false);
+          }
+
+          if (!dryRun) {
+            if (width==4) {
+              atom.putInt(at, (int)moved);
+            }
+            else {
+              atom.putLong(at, moved);
+            }
+          }
+        }
+      }
+
+      offset+=size;
+    }
+
+    return(true);
+  }
+
+  /**
+   * Copies the boxes from start to end, turning stco atoms into
+   * co64 ones and resizing the containers to suit.
+   */
+  private static void widen(ByteBuffer atom, int start, int end,
+                            DataOutputStream out) throws IOException {
+    int offset=start;
+
+    while (offset<end) {
+      int size=childSize(atom, offset, end);
+      int type=atom.getInt(offset+4);
+
+      if (isContainer(type)) {
+        ByteArrayOutputStream baos=new ByteArrayOutputStream();
+
+        widen(atom, offset+8, offset+size, new DataOutputStream(baos));
+        out.writeInt(8+baos.size());
+        out.writeInt(type);
+        baos.writeTo(out);
+      }
+      else if (type==STCO) {
+        int count=entryCount(atom, offset, size, 4);
+
+        out.writeInt(16+count*8);
+        out.writeInt(CO64);
+        out.writeInt(atom.getInt(offset+8)); // version and flags
+        out.writeInt(count);
+
+        for (int i=0;i<count;i++) {
+          out.writeLong(atom.getInt(offset+16+i*4) & 0xFFFFFFFFL);
+        }
+      }
+      else {
+        out.write(atom.array(), atom.arrayOffset()+offset, size);
+      }
+
+      offset+=size;
+    }
+  }
+
+  /**
+   * @return where a byte at the given file offset ends up once
+   * the moov atom is moved to insertAt
+   */
+  static long move(long offset, Box moov, long insertAt,
+                   long newSize) {
+    if (offset>=insertAt && offset<moov.offset) {
+      return(offset+newSize);
+    }
+
+    if (offset>=moov.getEnd()) {
+      return(offset+newSize-moov.size);
+    }
+
+    return(offset);
+  }
+
+  /**
+   * @return the size of the box at offset, where a size of 0
+   * means the box runs to the end of its parent
+   */
+  private static int childSize(ByteBuffer atom, int offset, int end)
+    throws IOException {
+    if (end-offset<8) {
+      throw new IOException("Malformed moov atom");
+    }
+
+    long size=atom.getInt(offset) & 0xFFFFFFFFL;
+
+    if (size==0) {
+      size=end-offset;
+    }
+
+    if (size<8 || size>end-offset) {
+      // 64-bit sizes make no sense for boxes inside a moov atom
+      // capped at MAX_MOOV_SIZE
+      throw new IOException("Malformed moov atom");
+    }
+
+    return((int)size);
+  }
+
+  private static int entryCount(ByteBuffer atom, int offset, int size,
+                                int width) throws IOException {
+    if (size<16) {
+      throw new IOException("Malformed chunk offset atom");
+    }
+
+    long count=atom.getInt(offset+12) & 0xFFFFFFFFL;
+
+    if (count*width>size-16) {
+      throw new IOException("Malformed chunk offset atom");
+    }
+
+    return((int)count);
+  }
+
+  private static boolean isContainer(int type) {
+    for (int container : CONTAINERS) {
+      if (container==type) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  private static ByteBuffer read(FileChannel src, Box box)
+    throws IOException {
+    ByteBuffer result=ByteBuffer.allocate((int)box.size);
+
+    readFully(src, result, box.offset);
+    result.flip();
+
+    return(result);
+  }
+
+  private static void readFully(FileChannel src, ByteBuffer buffer,
+                                long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      int count=src.read(buffer, offset);
+
+      if (count<0) {
+        throw new IOException("Unexpected end of file");
+      }
+
+      offset+=count;
+    }
+  }
+
+  /**
+   * transferTo() may move less than asked for, and some
+   * platforms cap a single transfer, so go a chunk at a time.
+   */
+  private static void copy(FileChannel src, long offset, long count,
+                           FileChannel dest) throws IOException {
+    while (count>0) {
+      long moved=src.transferTo(offset, Math.min(count, TRANSFER_CHUNK),
+        dest);
+
+      if (moved<=0) {
+        throw new IOException("Unexpected end of file");
+      }
+
+      offset+=moved;
+      count-=moved;
+    }
+  }
+
+  private static int fourcc(String type) {
+    return((type.charAt(0)<<24) | (type.charAt(1)<<16) |
+      (type.charAt(2)<<8) | type.charAt(3));
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import java.nio.ByteBuffer;
+
+/**
+ * VideoEncoder backed by a MediaCodec encoder. The codec is
+ * owned by the caller, who configures, starts, stops, and
+ * releases it.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecVideoEncoder implements VideoEncoder<MediaFormat> {
+  private final MediaCodec codec;
+  private final MediaCodec.BufferInfo info=new MediaCodec.BufferInfo();
+  private ByteBuffer[] outputBuffers=null;
+
+  /**
+   * Constructor.
+   *
+   * @param codec a started encoder
+   */
+  public MediaCodecVideoEncoder(MediaCodec codec) {
+    this.codec=codec;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int dequeueOutput(EncodedFrame frame, long timeoutUs) {
+    long timeout=timeoutUs;
+
+    while (true) {
+      int index=codec.dequeueOutputBuffer(info, timeout);
+
+      if (index>=0) {
+        ByteBuffer buffer=getOutputBuffer(index);
+
+        buffer.position(info.offset);
+        buffer.limit(info.offset+info.size);
+        frame.set(buffer, info.offset, info.size,
+          info.presentationTimeUs, info.flags);
+
+        return(index);
+      }
+      else if (index==MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        return(INFO_OUTPUT_FORMAT_CHANGED);
+      }
+      else if (index==getBuffersChanged()) {
+        outputBuffers=null; // and go back for the real output
+        timeout=0;
+      }
+      else {
+        return(INFO_TRY_AGAIN_LATER);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public MediaFormat getOutputFormat() {
+    return(codec.getOutputFormat());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void releaseOutput(int index) {
+    codec.releaseOutputBuffer(index, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void signalEndOfInputStream() {
+    codec.signalEndOfInputStream();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Only possible on API Level 19+; ignored on older devices.
+   */
+  @Override
+  public void setBitrate(int bitsPerSecond) {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+      setParameter(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Only possible on API Level 19+; ignored on older devices.
+   */
+  @Override
+  public void requestKeyFrame() {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT) {
+      setParameter(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private void setParameter(String key, int value) {
+    Bundle params=new Bundle();
+
+    params.putInt(key, value);
+    codec.setParameters(params);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static int getBuffersChanged() {
+    return(MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED);
+  }
+
+  @SuppressWarnings("deprecation")
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private ByteBuffer getOutputBuffer(int index) {
+    if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.LOLLIPOP) {
+      return(codec.getOutputBuffer(index));
+    }
+
+    if (outputBuffers==null) {
+      outputBuffers=codec.getOutputBuffers();
+    }
+
+    return(outputBuffers[index]);
+  }
+}
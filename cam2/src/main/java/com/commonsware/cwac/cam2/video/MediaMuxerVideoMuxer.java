@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+/**
+ * VideoMuxer backed by a MediaMuxer, which this takes over: it
+ * is stopped and released along with this.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaMuxerVideoMuxer implements VideoMuxer<MediaFormat> {
+  private final MediaMuxer muxer;
+  private final MediaCodec.BufferInfo info=new MediaCodec.BufferInfo();
+
+  public MediaMuxerVideoMuxer(MediaMuxer muxer) {
+    this.muxer=muxer;
+  }
+
+  @Override
+  public int addTrack(MediaFormat format) {
+    return(muxer.addTrack(format));
+  }
+
+  @Override
+  public void start() {
+    muxer.start();
+  }
+
+  @Override
+  public void writeSample(int track, EncodedFrame frame) {
+    // older MediaMuxers only understand the key frame flag
+    info.set(frame.getOffset(), frame.getSize(),
+      frame.getPresentationTimeUs(),
+      frame.getFlags() & EncodedFrame.FLAG_KEY_FRAME);
+    muxer.writeSampleData(track, frame.getData(), info);
+  }
+
+  @Override
+  public void stop() {
+    muxer.stop();
+  }
+
+  @Override
+  public void release() {
+    muxer.release();
+  }
+}
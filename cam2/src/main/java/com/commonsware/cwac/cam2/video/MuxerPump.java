@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import java.io.IOException;
+
+/**
+ * Moves encoded frames from a VideoEncoder to a VideoMuxer,
+ * taking care of the things MediaMuxer will not:
+ * <ul>
+ * <li>the muxer is started once the encoder reports its format,
+ * and codec configuration buffers are skipped, as the format
+ * already carries them</li>
+ * <li>the file starts on a key frame, so it plays from the
+ * start</li>
+ * <li>presentation times only go forward, as the muxer fails
+ * on a frame that goes back in time</li>
+ * </ul>
+ * <p/>
+ * With segment limits, the output is split across a series of
+ * muxers from a MuxerFactory. Once a segment reaches a limit,
+ * the pump asks for a key frame, and the next segment starts
+ * on it. Every frame lands in one segment or the next, so none
+ * are lost at the seams. Segments may run a bit past their
+ * limits, by up to one key frame interval.
+ * Has no Android dependencies, so it can be exercised with fake
+ * encoders and muxers. drain() and finish() are to be called
+ * from one thread; the statistics may be read from any.
+ *
+ * @param <F> how the encoder describes its output format
+ */
+public class MuxerPump<F> {
+  /**
+   * Supplies the muxer for each segment.
+   */
+  public interface MuxerFactory<F> {
+    /**
+     * @param index the position of the segment, starting at 0
+     * @return the muxer to write that segment with
+     * @throws IOException if the muxer could not be created
+     */
+    VideoMuxer<F> create(int index) throws IOException;
+  }
+
+  /**
+   * Hears about each segment as it is finished.
+   */
+  public interface SegmentListener {
+    /**
+     * Called once the segment's muxer has been stopped and
+     * released, on the thread calling drain() or finish().
+     *
+     * @param index the position of the segment, starting at 0
+     * @param durationUs the span of the segment's frames
+     * @param bytes the encoded data in the segment
+     * @param isLast true if this is the final segment
+     */
+    void onSegmentCompleted(int index, long durationUs, long bytes,
+                            boolean isLast);
+  }
+
+  private final VideoEncoder<F> encoder;
+  private final MuxerFactory<F> factory;
+  private final EncodedFrame frame=new EncodedFrame();
+  private VideoMuxer<F> muxer;
+  private F format;
+  private SegmentListener listener;
+  private long maxSegmentDurationUs=0;
+  private long maxSegmentBytes=0;
+  private int track=-1;
+  private boolean isMuxing=false;
+  private boolean isEnded=false;
+  private boolean hasKeyFrame=false;
+  private boolean isKeyFrameRequested=false;
+  private boolean isRolloverDue=false;
+  private int segment=0;
+  private long segmentFirstPtsUs=-1;
+  private long segmentBytes=0;
+  private long segmentFrames=0;
+  private long firstPtsUs=-1;
+  private volatile long lastPtsUs=-1;
+  private volatile long framesWritten=0;
+  private volatile long framesDropped=0;
+  private volatile long bytesWritten=0;
+
+  /**
+   * Constructor, for writing everything to one muxer.
+   *
+   * @param encoder where the frames come from
+   * @param muxer where the frames go
+   */
+  public MuxerPump(VideoEncoder<F> encoder, final VideoMuxer<F> muxer) {
+    this(encoder, new MuxerFactory<F>() {
+      @Override
+      public VideoMuxer<F> create(int index) {
+        if (index>0) {
+          throw new IllegalStateException("Only one muxer was supplied");
+        }
+
+        return(muxer);
+      }
+    });
+  }
+
+  /**
+   * Constructor, for writing segments.
+   *
+   * @param encoder where the frames come from
+   * @param factory where the muxers for the segments come from
+   */
+  public MuxerPump(VideoEncoder<F> encoder, MuxerFactory<F> factory) {
+    this.encoder=encoder;
+    this.factory=factory;
+  }
+
+  /**
+   * Splits the output into segments. Call before the first
+   * drain().
+   *
+   * @param maxDurationUs roll over to a new segment after this
+   *                      many microseconds, or 0 for no limit
+   * @param maxBytes roll over to a new segment after this much
+   *                 encoded data, or 0 for no limit
+   */
+  public void setSegmentLimits(long maxDurationUs, long maxBytes) {
+    this.maxSegmentDurationUs=maxDurationUs;
+    this.maxSegmentBytes=maxBytes;
+  }
+
+  public void setSegmentListener(SegmentListener listener) {
+    this.listener=listener;
+  }
+
+  /**
+   * Writes out whatever the encoder has ready, waiting up to
+   * timeoutUs for the first of it.
+   *
+   * @param timeoutUs how long to wait for output, in
+   *                  microseconds
+   * @return true once the encoder has reached the end of the
+   * stream, false if there may be more to come
+   * @throws IOException if the muxer for a new segment could
+   * not be created
+   */
+  public boolean drain(long timeoutUs) throws IOException {
+    long timeout=timeoutUs;
+
+    while (!isEnded) {
+      int index=encoder.dequeueOutput(frame, timeout);
+
+      timeout=0; // only wait for the first buffer
+
+      if (index==VideoEncoder.INFO_TRY_AGAIN_LATER) {
+        break;
+      }
+      else if (index==VideoEncoder.INFO_OUTPUT_FORMAT_CHANGED) {
+        onFormatChanged(encoder.getOutputFormat());
+      }
+      else if (index>=0) {
+        try {
+          onFrame(frame);
+        }
+        finally {
+          encoder.releaseOutput(index);
+        }
+      }
+    }
+
+    return(isEnded);
+  }
+
+  /**
+   * Stops and releases the muxer. Call once drain() has returned
+   * true, or to give up on the rest of the stream.
+   *
+   * @return true if any frames were written, false if the
+   * output is empty (and likely not a valid file)
+   */
+  public boolean finish() {
+    if (muxer!=null) {
+      closeSegment(true);
+    }
+
+    return(framesWritten>0);
+  }
+
+  /**
+   * @return true once the encoder has reached the end of the
+   * stream
+   */
+  public boolean isEnded() {
+    return(isEnded);
+  }
+
+  public long getFramesWritten() {
+    return(framesWritten);
+  }
+
+  /**
+   * @return frames not written, because they arrived before the
+   * first key frame or out of order
+   */
+  public long getFramesDropped() {
+    return(framesDropped);
+  }
+
+  public long getBytesWritten() {
+    return(bytesWritten);
+  }
+
+  /**
+   * @return the position of the segment being written
+   */
+  public int getSegmentIndex() {
+    return(segment);
+  }
+
+  /**
+   * @return the span between the first and latest frames
+   * written, in microseconds
+   */
+  public long getDurationUs() {
+    long last=lastPtsUs;
+
+    return(last<0 ? 0 : last-firstPtsUs);
+  }
+
+  private void onFormatChanged(F format) throws IOException {
+    if (isMuxing) {
+      throw new IllegalStateException("Encoder format changed after muxing started");
+    }
+
+    this.format=format;
+    openSegment();
+  }
+
+  private void openSegment() throws IOException {
+    muxer=factory.create(segment);
+    track=muxer.addTrack(format);
+    muxer.start();
+    isMuxing=true;
+    segmentFirstPtsUs=-1;
+    segmentBytes=0;
+    segmentFrames=0;
+  }
+
+  private void closeSegment(boolean isLast) {
+    long durationUs=(segmentFrames==0 ? 0 : lastPtsUs-segmentFirstPtsUs);
+
+    try {
+      if (isMuxing && segmentFrames>0) {
+        muxer.stop();
+      }
+    }
+    finally {
+      isMuxing=false;
+      muxer.release();
+      muxer=null;
+    }
+
+    if (listener!=null && segmentFrames>0) {
+      listener.onSegmentCompleted(segment, durationUs, segmentBytes,
+        isLast);
+    }
+  }
+
+  private void onFrame(EncodedFrame frame) throws IOException {
+    if (frame.isEndOfStream()) {
+      isEnded=true;
+    }
+
+    if (frame.isCodecConfig() || frame.getSize()==0) {
+      return;
+    }
+
+    long pts=frame.getPresentationTimeUs();
+
+    if (!isMuxing || pts<=lastPtsUs) {
+      framesDropped++;
+    }
+    else if (!hasKeyFrame && !frame.isKeyFrame()) {
+      framesDropped++;
+
+      if (!isKeyFrameRequested) {
+        isKeyFrameRequested=true;
+        encoder.requestKeyFrame();
+      }
+    }
+    else {
+      if (isRolloverDue && frame.isKeyFrame()) {
+        isRolloverDue=false;
+        closeSegment(false);
+        segment++;
+        openSegment();
+      }
+
+      muxer.writeSample(track, frame);
+      hasKeyFrame=true;
+
+      if (firstPtsUs<0) {
+        firstPtsUs=pts;
+      }
+
+      if (segmentFirstPtsUs<0) {
+        segmentFirstPtsUs=pts;
+      }
+
+      lastPtsUs=pts;
+      segmentBytes+=frame.getSize();
+      segmentFrames++;
+      bytesWritten+=frame.getSize();
+      framesWritten++;
+
+      if (!isRolloverDue && isSegmentFull()) {
+        isRolloverDue=true;
+        encoder.requestKeyFrame();
+      }
+    }
+  }
+
+  private boolean isSegmentFull() {
+    return((maxSegmentDurationUs>0 &&
+      lastPtsUs-segmentFirstPtsUs>=maxSegmentDurationUs) ||
+      (maxSegmentBytes>0 && segmentBytes>=maxSegmentBytes));
+  }
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.view.Surface;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records video from a Surface into an MP4 file, using a
+ * MediaCodec encoder and a MediaMuxer. Whatever draws into
+ * getSurface() (e.g., a camera2 repeating request) gets
+ * recorded, at the bitrate, frame rate, and key frame interval
+ * of the VideoEncoderConfig. The bitrate can be changed while
+ * recording, on API Level 19+.
+ * <p/>
+ * This records video only, no audio.
+ * <p/>
+ * Call prepare(), aim frames at getSurface(), then call stop().
+ * stop() does not wait for the file to be finished; the
+ * recorder's own thread, the only one to touch the muxer and
+ * encoder once recording starts, finishes and releases them,
+ * then reports back. An instance records one file, or one
+ * series of segment files (see setSegments()); create a fresh
+ * one for the next.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class SurfaceVideoRecorder {
+  /**
+   * Names and hears about the files of a segmented recording.
+   */
+  public interface Segments {
+    /**
+     * @param index the position of the segment, 1 or higher; the
+     *              first segment goes to the output file given
+     *              to the constructor
+     * @return the file to write the segment to
+     */
+    File getSegmentFile(int index);
+
+    /**
+     * Called on the recorder's own thread once a segment file is
+     * complete.
+     *
+     * @param index the position of the segment, starting at 0
+     * @param file the segment file
+     * @param isLast true if this is the final segment
+     */
+    void onSegmentCompleted(int index, File file, boolean isLast);
+  }
+
+  /**
+   * Hears when the recording is done.
+   */
+  public interface StopListener {
+    /**
+     * Called on the recorder's own thread once the file is
+     * finished and the encoder is released.
+     *
+     * @param e why the video could not be finished, or if no
+     *          frames were recorded; null if all went well
+     */
+    void onStopped(IOException e);
+  }
+
+  /**
+   * Hears about a recording that fails before stop() is called.
+   */
+  public interface FailureListener {
+    /**
+     * Called on the recorder's own thread. The recorder keeps
+     * taking frames from the Surface, and throwing them away,
+     * until stop() is called, so whatever draws into it does not
+     * stall meanwhile.
+     *
+     * @param e what went wrong
+     */
+    void onFailed(Exception e);
+  }
+
+  private static final long DRAIN_TIMEOUT_US=10000;
+  private static final long STOP_TIMEOUT_MS=2000;
+  private final VideoEncoderConfig config;
+  private final File output;
+  private MediaCodec codec;
+  private Surface surface;
+  private MediaCodecVideoEncoder encoder;
+  private MuxerPump<MediaFormat> pump;
+  private Thread drainThread;
+  private Segments segments;
+  private FailureListener failureListener;
+  private MediaMuxer unclaimed;
+  private long maxSegmentDurationUs=0;
+  private long maxSegmentBytes=0;
+  private final CountDownLatch stopRequested=new CountDownLatch(1);
+  private volatile StopListener stopListener;
+  private volatile long stopRequestedAt=0;
+  private volatile boolean isAbandoned=false;
+  private volatile RuntimeException failure=null;
+
+  /**
+   * Constructor.
+   *
+   * @param config how to encode the video
+   * @param output the MP4 file to write
+   */
+  public SurfaceVideoRecorder(VideoEncoderConfig config, File output) {
+    this.config=config;
+    this.output=output;
+  }
+
+  /**
+   * Splits the recording into segment files, each started on a
+   * key frame, so no frames are lost between them. Call before
+   * prepare().
+   *
+   * @param maxDurationUs roll over to a new file after this many
+   *                      microseconds, or 0 for no limit
+   * @param maxBytes roll over to a new file after this much
+   *                 encoded data, or 0 for no limit
+   * @param segments names and hears about the files
+   */
+  public void setSegments(long maxDurationUs, long maxBytes,
+                          Segments segments) {
+    this.maxSegmentDurationUs=maxDurationUs;
+    this.maxSegmentBytes=maxBytes;
+    this.segments=segments;
+  }
+
+  /**
+   * Sets up the encoder and muxer, and starts writing out
+   * whatever reaches the Surface.
+   *
+   * @return the Surface to draw the frames to be recorded into
+   * @throws IOException if the encoder or file could not be set
+   * up
+   */
+  public Surface prepare() throws IOException {
+    MediaFormat format=MediaFormat.createVideoFormat(config.getMimeType(),
+      config.getSize().getWidth(), config.getSize().getHeight());
+
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+      MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitrate());
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+      config.getKeyFrameInterval());
+
+    MediaMuxer muxer=null;
+
+    try {
+      codec=MediaCodec.createEncoderByType(config.getMimeType());
+      codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      surface=codec.createInputSurface();
+      codec.start();
+
+      muxer=buildMuxer(output);
+    }
+    catch (IOException e) {
+      abandon(muxer);
+      throw e;
+    }
+    catch (RuntimeException e) {
+      // MediaCodec reports a bad configuration this way
+      abandon(muxer);
+      throw new IOException("Could not set up the video encoder", e);
+    }
+
+    // held here until the encoder reports its format, so it can
+    // be released if that never happens
+    unclaimed=muxer;
+    encoder=new MediaCodecVideoEncoder(codec);
+    pump=new MuxerPump<MediaFormat>(encoder,
+      new MuxerPump.MuxerFactory<MediaFormat>() {
+        @Override
+        public VideoMuxer<MediaFormat> create(int index)
+          throws IOException {
+          if (index==0) {
+            MediaMuxer first=unclaimed;
+
+            unclaimed=null;
+
+            return(new MediaMuxerVideoMuxer(first));
+          }
+
+          return(new MediaMuxerVideoMuxer(buildMuxer(getFile(index))));
+        }
+      });
+
+    if (segments!=null) {
+      pump.setSegmentLimits(maxSegmentDurationUs, maxSegmentBytes);
+      pump.setSegmentListener(new MuxerPump.SegmentListener() {
+        @Override
+        public void onSegmentCompleted(int index, long durationUs,
+                                       long bytes, boolean isLast) {
+          segments.onSegmentCompleted(index, getFile(index), isLast);
+        }
+      });
+    }
+
+    drainThread=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!pump.drain(DRAIN_TIMEOUT_US)) {
+            if (isAbandoned || isStopOverdue()) {
+              break; // never saw the end of the stream; keep what we have
+            }
+          }
+        }
+        catch (IOException e) {
+          failure=new IllegalStateException("Could not start a segment", e);
+        }
+        catch (RuntimeException e) {
+          failure=e;
+        }
+        finally {
+          if (failure!=null) {
+            discard();
+          }
+
+          finish();
+        }
+      }
+    }, getClass().getSimpleName());
+    drainThread.start();
+
+    return(surface);
+  }
+
+  /**
+   * Call before prepare().
+   *
+   * @param listener hears about a recording that fails before
+   *                 stop() is called
+   */
+  public void setFailureListener(FailureListener listener) {
+    this.failureListener=listener;
+  }
+
+  /**
+   * @return the Surface that prepare() returned
+   */
+  public Surface getSurface() {
+    return(surface);
+  }
+
+  /**
+   * @return the file being recorded
+   */
+  public File getOutput() {
+    return(output);
+  }
+
+  /**
+   * Changes the bitrate while recording. Ignored before API
+   * Level 19.
+   *
+   * @param bitsPerSecond the new target bitrate
+   */
+  public void setBitrate(int bitsPerSecond) {
+    if (encoder!=null) {
+      encoder.setBitrate(bitsPerSecond);
+    }
+  }
+
+  /**
+   * Asks for the next frame to be a key frame. Ignored before
+   * API Level 19.
+   */
+  public void requestKeyFrame() {
+    if (encoder!=null) {
+      encoder.requestKeyFrame();
+    }
+  }
+
+  /**
+   * @return statistics about what has been written so far, or
+   * null if prepare() has not been called
+   */
+  public MuxerPump<MediaFormat> getPump() {
+    return(pump);
+  }
+
+  /**
+   * Asks for the file to be finished and the encoder released.
+   * Stop sending frames to the Surface first. Returns right
+   * away; the listener hears when the work is done.
+   *
+   * @param listener hears when the recording is done, or with
+   *                 why it failed
+   */
+  public void stop(StopListener listener) {
+    if (drainThread==null || stopRequested.getCount()==0) {
+      return;
+    }
+
+    stopListener=listener;
+    stopRequestedAt=System.nanoTime();
+
+    try {
+      encoder.signalEndOfInputStream();
+    }
+    catch (RuntimeException e) {
+      // no end of stream is coming, so do not wait for it
+      failure=e;
+      isAbandoned=true;
+    }
+
+    stopRequested.countDown();
+  }
+
+  private boolean isStopOverdue() {
+    return(stopRequested.getCount()==0 &&
+      System.nanoTime()-stopRequestedAt>
+        TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MS));
+  }
+
+  /**
+   * The recording failed before stop(), so say so, then keep
+   * the encoder's output moving until stop() is called. Were we
+   * to stop dequeuing, the encoder would run out of output
+   * buffers, and whatever draws into the Surface (e.g., the
+   * camera) would stall on it.
+   */
+  private void discard() {
+    FailureListener listener=failureListener;
+
+    if (listener!=null && stopRequested.getCount()>0) {
+      listener.onFailed(failure);
+    }
+
+    EncodedFrame frame=new EncodedFrame();
+
+    try {
+      while (stopRequested.getCount()>0) {
+        int index=encoder.dequeueOutput(frame, DRAIN_TIMEOUT_US);
+
+        if (index>=0) {
+          encoder.releaseOutput(index);
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      // the encoder itself is broken, so there is nothing left
+      // to keep moving
+    }
+  }
+
+  /**
+   * Finishes the file and releases the encoder, once stop() has
+   * been called. Called only on the drain thread, so nothing
+   * else can be writing to the muxer meanwhile.
+   */
+  private void finish() {
+    boolean isInterrupted=false;
+
+    while (true) {
+      try {
+        // the camera may still be drawing into the Surface, so
+        // hold onto the encoder until we are told to stop
+        stopRequested.await();
+        break;
+      }
+      catch (InterruptedException e) {
+        isInterrupted=true;
+      }
+    }
+
+    boolean hasFrames=false;
+
+    try {
+      hasFrames=pump.finish();
+    }
+    catch (RuntimeException e) {
+      if (failure==null) {
+        failure=e;
+      }
+    }
+    finally {
+      try {
+        codec.stop();
+      }
+      catch (RuntimeException e) {
+        // already broken, and we are releasing it anyway
+      }
+
+      codec.release();
+      surface.release();
+
+      if (unclaimed!=null) {
+        // the encoder never got going, so the file is empty
+        unclaimed.release();
+        unclaimed=null;
+        output.delete();
+      }
+    }
+
+    IOException result=null;
+
+    if (failure!=null) {
+      result=new IOException("Video recording failed", failure);
+    }
+    else if (!hasFrames) {
+      result=new IOException("No video frames were recorded");
+    }
+
+    if (stopListener!=null) {
+      stopListener.onStopped(result);
+    }
+
+    if (isInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private MediaMuxer buildMuxer(File file) throws IOException {
+    MediaMuxer result=new MediaMuxer(file.getAbsolutePath(),
+      MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+    result.setOrientationHint(config.getOrientationHint());
+
+    return(result);
+  }
+
+  private File getFile(int index) {
+    return(index==0 ? output : segments.getSegmentFile(index));
+  }
+
+  private void abandon(MediaMuxer muxer) {
+    if (muxer!=null) {
+      muxer.release();
+    }
+
+    if (surface!=null) {
+      surface.release();
+      surface=null;
+    }
+
+    if (codec!=null) {
+      codec.release();
+      codec=null;
+    }
+  }
+}
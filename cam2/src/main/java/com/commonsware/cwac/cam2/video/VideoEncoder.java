@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+/**
+ * The output side of a video encoder, as MuxerPump sees it.
+ * MediaCodecVideoEncoder is the real one; anything else that
+ * hands out encoded frames the same way (e.g., a fake that
+ * replays canned frames) will do.
+ *
+ * @param <F> how the encoder describes its output format (e.g.,
+ *           MediaFormat), which is only passed along to the
+ *           VideoMuxer
+ */
+public interface VideoEncoder<F> {
+  /**
+   * Returned by dequeueOutput() if no output arrived in time.
+   */
+  int INFO_TRY_AGAIN_LATER=-1;
+
+  /**
+   * Returned by dequeueOutput() when the output format is
+   * known, before the first frame.
+   */
+  int INFO_OUTPUT_FORMAT_CHANGED=-2;
+
+  /**
+   * Waits for the next buffer of output.
+   *
+   * @param frame filled in with the output, if there is some
+   * @param timeoutUs how long to wait, in microseconds
+   * @return an index to pass to releaseOutput() once the frame
+   * has been used, or one of the INFO_* values
+   */
+  int dequeueOutput(EncodedFrame frame, long timeoutUs);
+
+  /**
+   * @return the output format, once dequeueOutput() has
+   * returned INFO_OUTPUT_FORMAT_CHANGED
+   */
+  F getOutputFormat();
+
+  /**
+   * Hands a buffer of output back to the encoder.
+   *
+   * @param index the value returned by dequeueOutput()
+   */
+  void releaseOutput(int index);
+
+  /**
+   * Tells the encoder that no more input is coming. Once it has
+   * encoded what it has, dequeueOutput() returns a frame with
+   * FLAG_END_OF_STREAM.
+   */
+  void signalEndOfInputStream();
+
+  /**
+   * Changes the bitrate on the fly, if the encoder supports it.
+   *
+   * @param bitsPerSecond the new target bitrate
+   */
+  void setBitrate(int bitsPerSecond);
+
+  /**
+   * Asks the encoder to make the next frame a key frame.
+   */
+  void requestKeyFrame();
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import com.commonsware.cwac.cam2.util.Size;
+
+/**
+ * How SurfaceVideoRecorder should set up its encoder. Use the
+ * Builder to create one.
+ */
+public class VideoEncoderConfig {
+  public static final String MIME_AVC="video/avc";
+  public static final int DEFAULT_FRAME_RATE=30;
+  public static final int DEFAULT_KEY_FRAME_INTERVAL=1;
+  private static final float DEFAULT_BITS_PER_PIXEL=0.2f;
+  Size size;
+  String mimeType=MIME_AVC;
+  int bitrate=0;
+  int frameRate=DEFAULT_FRAME_RATE;
+  int keyFrameInterval=DEFAULT_KEY_FRAME_INTERVAL;
+  int orientationHint=0;
+
+  private VideoEncoderConfig() {
+    // please use the Builder
+  }
+
+  public Size getSize() {
+    return(size);
+  }
+
+  public String getMimeType() {
+    return(mimeType);
+  }
+
+  /**
+   * @return the bitrate in bits per second, either as requested
+   * or a default based on the size and frame rate
+   */
+  public int getBitrate() {
+    if (bitrate>0) {
+      return(bitrate);
+    }
+
+    return((int)(DEFAULT_BITS_PER_PIXEL*size.getWidth()*
+      size.getHeight()*frameRate));
+  }
+
+  public int getFrameRate() {
+    return(frameRate);
+  }
+
+  /**
+   * @return seconds between key frames (i.e., the GOP length)
+   */
+  public int getKeyFrameInterval() {
+    return(keyFrameInterval);
+  }
+
+  /**
+   * @return degrees clockwise that players should rotate the
+   * video by
+   */
+  public int getOrientationHint() {
+    return(orientationHint);
+  }
+
+  public static class Builder {
+    VideoEncoderConfig result=new VideoEncoderConfig();
+
+    public VideoEncoderConfig build() {
+      if (result.size==null) {
+        throw new IllegalStateException("A size is required");
+      }
+
+      return(result);
+    }
+
+    public Builder size(Size size) {
+      result.size=size;
+
+      return(this);
+    }
+
+    /**
+     * @return the size set so far, or null
+     */
+    public Size getSize() {
+      return(result.size);
+    }
+
+    public Builder mimeType(String mimeType) {
+      result.mimeType=mimeType;
+
+      return(this);
+    }
+
+    /**
+     * @param bitrate bits per second, or 0 for a default based on
+     *                the size and frame rate
+     */
+    public Builder bitrate(int bitrate) {
+      result.bitrate=bitrate;
+
+      return(this);
+    }
+
+    public Builder frameRate(int frameRate) {
+      result.frameRate=frameRate;
+
+      return(this);
+    }
+
+    /**
+     * @param keyFrameInterval seconds between key frames
+     */
+    public Builder keyFrameInterval(int keyFrameInterval) {
+      result.keyFrameInterval=keyFrameInterval;
+
+      return(this);
+    }
+
+    /**
+     * @param orientationHint 0, 90, 180, or 270
+     */
+    public Builder orientationHint(int orientationHint) {
+      result.orientationHint=orientationHint;
+
+      return(this);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+/**
+ * Where MuxerPump writes encoded frames. MediaMuxerVideoMuxer
+ * is the real one.
+ *
+ * @param <F> how the encoder describes its output format
+ */
+public interface VideoMuxer<F> {
+  /**
+   * @param format the encoder's output format
+   * @return the track index, to pass to writeSample()
+   */
+  int addTrack(F format);
+
+  void start();
+
+  /**
+   * @param track the value returned by addTrack()
+   * @param frame the frame to write
+   */
+  void writeSample(int track, EncodedFrame frame);
+
+  void stop();
+
+  void release();
+}
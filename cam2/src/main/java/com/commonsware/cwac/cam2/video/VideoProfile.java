@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+/**
+ * The parts of a CamcorderProfile that VideoProfileResolver
+ * weighs, without the Android dependency.
+ */
+public class VideoProfile {
+  // same values as MediaRecorder.VideoEncoder and
+  // MediaRecorder.AudioEncoder
+  public static final int VIDEO_H263=1;
+  public static final int VIDEO_H264=2;
+  public static final int AUDIO_AAC=3;
+  public static final int AUDIO_HE_AAC=4;
+  public static final int AUDIO_AAC_ELD=5;
+  private final int quality;
+  private final int width;
+  private final int height;
+  private final int videoBitRate;
+  private final int videoCodec;
+  private final int audioCodec;
+
+  /**
+   * Constructor.
+   *
+   * @param quality the CamcorderProfile quality, e.g.,
+   *                QUALITY_720P
+   * @param width video frame width
+   * @param height video frame height
+   * @param videoBitRate bits per second
+   * @param videoCodec a MediaRecorder.VideoEncoder value
+   * @param audioCodec a MediaRecorder.AudioEncoder value
+   */
+  public VideoProfile(int quality, int width, int height,
+                      int videoBitRate, int videoCodec,
+                      int audioCodec) {
+    this.quality=quality;
+    this.width=width;
+    this.height=height;
+    this.videoBitRate=videoBitRate;
+    this.videoCodec=videoCodec;
+    this.audioCodec=audioCodec;
+  }
+
+  public int getQuality() {
+    return(quality);
+  }
+
+  public int getWidth() {
+    return(width);
+  }
+
+  public int getHeight() {
+    return(height);
+  }
+
+  public int getVideoBitRate() {
+    return(videoBitRate);
+  }
+
+  public int getVideoCodec() {
+    return(videoCodec);
+  }
+
+  public int getAudioCodec() {
+    return(audioCodec);
+  }
+
+  public long getPixels() {
+    return((long)width*height);
+  }
+
+  /**
+   * @return true if we can record with this profile: H.263 or
+   * H.264 video, with AAC audio
+   */
+  public boolean isRecordable() {
+    return((videoCodec==VIDEO_H263 || videoCodec==VIDEO_H264) &&
+      (audioCodec==AUDIO_AAC || audioCodec==AUDIO_HE_AAC ||
+        audioCodec==AUDIO_AAC_ELD));
+  }
+
+  /**
+   * @return how much we like the video codec, higher is better
+   */
+  int getCodecRank() {
+    return(videoCodec==VIDEO_H264 ? 2 : (videoCodec==VIDEO_H263 ? 1 : 0));
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Picks the CamcorderProfile quality to record with, per
+ * camera. The first time a camera is asked about, every
+ * candidate quality is looked up once and scored by codec,
+ * resolution, and bitrate; the answers for both high and low
+ * quality are kept in memory and in the Store, tied to the
+ * build fingerprint, so later launches skip the probing
+ * entirely.
+ * <p/>
+ * Has no Android dependencies; CamcorderProfileProvider
+ * supplies the real profiles.
+ */
+public class VideoProfileResolver {
+  /**
+   * Where the profiles come from.
+   */
+  public interface ProfileProvider {
+    /**
+     * @param cameraId the classic API camera ID
+     * @param quality a CamcorderProfile quality
+     * @return the profile, or null if the camera does not have
+     * one for that quality
+     */
+    VideoProfile get(int cameraId, int quality);
+  }
+
+  /**
+   * Where answers are saved between launches.
+   */
+  public interface Store {
+    String get(String key);
+    void put(String key, String value);
+  }
+
+  // same values as CamcorderProfile
+  public static final int QUALITY_LOW=0;
+  public static final int QUALITY_HIGH=1;
+  private static final int[] CANDIDATES={
+    2, // QUALITY_QCIF
+    3, // QUALITY_CIF
+    4, // QUALITY_480P
+    5, // QUALITY_720P
+    6, // QUALITY_1080P
+    7  // QUALITY_QVGA
+  };
+  private static final long LOW_MIN_PIXELS=320*240;
+  private final ProfileProvider provider;
+  private final Store store;
+  private final String fingerprint;
+  private final HashMap<Integer, int[]> answers=
+    new HashMap<Integer, int[]>();
+
+  /**
+   * Constructor.
+   *
+   * @param provider where the profiles come from
+   * @param store where to save answers, or null to only keep
+   *              them in memory
+   * @param fingerprint identifies the OS build, so saved
+   *                    answers from another build are ignored
+   */
+  public VideoProfileResolver(ProfileProvider provider, Store store,
+                              String fingerprint) {
+    this.provider=provider;
+    this.store=store;
+    this.fingerprint=(fingerprint==null ? "" : fingerprint);
+  }
+
+  /**
+   * @param cameraId the classic API camera ID
+   * @param hiRes true for the best quality, false for a small
+   *              one (QVGA or the nearest thing)
+   * @return the CamcorderProfile quality to use
+   */
+  public synchronized int resolve(int cameraId, boolean hiRes) {
+    int[] answer=answers.get(cameraId);
+
+    if (answer==null) {
+      answer=load(cameraId);
+
+      if (answer==null) {
+        answer=evaluate(cameraId);
+        save(cameraId, answer);
+      }
+
+      answers.put(cameraId, answer);
+    }
+
+    return(hiRes ? answer[0] : answer[1]);
+  }
+
+  /**
+   * @return {high quality, low quality} for the camera
+   */
+  private int[] evaluate(int cameraId) {
+    ArrayList<VideoProfile> profiles=new ArrayList<VideoProfile>();
+
+    for (int quality : CANDIDATES) {
+      VideoProfile profile;
+
+      try {
+        profile=provider.get(cameraId, quality);
+      }
+      catch (RuntimeException e) {
+        profile=null; // some devices throw for missing qualities
+      }
+
+      if (profile!=null && profile.isRecordable()) {
+        profiles.add(profile);
+      }
+    }
+
+    return(new int[] {choose(profiles, true), choose(profiles, false)});
+  }
+
+  /**
+   * Scores the candidates. For high quality, the best codec
+   * wins, then the most pixels, then the highest bitrate. For
+   * low quality, the fewest pixels that are still at least
+   * QVGA win, then the best codec, then the lowest bitrate.
+   *
+   * @param profiles recordable profiles
+   * @param hiRes true for high quality, false for low
+   * @return the winning quality, or QUALITY_HIGH/QUALITY_LOW if
+   * there are no candidates
+   */
+  static int choose(List<VideoProfile> profiles, boolean hiRes) {
+    VideoProfile best=null;
+
+    for (VideoProfile profile : profiles) {
+      if (best==null || compare(profile, best, hiRes)>0) {
+        best=profile;
+      }
+    }
+
+    if (best==null) {
+      return(hiRes ? QUALITY_HIGH : QUALITY_LOW);
+    }
+
+    return(best.getQuality());
+  }
+
+  /**
+   * @return positive if lhs is the better choice, negative if
+   * rhs is, 0 if it is a toss-up
+   */
+  private static int compare(VideoProfile lhs, VideoProfile rhs,
+                             boolean hiRes) {
+    int result;
+
+    if (hiRes) {
+      result=Integer.compare(lhs.getCodecRank(), rhs.getCodecRank());
+
+      if (result==0) {
+        result=Long.compare(lhs.getPixels(), rhs.getPixels());
+      }
+
+      if (result==0) {
+        result=Integer.compare(lhs.getVideoBitRate(), rhs.getVideoBitRate());
+      }
+    }
+    else {
+      boolean lhsBigEnough=lhs.getPixels()>=LOW_MIN_PIXELS;
+      boolean rhsBigEnough=rhs.getPixels()>=LOW_MIN_PIXELS;
+
+      result=Boolean.compare(lhsBigEnough, rhsBigEnough);
+
+      if (result==0) {
+        result=Long.compare(rhs.getPixels(), lhs.getPixels());
+      }
+
+      if (result==0) {
+        result=Integer.compare(lhs.getCodecRank(), rhs.getCodecRank());
+      }
+
+      if (result==0) {
+        result=Integer.compare(rhs.getVideoBitRate(), lhs.getVideoBitRate());
+      }
+    }
+
+    return(result);
+  }
+
+  private int[] load(int cameraId) {
+    if (store==null) {
+      return(null);
+    }
+
+    String value=store.get(getKey(cameraId));
+    String prefix=fingerprint+"|";
+
+    if (value==null || !value.startsWith(prefix)) {
+      return(null);
+    }
+
+    String[] parts=value.substring(prefix.length()).split(",");
+
+    try {
+      return(new int[] {Integer.parseInt(parts[0]),
+        Integer.parseInt(parts[1])});
+    }
+    catch (RuntimeException e) {
+      return(null); // mangled, so evaluate again
+    }
+  }
+
+  private void save(int cameraId, int[] answer) {
+    if (store!=null) {
+      store.put(getKey(cameraId),
+        fingerprint+"|"+answer[0]+","+answer[1]);
+    }
+  }
+
+  private static String getKey(int cameraId) {
+    return("camera"+cameraId);
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import static org.junit.Assert.assertEquals;
+
+public class CaptureSchedulerTest {
+  private FakeHost host;
+  private List<String> shots;
+
+  static class FakeHost implements CaptureScheduler.Host {
+    final LinkedList<Runnable> tasks=new LinkedList<Runnable>();
+    final List<PictureTransaction> dropped=
+      new ArrayList<PictureTransaction>();
+
+    private final Executor executor=new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        tasks.add(task);
+      }
+    };
+
+    private final ImagePipeline.Listener listener=
+      new ImagePipeline.Listener() {
+        @Override
+        public void onImageReady(ImagePipeline pipeline) {
+          // nothing to do
+        }
+
+        @Override
+        public void onFailed(ImagePipeline pipeline, Throwable t) {
+          // nothing to do
+        }
+      };
+
+    @Override
+    public Executor getExecutor() {
+      return(executor);
+    }
+
+    @Override
+    public ImagePipeline.Listener getPictureListener() {
+      return(listener);
+    }
+
+    @Override
+    public void onDropped(PictureTransaction xact) {
+      dropped.add(xact);
+    }
+
+    /**
+     * Runs the "thread pool" until it has nothing left to do,
+     * i.e., every dispatched picture finishes processing.
+     */
+    void drain() {
+      while (!tasks.isEmpty()) {
+        tasks.removeFirst().run();
+      }
+    }
+  }
+
+  @Before
+  public void setUp() {
+    host=new FakeHost();
+    shots=new ArrayList<String>();
+  }
+
+  @Test
+  public void blockHoldsShotsWhosePicturesWouldNotFit() {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(2, 1, CaptureScheduler.OverflowPolicy.BLOCK);
+
+    shoot(scheduler, "a");
+    shoot(scheduler, "b");
+    shoot(scheduler, "c");
+
+    // no pictures have arrived yet, but a and b will fill the queue
+    assertEquals(2, shots.size());
+  }
+
+  @Test
+  public void blockReleasesOnlyAsManyAsThereIsRoomFor() {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(2, 1, CaptureScheduler.OverflowPolicy.BLOCK);
+
+    shoot(scheduler, "a");
+    shoot(scheduler, "b");
+    shoot(scheduler, "c");
+    shoot(scheduler, "d");
+    shoot(scheduler, "e");
+    assertEquals(2, shots.size());
+
+    // a goes straight to processing, leaving room for one more
+    // besides b, which is still on its way
+    submit(scheduler);
+    assertEquals(3, shots.size());
+
+    submit(scheduler);
+    submit(scheduler);
+    assertEquals(3, shots.size());
+    assertEquals(2, scheduler.getStats().queueDepth);
+
+    host.drain();
+    assertEquals(5, shots.size());
+    assertEquals("e", shots.get(4));
+    assertEquals(3, scheduler.getStats().completed);
+  }
+
+  @Test
+  public void blockReleasesInOrder() {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(1, 1, CaptureScheduler.OverflowPolicy.BLOCK);
+
+    shoot(scheduler, "a");
+    shoot(scheduler, "b");
+    shoot(scheduler, "c");
+
+    submit(scheduler);
+    submit(scheduler);
+    host.drain();
+
+    assertEquals(3, shots.size());
+    assertEquals("a", shots.get(0));
+    assertEquals("b", shots.get(1));
+    assertEquals("c", shots.get(2));
+  }
+
+  @Test
+  public void reservationsForLostPicturesExpire()
+    throws InterruptedException {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(1, 1, CaptureScheduler.OverflowPolicy.BLOCK,
+        50);
+
+    shoot(scheduler, "a");
+    shoot(scheduler, "b");
+    assertEquals(1, shots.size());
+
+    // a's picture never arrives
+    Thread.sleep(100);
+    shoot(scheduler, "c");
+
+    assertEquals(2, shots.size());
+    assertEquals("b", shots.get(1));
+  }
+
+  @Test
+  public void burstPicturesDoNotFreeRoom() {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(1, 1, CaptureScheduler.OverflowPolicy.BLOCK);
+
+    shoot(scheduler, "burst");
+
+    // one shot, three pictures: the extras overfill the queue
+    // rather than being lost
+    submit(scheduler);
+    submit(scheduler);
+    submit(scheduler);
+    assertEquals(2, scheduler.getStats().queueDepth);
+
+    shoot(scheduler, "next");
+    assertEquals(1, shots.size());
+
+    host.drain();
+    assertEquals(2, shots.size());
+    assertEquals(3, scheduler.getStats().completed);
+  }
+
+  @Test
+  public void dropOldestNeverHoldsShots() {
+    CaptureScheduler scheduler=
+      new CaptureScheduler(1, 1,
+        CaptureScheduler.OverflowPolicy.DROP_OLDEST);
+
+    shoot(scheduler, "a");
+    shoot(scheduler, "b");
+    shoot(scheduler, "c");
+    assertEquals(3, shots.size());
+
+    submit(scheduler);
+    PictureTransaction second=submit(scheduler);
+    submit(scheduler);
+
+    assertEquals(1, host.dropped.size());
+    assertEquals(second, host.dropped.get(0));
+    assertEquals(1, scheduler.getStats().dropped);
+
+    host.drain();
+    assertEquals(2, scheduler.getStats().completed);
+    assertEquals(0, scheduler.getStats().queueDepth);
+  }
+
+  private void shoot(CaptureScheduler scheduler, final String name) {
+    scheduler.whenCapacity(new Runnable() {
+      @Override
+      public void run() {
+        shots.add(name);
+      }
+    });
+  }
+
+  private PictureTransaction submit(CaptureScheduler scheduler) {
+    PictureTransaction xact=new PictureTransaction.Builder().build();
+
+    scheduler.submit(xact, null, host);
+
+    return(xact);
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CharacteristicsSnapshotTest {
+  static class FakeSource implements CharacteristicsSnapshot.Source {
+    Float maxDigitalZoom=4.0f;
+    int[] activeArray={0, 0, 4000, 3000};
+    int[] aeModes={0, 1, 2};
+    int[] afModes={0, 4};
+    Integer lensFacing=1;
+    Integer sensorOrientation=90;
+    int calls=0;
+
+    @Override
+    public Float getMaxDigitalZoom() {
+      calls++;
+
+      return(maxDigitalZoom);
+    }
+
+    @Override
+    public int[] getActiveArray() {
+      calls++;
+
+      return(activeArray);
+    }
+
+    @Override
+    public int[] getAvailableAeModes() {
+      calls++;
+
+      return(aeModes);
+    }
+
+    @Override
+    public int[] getAvailableAfModes() {
+      calls++;
+
+      return(afModes);
+    }
+
+    @Override
+    public Integer getLensFacing() {
+      calls++;
+
+      return(lensFacing);
+    }
+
+    @Override
+    public Integer getSensorOrientation() {
+      calls++;
+
+      return(sensorOrientation);
+    }
+  }
+
+  @Test
+  public void copiesEverythingOnce() {
+    FakeSource source=new FakeSource();
+    CharacteristicsSnapshot snapshot=CharacteristicsSnapshot.from(source);
+    int calls=source.calls;
+
+    assertEquals(4.0f, snapshot.getMaxDigitalZoom(), 0.0f);
+    assertTrue(snapshot.supportsZoom());
+    assertArrayEquals(new int[] {0, 1, 2}, snapshot.getAvailableAeModes());
+    assertArrayEquals(new int[] {0, 4}, snapshot.getAvailableAfModes());
+    assertTrue(snapshot.isAeModeAvailable(2));
+    assertFalse(snapshot.isAeModeAvailable(3));
+    assertTrue(snapshot.isAfModeAvailable(4));
+    assertFalse(snapshot.isAfModeAvailable(1));
+    assertEquals(Integer.valueOf(1), snapshot.getLensFacing());
+    assertEquals(90, snapshot.getSensorOrientation());
+
+    // reading the snapshot never goes back to the source
+    assertEquals(calls, source.calls);
+  }
+
+  @Test
+  public void isNotAffectedByLaterChangesToTheSource() {
+    FakeSource source=new FakeSource();
+    CharacteristicsSnapshot snapshot=CharacteristicsSnapshot.from(source);
+
+    source.aeModes[0]=99;
+    source.activeArray[2]=100;
+
+    assertFalse(snapshot.isAeModeAvailable(99));
+    assertArrayEquals(new int[] {1000, 750, 3000, 2250},
+      snapshot.cropRegionForZoom(2.0f));
+  }
+
+  @Test
+  public void fillsInMissingValues() {
+    FakeSource source=new FakeSource();
+
+    source.maxDigitalZoom=null;
+    source.activeArray=null;
+    source.aeModes=null;
+    source.afModes=null;
+    source.lensFacing=null;
+    source.sensorOrientation=null;
+
+    CharacteristicsSnapshot snapshot=CharacteristicsSnapshot.from(source);
+
+    assertEquals(1.0f, snapshot.getMaxDigitalZoom(), 0.0f);
+    assertFalse(snapshot.supportsZoom());
+    assertEquals(0, snapshot.getAvailableAeModes().length);
+    assertEquals(0, snapshot.getAvailableAfModes().length);
+    assertNull(snapshot.getLensFacing());
+    assertEquals(0, snapshot.getSensorOrientation());
+    assertNull(snapshot.cropRegionForZoom(2.0f));
+  }
+
+  @Test
+  public void noZoomWithoutHeadroom() {
+    FakeSource source=new FakeSource();
+
+    source.maxDigitalZoom=1.0f;
+
+    assertFalse(CharacteristicsSnapshot.from(source).supportsZoom());
+  }
+
+  @Test
+  public void cropsAroundTheCenter() {
+    CharacteristicsSnapshot snapshot=
+      CharacteristicsSnapshot.from(new FakeSource());
+
+    assertArrayEquals(new int[] {0, 0, 4000, 3000},
+      snapshot.cropRegionForZoom(1.0f));
+    assertArrayEquals(new int[] {1000, 750, 3000, 2250},
+      snapshot.cropRegionForZoom(2.0f));
+  }
+
+  @Test
+  public void survivesARoundTrip() throws Exception {
+    CharacteristicsSnapshot original=
+      CharacteristicsSnapshot.from(new FakeSource());
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+
+    original.writeTo(new DataOutputStream(baos));
+
+    CharacteristicsSnapshot copy=CharacteristicsSnapshot.readFrom(
+      new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+    assertEquals(original.getMaxDigitalZoom(), copy.getMaxDigitalZoom(),
+      0.0f);
+    assertArrayEquals(original.getAvailableAeModes(),
+      copy.getAvailableAeModes());
+    assertArrayEquals(original.getAvailableAfModes(),
+      copy.getAvailableAfModes());
+    assertEquals(original.getLensFacing(), copy.getLensFacing());
+    assertEquals(original.getSensorOrientation(),
+      copy.getSensorOrientation());
+    assertArrayEquals(original.cropRegionForZoom(2.5f),
+      copy.cropRegionForZoom(2.5f));
+  }
+}
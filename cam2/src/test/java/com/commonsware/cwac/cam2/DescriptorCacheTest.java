@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import com.commonsware.cwac.cam2.util.Size;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DescriptorCacheTest {
+  private static final List<Size> PREVIEW=
+    Arrays.asList(new Size(1280, 720), new Size(640, 480));
+  private static final List<Size> PICTURE=
+    Arrays.asList(new Size(4000, 3000));
+  private File file;
+
+  /**
+   * Stands in for an engine's descriptor in revalidate().
+   */
+  static class FakeCamera {
+    final String id;
+    final int facing;
+    List<Size> previewSizes;
+
+    FakeCamera(String id, int facing, List<Size> previewSizes) {
+      this.id=id;
+      this.facing=facing;
+      this.previewSizes=previewSizes;
+    }
+  }
+
+  private static final DescriptorCache.Merger<FakeCamera> MERGER=
+    new DescriptorCache.Merger<FakeCamera>() {
+      @Override
+      public boolean isSameCamera(FakeCamera current, FakeCamera fresh) {
+        return(current.id.equals(fresh.id) &&
+          current.facing==fresh.facing);
+      }
+
+      @Override
+      public void update(FakeCamera current, FakeCamera fresh) {
+        current.previewSizes=fresh.previewSizes;
+      }
+    };
+
+  @Before
+  public void setUp() throws IOException {
+    file=File.createTempFile("descriptors", ".bin");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void missesWithNoFile() {
+    assertNull(new DescriptorCache(file, "build-1").read());
+  }
+
+  @Test
+  public void hitsWhatWasWritten() {
+    DescriptorCache cache=new DescriptorCache(file, "build-1");
+    CharacteristicsSnapshot snapshot=CharacteristicsSnapshot.from(
+      new CharacteristicsSnapshotTest.FakeSource());
+
+    assertTrue(cache.write(Arrays.asList(
+      new DescriptorCache.Entry("0", 1, PREVIEW, PICTURE, snapshot),
+      new DescriptorCache.Entry("1", 0, PREVIEW, PICTURE, null))));
+
+    List<DescriptorCache.Entry> roster=
+      new DescriptorCache(file, "build-1").read();
+
+    assertNotNull(roster);
+    assertEquals(2, roster.size());
+    assertEquals("0", roster.get(0).id);
+    assertEquals(1, roster.get(0).facing);
+    assertEquals(PREVIEW, roster.get(0).previewSizes);
+    assertEquals(PICTURE, roster.get(0).pictureSizes);
+    assertArrayEquals(snapshot.getAvailableAfModes(),
+      roster.get(0).snapshot.getAvailableAfModes());
+    assertEquals("1", roster.get(1).id);
+    assertNull(roster.get(1).snapshot);
+  }
+
+  @Test
+  public void skipsRewritingAnUnchangedRoster() {
+    DescriptorCache cache=new DescriptorCache(file, "build-1");
+    List<DescriptorCache.Entry> roster=Arrays.asList(
+      new DescriptorCache.Entry("0", 1, PREVIEW, PICTURE, null));
+
+    assertTrue(cache.write(roster));
+    assertFalse(cache.write(roster));
+  }
+
+  @Test
+  public void missesAfterAnOsUpdate() {
+    new DescriptorCache(file, "build-1").write(Arrays.asList(
+      new DescriptorCache.Entry("0", 1, PREVIEW, PICTURE, null)));
+
+    assertNull(new DescriptorCache(file, "build-2").read());
+  }
+
+  @Test
+  public void missesOnAMangledFile() throws IOException {
+    DescriptorCache cache=new DescriptorCache(file, "build-1");
+
+    cache.write(Arrays.asList(
+      new DescriptorCache.Entry("0", 1, PREVIEW, PICTURE, null)));
+
+    long length=file.length();
+    FileOutputStream fos=new FileOutputStream(file, true);
+
+    fos.write(42); // trailing junk
+    fos.close();
+    assertNull(cache.read());
+
+    fos=new FileOutputStream(file);
+    fos.write(new byte[(int)length/2]); // truncated
+    fos.close();
+    assertNull(cache.read());
+  }
+
+  @Test
+  public void revalidateDropsStaleCameras() {
+    FakeCamera back=new FakeCamera("0", 0, PREVIEW);
+    FakeCamera front=new FakeCamera("1", 1, PREVIEW);
+    List<Size> newSizes=Arrays.asList(new Size(1920, 1080));
+    List<FakeCamera> merged=DescriptorCache.revalidate(
+      Arrays.asList(back, front),
+      Arrays.asList(new FakeCamera("0", 0, newSizes),
+        new FakeCamera("2", 1, PREVIEW)),
+      MERGER);
+
+    assertEquals(2, merged.size());
+
+    // still-present cameras keep their descriptor, updated in
+    // place, as the current session may be holding it
+    assertSame(back, merged.get(0));
+    assertEquals(newSizes, back.previewSizes);
+
+    // camera 1 is gone; camera 2 is new
+    assertEquals("2", merged.get(1).id);
+  }
+
+  @Test
+  public void revalidateMatchesOnFacingToo() {
+    FakeCamera back=new FakeCamera("0", 0, PREVIEW);
+    List<FakeCamera> merged=DescriptorCache.revalidate(
+      Arrays.asList(back),
+      Arrays.asList(new FakeCamera("0", 1, PREVIEW)), MERGER);
+
+    assertEquals(1, merged.size());
+    assertTrue(merged.get(0)!=back);
+  }
+
+  @Test
+  public void revalidatedRosterReplacesTheStaleOne() {
+    DescriptorCache cache=new DescriptorCache(file, "build-1");
+    List<FakeCamera> current=Arrays.asList(
+      new FakeCamera("0", 0, PREVIEW), new FakeCamera("1", 1, PREVIEW));
+
+    cache.write(toEntries(current));
+
+    List<FakeCamera> merged=DescriptorCache.revalidate(current,
+      Arrays.asList(new FakeCamera("0", 0, PREVIEW)), MERGER);
+
+    assertTrue(cache.write(toEntries(merged)));
+
+    List<DescriptorCache.Entry> roster=cache.read();
+
+    assertEquals(1, roster.size());
+    assertEquals("0", roster.get(0).id);
+  }
+
+  private static List<DescriptorCache.Entry> toEntries(List<FakeCamera> cameras) {
+    ArrayList<DescriptorCache.Entry> result=
+      new ArrayList<DescriptorCache.Entry>();
+
+    for (FakeCamera camera : cameras) {
+      result.add(new DescriptorCache.Entry(camera.id, camera.facing,
+        camera.previewSizes, PICTURE, null));
+    }
+
+    return(result);
+  }
+}
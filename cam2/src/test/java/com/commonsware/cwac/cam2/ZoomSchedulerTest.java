@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoomSchedulerTest {
+  private FakeTarget target;
+  private ZoomScheduler scheduler;
+
+  static class FakeTarget implements ZoomScheduler.Target {
+    final List<Integer> levels=new ArrayList<Integer>();
+    int completions=0;
+
+    @Override
+    public void applyZoom(int zoomLevel) {
+      levels.add(zoomLevel);
+    }
+
+    @Override
+    public void onZoomCompleted() {
+      completions++;
+    }
+
+    int last() {
+      return(levels.get(levels.size()-1));
+    }
+  }
+
+  @Before
+  public void setUp() {
+    target=new FakeTarget();
+    scheduler=new ZoomScheduler(target);
+  }
+
+  @Test
+  public void idleFramesDoNothing() {
+    scheduler.onFrame();
+    scheduler.onFrame();
+
+    assertFalse(scheduler.isMoving());
+    assertEquals(0, target.levels.size());
+    assertEquals(0, target.completions);
+    assertEquals(0, scheduler.getApplyCount());
+  }
+
+  @Test
+  public void fullRangeTakesFifteenFrames() {
+    scheduler.request(100);
+
+    assertEquals(15, framesToArrive());
+    assertEquals(100, target.last());
+    assertEquals(1, target.completions);
+  }
+
+  @Test
+  public void shortMovesTakeAtLeastThreeFrames() {
+    scheduler.request(2);
+
+    assertEquals(3, framesToArrive());
+    assertEquals(2, target.last());
+  }
+
+  @Test
+  public void easesOutWithoutOvershooting() {
+    scheduler.request(100);
+    framesToArrive();
+
+    int previous=0;
+
+    for (int level : target.levels) {
+      assertTrue(level>previous);
+      assertTrue(level<=100);
+      previous=level;
+    }
+
+    // ease-out: the first step covers more ground than the last
+    assertTrue(target.levels.get(0)>100-target.levels.get(
+      target.levels.size()-2));
+  }
+
+  @Test
+  public void easeIsBounded() {
+    assertEquals(0.0f, ZoomScheduler.ease(0.0f), 0.0001f);
+    assertEquals(1.0f, ZoomScheduler.ease(1.0f), 0.0001f);
+    assertTrue(ZoomScheduler.ease(0.5f)>0.5f);
+  }
+
+  @Test
+  public void coalescesRequestsBetweenFrames() {
+    for (int i=1; i<=50; i++) {
+      scheduler.request(i*2);
+    }
+
+    assertEquals(0, target.levels.size());
+
+    int frames=framesToArrive();
+
+    assertEquals(100, target.last());
+    assertEquals(1, target.completions);
+    assertEquals(50, scheduler.getRequestCount());
+    assertEquals(target.levels.size(), scheduler.getApplyCount());
+    assertTrue(scheduler.getApplyCount()<=frames);
+  }
+
+  @Test
+  public void restartsFromWhereverTheZoomIs() {
+    scheduler.request(100);
+
+    for (int i=0; i<5; i++) {
+      scheduler.onFrame();
+    }
+
+    int midway=target.last();
+
+    assertTrue(midway>0 && midway<100);
+    scheduler.request(0);
+    scheduler.onFrame();
+    assertTrue(target.last()<midway);
+    framesToArrive();
+    assertEquals(0, target.last());
+    assertEquals(1, target.completions);
+    assertEquals(2, scheduler.getRequestCount());
+  }
+
+  @Test
+  public void repeatingTheCurrentLevelAppliesNothing() {
+    scheduler.request(40);
+    framesToArrive();
+
+    long applies=scheduler.getApplyCount();
+
+    scheduler.request(40);
+
+    assertEquals(3, framesToArrive());
+    assertEquals(applies, scheduler.getApplyCount());
+    assertEquals(2, target.completions);
+  }
+
+  private int framesToArrive() {
+    int frames=0;
+
+    while (scheduler.isMoving()) {
+      scheduler.onFrame();
+      frames++;
+      assertTrue("zoom never arrived", frames<100);
+    }
+
+    return(frames);
+  }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+  private static final int[] ROTATIONS={0, 90, 180, 270};
+  private Random random;
+  private ExecutorService pool;
+
+  @Before
+  public void setUp() {
+    random=new Random(1337);
+    pool=Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void nv21MatchesReferenceAtEveryRotation() {
+    checkNv21(8, 6, 1);
+  }
+
+  @Test
+  public void nv21MatchesReferenceWhenScaled() {
+    checkNv21(8, 6, 2);
+    checkNv21(10, 7, 3); // leftover rows and columns are dropped
+  }
+
+  @Test
+  public void planesMatchReferenceAtEveryRotation() {
+    checkPlanes(8, 6, 8, 4, 1, 1);
+  }
+
+  @Test
+  public void planesMatchReferenceWhenScaled() {
+    checkPlanes(8, 6, 8, 4, 1, 2);
+    checkPlanes(10, 7, 10, 5, 1, 3);
+  }
+
+  @Test
+  public void paddedPlanesWithInterleavedChromaMatchReference() {
+    // row padding everywhere, U and V sharing one buffer, one
+    // byte apart, as most devices deliver YUV_420_888
+    checkPlanes(6, 4, 8, 8, 2, 1);
+    checkPlanes(6, 4, 8, 8, 2, 2);
+    checkPlanes(9, 5, 12, 12, 2, 1);
+  }
+
+  @Test
+  public void outputSizeFollowsRotation() {
+    assertEquals(320, YuvConverter.getOutputWidth(640, 480, 2, 0));
+    assertEquals(240, YuvConverter.getOutputHeight(640, 480, 2, 0));
+    assertEquals(240, YuvConverter.getOutputWidth(640, 480, 2, 90));
+    assertEquals(320, YuvConverter.getOutputHeight(640, 480, 2, 270));
+  }
+
+  @Test
+  public void bandsMatchSerialConversion() {
+    int width=640;
+    int height=480;
+    byte[] nv21=randomBytes(width*height*3/2);
+    YuvConverter serial=new YuvConverter();
+    YuvConverter parallel=new YuvConverter(pool, 4);
+
+    for (int rotation : ROTATIONS) {
+      int[] expected=new int[width*height];
+      int[] actual=new int[width*height];
+      byte[] expectedGray=new byte[width*height];
+      byte[] actualGray=new byte[width*height];
+
+      serial.nv21ToArgb(nv21, width, height, expected, 1, rotation);
+      parallel.nv21ToArgb(nv21, width, height, actual, 1, rotation);
+      assertArrayEquals("rotation "+rotation, expected, actual);
+
+      serial.nv21ToGray(nv21, width, height, expectedGray, 1, rotation);
+      parallel.nv21ToGray(nv21, width, height, actualGray, 1, rotation);
+      assertArrayEquals("rotation "+rotation, expectedGray, actualGray);
+    }
+  }
+
+  @Test
+  public void bandsMatchSerialConversionOfPlanes() {
+    int width=642; // uneven split across the bands
+    int height=482;
+    int yRowStride=648;
+    int uvRowStride=648;
+    byte[] y=randomBytes(yRowStride*height);
+    byte[] uv=randomBytes(uvRowStride*(height/2));
+    YuvConverter serial=new YuvConverter();
+    YuvConverter parallel=new YuvConverter(pool, 3);
+
+    for (int rotation : ROTATIONS) {
+      int[] expected=new int[width*height];
+      int[] actual=new int[width*height];
+
+      serial.yuv420ToArgb(ByteBuffer.wrap(y), uPlane(uv), vPlane(uv),
+        yRowStride, uvRowStride, 2, width, height, expected, 1, rotation);
+      parallel.yuv420ToArgb(ByteBuffer.wrap(y), uPlane(uv), vPlane(uv),
+        yRowStride, uvRowStride, 2, width, height, actual, 1, rotation);
+      assertArrayEquals("rotation "+rotation, expected, actual);
+    }
+  }
+
+  @Test
+  public void rejectedBandsRunOnTheCallingThread() {
+    int width=640;
+    int height=480;
+    byte[] nv21=randomBytes(width*height*3/2);
+    int[] expected=new int[width*height];
+    int[] actual=new int[width*height];
+    Executor rejecting=new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+
+    new YuvConverter().nv21ToArgb(nv21, width, height, expected, 1, 90);
+    new YuvConverter(rejecting, 4).nv21ToArgb(nv21, width, height,
+      actual, 1, 90);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void oddRotationIsRejected() {
+    new YuvConverter().nv21ToGray(new byte[24], 4, 4, new byte[16], 1, 45);
+  }
+
+  private void checkNv21(int width, int height, int scale) {
+    byte[] nv21=randomBytes(width*height+width*((height+1)/2));
+    int sw=width/scale;
+    int sh=height/scale;
+    int[][] argb=new int[sh][sw];
+    byte[][] gray=new byte[sh][sw];
+
+    for (int row=0;row<sh;row++) {
+      for (int col=0;col<sw;col++) {
+        int x=col*scale;
+        int y=row*scale;
+        int uv=width*height+(y/2)*width+(x/2)*2;
+
+        argb[row][col]=YuvConverter.toArgb(nv21[y*width+x]&0xff,
+          nv21[uv+1]&0xff, nv21[uv]&0xff);
+        gray[row][col]=nv21[y*width+x];
+      }
+    }
+
+    YuvConverter converter=new YuvConverter();
+
+    for (int rotation : ROTATIONS) {
+      int[] out=new int[sw*sh];
+      byte[] grayOut=new byte[sw*sh];
+
+      converter.nv21ToArgb(nv21, width, height, out, scale, rotation);
+      assertArrayEquals("rotation "+rotation,
+        rotate(argb, rotation), out);
+
+      converter.nv21ToGray(nv21, width, height, grayOut, scale, rotation);
+      assertArrayEquals("rotation "+rotation,
+        rotate(gray, rotation), grayOut);
+    }
+  }
+
+  private void checkPlanes(int width, int height, int yRowStride,
+                           int uvRowStride, int uvPixelStride,
+                           int scale) {
+    int chromaRows=(height+1)/2;
+    byte[] y=randomBytes(yRowStride*height);
+    byte[] u;
+    byte[] v;
+    ByteBuffer uBuffer;
+    ByteBuffer vBuffer;
+
+    if (uvPixelStride==2) {
+      byte[] uv=randomBytes(uvRowStride*chromaRows);
+
+      u=uv;
+      v=uv;
+      uBuffer=uPlane(uv);
+      vBuffer=vPlane(uv);
+    }
+    else {
+      u=randomBytes(uvRowStride*chromaRows);
+      v=randomBytes(uvRowStride*chromaRows);
+      uBuffer=ByteBuffer.wrap(u);
+      vBuffer=ByteBuffer.wrap(v);
+    }
+
+    int vOffset=(uvPixelStride==2 ? 1 : 0);
+    int sw=width/scale;
+    int sh=height/scale;
+    int[][] argb=new int[sh][sw];
+    byte[][] gray=new byte[sh][sw];
+
+    for (int row=0;row<sh;row++) {
+      for (int col=0;col<sw;col++) {
+        int px=col*scale;
+        int py=row*scale;
+        int uv=(py/2)*uvRowStride+(px/2)*uvPixelStride;
+
+        argb[row][col]=YuvConverter.toArgb(y[py*yRowStride+px]&0xff,
+          u[uv]&0xff, v[uv+vOffset]&0xff);
+        gray[row][col]=y[py*yRowStride+px];
+      }
+    }
+
+    YuvConverter converter=new YuvConverter();
+
+    for (int rotation : ROTATIONS) {
+      int[] out=new int[sw*sh];
+      byte[] grayOut=new byte[sw*sh];
+
+      converter.yuv420ToArgb(ByteBuffer.wrap(y), uBuffer, vBuffer,
+        yRowStride, uvRowStride, uvPixelStride, width, height, out,
+        scale, rotation);
+      assertArrayEquals("rotation "+rotation,
+        rotate(argb, rotation), out);
+
+      converter.yuv420ToGray(ByteBuffer.wrap(y), yRowStride, width,
+        height, grayOut, scale, rotation);
+      assertArrayEquals("rotation "+rotation,
+        rotate(gray, rotation), grayOut);
+    }
+  }
+
+  /**
+   * The interleaved chroma buffer as the U plane sees it: U at
+   * even offsets
+   */
+  private static ByteBuffer uPlane(byte[] uv) {
+    return(ByteBuffer.wrap(uv, 0, uv.length-1).slice());
+  }
+
+  /**
+   * The same buffer as the V plane sees it: V at odd offsets
+   */
+  private static ByteBuffer vPlane(byte[] uv) {
+    return(ByteBuffer.wrap(uv, 1, uv.length-1).slice());
+  }
+
+  /**
+   * Rotates clockwise by moving one pixel at a time, the obvious
+   * way.
+   */
+  private static int[] rotate(int[][] in, int rotation) {
+    int h=in.length;
+    int w=in[0].length;
+    int[] out=new int[w*h];
+
+    for (int row=0;row<h;row++) {
+      for (int col=0;col<w;col++) {
+        out[rotatedIndex(row, col, w, h, rotation)]=in[row][col];
+      }
+    }
+
+    return(out);
+  }
+
+  private static byte[] rotate(byte[][] in, int rotation) {
+    int h=in.length;
+    int w=in[0].length;
+    byte[] out=new byte[w*h];
+
+    for (int row=0;row<h;row++) {
+      for (int col=0;col<w;col++) {
+        out[rotatedIndex(row, col, w, h, rotation)]=in[row][col];
+      }
+    }
+
+    return(out);
+  }
+
+  private static int rotatedIndex(int row, int col, int w, int h,
+                                  int rotation) {
+    switch (rotation) {
+      case 90:
+        return(col*h+(h-1-row)); // h wide, w high
+
+      case 180:
+        return((h-1-row)*w+(w-1-col));
+
+      case 270:
+        return((w-1-col)*h+row); // h wide, w high
+
+      default:
+        return(row*w+col);
+    }
+  }
+
+  private byte[] randomBytes(int count) {
+    byte[] result=new byte[count];
+
+    random.nextBytes(result);
+
+    return(result);
+  }
+}
@@ -0,0 +1,372 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FastStartTest {
+  private static final int MOOV=0x6d6f6f76;
+  private final byte[] payload=new byte[1000];
+  private File file;
+  private File tmp;
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i=0; i<payload.length; i++) {
+      payload[i]=(byte)(i*7);
+    }
+
+    file=File.createTempFile("faststart", ".mp4");
+    tmp=new File(file.getPath()+".faststart");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    tmp.delete();
+  }
+
+  @Test
+  public void movesMoovAheadOfMdat() throws IOException {
+    byte[] ftyp=ftyp();
+    byte[] free=box("free", new byte[3]);
+    long base=ftyp.length+free.length+8; // first byte of payload
+    long[] stco={base+10, base+500};
+    long[] co64={base, base+999};
+    byte[] moov=moov(stco(stco), co64(co64));
+    byte[] tail=box("free", new byte[4]);
+
+    write(ftyp, free, box("mdat", payload), moov, tail);
+
+    long length=file.length();
+
+    assertTrue(FastStart.process(file));
+    assertEquals(length, file.length());
+    assertFalse(tmp.exists());
+
+    byte[] result=read();
+    ByteBuffer buffer=ByteBuffer.wrap(result);
+    int moovAt=ftyp.length+free.length;
+
+    assertEquals("moov", type(buffer, moovAt));
+    assertEquals("mdat", type(buffer, moovAt+moov.length));
+    assertEquals("free", type(buffer, result.length-tail.length));
+
+    // every chunk offset still points at the same payload byte
+    int at=indexOf(result, "stco");
+
+    for (int i=0; i<stco.length; i++) {
+      long offset=buffer.getInt(at+12+i*4) & 0xFFFFFFFFL;
+
+      assertEquals(payload[(int)(stco[i]-base)], result[(int)offset]);
+    }
+
+    at=indexOf(result, "co64");
+
+    for (int i=0; i<co64.length; i++) {
+      long offset=buffer.getLong(at+12+i*8);
+
+      assertEquals(payload[(int)(co64[i]-base)], result[(int)offset]);
+    }
+  }
+
+  @Test
+  public void leavesFastStartFilesAlone() throws IOException {
+    long base=ftyp().length;
+
+    write(ftyp(), moov(stco(base+100), co64(base+200)),
+      box("mdat", payload));
+
+    byte[] original=read();
+    File out=new File(file.getPath()+".out");
+
+    assertFalse(FastStart.process(file, out));
+    assertFalse(out.exists());
+    assertFalse(FastStart.process(file));
+    assertArrayEquals(original, read());
+  }
+
+  @Test
+  public void leavesFilesWithoutMoovOrMdatAlone() throws IOException {
+    write(ftyp(), box("mdat", payload));
+    assertFalse(FastStart.process(file));
+
+    write(ftyp(), box("free", payload), moov(stco(10), co64(20)));
+    assertFalse(FastStart.process(file));
+  }
+
+  @Test
+  public void widensStcoWhenOffsetsOutgrowIt() throws IOException {
+    byte[] moov=moov(stco(100, 0xFFFFFFA0L), co64(200));
+    FastStart.Box box=new FastStart.Box(MOOV, 0x100000000L, moov.length);
+    ByteBuffer result=FastStart.relocate(ByteBuffer.wrap(moov), box, 50);
+    byte[] bytes=Arrays.copyOf(result.array(), result.limit());
+
+    // two stco entries, 4 bytes each, become 8 bytes each
+    assertEquals(moov.length+8, result.limit());
+    assertEquals(result.limit(), result.getInt(0));
+    assertEquals(-1, indexOf(bytes, "stco"));
+
+    int first=indexOf(bytes, "co64");
+    int second=indexOf(bytes, "co64", first+4);
+
+    assertEquals(100+result.limit(), result.getLong(first+12));
+    assertEquals(0xFFFFFFA0L+result.limit(), result.getLong(first+20));
+    assertEquals(200+result.limit(), result.getLong(second+12));
+  }
+
+  @Test
+  public void keepsOffsetsAheadOfTheInsertionPoint() throws IOException {
+    byte[] moov=moov(stco(10, 100), co64(60));
+    FastStart.Box box=new FastStart.Box(MOOV, 1000, moov.length);
+    ByteBuffer result=FastStart.relocate(ByteBuffer.wrap(moov), box, 50);
+    int at=indexOf(moov, "stco");
+
+    assertEquals(moov.length, result.limit());
+    assertEquals(10, result.getInt(at+12));
+    assertEquals(100+moov.length, result.getInt(at+16));
+  }
+
+  @Test
+  public void handlesAMoovThatRunsToTheEndOfTheFile() throws IOException {
+    long base=ftyp().length+8;
+    byte[] moov=moov(stco(base+10), co64(base+20));
+
+    moov[0]=moov[1]=moov[2]=moov[3]=0;
+    write(ftyp(), box("mdat", payload), moov);
+
+    assertTrue(FastStart.process(file));
+
+    ByteBuffer buffer=ByteBuffer.wrap(read());
+    int moovAt=ftyp().length;
+
+    // no longer at the end, so it needs its real size
+    assertEquals("moov", type(buffer, moovAt));
+    assertEquals(moov.length, buffer.getInt(moovAt));
+    assertEquals("mdat", type(buffer, moovAt+moov.length));
+  }
+
+  @Test
+  public void handlesABoxThatRunsToTheEndOfItsParent()
+    throws IOException {
+    long base=ftyp().length+8;
+    byte[] moov=moov(stco(base+10), co64(base+20));
+    int udta=indexOf(moov, "udta")-4;
+
+    moov[udta]=moov[udta+1]=moov[udta+2]=moov[udta+3]=0;
+    write(ftyp(), box("mdat", payload), moov);
+
+    assertTrue(FastStart.process(file));
+
+    byte[] result=read();
+    ByteBuffer buffer=ByteBuffer.wrap(result);
+    int at=indexOf(result, "stco");
+
+    assertEquals(payload[10],
+      result[(int)(buffer.getInt(at+12) & 0xFFFFFFFFL)]);
+  }
+
+  @Test
+  public void rejectsABoxPastTheEndOfTheFile() throws IOException {
+    write(ftyp(), new byte[] {0, 0, 0, (byte)200, 'm', 'd', 'a', 't'});
+    assertRejected();
+  }
+
+  @Test
+  public void rejectsTrailingJunk() throws IOException {
+    write(ftyp(), box("mdat", payload), moov(stco(10), co64(20)),
+      new byte[] {1, 2, 3});
+    assertRejected();
+  }
+
+  @Test
+  public void rejectsATruncatedFile() throws IOException {
+    byte[] moov=moov(stco(10), co64(20));
+
+    write(ftyp(), box("mdat", payload),
+      Arrays.copyOf(moov, moov.length-6));
+    assertRejected();
+  }
+
+  @Test
+  public void rejectsAMalformedMoov() throws IOException {
+    byte[] moov=moov(stco(10), co64(20));
+    int trak=indexOf(moov, "trak")-4;
+
+    moov[trak+3]=4; // smaller than a box header
+    write(ftyp(), box("mdat", payload), moov);
+    assertRejected();
+  }
+
+  @Test
+  public void rejectsAMalformedChunkOffsetAtom() throws IOException {
+    byte[] moov=moov(stco(10), co64(20));
+    int count=indexOf(moov, "stco")+8;
+
+    moov[count]=0x7F; // far more entries than the atom holds
+    write(ftyp(), box("mdat", payload), moov);
+    assertRejected();
+  }
+
+  private void assertRejected() throws IOException {
+    byte[] original=read();
+
+    try {
+      FastStart.process(file);
+      fail("expected an IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    assertFalse(tmp.exists());
+    assertArrayEquals(original, read());
+  }
+
+  private void write(byte[]... parts) throws IOException {
+    FileOutputStream fos=new FileOutputStream(file);
+
+    try {
+      for (byte[] part : parts) {
+        fos.write(part);
+      }
+    }
+    finally {
+      fos.close();
+    }
+  }
+
+  private byte[] read() throws IOException {
+    byte[] result=new byte[(int)file.length()];
+    FileInputStream fis=new FileInputStream(file);
+
+    try {
+      int offset=0;
+
+      while (offset<result.length) {
+        offset+=fis.read(result, offset, result.length-offset);
+      }
+    }
+    finally {
+      fis.close();
+    }
+
+    return(result);
+  }
+
+  private static byte[] ftyp() throws IOException {
+    return(box("ftyp", "isom0000".getBytes("US-ASCII")));
+  }
+
+  /**
+   * @return a moov atom with two tracks, one with each kind of
+   * chunk offset atom
+   */
+  private static byte[] moov(byte[] first, byte[] second)
+    throws IOException {
+    return(box("moov", box("mvhd", new byte[20]),
+      box("trak", box("mdia", box("minf", box("stbl",
+        box("stsz", new byte[12]), first)))),
+      box("trak", box("mdia", box("minf", box("stbl", second)))),
+      box("udta", new byte[5])));
+  }
+
+  private static byte[] box(String type, byte[]... children)
+    throws IOException {
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(baos);
+    int size=8;
+
+    for (byte[] child : children) {
+      size+=child.length;
+    }
+
+    out.writeInt(size);
+    out.writeBytes(type);
+
+    for (byte[] child : children) {
+      out.write(child);
+    }
+
+    return(baos.toByteArray());
+  }
+
+  private static byte[] stco(long... offsets) throws IOException {
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(baos);
+
+    out.writeInt(16+4*offsets.length);
+    out.writeBytes("stco");
+    out.writeInt(0);
+    out.writeInt(offsets.length);
+
+    for (long offset : offsets) {
+      out.writeInt((int)offset);
+    }
+
+    return(baos.toByteArray());
+  }
+
+  private static byte[] co64(long... offsets) throws IOException {
+    ByteArrayOutputStream baos=new ByteArrayOutputStream();
+    DataOutputStream out=new DataOutputStream(baos);
+
+    out.writeInt(16+8*offsets.length);
+    out.writeBytes("co64");
+    out.writeInt(0);
+    out.writeInt(offsets.length);
+
+    for (long offset : offsets) {
+      out.writeLong(offset);
+    }
+
+    return(baos.toByteArray());
+  }
+
+  private static String type(ByteBuffer buffer, int offset)
+    throws IOException {
+    return(new String(buffer.array(), offset+4, 4, "US-ASCII"));
+  }
+
+  private static int indexOf(byte[] bytes, String type) {
+    return(indexOf(bytes, type, 0));
+  }
+
+  private static int indexOf(byte[] bytes, String type, int from) {
+    for (int i=from; i<=bytes.length-4; i++) {
+      if (bytes[i]==type.charAt(0) && bytes[i+1]==type.charAt(1) &&
+        bytes[i+2]==type.charAt(2) && bytes[i+3]==type.charAt(3)) {
+        return(i);
+      }
+    }
+
+    return(-1);
+  }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MuxerPumpTest {
+  private static final int KEY=EncodedFrame.FLAG_KEY_FRAME;
+  private static final int CONFIG=EncodedFrame.FLAG_CODEC_CONFIG;
+  private static final int EOS=EncodedFrame.FLAG_END_OF_STREAM;
+  private FakeEncoder encoder;
+  private List<FakeMuxer> muxers;
+  private List<String> segments;
+  private MuxerPump<String> pump;
+
+  /**
+   * Replays scripted output: the format, then the queued frames,
+   * then INFO_TRY_AGAIN_LATER. A key frame request makes the next
+   * frame a key frame, as a real encoder would.
+   */
+  static class FakeEncoder implements VideoEncoder<String> {
+    final LinkedList<long[]> frames=new LinkedList<long[]>();
+    boolean isFormatReported=false;
+    boolean isKeyFrameDue=false;
+    int keyFrameRequests=0;
+    int released=0;
+
+    FakeEncoder frame(long ptsUs, int flags) {
+      return(frame(ptsUs, flags, 100));
+    }
+
+    FakeEncoder frame(long ptsUs, int flags, int size) {
+      frames.add(new long[] {ptsUs, flags, size});
+
+      return(this);
+    }
+
+    @Override
+    public int dequeueOutput(EncodedFrame frame, long timeoutUs) {
+      if (!isFormatReported) {
+        isFormatReported=true;
+
+        return(INFO_OUTPUT_FORMAT_CHANGED);
+      }
+
+      if (frames.isEmpty()) {
+        return(INFO_TRY_AGAIN_LATER);
+      }
+
+      long[] next=frames.removeFirst();
+      int flags=(int)next[1];
+
+      if (isKeyFrameDue && next[2]>0 && (flags & CONFIG)==0) {
+        isKeyFrameDue=false;
+        flags|=KEY;
+      }
+
+      frame.set(ByteBuffer.allocate((int)next[2]), 0, (int)next[2],
+        next[0], flags);
+
+      return(0);
+    }
+
+    @Override
+    public String getOutputFormat() {
+      return("video/avc");
+    }
+
+    @Override
+    public void releaseOutput(int index) {
+      released++;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+      // unused
+    }
+
+    @Override
+    public void setBitrate(int bitsPerSecond) {
+      // unused
+    }
+
+    @Override
+    public void requestKeyFrame() {
+      keyFrameRequests++;
+      isKeyFrameDue=true;
+    }
+  }
+
+  static class FakeMuxer implements VideoMuxer<String> {
+    final List<Long> samples=new ArrayList<Long>();
+    String format;
+    boolean isStarted=false;
+    boolean isStopped=false;
+    boolean isReleased=false;
+    boolean startsOnKeyFrame=false;
+
+    @Override
+    public int addTrack(String format) {
+      this.format=format;
+
+      return(0);
+    }
+
+    @Override
+    public void start() {
+      isStarted=true;
+    }
+
+    @Override
+    public void writeSample(int track, EncodedFrame frame) {
+      if (samples.isEmpty()) {
+        startsOnKeyFrame=frame.isKeyFrame();
+      }
+
+      samples.add(frame.getPresentationTimeUs());
+    }
+
+    @Override
+    public void stop() {
+      isStopped=true;
+    }
+
+    @Override
+    public void release() {
+      isReleased=true;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    encoder=new FakeEncoder();
+    muxers=new ArrayList<FakeMuxer>();
+    segments=new ArrayList<String>();
+    pump=new MuxerPump<String>(encoder,
+      new MuxerPump.MuxerFactory<String>() {
+        @Override
+        public VideoMuxer<String> create(int index) {
+          FakeMuxer muxer=new FakeMuxer();
+
+          assertEquals(muxers.size(), index);
+          muxers.add(muxer);
+
+          return(muxer);
+        }
+      });
+    pump.setSegmentListener(new MuxerPump.SegmentListener() {
+      @Override
+      public void onSegmentCompleted(int index, long durationUs,
+                                     long bytes, boolean isLast) {
+        segments.add(index+":"+durationUs+":"+bytes+":"+isLast);
+      }
+    });
+  }
+
+  @Test
+  public void startsOnAKeyFrame() throws Exception {
+    encoder
+      .frame(0, 0)
+      .frame(33, 0)
+      .frame(66, 0)
+      .frame(100, 0)
+      .frame(133, EOS);
+
+    assertTrue(pump.drain(0));
+    assertTrue(pump.finish());
+
+    FakeMuxer muxer=muxers.get(0);
+
+    assertEquals("video/avc", muxer.format);
+    assertTrue(muxer.startsOnKeyFrame);
+    assertEquals(1, encoder.keyFrameRequests);
+    assertEquals(1, pump.getFramesDropped());
+    assertEquals(4, pump.getFramesWritten());
+    assertEquals(Long.valueOf(33), muxer.samples.get(0));
+    assertEquals(5, encoder.released);
+  }
+
+  @Test
+  public void skipsCodecConfig() throws Exception {
+    encoder
+      .frame(0, CONFIG, 24)
+      .frame(0, KEY)
+      .frame(33, 0)
+      .frame(66, EOS, 0);
+
+    assertTrue(pump.drain(0));
+    pump.finish();
+
+    assertEquals(2, muxers.get(0).samples.size());
+    assertEquals(0, pump.getFramesDropped());
+    assertEquals(200, pump.getBytesWritten());
+    assertEquals(0, encoder.keyFrameRequests);
+  }
+
+  @Test
+  public void dropsFramesThatGoBackInTime() throws Exception {
+    encoder
+      .frame(0, KEY)
+      .frame(100, 0)
+      .frame(50, 0)
+      .frame(100, 0)
+      .frame(200, EOS);
+
+    assertTrue(pump.drain(0));
+    pump.finish();
+
+    List<Long> samples=muxers.get(0).samples;
+
+    assertEquals(3, samples.size());
+    assertEquals(Long.valueOf(200), samples.get(2));
+    assertEquals(2, pump.getFramesDropped());
+    assertEquals(200, pump.getDurationUs());
+  }
+
+  @Test
+  public void keepsDrainingUntilEndOfStream() throws Exception {
+    encoder.frame(0, KEY);
+
+    assertFalse(pump.drain(0));
+    assertFalse(pump.isEnded());
+
+    encoder.frame(33, EOS);
+
+    assertTrue(pump.drain(0));
+    assertTrue(pump.isEnded());
+  }
+
+  @Test
+  public void finishWithoutFramesReportsAnEmptyFile() throws Exception {
+    encoder.frame(0, EOS, 0);
+
+    assertTrue(pump.drain(0));
+    assertFalse(pump.finish());
+
+    FakeMuxer muxer=muxers.get(0);
+
+    // MediaMuxer throws on stop() with no samples
+    assertFalse(muxer.isStopped);
+    assertTrue(muxer.isReleased);
+    assertEquals(0, segments.size());
+  }
+
+  @Test
+  public void rollsOverOnTheNextKeyFrame() throws Exception {
+    pump.setSegmentLimits(250, 0);
+
+    for (int i=0; i<12; i++) {
+      encoder.frame(i*100, (i%6==0 ? KEY : 0)|(i==11 ? EOS : 0));
+    }
+
+    assertTrue(pump.drain(0));
+    pump.finish();
+
+    // 300 fills the first segment, so the pump asks for a key
+    // frame, and 400 starts the second; a natural key frame at
+    // 600 changes nothing, as the second is not full until 700
+    assertEquals(3, muxers.size());
+    assertEquals(4, muxers.get(0).samples.size());
+    assertEquals(4, muxers.get(1).samples.size());
+    assertEquals(4, muxers.get(2).samples.size());
+    assertEquals(Long.valueOf(400), muxers.get(1).samples.get(0));
+    assertEquals(Long.valueOf(800), muxers.get(2).samples.get(0));
+
+    // the third segment fills on the final frame, which asks for
+    // a key frame that never comes
+    assertEquals(3, encoder.keyFrameRequests);
+
+    for (FakeMuxer muxer : muxers) {
+      assertTrue(muxer.startsOnKeyFrame);
+      assertTrue(muxer.isStopped);
+      assertTrue(muxer.isReleased);
+    }
+
+    assertEquals(12, pump.getFramesWritten());
+    assertEquals(0, pump.getFramesDropped());
+    assertEquals(2, pump.getSegmentIndex());
+    assertEquals("0:300:400:false", segments.get(0));
+    assertEquals("1:300:400:false", segments.get(1));
+    assertEquals("2:300:400:true", segments.get(2));
+  }
+
+  @Test
+  public void rollsOverOnSize() throws Exception {
+    pump.setSegmentLimits(0, 250);
+
+    for (int i=0; i<6; i++) {
+      encoder.frame(i*100, (i==5 ? EOS : 0)|(i==0 ? KEY : 0));
+    }
+
+    assertTrue(pump.drain(0));
+    pump.finish();
+
+    assertEquals(2, muxers.size());
+    assertEquals(3, muxers.get(0).samples.size());
+    assertEquals(3, muxers.get(1).samples.size());
+    assertEquals(600, pump.getBytesWritten());
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void rejectsAFormatChangeMidStream() throws Exception {
+    encoder.frame(0, KEY);
+    pump.drain(0);
+    encoder.isFormatReported=false;
+    pump.drain(0);
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2015 CommonsWare, LLC
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.commonsware.cwac.cam2.video;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VideoProfileResolverTest {
+  private static final int QCIF=2;
+  private static final int CIF=3;
+  private static final int P480=4;
+  private static final int P720=5;
+  private static final int P1080=6;
+  private static final int QVGA=7;
+  private FakeProvider provider;
+  private FakeStore store;
+
+  static class FakeProvider implements VideoProfileResolver.ProfileProvider {
+    final HashMap<Integer, VideoProfile> profiles=
+      new HashMap<Integer, VideoProfile>();
+    int calls=0;
+
+    FakeProvider add(VideoProfile profile) {
+      profiles.put(profile.getQuality(), profile);
+
+      return(this);
+    }
+
+    @Override
+    public VideoProfile get(int cameraId, int quality) {
+      calls++;
+
+      if (quality==CIF) {
+        throw new RuntimeException("some devices do this");
+      }
+
+      return(profiles.get(quality));
+    }
+  }
+
+  static class FakeStore implements VideoProfileResolver.Store {
+    final HashMap<String, String> values=new HashMap<String, String>();
+
+    @Override
+    public String get(String key) {
+      return(values.get(key));
+    }
+
+    @Override
+    public void put(String key, String value) {
+      values.put(key, value);
+    }
+  }
+
+  @Before
+  public void setUp() {
+    provider=new FakeProvider()
+      .add(h264(QVGA, 320, 240, 500000))
+      .add(h264(P720, 1280, 720, 12000000))
+      .add(h264(P1080, 1920, 1080, 17000000))
+      .add(new VideoProfile(P480, 720, 480, 3000000,
+        VideoProfile.VIDEO_H264, 99)); // no usable audio
+    store=new FakeStore();
+  }
+
+  @Test
+  public void highPrefersCodecThenPixelsThenBitrate() {
+    assertEquals(P720, VideoProfileResolver.choose(Arrays.asList(
+      h263(P1080, 1920, 1080, 17000000),
+      h264(P720, 1280, 720, 12000000)), true));
+    assertEquals(P1080, VideoProfileResolver.choose(Arrays.asList(
+      h264(P720, 1280, 720, 12000000),
+      h264(P1080, 1920, 1080, 17000000)), true));
+    assertEquals(P1080, VideoProfileResolver.choose(Arrays.asList(
+      h264(P720, 1920, 1080, 12000000),
+      h264(P1080, 1920, 1080, 17000000)), true));
+  }
+
+  @Test
+  public void lowPrefersTheSmallestAtLeastQvga() {
+    List<VideoProfile> profiles=Arrays.asList(
+      h264(P480, 720, 480, 3000000),
+      h264(QVGA, 320, 240, 500000),
+      h264(CIF, 352, 288, 800000));
+
+    assertEquals(QVGA, VideoProfileResolver.choose(profiles, false));
+  }
+
+  @Test
+  public void lowStaysAboveTheQvgaFloor() {
+    List<VideoProfile> profiles=Arrays.asList(
+      h264(QCIF, 176, 144, 100000),
+      h264(P720, 1280, 720, 12000000),
+      h264(P480, 720, 480, 3000000));
+
+    assertEquals(P480, VideoProfileResolver.choose(profiles, false));
+  }
+
+  @Test
+  public void lowThenPrefersCodecThenLowerBitrate() {
+    assertEquals(CIF, VideoProfileResolver.choose(Arrays.asList(
+      h263(QVGA, 320, 240, 500000),
+      h264(CIF, 320, 240, 800000)), false));
+    assertEquals(CIF, VideoProfileResolver.choose(Arrays.asList(
+      h264(QVGA, 320, 240, 800000),
+      h264(CIF, 320, 240, 500000)), false));
+  }
+
+  @Test
+  public void tiesGoToTheFirstCandidate() {
+    List<VideoProfile> profiles=Arrays.asList(
+      h264(P720, 1280, 720, 12000000),
+      h264(P1080, 1280, 720, 12000000));
+
+    assertEquals(P720, VideoProfileResolver.choose(profiles, true));
+    assertEquals(P720, VideoProfileResolver.choose(profiles, false));
+  }
+
+  @Test
+  public void fallsBackWithNoCandidates() {
+    List<VideoProfile> none=new ArrayList<VideoProfile>();
+
+    assertEquals(VideoProfileResolver.QUALITY_HIGH,
+      VideoProfileResolver.choose(none, true));
+    assertEquals(VideoProfileResolver.QUALITY_LOW,
+      VideoProfileResolver.choose(none, false));
+  }
+
+  @Test
+  public void resolveSkipsUnusableProfiles() {
+    VideoProfileResolver resolver=
+      new VideoProfileResolver(provider, null, "build-1");
+
+    assertEquals(P1080, resolver.resolve(0, true));
+    assertEquals(QVGA, resolver.resolve(0, false));
+  }
+
+  @Test
+  public void probesEachCameraOnce() {
+    VideoProfileResolver resolver=
+      new VideoProfileResolver(provider, null, "build-1");
+
+    resolver.resolve(0, true);
+
+    int calls=provider.calls;
+
+    resolver.resolve(0, false);
+    resolver.resolve(0, true);
+    assertEquals(calls, provider.calls);
+
+    resolver.resolve(1, true);
+    assertEquals(calls*2, provider.calls);
+  }
+
+  @Test
+  public void savedAnswersSkipProbing() {
+    new VideoProfileResolver(provider, store, "build-1").resolve(0, true);
+
+    assertEquals("build-1|"+P1080+","+QVGA, store.values.get("camera0"));
+
+    provider.calls=0;
+
+    VideoProfileResolver resolver=
+      new VideoProfileResolver(provider, store, "build-1");
+
+    assertEquals(P1080, resolver.resolve(0, true));
+    assertEquals(QVGA, resolver.resolve(0, false));
+    assertEquals(0, provider.calls);
+  }
+
+  @Test
+  public void savedAnswersFromAnotherBuildAreIgnored() {
+    store.put("camera0", "build-1|"+P720+","+P480);
+
+    VideoProfileResolver resolver=
+      new VideoProfileResolver(provider, store, "build-2");
+
+    assertEquals(P1080, resolver.resolve(0, true));
+    assertTrue(provider.calls>0);
+    assertEquals("build-2|"+P1080+","+QVGA, store.values.get("camera0"));
+  }
+
+  @Test
+  public void recoversFromAMangledValue() {
+    String[] mangled={"build-1|", "build-1|5", "build-1|x,y",
+      "build-1", ""};
+
+    for (String value : mangled) {
+      store.put("camera0", value);
+      provider.calls=0;
+
+      VideoProfileResolver resolver=
+        new VideoProfileResolver(provider, store, "build-1");
+
+      assertEquals(QVGA, resolver.resolve(0, false));
+      assertTrue(provider.calls>0);
+      assertEquals("build-1|"+P1080+","+QVGA,
+        store.values.get("camera0"));
+    }
+  }
+
+  private static VideoProfile h264(int quality, int width, int height,
+                                   int bitrate) {
+    return(new VideoProfile(quality, width, height, bitrate,
+      VideoProfile.VIDEO_H264, VideoProfile.AUDIO_AAC));
+  }
+
+  private static VideoProfile h263(int quality, int width, int height,
+                                   int bitrate) {
+    return(new VideoProfile(quality, width, height, bitrate,
+      VideoProfile.VIDEO_H263, VideoProfile.AUDIO_AAC));
+  }
+}